@@ -19,6 +19,10 @@ package org.killbill.commons.jdbi;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 
@@ -29,15 +33,29 @@ import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.StatementLocator;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.io.BaseEncoding;
 
 // Similar to StringTemplate3StatementLocator, but safe to use in conjunction with dbi#setStatementLocator
 public class ReusableStringTemplate3StatementLocator implements StatementLocator {
 
+    // Number of distinct (template, attributes) combinations we keep the rendered SQL for
+    private static final long RENDERED_SQL_CACHE_MAX_SIZE = 1000;
+
     protected final StringTemplateGroup group;
     protected final StringTemplateGroup literals = new StringTemplateGroup("literals", AngleBracketTemplateLexer.class);
     protected final boolean treatLiteralsAsTemplates;
 
+    // For our DAOs, the rendered SQL only depends on a few @Define attributes (table name, owner, ...), so we render each
+    // combination once instead of on every statement execution
+    private final Cache<RenderedSqlKey, String> renderedSqlCache = CacheBuilder.newBuilder()
+                                                                                 .maximumSize(RENDERED_SQL_CACHE_MAX_SIZE)
+                                                                                 .recordStats()
+                                                                                 .build();
+
     public ReusableStringTemplate3StatementLocator(final Class baseClass) {
         this(mungify("/" + baseClass.getName()) + ".sql.stg", false, false);
     }
@@ -55,28 +73,84 @@ public class ReusableStringTemplate3StatementLocator implements StatementLocator
     public ReusableStringTemplate3StatementLocator(final String templateGroupFilePathOnClasspath,
                                                    final boolean allowImplicitTemplateGroup,
                                                    final boolean treatLiteralsAsTemplates) {
+        this(templateGroupFilePathOnClasspath, null, allowImplicitTemplateGroup, treatLiteralsAsTemplates);
+    }
+
+    // Templates which aren't defined in the group are looked up in the group of superGroupClass (e.g. a SqlDao inheriting the
+    // statements of QueueSqlDao), like StringTemplate3StatementLocator.Builder#withSuperGroup
+    public ReusableStringTemplate3StatementLocator(final String templateGroupFilePathOnClasspath,
+                                                   final Class superGroupClass,
+                                                   final boolean allowImplicitTemplateGroup,
+                                                   final boolean treatLiteralsAsTemplates) {
         this.treatLiteralsAsTemplates = treatLiteralsAsTemplates;
-        final InputStream ins = getClass().getResourceAsStream(templateGroupFilePathOnClasspath);
-        if (allowImplicitTemplateGroup && ins == null) {
+
+        final String superGroupFilePathOnClasspath = superGroupClass == null ? null : mungify("/" + superGroupClass.getName()) + ".sql.stg";
+        final StringTemplateGroup superGroup;
+        if (superGroupFilePathOnClasspath == null || superGroupFilePathOnClasspath.equals(templateGroupFilePathOnClasspath)) {
+            superGroup = null;
+        } else {
+            superGroup = loadGroup(superGroupFilePathOnClasspath, null);
+            if (superGroup == null) {
+                throw new IllegalStateException("unable to find group file " + superGroupFilePathOnClasspath + " on classpath");
+            }
+        }
+
+        final StringTemplateGroup group = loadGroup(templateGroupFilePathOnClasspath, superGroup);
+        if (group != null) {
+            this.group = group;
+        } else if (allowImplicitTemplateGroup) {
             this.group = new StringTemplateGroup("empty template group", AngleBracketTemplateLexer.class);
-        } else if (ins == null) {
+            if (superGroup != null) {
+                this.group.setSuperGroup(superGroup);
+            }
+        } else {
             throw new IllegalStateException("unable to find group file "
                                             + templateGroupFilePathOnClasspath
                                             + " on classpath");
-        } else {
-            final InputStreamReader reader = new InputStreamReader(ins);
-            try {
-                this.group = new StringTemplateGroup(reader, AngleBracketTemplateLexer.class);
-                reader.close();
-            } catch (IOException e) {
-                throw new IllegalStateException("unable to load string template group " + templateGroupFilePathOnClasspath,
-                                                e);
-            }
         }
     }
 
-    // Note! This code needs to be thread safe. We just synchronize the whole method for now, we could probably do better...
-    public synchronized String locate(final String name, final StatementContext ctx) throws Exception {
+    // Returns null if the group file doesn't exist
+    private StringTemplateGroup loadGroup(final String templateGroupFilePathOnClasspath, final StringTemplateGroup superGroup) {
+        final InputStream ins = getClass().getResourceAsStream(templateGroupFilePathOnClasspath);
+        if (ins == null) {
+            return null;
+        }
+        final InputStreamReader reader = new InputStreamReader(ins);
+        try {
+            final StringTemplateGroup group = superGroup == null ?
+                                              new StringTemplateGroup(reader, AngleBracketTemplateLexer.class) :
+                                              new StringTemplateGroup(reader, AngleBracketTemplateLexer.class, null, superGroup);
+            reader.close();
+            return group;
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to load string template group " + templateGroupFilePathOnClasspath,
+                                            e);
+        }
+    }
+
+    public String locate(final String name, final StatementContext ctx) throws Exception {
+        final RenderedSqlKey key = RenderedSqlKey.create(name, ctx.getAttributes());
+        if (key == null) {
+            return render(name, ctx);
+        }
+
+        final String cachedSql = renderedSqlCache.getIfPresent(key);
+        if (cachedSql != null) {
+            return cachedSql;
+        }
+        final String sql = render(name, ctx);
+        renderedSqlCache.put(key, sql);
+        return sql;
+    }
+
+    public CacheStats getRenderedSqlCacheStats() {
+        return renderedSqlCache.stats();
+    }
+
+    // Note! This code needs to be thread safe: templates are shared and we set their attributes, so we synchronize the whole method.
+    // This is only hit on cache misses though.
+    private synchronized String render(final String name, final StatementContext ctx) {
         if (group.isDefined(name)) {
             final StringTemplate t = group.lookupTemplate(name);
             for (final Map.Entry<String, Object> entry : ctx.getAttributes().entrySet()) {
@@ -109,6 +183,65 @@ public class ReusableStringTemplate3StatementLocator implements StatementLocator
         }
     }
 
+    private static final class RenderedSqlKey {
+
+        private final String name;
+        private final Map<String, Object> attributes;
+
+        private RenderedSqlKey(final String name, final Map<String, Object> attributes) {
+            this.name = name;
+            this.attributes = attributes;
+        }
+
+        // Returns null if one of the attributes cannot be safely used as a key (e.g. a mutable bean rendered by the template)
+        private static RenderedSqlKey create(final String name, final Map<String, Object> attributes) {
+            final Map<String, Object> keyAttributes = new HashMap<String, Object>(attributes.size());
+            for (final Map.Entry<String, Object> entry : attributes.entrySet()) {
+                final Object keyValue = toKeyValue(entry.getValue());
+                if (keyValue == null && entry.getValue() != null) {
+                    return null;
+                }
+                keyAttributes.put(entry.getKey(), keyValue);
+            }
+            return new RenderedSqlKey(name, keyAttributes);
+        }
+
+        private static Object toKeyValue(final Object value) {
+            if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+                return value;
+            } else if (value instanceof Collection) {
+                final List<Object> keyValues = new ArrayList<Object>(((Collection) value).size());
+                for (final Object cur : (Collection) value) {
+                    final Object keyValue = toKeyValue(cur);
+                    if (keyValue == null && cur != null) {
+                        return null;
+                    }
+                    keyValues.add(keyValue);
+                }
+                return keyValues;
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final RenderedSqlKey that = (RenderedSqlKey) o;
+            return name.equals(that.name) && attributes.equals(that.attributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(name, attributes);
+        }
+    }
+
     private final static String sep = "/"; // *Not* System.getProperty("file.separator"), which breaks in jars
 
     private static String mungify(final String path) {
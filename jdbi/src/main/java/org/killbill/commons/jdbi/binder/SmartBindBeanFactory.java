@@ -17,11 +17,16 @@
 package org.killbill.commons.jdbi.binder;
 
 import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -31,8 +36,15 @@ import org.skife.jdbi.v2.sqlobject.Binder;
 import org.skife.jdbi.v2.sqlobject.BinderFactory;
 
 // Similar to org.skife.jdbi.v2.sqlobject.BindBeanFactory but handles JodaTime, Mockito objects, etc.
+//
+// The bean introspection is done once per class: each class gets a binding plan (property names, read methods and
+// value converters chosen from the property types) which is reused for every bound bean -- e.g. every row of a batch insert.
+// Plans are kept by the factory (i.e. for the lifetime of the SqlDao method using it), not statically, so that we don't
+// pin the class loader of the bean classes.
 public class SmartBindBeanFactory extends BinderBase implements BinderFactory {
 
+    private final ConcurrentMap<Class<?>, PropertyBinding[]> bindingPlans = new ConcurrentHashMap<Class<?>, PropertyBinding[]>();
+
     public Binder build(final Annotation annotation) {
         return new Binder<SmartBindBean, Object>() {
             public void bind(final SQLStatement q, final SmartBindBean bind, final Object arg) {
@@ -44,32 +56,14 @@ public class SmartBindBeanFactory extends BinderBase implements BinderFactory {
                 }
 
                 try {
-                    final BeanInfo infos = Introspector.getBeanInfo(arg.getClass());
-                    final PropertyDescriptor[] props = infos.getPropertyDescriptors();
-                    for (final PropertyDescriptor prop : props) {
-                        final Method readMethod = prop.getReadMethod();
-                        // Null for e.g. proxy objects (Mockito)
-                        if (readMethod != null) {
-                            final String bindingName = prefix + prop.getName();
-
-                            final Object value = readMethod.invoke(arg);
-                            if (value == null) {
-                                // TODO right sql type?
-                                q.bind(bindingName, (Object) null);
-                            } else if (value instanceof DateTime) {
-                                q.bind(bindingName, getDate((DateTime) value));
-                            } else if (value instanceof DateTimeZone) {
-                                q.bind(bindingName, value.toString());
-                            } else if (value instanceof Enum /* Works for Enum inside classes */ || value.getClass().isEnum()) {
-                                q.bind(bindingName, value.toString());
-                            } else if (value instanceof LocalDate) {
-                                // ISO8601 format
-                                q.bind(bindingName, value.toString());
-                            } else if (value instanceof UUID) {
-                                q.bind(bindingName, getUUIDString((UUID) value));
-                            } else {
-                                q.bind(bindingName, value);
-                            }
+                    for (final PropertyBinding propertyBinding : getBindingPlan(arg.getClass())) {
+                        final String bindingName = prefix.isEmpty() ? propertyBinding.name : prefix + propertyBinding.name;
+                        final Object value = propertyBinding.readMethod.invoke(arg);
+                        if (value == null) {
+                            // TODO right sql type?
+                            q.bind(bindingName, (Object) null);
+                        } else {
+                            q.bind(bindingName, propertyBinding.converter.convert(value));
                         }
                     }
                 } catch (Exception e) {
@@ -78,4 +72,92 @@ public class SmartBindBeanFactory extends BinderBase implements BinderFactory {
             }
         };
     }
+
+    private PropertyBinding[] getBindingPlan(final Class<?> beanClass) throws IntrospectionException {
+        final PropertyBinding[] cachedBindingPlan = bindingPlans.get(beanClass);
+        if (cachedBindingPlan != null) {
+            return cachedBindingPlan;
+        }
+
+        final BeanInfo infos = Introspector.getBeanInfo(beanClass);
+        final List<PropertyBinding> bindingPlan = new ArrayList<PropertyBinding>();
+        for (final PropertyDescriptor prop : infos.getPropertyDescriptors()) {
+            final Method readMethod = prop.getReadMethod();
+            // Null for e.g. proxy objects (Mockito)
+            if (readMethod != null) {
+                readMethod.setAccessible(true);
+                bindingPlan.add(new PropertyBinding(prop.getName(), readMethod, ValueConverter.forType(readMethod.getReturnType())));
+            }
+        }
+
+        final PropertyBinding[] result = bindingPlan.toArray(new PropertyBinding[bindingPlan.size()]);
+        final PropertyBinding[] existingBindingPlan = bindingPlans.putIfAbsent(beanClass, result);
+        return existingBindingPlan != null ? existingBindingPlan : result;
+    }
+
+    private static final class PropertyBinding {
+
+        private final String name;
+        private final Method readMethod;
+        private final ValueConverter converter;
+
+        private PropertyBinding(final String name, final Method readMethod, final ValueConverter converter) {
+            this.name = name;
+            this.readMethod = readMethod;
+            this.converter = converter;
+        }
+    }
+
+    // Converts non null property values into something the driver understands
+    private abstract static class ValueConverter {
+
+        private static final ValueConverter IDENTITY = new ValueConverter() {
+            Object convert(final Object value) {
+                return value;
+            }
+        };
+
+        private static final ValueConverter DATE_TIME = new ValueConverter() {
+            Object convert(final Object value) {
+                return ((DateTime) value).toDate();
+            }
+        };
+
+        // DateTimeZone, LocalDate (ISO8601 format), UUID and enums
+        private static final ValueConverter TO_STRING = new ValueConverter() {
+            Object convert(final Object value) {
+                return value.toString();
+            }
+        };
+
+        // When the declared type doesn't tell us (e.g. Object), look at the value itself
+        private static final ValueConverter DYNAMIC = new ValueConverter() {
+            Object convert(final Object value) {
+                if (value instanceof DateTime) {
+                    return DATE_TIME.convert(value);
+                } else if (value instanceof DateTimeZone ||
+                           value instanceof Enum /* Works for Enum inside classes */ || value.getClass().isEnum() ||
+                           value instanceof LocalDate ||
+                           value instanceof UUID) {
+                    return TO_STRING.convert(value);
+                } else {
+                    return value;
+                }
+            }
+        };
+
+        abstract Object convert(final Object value);
+
+        static ValueConverter forType(final Class<?> type) {
+            if (DateTime.class.equals(type)) {
+                return DATE_TIME;
+            } else if (DateTimeZone.class.isAssignableFrom(type) || LocalDate.class.equals(type) || UUID.class.equals(type) || Enum.class.isAssignableFrom(type)) {
+                return TO_STRING;
+            } else if (type.isPrimitive() || String.class.equals(type) || Number.class.isAssignableFrom(type) || Boolean.class.equals(type)) {
+                return IDENTITY;
+            } else {
+                return DYNAMIC;
+            }
+        }
+    }
 }
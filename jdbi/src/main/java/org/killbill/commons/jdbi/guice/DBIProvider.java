@@ -25,6 +25,7 @@ import org.killbill.commons.jdbi.argument.LocalDateArgumentFactory;
 import org.killbill.commons.jdbi.argument.UUIDArgumentFactory;
 import org.killbill.commons.jdbi.log.Slf4jLogging;
 import org.killbill.commons.jdbi.mapper.UUIDMapper;
+import org.killbill.commons.jdbi.statement.AdaptiveFetchSizeStatementBuilderFactory;
 import org.killbill.commons.jdbi.transaction.NotificationTransactionHandler;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.IDBI;
@@ -37,11 +38,12 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Provider;
 import javax.sql.DataSource;
 
+// Doesn't depend on metrics-core (an optional dependency), see InstrumentedDBIProvider for the statement metrics
 public class DBIProvider implements Provider<IDBI> {
 
     private static final Logger logger = LoggerFactory.getLogger(DBIProvider.class);
 
-    private final DaoConfig config;
+    protected final DaoConfig config;
     private final DataSource ds;
     private final TransactionHandler transactionHandler;
     private SQLLog sqlLog;
@@ -77,18 +79,32 @@ public class DBIProvider implements Provider<IDBI> {
             dbi.setTransactionHandler(transactionHandler);
         }
 
+        if (config != null && config.isAdaptiveFetchSizeEnabled()) {
+            dbi.setStatementBuilderFactory(new AdaptiveFetchSizeStatementBuilderFactory());
+        }
+
 
         if (sqlLog != null) {
             dbi.setSQLLog(sqlLog);
         } else if (config != null) {
-            final Slf4jLogging sqlLog = new Slf4jLogging(logger, config.getLogLevel());
+            final Slf4jLogging sqlLog = new Slf4jLogging(logger, config.getLogLevel(), config.getSlowQueryLogThreshold().getMillis());
             dbi.setSQLLog(sqlLog);
         }
 
         if (timingCollector != null) {
             dbi.setTimingCollector(timingCollector);
+        } else {
+            final TimingCollector defaultTimingCollector = createDefaultTimingCollector();
+            if (defaultTimingCollector != null) {
+                dbi.setTimingCollector(defaultTimingCollector);
+            }
         }
 
         return dbi;
     }
+
+    // Used when no TimingCollector is specified
+    protected TimingCollector createDefaultTimingCollector() {
+        return null;
+    }
 }
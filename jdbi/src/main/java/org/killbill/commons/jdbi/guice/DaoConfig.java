@@ -113,6 +113,26 @@ public interface DaoConfig {
     @Default("DEBUG")
     LogLevel getLogLevel();
 
+    @Description("Whether to adapt the fetch size of queries (buffered, chunked or streamed) to the size of their results")
+    @Config("org.killbill.dao.adaptiveFetchSize")
+    @Default("false")
+    boolean isAdaptiveFetchSizeEnabled();
+
+    @Description("When greater than 0, only the SQL queries taking at least that long are logged")
+    @Config("org.killbill.dao.slowQueryLogThreshold")
+    @Default("0s")
+    TimeSpan getSlowQueryLogThreshold();
+
+    @Description("Whether to fill the pool to minIdle connections and prepare the registered statements at startup")
+    @Config("org.killbill.dao.warmup")
+    @Default("false")
+    boolean isWarmupEnabled();
+
+    @Description("Whether to record a timer per SqlDao statement and table, when a MetricRegistry is available")
+    @Config("org.killbill.dao.statementMetrics")
+    @Default("false")
+    boolean isStatementMetricsEnabled();
+
     @Description("Connection pooling type")
     @Config("org.killbill.dao.poolingType")
     @Default("HIKARICP")
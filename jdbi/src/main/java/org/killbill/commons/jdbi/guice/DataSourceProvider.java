@@ -25,6 +25,7 @@ import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.sql.DataSource;
 
+import org.killbill.commons.jdbi.warmup.DatabaseWarmup;
 import org.skife.config.TimeSpan;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -34,12 +35,15 @@ import com.mchange.v2.c3p0.ComboPooledDataSource;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
+// Doesn't depend on metrics-core (an optional dependency), see InstrumentedDataSourceProvider for the pool metrics
 public class DataSourceProvider implements Provider<DataSource> {
 
-    private final DaoConfig config;
-    private final String poolName;
+    protected final DaoConfig config;
+    private final String jdbcUrl;
+    protected final String poolName;
     private final boolean useMariaDB;
 
+    private DatabaseWarmup databaseWarmup;
     private DatabaseType databaseType;
     private String dataSourceClassName;
     private String driverClassName;
@@ -61,12 +65,24 @@ public class DataSourceProvider implements Provider<DataSource> {
     }
 
     public DataSourceProvider(final DaoConfig config, final String poolName, final boolean useMariaDB) {
+        this(config, config.getJdbcUrl(), poolName, useMariaDB);
+    }
+
+    // Used for replicas, which share the primary settings but not its url
+    protected DataSourceProvider(final DaoConfig config, final String jdbcUrl, final String poolName, final boolean useMariaDB) {
         this.config = config;
+        this.jdbcUrl = jdbcUrl;
         this.poolName = poolName;
         this.useMariaDB = useMariaDB;
         parseJDBCUrl();
     }
 
+    // Statements to prepare on the pool connections at startup, when warmup is enabled
+    @com.google.inject.Inject(optional = true)
+    public void setDatabaseWarmup(final DatabaseWarmup databaseWarmup) {
+        this.databaseWarmup = databaseWarmup;
+    }
+
     @Override
     public DataSource get() {
         return getDataSource();
@@ -90,7 +106,24 @@ public class DataSourceProvider implements Provider<DataSource> {
             throw new IllegalArgumentException("DataSource " + config.getConnectionPoolingType() + " unsupported");
         }
 
-        return ds;
+        final DataSource dataSource = instrument(ds);
+
+        if (config.isWarmupEnabled()) {
+            // Open the minIdle connections now rather than on the first requests, and prepare the registered statements on them
+            final DatabaseWarmup warmup = databaseWarmup != null ? databaseWarmup : new DatabaseWarmup(poolName == null ? "default" : poolName);
+            warmup(warmup, dataSource);
+        }
+
+        return dataSource;
+    }
+
+    // Hook to wrap the pool (e.g. to publish its metrics)
+    protected DataSource instrument(final DataSource pool) {
+        return pool;
+    }
+
+    protected void warmup(final DatabaseWarmup warmup, final DataSource dataSource) {
+        warmup.warmup(dataSource, config.getMinIdle());
     }
 
     private DataSource getHikariCPDataSource() {
@@ -105,16 +138,14 @@ public class DataSourceProvider implements Provider<DataSource> {
         hikariConfig.setMaxLifetime(toMilliSeconds(config.getMaxConnectionAge()));
         // TODO config.getIdleConnectionTestPeriod() ?
 
+        // Also used to export the idle connections metric, see InstrumentedDataSourceProvider
         hikariConfig.setRegisterMbeans(true);
 
-        // TODO Not yet supported
-        // hikariConfig.setRecordMetrics(true);
-
         if (poolName != null) {
             hikariConfig.setPoolName(poolName);
         }
 
-        hikariConfig.addDataSourceProperty("url", config.getJdbcUrl());
+        hikariConfig.addDataSourceProperty("url", jdbcUrl);
         hikariConfig.addDataSourceProperty("user", config.getUsername());
         hikariConfig.addDataSourceProperty("password", config.getPassword());
 
@@ -134,7 +165,7 @@ public class DataSourceProvider implements Provider<DataSource> {
             hikariConfig.setDataSourceClassName(dataSourceClassName);
         } else {
             // Old-school DriverManager-based JDBC
-            hikariConfig.setJdbcUrl(config.getJdbcUrl());
+            hikariConfig.setJdbcUrl(jdbcUrl);
             if (driverClassName != null) {
                 hikariConfig.setDriverClassName(driverClassName);
             }
@@ -145,7 +176,7 @@ public class DataSourceProvider implements Provider<DataSource> {
 
     private DataSource getBoneCPDatSource() {
         final BoneCPConfig dbConfig = new BoneCPConfig();
-        dbConfig.setJdbcUrl(config.getJdbcUrl());
+        dbConfig.setJdbcUrl(jdbcUrl);
         dbConfig.setUsername(config.getUsername());
         dbConfig.setPassword(config.getPassword());
         dbConfig.setMinConnectionsPerPartition(config.getMinIdle());
@@ -164,7 +195,7 @@ public class DataSourceProvider implements Provider<DataSource> {
 
     private DataSource getC3P0DataSource() {
         final ComboPooledDataSource cpds = new ComboPooledDataSource();
-        cpds.setJdbcUrl(config.getJdbcUrl());
+        cpds.setJdbcUrl(jdbcUrl);
         cpds.setUser(config.getUsername());
         cpds.setPassword(config.getPassword());
         // http://www.mchange.com/projects/c3p0/#minPoolSize
@@ -211,7 +242,7 @@ public class DataSourceProvider implements Provider<DataSource> {
         return (int) TimeUnit.SECONDS.convert(period, timeUnit);
     }
 
-    private int toMilliSeconds(final TimeSpan timeSpan) {
+    protected int toMilliSeconds(final TimeSpan timeSpan) {
         return toMilliSeconds(timeSpan.getPeriod(), timeSpan.getUnit());
     }
 
@@ -220,7 +251,7 @@ public class DataSourceProvider implements Provider<DataSource> {
     }
 
     private void parseJDBCUrl() {
-        final URI uri = URI.create(config.getJdbcUrl().substring(5));
+        final URI uri = URI.create(jdbcUrl.substring(5));
 
         final String schemeLocation;
         if (uri.getPath() != null) {
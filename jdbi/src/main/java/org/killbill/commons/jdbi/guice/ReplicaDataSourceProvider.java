@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.guice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+import javax.sql.DataSource;
+
+import org.killbill.commons.jdbi.routing.ReplicaDataSource;
+import org.killbill.commons.jdbi.warmup.DatabaseWarmup;
+
+// Builds one pool per replica url, sharing the primary pool settings, see RoutingDBIProvider
+// (and InstrumentedReplicaDataSourceProvider for the pool metrics)
+public class ReplicaDataSourceProvider implements Provider<DataSource> {
+
+    private static final long DEFAULT_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final DaoConfig config;
+    private final List<String> replicaJdbcUrls;
+    private final DataSource primaryDataSource;
+    private final String poolName;
+    private final boolean useMariaDB;
+
+    private DatabaseWarmup databaseWarmup;
+
+    public ReplicaDataSourceProvider(final DaoConfig config, final List<String> replicaJdbcUrls, final DataSource primaryDataSource, final String poolName) {
+        this(config, replicaJdbcUrls, primaryDataSource, poolName, true);
+    }
+
+    public ReplicaDataSourceProvider(final DaoConfig config,
+                                     final List<String> replicaJdbcUrls,
+                                     final DataSource primaryDataSource,
+                                     final String poolName,
+                                     final boolean useMariaDB) {
+        this.config = config;
+        this.replicaJdbcUrls = replicaJdbcUrls;
+        this.primaryDataSource = primaryDataSource;
+        this.poolName = poolName;
+        this.useMariaDB = useMariaDB;
+    }
+
+    // Same statements as the primary pool
+    @com.google.inject.Inject(optional = true)
+    public void setDatabaseWarmup(final DatabaseWarmup databaseWarmup) {
+        this.databaseWarmup = databaseWarmup;
+    }
+
+    @Override
+    public DataSource get() {
+        final List<DataSource> replicas = new ArrayList<DataSource>(replicaJdbcUrls.size());
+        for (int i = 0; i < replicaJdbcUrls.size(); i++) {
+            final String replicaPoolName = (poolName == null ? "default" : poolName) + "-replica-" + i;
+            final DataSourceProvider dataSourceProvider = createDataSourceProvider(config, replicaJdbcUrls.get(i), replicaPoolName, useMariaDB);
+            dataSourceProvider.setDatabaseWarmup(databaseWarmup);
+            replicas.add(dataSourceProvider.get());
+        }
+        return new ReplicaDataSource(replicas, primaryDataSource, DEFAULT_RETRY_DELAY_MS);
+    }
+
+    protected DataSourceProvider createDataSourceProvider(final DaoConfig config, final String jdbcUrl, final String poolName, final boolean useMariaDB) {
+        return new DataSourceProvider(config, jdbcUrl, poolName, useMariaDB);
+    }
+}
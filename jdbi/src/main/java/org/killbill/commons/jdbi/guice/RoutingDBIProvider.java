@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.guice;
+
+import javax.inject.Provider;
+import javax.sql.DataSource;
+
+import org.killbill.commons.jdbi.routing.RoutingDBI;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TimingCollector;
+import org.skife.jdbi.v2.tweak.SQLLog;
+import org.skife.jdbi.v2.tweak.TransactionHandler;
+
+// Variant of DBIProvider sending the @ReadOnly SqlDao methods to the replicas (see ReplicaDataSourceProvider)
+// (and InstrumentedRoutingDBIProvider for the statement metrics)
+public class RoutingDBIProvider implements Provider<IDBI> {
+
+    protected final DBIProvider primaryDBIProvider;
+    protected final DBIProvider replicaDBIProvider;
+
+    public RoutingDBIProvider(final DaoConfig config, final DataSource primaryDataSource, final DataSource replicaDataSource, final TransactionHandler transactionHandler) {
+        this.primaryDBIProvider = createDBIProvider(config, primaryDataSource, transactionHandler);
+        // Nothing is committed on the replicas
+        this.replicaDBIProvider = createDBIProvider(config, replicaDataSource, null);
+    }
+
+    @com.google.inject.Inject(optional = true)
+    public void setSqlLog(final SQLLog sqlLog) {
+        primaryDBIProvider.setSqlLog(sqlLog);
+        replicaDBIProvider.setSqlLog(sqlLog);
+    }
+
+    @com.google.inject.Inject(optional = true)
+    public void setTimingCollector(final TimingCollector timingCollector) {
+        primaryDBIProvider.setTimingCollector(timingCollector);
+        replicaDBIProvider.setTimingCollector(timingCollector);
+    }
+
+    @Override
+    public IDBI get() {
+        return new RoutingDBI(primaryDBIProvider.get(), replicaDBIProvider.get());
+    }
+
+    // Called from the constructor
+    protected DBIProvider createDBIProvider(final DaoConfig config, final DataSource dataSource, final TransactionHandler transactionHandler) {
+        return new DBIProvider(config, dataSource, transactionHandler);
+    }
+}
@@ -16,14 +16,30 @@
 
 package org.killbill.commons.jdbi.log;
 
-import org.skife.jdbi.v2.logging.FormattedLog;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.SQLLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class Slf4jLogging extends FormattedLog {
+// Same messages as org.skife.jdbi.v2.logging.FormattedLog, but formatted by SLF4J only when actually logged.
+// When a slow query threshold is specified, only the statements (and commits/rollbacks) taking at least that long are logged.
+public class Slf4jLogging implements SQLLog {
+
+    private static final BatchLogger NO_OP_BATCH_LOGGER = new BatchLogger() {
+        @Override
+        public void add(final String sql) {
+        }
+
+        @Override
+        public void log(final long time) {
+        }
+    };
 
-    private final Logger logger;
-    private final LogLevel logLevel;
+    private final LevelLogger levelLogger;
+    private final long slowQueryThresholdMs;
 
     public Slf4jLogging() {
         this(LoggerFactory.getLogger(Slf4jLogging.class));
@@ -34,49 +50,193 @@ public class Slf4jLogging extends FormattedLog {
     }
 
     public Slf4jLogging(final Logger logger, final LogLevel logLevel) {
-        this.logger = logger;
-        this.logLevel = logLevel;
+        this(logger, logLevel, 0);
+    }
+
+    public Slf4jLogging(final Logger logger, final LogLevel logLevel, final long slowQueryThresholdMs) {
+        this.levelLogger = createLevelLogger(logger, logLevel);
+        this.slowQueryThresholdMs = slowQueryThresholdMs;
+    }
+
+    @Override
+    public void logSQL(final long time, final String sql) {
+        if (shouldLog(time)) {
+            levelLogger.log("statement:[{}] took {} millis", sql, time);
+        }
+    }
+
+    @Override
+    public void logPreparedBatch(final long time, final String sql, final int count) {
+        if (shouldLog(time)) {
+            levelLogger.log("prepared batch with {} parts:[{}] took {} millis", count, sql, time);
+        }
+    }
+
+    @Override
+    public BatchLogger logBatch() {
+        if (!levelLogger.isEnabled()) {
+            return NO_OP_BATCH_LOGGER;
+        }
+
+        // The statements are only formatted if the batch is logged
+        return new BatchLogger() {
+
+            private final List<String> statements = new LinkedList<String>();
+
+            @Override
+            public void add(final String sql) {
+                statements.add(sql);
+            }
+
+            @Override
+            public void log(final long time) {
+                if (shouldLog(time)) {
+                    final StringBuilder batch = new StringBuilder();
+                    for (final String sql : statements) {
+                        if (batch.length() > 0) {
+                            batch.append(",");
+                        }
+                        batch.append("[").append(sql).append("]");
+                    }
+                    levelLogger.log("batch:[{}] took {} millis", batch, time);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void logBeginTransaction(final Handle h) {
+        if (isVerbose()) {
+            levelLogger.log("begin transaction on [{}]", h);
+        }
+    }
+
+    @Override
+    public void logCommitTransaction(final long time, final Handle h) {
+        if (shouldLog(time)) {
+            levelLogger.log("commit transaction on [{}] took {} millis", h, time);
+        }
+    }
+
+    @Override
+    public void logRollbackTransaction(final long time, final Handle h) {
+        if (shouldLog(time)) {
+            levelLogger.log("rollback transaction on [{}] took {} millis", h, time);
+        }
+    }
+
+    @Override
+    public void logObtainHandle(final long time, final Handle h) {
+        if (isVerbose()) {
+            levelLogger.log("Handle [{}] obtained in {} millis", h, time);
+        }
+    }
+
+    @Override
+    public void logReleaseHandle(final Handle h) {
+        if (isVerbose()) {
+            levelLogger.log("Handle [{}] released", h);
+        }
+    }
+
+    @Override
+    public void logCheckpointTransaction(final Handle h, final String name) {
+        if (isVerbose()) {
+            levelLogger.log("checkpoint [{}] created on [{}]", name, h);
+        }
     }
 
-    /**
-     * Used to ask implementations if logging is enabled.
-     *
-     * @return true if statement logging is enabled
-     */
     @Override
-    protected boolean isEnabled() {
-        if (logLevel == LogLevel.DEBUG) {
-            return logger.isDebugEnabled();
-        } else if (logLevel == LogLevel.TRACE) {
-            return logger.isTraceEnabled();
-        } else if (logLevel == LogLevel.INFO) {
-            return logger.isInfoEnabled();
-        } else if (logLevel == LogLevel.WARN) {
-            return logger.isWarnEnabled();
-        } else if (logLevel == LogLevel.ERROR) {
-            return logger.isErrorEnabled();
-        } else {
-            return false;
+    public void logReleaseCheckpointTransaction(final Handle h, final String name) {
+        if (isVerbose()) {
+            levelLogger.log("checkpoint [{}] on [{}] released", name, h);
         }
     }
 
-    /**
-     * Log the statement passed in
-     *
-     * @param msg the message to log
-     */
     @Override
-    protected void log(final String msg) {
-        if (logLevel.equals(LogLevel.DEBUG)) {
-            logger.debug(msg);
-        } else if (logLevel.equals(LogLevel.TRACE)) {
-            logger.trace(msg);
-        } else if (logLevel.equals(LogLevel.INFO)) {
-            logger.info(msg);
-        } else if (logLevel.equals(LogLevel.WARN)) {
-            logger.warn(msg);
-        } else if (logLevel.equals(LogLevel.ERROR)) {
-            logger.error(msg);
+    public void logRollbackToCheckpoint(final long time, final Handle h, final String checkpointName) {
+        if (shouldLog(time)) {
+            levelLogger.log("checkpoint [{}] on [{}] rolled back in {} millis", checkpointName, h, time);
+        }
+    }
+
+    private boolean shouldLog(final long time) {
+        return time >= slowQueryThresholdMs && levelLogger.isEnabled();
+    }
+
+    // Events without a duration are only logged when all statements are
+    private boolean isVerbose() {
+        return slowQueryThresholdMs <= 0 && levelLogger.isEnabled();
+    }
+
+    private static LevelLogger createLevelLogger(final Logger logger, final LogLevel logLevel) {
+        switch (logLevel) {
+            case DEBUG:
+                return new LevelLogger() {
+                    public boolean isEnabled() {
+                        return logger.isDebugEnabled();
+                    }
+
+                    public void log(final String format, final Object... arguments) {
+                        logger.debug(format, arguments);
+                    }
+                };
+            case TRACE:
+                return new LevelLogger() {
+                    public boolean isEnabled() {
+                        return logger.isTraceEnabled();
+                    }
+
+                    public void log(final String format, final Object... arguments) {
+                        logger.trace(format, arguments);
+                    }
+                };
+            case INFO:
+                return new LevelLogger() {
+                    public boolean isEnabled() {
+                        return logger.isInfoEnabled();
+                    }
+
+                    public void log(final String format, final Object... arguments) {
+                        logger.info(format, arguments);
+                    }
+                };
+            case WARN:
+                return new LevelLogger() {
+                    public boolean isEnabled() {
+                        return logger.isWarnEnabled();
+                    }
+
+                    public void log(final String format, final Object... arguments) {
+                        logger.warn(format, arguments);
+                    }
+                };
+            case ERROR:
+                return new LevelLogger() {
+                    public boolean isEnabled() {
+                        return logger.isErrorEnabled();
+                    }
+
+                    public void log(final String format, final Object... arguments) {
+                        logger.error(format, arguments);
+                    }
+                };
+            default:
+                return new LevelLogger() {
+                    public boolean isEnabled() {
+                        return false;
+                    }
+
+                    public void log(final String format, final Object... arguments) {
+                    }
+                };
         }
     }
+
+    private interface LevelLogger {
+
+        boolean isEnabled();
+
+        void log(String format, Object... arguments);
+    }
 }
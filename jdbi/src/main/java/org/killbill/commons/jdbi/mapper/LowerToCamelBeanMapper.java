@@ -20,22 +20,24 @@ import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.sql.Blob;
-import java.sql.Date;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Time;
 import java.sql.Timestamp;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -46,13 +48,24 @@ import org.skife.jdbi.v2.tweak.ResultSetMapper;
 import com.google.common.base.CaseFormat;
 
 // Identical to org.skife.jdbi.v2.BeanMapper but maps created_date to createdDate
+//
+// The mapping of each column (how to read it, which setter or field to write it to) is resolved once per column layout
+// and reused for every row, instead of going through the ResultSetMetaData and the type checks for each column of each row.
 public class LowerToCamelBeanMapper<T> implements ResultSetMapper<T> {
 
     private final Class<T> type;
     private final Map<String, PropertyDescriptor> properties = new HashMap<String, PropertyDescriptor>();
+    private final ConcurrentMap<List<String>, ColumnMapping[]> plansByColumnLabels = new ConcurrentHashMap<List<String>, ColumnMapping[]>();
+
+    // The mapper is shared by all statements: the plan of the ResultSet being mapped is kept in the StatementContext of its
+    // statement, so that we only look at the metadata once per ResultSet
+    private final String resultSetPlanAttribute;
+
+    private volatile Constructor<T> constructor;
 
     public LowerToCamelBeanMapper(final Class<T> type) {
         this.type = type;
+        this.resultSetPlanAttribute = LowerToCamelBeanMapper.class.getName() + ".plan." + type.getName();
         try {
             final BeanInfo info = Introspector.getBeanInfo(type);
 
@@ -65,114 +78,76 @@ public class LowerToCamelBeanMapper<T> implements ResultSetMapper<T> {
     }
 
     public T map(final int row, final ResultSet rs, final StatementContext ctx) throws SQLException {
-        final T bean;
+        final T bean = newInstance();
+
+        for (final ColumnMapping columnMapping : getPlan(rs, ctx)) {
+            columnMapping.map(rs, bean);
+        }
+
+        return bean;
+    }
+
+    private T newInstance() {
         try {
-            bean = type.newInstance();
+            if (constructor == null) {
+                final Constructor<T> defaultConstructor = type.getDeclaredConstructor();
+                defaultConstructor.setAccessible(true);
+                constructor = defaultConstructor;
+            }
+            return constructor.newInstance();
         } catch (final Exception e) {
             throw new IllegalArgumentException(String.format("A bean, %s, was mapped " +
                                                              "which was not instantiable", type.getName()),
                                                e);
         }
+    }
 
-        final Class beanClass = bean.getClass();
-        final ResultSetMetaData metadata = rs.getMetaData();
+    private ColumnMapping[] getPlan(final ResultSet rs, final StatementContext ctx) throws SQLException {
+        final Object resultSetPlan = ctx.getAttribute(resultSetPlanAttribute);
+        if (resultSetPlan instanceof ResultSetPlan && ((ResultSetPlan) resultSetPlan).rs == rs) {
+            return ((ResultSetPlan) resultSetPlan).plan;
+        }
 
+        final ResultSetMetaData metadata = rs.getMetaData();
+        final List<String> columnLabels = new ArrayList<String>(metadata.getColumnCount());
         for (int i = 1; i <= metadata.getColumnCount(); ++i) {
-            final String name = metadata.getColumnLabel(i).toLowerCase();
+            columnLabels.add(metadata.getColumnLabel(i).toLowerCase());
+        }
 
-            final PropertyDescriptor descriptor = properties.get(name);
+        ColumnMapping[] plan = plansByColumnLabels.get(columnLabels);
+        if (plan == null) {
+            plan = buildPlan(columnLabels);
+            plansByColumnLabels.putIfAbsent(columnLabels, plan);
+        }
+        ctx.setAttribute(resultSetPlanAttribute, new ResultSetPlan(rs, plan));
+        return plan;
+    }
 
-            if (descriptor != null) {
-                final Class<?> type = descriptor.getPropertyType();
-
-                Object value;
-
-                if (type.isAssignableFrom(Boolean.class) || type.isAssignableFrom(boolean.class)) {
-                    value = rs.getBoolean(i);
-                } else if (type.isAssignableFrom(Byte.class) || type.isAssignableFrom(byte.class)) {
-                    value = rs.getByte(i);
-                } else if (type.isAssignableFrom(Short.class) || type.isAssignableFrom(short.class)) {
-                    value = rs.getShort(i);
-                } else if (type.isAssignableFrom(Integer.class) || type.isAssignableFrom(int.class)) {
-                    value = rs.getInt(i);
-                } else if (type.isAssignableFrom(Long.class) || type.isAssignableFrom(long.class)) {
-                    value = rs.getLong(i);
-                } else if (type.isAssignableFrom(Float.class) || type.isAssignableFrom(float.class)) {
-                    value = rs.getFloat(i);
-                } else if (type.isAssignableFrom(Double.class) || type.isAssignableFrom(double.class)) {
-                    value = rs.getDouble(i);
-                } else if (type.isAssignableFrom(BigDecimal.class)) {
-                    value = rs.getBigDecimal(i);
-                } else if (type.isAssignableFrom(DateTime.class)) {
-                    final Timestamp timestamp = rs.getTimestamp(i);
-                    value = timestamp == null ? null : new DateTime(timestamp).toDateTime(DateTimeZone.UTC);
-                } else if (type.isAssignableFrom(Time.class)) {
-                    value = rs.getTime(i);
-                } else if (type.isAssignableFrom(LocalDate.class)) {
-                    //
-                    // We store the LocalDate into a mysql 'date' as a string
-                    // (See https://github.com/killbill/killbill-commons/blob/master/jdbi/src/main/java/org/killbill/commons/jdbi/argument/LocalDateArgumentFactory.java)
-                    // So we also read it as a String which avoids any kind of transformation
-                    //
-                    // Note that we used previously the getDate(index, Calendar) method, but this is not thread safe as we discovered
-                    // unless maybe -- untested --we pass a new instance of a Calendar each time
-                    //
-                    final String dateString = rs.getString(i);
-                    value = dateString == null ? null : new LocalDate(dateString, DateTimeZone.UTC);
-                } else if (type.isAssignableFrom(DateTimeZone.class)) {
-                    final String dateTimeZoneString = rs.getString(i);
-                    value = dateTimeZoneString == null ? null : DateTimeZone.forID(dateTimeZoneString);
-                } else if (type.isAssignableFrom(String.class)) {
-                    value = rs.getString(i);
-                } else if (type.isAssignableFrom(UUID.class)) {
-                    final String uuidString = rs.getString(i);
-                    value = uuidString == null ? null : UUID.fromString(uuidString);
-                } else if (type.isEnum()) {
-                    final String enumString = rs.getString(i);
-                    //noinspection unchecked
-                    value = enumString == null ? null : Enum.valueOf((Class<Enum>) type, enumString);
-                } else if (type == byte[].class) {
-                    value = rs.getBytes(i);
-                } else {
-                    value = rs.getObject(i);
-                }
+    private ColumnMapping[] buildPlan(final List<String> columnLabels) {
+        final List<ColumnMapping> plan = new ArrayList<ColumnMapping>(columnLabels.size());
+        for (int i = 1; i <= columnLabels.size(); ++i) {
+            final String name = columnLabels.get(i - 1);
 
-                // For h2, transform a JdbcBlob into a byte[]
-                if (value instanceof Blob) {
-                    final Blob blob = (Blob) value;
-                    value = blob.getBytes(0, (int) blob.length());
-                }
-                if (rs.wasNull() && !type.isPrimitive()) {
-                    value = null;
-                }
+            final PropertyDescriptor descriptor = properties.get(name);
+            if (descriptor == null) {
+                continue;
+            }
 
+            final Method writeMethod = descriptor.getWriteMethod();
+            Field field = null;
+            if (writeMethod == null) {
+                final String camelCasedName = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, name);
                 try {
-                    final Method writeMethod = descriptor.getWriteMethod();
-                    if (writeMethod != null) {
-                        writeMethod.invoke(bean, value);
-                    } else {
-                        final String camelCasedName = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, name);
-                        final Field field = getField(beanClass, camelCasedName);
-                        field.setAccessible(true); // Often private...
-                        field.set(bean, value);
-                    }
+                    field = getField(type, camelCasedName);
                 } catch (final NoSuchFieldException e) {
                     throw new IllegalArgumentException(String.format("Unable to find field for " +
                                                                      "property, %s", name), e);
-                } catch (final IllegalAccessException e) {
-                    throw new IllegalArgumentException(String.format("Unable to access setter for " +
-                                                                     "property, %s", name), e);
-                } catch (final InvocationTargetException e) {
-                    throw new IllegalArgumentException(String.format("Invocation target exception trying to " +
-                                                                     "invoker setter for the %s property", name), e);
-                } catch (final NullPointerException e) {
-                    throw new IllegalArgumentException(String.format("No appropriate method to " +
-                                                                     "write value %s ", value.toString()), e);
                 }
+                field.setAccessible(true); // Often private...
             }
+            plan.add(new ColumnMapping(i, name, descriptor.getPropertyType(), writeMethod, field));
         }
-
-        return bean;
+        return plan.toArray(new ColumnMapping[plan.size()]);
     }
 
     private static Field getField(final Class clazz, final String fieldName) throws NoSuchFieldException {
@@ -188,4 +163,190 @@ public class LowerToCamelBeanMapper<T> implements ResultSetMapper<T> {
             }
         }
     }
+
+    private static final class ResultSetPlan {
+
+        // The context may run several queries (e.g. a batch), so we also check this is the same ResultSet
+        private final ResultSet rs;
+        private final ColumnMapping[] plan;
+
+        private ResultSetPlan(final ResultSet rs, final ColumnMapping[] plan) {
+            this.rs = rs;
+            this.plan = plan;
+        }
+    }
+
+    private static final class ColumnMapping {
+
+        private final int index;
+        private final String name;
+        private final boolean isPrimitive;
+        private final ColumnReader reader;
+        private final Method writeMethod;
+        private final Field field;
+
+        private ColumnMapping(final int index, final String name, final Class<?> type, final Method writeMethod, final Field field) {
+            this.index = index;
+            this.name = name;
+            this.isPrimitive = type.isPrimitive();
+            this.reader = ColumnReader.forType(type);
+            this.writeMethod = writeMethod;
+            this.field = field;
+        }
+
+        private void map(final ResultSet rs, final Object bean) throws SQLException {
+            Object value = reader.read(rs, index);
+
+            // For h2, transform a JdbcBlob into a byte[]
+            if (value instanceof Blob) {
+                final Blob blob = (Blob) value;
+                value = blob.getBytes(0, (int) blob.length());
+            }
+            if (rs.wasNull() && !isPrimitive) {
+                value = null;
+            }
+
+            try {
+                if (writeMethod != null) {
+                    writeMethod.invoke(bean, value);
+                } else {
+                    field.set(bean, value);
+                }
+            } catch (final IllegalAccessException e) {
+                throw new IllegalArgumentException(String.format("Unable to access setter for " +
+                                                                 "property, %s", name), e);
+            } catch (final InvocationTargetException e) {
+                throw new IllegalArgumentException(String.format("Invocation target exception trying to " +
+                                                                 "invoker setter for the %s property", name), e);
+            } catch (final NullPointerException e) {
+                throw new IllegalArgumentException(String.format("No appropriate method to " +
+                                                                 "write value %s ", value.toString()), e);
+            }
+        }
+    }
+
+    private abstract static class ColumnReader {
+
+        abstract Object read(final ResultSet rs, final int i) throws SQLException;
+
+        static ColumnReader forType(final Class<?> type) {
+            if (type.isAssignableFrom(Boolean.class) || type.isAssignableFrom(boolean.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getBoolean(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(Byte.class) || type.isAssignableFrom(byte.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getByte(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(Short.class) || type.isAssignableFrom(short.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getShort(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(Integer.class) || type.isAssignableFrom(int.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getInt(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(Long.class) || type.isAssignableFrom(long.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getLong(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(Float.class) || type.isAssignableFrom(float.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getFloat(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(Double.class) || type.isAssignableFrom(double.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getDouble(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(BigDecimal.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getBigDecimal(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(DateTime.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        final Timestamp timestamp = rs.getTimestamp(i);
+                        return timestamp == null ? null : new DateTime(timestamp).toDateTime(DateTimeZone.UTC);
+                    }
+                };
+            } else if (type.isAssignableFrom(Time.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getTime(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(LocalDate.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        //
+                        // We store the LocalDate into a mysql 'date' as a string
+                        // (See https://github.com/killbill/killbill-commons/blob/master/jdbi/src/main/java/org/killbill/commons/jdbi/argument/LocalDateArgumentFactory.java)
+                        // So we also read it as a String which avoids any kind of transformation
+                        //
+                        // Note that we used previously the getDate(index, Calendar) method, but this is not thread safe as we discovered
+                        // unless maybe -- untested --we pass a new instance of a Calendar each time
+                        //
+                        final String dateString = rs.getString(i);
+                        return dateString == null ? null : new LocalDate(dateString, DateTimeZone.UTC);
+                    }
+                };
+            } else if (type.isAssignableFrom(DateTimeZone.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        final String dateTimeZoneString = rs.getString(i);
+                        return dateTimeZoneString == null ? null : DateTimeZone.forID(dateTimeZoneString);
+                    }
+                };
+            } else if (type.isAssignableFrom(String.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getString(i);
+                    }
+                };
+            } else if (type.isAssignableFrom(UUID.class)) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        final String uuidString = rs.getString(i);
+                        return uuidString == null ? null : UUID.fromString(uuidString);
+                    }
+                };
+            } else if (type.isEnum()) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        final String enumString = rs.getString(i);
+                        //noinspection unchecked
+                        return enumString == null ? null : Enum.valueOf((Class<Enum>) type, enumString);
+                    }
+                };
+            } else if (type == byte[].class) {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getBytes(i);
+                    }
+                };
+            } else {
+                return new ColumnReader() {
+                    Object read(final ResultSet rs, final int i) throws SQLException {
+                        return rs.getObject(i);
+                    }
+                };
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.mapper;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+//
+// Mapper factories to register on each Query of a SqlDao, computed once per SqlDao type (see the SqlDao StringTemplate annotations).
+// SqlDao classes are weakly referenced, so we don't pin their class loader.
+//
+public class LowerToCamelBeanMapperFactories {
+
+    private static final Cache<Class, List<LowerToCamelBeanMapperFactory>> mapperFactoriesCache = CacheBuilder.newBuilder()
+                                                                                                               .weakKeys()
+                                                                                                               .build();
+
+    private LowerToCamelBeanMapperFactories() {
+    }
+
+    //
+    // Find the model classes associated with this sqlObjectType (which is a SqlDao class), i.e. its type arguments which are
+    // subclasses of modelDaoClass, to register their mapper. If a custom mapper is defined via @RegisterMapper, don't register our generic one.
+    //
+    public static List<LowerToCamelBeanMapperFactory> getMapperFactories(final Class sqlObjectType, final Class modelDaoClass) {
+        try {
+            return mapperFactoriesCache.get(sqlObjectType, new Callable<List<LowerToCamelBeanMapperFactory>>() {
+                @Override
+                public List<LowerToCamelBeanMapperFactory> call() {
+                    return findMapperFactories(sqlObjectType, modelDaoClass);
+                }
+            });
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException("Unable to find the mappers for " + sqlObjectType, e.getCause());
+        }
+    }
+
+    private static List<LowerToCamelBeanMapperFactory> findMapperFactories(final Class sqlObjectType, final Class modelDaoClass) {
+        final List<LowerToCamelBeanMapperFactory> mapperFactories = new ArrayList<LowerToCamelBeanMapperFactory>();
+        if (sqlObjectType.getGenericInterfaces() != null &&
+            sqlObjectType.getAnnotation(RegisterMapper.class) == null) {
+            for (int i = 0; i < sqlObjectType.getGenericInterfaces().length; i++) {
+                if (sqlObjectType.getGenericInterfaces()[i] instanceof ParameterizedType) {
+                    final ParameterizedType type = (ParameterizedType) sqlObjectType.getGenericInterfaces()[i];
+                    for (int j = 0; j < type.getActualTypeArguments().length; j++) {
+                        final Type modelType = type.getActualTypeArguments()[j];
+                        if (modelType instanceof Class) {
+                            final Class modelClazz = (Class) modelType;
+                            if (modelDaoClass.isAssignableFrom(modelClazz)) {
+                                mapperFactories.add(new LowerToCamelBeanMapperFactory(modelClazz));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return mapperFactories;
+    }
+}
@@ -23,9 +23,12 @@ import org.skife.jdbi.v2.tweak.ResultSetMapper;
 public class LowerToCamelBeanMapperFactory implements ResultSetMapperFactory {
 
     private final Class<?> modelClazz;
+    // The mapper caches its column mapping plans, so share it across statements
+    private final ResultSetMapper mapper;
 
     public LowerToCamelBeanMapperFactory(final Class<?> modelClazz) {
         this.modelClazz = modelClazz;
+        this.mapper = new LowerToCamelBeanMapper(modelClazz);
     }
 
     @Override
@@ -35,6 +38,6 @@ public class LowerToCamelBeanMapperFactory implements ResultSetMapperFactory {
 
     @Override
     public ResultSetMapper mapperFor(final Class type, final StatementContext ctx) {
-        return new LowerToCamelBeanMapper(type);
+        return mapper;
     }
 }
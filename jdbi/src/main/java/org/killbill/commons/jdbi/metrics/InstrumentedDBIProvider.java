@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.metrics;
+
+import javax.sql.DataSource;
+
+import org.killbill.commons.jdbi.guice.DBIProvider;
+import org.killbill.commons.jdbi.guice.DaoConfig;
+import org.skife.jdbi.v2.TimingCollector;
+import org.skife.jdbi.v2.tweak.TransactionHandler;
+
+import com.codahale.metrics.MetricRegistry;
+
+//
+// DBIProvider timing the statements (MetricsTimingCollector) when no TimingCollector is specified and
+// org.killbill.dao.statementMetrics is on. Kept apart from DBIProvider so that metrics-core is only needed when metrics are used.
+//
+public class InstrumentedDBIProvider extends DBIProvider {
+
+    private MetricRegistry metricRegistry;
+
+    public InstrumentedDBIProvider(final DaoConfig config, final DataSource ds, final TransactionHandler transactionHandler) {
+        super(config, ds, transactionHandler);
+    }
+
+    @com.google.inject.Inject(optional = true)
+    public void setMetricRegistry(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Override
+    protected TimingCollector createDefaultTimingCollector() {
+        if (metricRegistry != null && config != null && config.isStatementMetricsEnabled()) {
+            return new MetricsTimingCollector(metricRegistry);
+        } else {
+            return null;
+        }
+    }
+}
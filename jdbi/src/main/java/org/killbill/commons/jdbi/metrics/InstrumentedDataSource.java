@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.commons.jdbi.metrics;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+//
+// Publishes the same set of connection pool metrics whatever the pool implementation is:
+// how long threads wait for a connection, how long they keep it, how many are checked out, waiting or idle, and how many
+// requests timed out.
+//
+public class InstrumentedDataSource implements DataSource {
+
+    private final DataSource delegate;
+    private final long connectionTimeoutMs;
+
+    private final Timer waitTime;
+    private final Timer usageTime;
+    private final Counter timeouts;
+    private final Counter failures;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger pendingConnections = new AtomicInteger();
+
+    public InstrumentedDataSource(final DataSource delegate,
+                                  final MetricRegistry metricRegistry,
+                                  final String metricsPrefix,
+                                  final long connectionTimeoutMs,
+                                  final Gauge<Integer> idleConnections) {
+        this.delegate = delegate;
+        this.connectionTimeoutMs = connectionTimeoutMs;
+
+        // Time spent in getConnection()
+        this.waitTime = metricRegistry.timer(MetricRegistry.name(metricsPrefix, "wait"));
+        // Time between getConnection() and close()
+        this.usageTime = metricRegistry.timer(MetricRegistry.name(metricsPrefix, "usage"));
+        // Number of getConnection() which gave up after the connection timeout
+        this.timeouts = metricRegistry.counter(MetricRegistry.name(metricsPrefix, "timeouts"));
+        // Number of getConnection() which failed before the connection timeout (e.g. the database is down)
+        this.failures = metricRegistry.counter(MetricRegistry.name(metricsPrefix, "failures"));
+        registerGauge(metricRegistry, MetricRegistry.name(metricsPrefix, "active"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return activeConnections.get();
+            }
+        });
+        registerGauge(metricRegistry, MetricRegistry.name(metricsPrefix, "pending"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return pendingConnections.get();
+            }
+        });
+        registerGauge(metricRegistry, MetricRegistry.name(metricsPrefix, "idle"), idleConnections);
+    }
+
+    // The timers and counters are shared by DataSources with the same prefix (e.g. a pool re-created under the same name), but the gauges
+    // read this instance: the latest one replaces the previous ones (register would throw otherwise)
+    private static void registerGauge(final MetricRegistry metricRegistry, final String name, final Gauge<Integer> gauge) {
+        metricRegistry.remove(name);
+        metricRegistry.register(name, gauge);
+    }
+
+    public DataSource getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return instrument(new ConnectionRequest() {
+            @Override
+            public Connection get() throws SQLException {
+                return delegate.getConnection();
+            }
+        });
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        return instrument(new ConnectionRequest() {
+            @Override
+            public Connection get() throws SQLException {
+                return delegate.getConnection(username, password);
+            }
+        });
+    }
+
+    private Connection instrument(final ConnectionRequest request) throws SQLException {
+        pendingConnections.incrementAndGet();
+        final long startNanos = System.nanoTime();
+        final Connection connection;
+        try {
+            connection = request.get();
+        } catch (final SQLException e) {
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) >= connectionTimeoutMs) {
+                timeouts.inc();
+            } else {
+                failures.inc();
+            }
+            throw e;
+        } finally {
+            pendingConnections.decrementAndGet();
+        }
+        waitTime.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+
+        activeConnections.incrementAndGet();
+        return new InstrumentedConnection(connection, usageTime.time(), activeConnections);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(delegate)) {
+            return iface.cast(delegate);
+        }
+        return delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(delegate) || delegate.isWrapperFor(iface);
+    }
+
+    private interface ConnectionRequest {
+
+        Connection get() throws SQLException;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.killbill.commons.jdbi.guice.DaoConfig;
+import org.killbill.commons.jdbi.guice.DataSourceProvider;
+import org.killbill.commons.jdbi.warmup.DatabaseWarmup;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.jolbox.bonecp.BoneCP;
+import com.jolbox.bonecp.BoneCPDataSource;
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.zaxxer.hikari.HikariDataSource;
+
+//
+// DataSourceProvider publishing the pool metrics: the returned DataSource is an InstrumentedDataSource wrapping the pool.
+// Kept apart from DataSourceProvider so that metrics-core is only needed when metrics are used.
+//
+public class InstrumentedDataSourceProvider extends DataSourceProvider {
+
+    private final MetricRegistry metricRegistry;
+
+    public InstrumentedDataSourceProvider(final DaoConfig config, final String poolName, final boolean useMariaDB, final MetricRegistry metricRegistry) {
+        this(config, config.getJdbcUrl(), poolName, useMariaDB, metricRegistry);
+    }
+
+    // Used for replicas, which share the primary settings but not its url
+    public InstrumentedDataSourceProvider(final DaoConfig config, final String jdbcUrl, final String poolName, final boolean useMariaDB, final MetricRegistry metricRegistry) {
+        super(config, jdbcUrl, poolName, useMariaDB);
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Override
+    protected DataSource instrument(final DataSource pool) {
+        return new InstrumentedDataSource(pool,
+                                          metricRegistry,
+                                          MetricRegistry.name(DataSourceProvider.class, poolName == null ? "default" : poolName),
+                                          toMilliSeconds(config.getConnectionTimeout()),
+                                          getIdleConnectionsGauge(pool));
+    }
+
+    @Override
+    protected void warmup(final DatabaseWarmup warmup, final DataSource dataSource) {
+        warmup.warmup(dataSource, config.getMinIdle(), metricRegistry);
+    }
+
+    // Only the pool knows about idle connections, the other metrics are computed by InstrumentedDataSource
+    private Gauge<Integer> getIdleConnectionsGauge(final DataSource ds) {
+        if (ds instanceof HikariDataSource) {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final String hikariPoolName = ((HikariDataSource) ds).getPoolName();
+            return new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    try {
+                        return (Integer) mBeanServer.getAttribute(new ObjectName("com.zaxxer.hikari:type=Pool (" + hikariPoolName + ")"), "IdleConnections");
+                    } catch (final Exception e) {
+                        return 0;
+                    }
+                }
+            };
+        } else if (ds instanceof BoneCPDataSource) {
+            return new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    // The pool is only created on the first getConnection()
+                    final BoneCP pool = ((BoneCPDataSource) ds).getPool();
+                    return pool == null ? 0 : pool.getTotalFree();
+                }
+            };
+        } else {
+            return new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    try {
+                        return ((ComboPooledDataSource) ds).getNumIdleConnectionsDefaultUser();
+                    } catch (final Exception e) {
+                        return 0;
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.metrics;
+
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.killbill.commons.jdbi.guice.DaoConfig;
+import org.killbill.commons.jdbi.guice.DataSourceProvider;
+import org.killbill.commons.jdbi.guice.ReplicaDataSourceProvider;
+
+import com.codahale.metrics.MetricRegistry;
+
+// ReplicaDataSourceProvider publishing the metrics of each replica pool, see InstrumentedDataSourceProvider
+public class InstrumentedReplicaDataSourceProvider extends ReplicaDataSourceProvider {
+
+    private final MetricRegistry metricRegistry;
+
+    public InstrumentedReplicaDataSourceProvider(final DaoConfig config,
+                                                 final List<String> replicaJdbcUrls,
+                                                 final DataSource primaryDataSource,
+                                                 final String poolName,
+                                                 final boolean useMariaDB,
+                                                 final MetricRegistry metricRegistry) {
+        super(config, replicaJdbcUrls, primaryDataSource, poolName, useMariaDB);
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Override
+    protected DataSourceProvider createDataSourceProvider(final DaoConfig config, final String jdbcUrl, final String poolName, final boolean useMariaDB) {
+        return new InstrumentedDataSourceProvider(config, jdbcUrl, poolName, useMariaDB, metricRegistry);
+    }
+}
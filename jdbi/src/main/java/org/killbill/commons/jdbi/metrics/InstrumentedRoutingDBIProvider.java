@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.metrics;
+
+import javax.sql.DataSource;
+
+import org.killbill.commons.jdbi.guice.DBIProvider;
+import org.killbill.commons.jdbi.guice.DaoConfig;
+import org.killbill.commons.jdbi.guice.RoutingDBIProvider;
+import org.skife.jdbi.v2.tweak.TransactionHandler;
+
+import com.codahale.metrics.MetricRegistry;
+
+// RoutingDBIProvider timing the statements on the primary and on the replicas, see InstrumentedDBIProvider
+public class InstrumentedRoutingDBIProvider extends RoutingDBIProvider {
+
+    public InstrumentedRoutingDBIProvider(final DaoConfig config, final DataSource primaryDataSource, final DataSource replicaDataSource, final TransactionHandler transactionHandler) {
+        super(config, primaryDataSource, replicaDataSource, transactionHandler);
+    }
+
+    @com.google.inject.Inject(optional = true)
+    public void setMetricRegistry(final MetricRegistry metricRegistry) {
+        ((InstrumentedDBIProvider) primaryDBIProvider).setMetricRegistry(metricRegistry);
+        ((InstrumentedDBIProvider) replicaDBIProvider).setMetricRegistry(metricRegistry);
+    }
+
+    @Override
+    protected DBIProvider createDBIProvider(final DaoConfig config, final DataSource dataSource, final TransactionHandler transactionHandler) {
+        return new InstrumentedDBIProvider(config, dataSource, transactionHandler);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.metrics;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+//
+// Records a timer per SqlDao method (i.e. per StringTemplate name) and table name (tableName attribute), e.g.
+// org.killbill.commons.jdbi.metrics.MetricsTimingCollector.getReadyEntries.bus_events
+//
+// Timers are looked up by Method and tableName value, so no metric name is built once a statement has been seen.
+// Statements not issued through a SqlDao are grouped under "other", to avoid creating a timer per raw SQL string.
+//
+public class MetricsTimingCollector implements TimingCollector {
+
+    private static final String TABLE_NAME_ATTRIBUTE = "tableName";
+    private static final String OTHER_STATEMENTS = "other";
+    private static final String NO_TABLE_NAME = "all";
+
+    private final MetricRegistry metricRegistry;
+    private final String metricsPrefix;
+    private final ConcurrentMap<Object, ConcurrentMap<Object, Timer>> timers = new ConcurrentHashMap<Object, ConcurrentMap<Object, Timer>>();
+
+    public MetricsTimingCollector(final MetricRegistry metricRegistry) {
+        this(metricRegistry, MetricRegistry.name(MetricsTimingCollector.class));
+    }
+
+    public MetricsTimingCollector(final MetricRegistry metricRegistry, final String metricsPrefix) {
+        this.metricRegistry = metricRegistry;
+        this.metricsPrefix = metricsPrefix;
+    }
+
+    @Override
+    public void collect(final long elapsedTime, final StatementContext ctx) {
+        getTimer(ctx).update(elapsedTime, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer getTimer(final StatementContext ctx) {
+        final Method method = ctx.getSqlObjectMethod();
+        final Object statementKey = method == null ? OTHER_STATEMENTS : method;
+        final Object tableName = ctx.getAttribute(TABLE_NAME_ATTRIBUTE);
+        final Object tableKey = tableName == null ? NO_TABLE_NAME : tableName;
+
+        ConcurrentMap<Object, Timer> timersPerTable = timers.get(statementKey);
+        if (timersPerTable == null) {
+            timers.putIfAbsent(statementKey, new ConcurrentHashMap<Object, Timer>());
+            timersPerTable = timers.get(statementKey);
+        }
+
+        Timer timer = timersPerTable.get(tableKey);
+        if (timer == null) {
+            final String statementName = method == null ? OTHER_STATEMENTS : method.getName();
+            // MetricRegistry#timer returns the existing timer if any
+            timersPerTable.putIfAbsent(tableKey, metricRegistry.timer(MetricRegistry.name(metricsPrefix, statementName, tableKey.toString())));
+            timer = timersPerTable.get(tableKey);
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.routing;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+//
+// Hands out connections to the replicas in a round-robin fashion. A replica which fails to hand out a connection
+// is considered unhealthy and skipped until retryDelayMs has elapsed, the next request then acts as the health check.
+// When no replica is healthy, connections are taken from the fallback (i.e. the primary) DataSource.
+//
+public class ReplicaDataSource implements DataSource {
+
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(ReplicaDataSource.class);
+
+    private static final long HEALTHY = 0L;
+
+    private final List<DataSource> replicas;
+    private final DataSource fallback;
+    private final long retryDelayMs;
+    // Per replica, time (in ms) until which the replica is skipped
+    private final AtomicLongArray unhealthyUntilMs;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public ReplicaDataSource(final List<DataSource> replicas, final DataSource fallback, final long retryDelayMs) {
+        this.replicas = ImmutableList.<DataSource>copyOf(replicas);
+        this.fallback = fallback;
+        this.retryDelayMs = retryDelayMs;
+        this.unhealthyUntilMs = new AtomicLongArray(replicas.size());
+    }
+
+    public List<DataSource> getReplicas() {
+        return replicas;
+    }
+
+    public boolean isHealthy(final int replicaIndex) {
+        return unhealthyUntilMs.get(replicaIndex) <= System.currentTimeMillis();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(null, null);
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        final int nbReplicas = replicas.size();
+        if (nbReplicas > 0) {
+            // Mask the sign bit to survive the counter overflow
+            final int first = (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % nbReplicas;
+            for (int i = 0; i < nbReplicas; i++) {
+                final int replicaIndex = (first + i) % nbReplicas;
+                if (!isHealthy(replicaIndex)) {
+                    continue;
+                }
+
+                try {
+                    final Connection connection = getConnection(replicas.get(replicaIndex), username, password);
+                    unhealthyUntilMs.set(replicaIndex, HEALTHY);
+                    return connection;
+                } catch (final SQLException e) {
+                    markUnhealthy(replicaIndex, e);
+                } catch (final RuntimeException e) {
+                    // Some pools (e.g. H2) throw unchecked exceptions once closed
+                    markUnhealthy(replicaIndex, e);
+                }
+            }
+        }
+
+        return getConnection(fallback, username, password);
+    }
+
+    private void markUnhealthy(final int replicaIndex, final Exception e) {
+        logger.warn("Unable to get a connection from replica {}, retrying in {} ms", replicaIndex, retryDelayMs, e);
+        unhealthyUntilMs.set(replicaIndex, System.currentTimeMillis() + retryDelayMs);
+    }
+
+    private Connection getConnection(final DataSource dataSource, final String username, final String password) throws SQLException {
+        if (username == null && password == null) {
+            return dataSource.getConnection();
+        } else {
+            return dataSource.getConnection(username, password);
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return fallback.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        for (final DataSource replica : replicas) {
+            replica.setLogWriter(out);
+        }
+        fallback.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        for (final DataSource replica : replicas) {
+            replica.setLoginTimeout(seconds);
+        }
+        fallback.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return fallback.getLoginTimeout();
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return fallback.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(ReplicaDataSource.class.getName() + " is not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.routing;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.exceptions.CallbackFailedException;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+
+//
+// Sends the @ReadOnly methods of on-demand SqlDao interfaces to the replica, everything else goes to the primary.
+// Handles, transactions and attached SqlDaos (including SqlDaos obtained through Transactional#inTransaction) are
+// always bound to the primary, so that reads within a transaction see its writes.
+//
+public class RoutingDBI implements IDBI {
+
+    private final IDBI primary;
+    private final IDBI replica;
+
+    public RoutingDBI(final IDBI primary, final IDBI replica) {
+        this.primary = primary;
+        this.replica = replica;
+    }
+
+    public IDBI getPrimary() {
+        return primary;
+    }
+
+    public IDBI getReplica() {
+        return replica;
+    }
+
+    @Override
+    public Handle open() {
+        return primary.open();
+    }
+
+    @Override
+    public void define(final String key, final Object value) {
+        primary.define(key, value);
+        replica.define(key, value);
+    }
+
+    @Override
+    public <ReturnType> ReturnType withHandle(final HandleCallback<ReturnType> callback) throws CallbackFailedException {
+        return primary.withHandle(callback);
+    }
+
+    @Override
+    public <ReturnType> ReturnType inTransaction(final TransactionCallback<ReturnType> callback) throws CallbackFailedException {
+        return primary.inTransaction(callback);
+    }
+
+    @Override
+    public <ReturnType> ReturnType inTransaction(final TransactionIsolationLevel isolation, final TransactionCallback<ReturnType> callback) throws CallbackFailedException {
+        return primary.inTransaction(isolation, callback);
+    }
+
+    @Override
+    public <SqlObjectType> SqlObjectType open(final Class<SqlObjectType> sqlObjectType) {
+        return primary.open(sqlObjectType);
+    }
+
+    @Override
+    public <SqlObjectType> SqlObjectType onDemand(final Class<SqlObjectType> sqlObjectType) {
+        final SqlObjectType primarySqlObject = primary.onDemand(sqlObjectType);
+        if (!sqlObjectType.isInterface() || !hasReadOnlyMethods(sqlObjectType)) {
+            return primarySqlObject;
+        }
+
+        final SqlObjectType replicaSqlObject = replica.onDemand(sqlObjectType);
+        return sqlObjectType.cast(Proxy.newProxyInstance(sqlObjectType.getClassLoader(),
+                                                         new Class[]{sqlObjectType},
+                                                         new RoutingHandler(primarySqlObject, replicaSqlObject)));
+    }
+
+    @Override
+    public void close(final Object sqlObject) {
+        if (Proxy.isProxyClass(sqlObject.getClass()) && Proxy.getInvocationHandler(sqlObject) instanceof RoutingHandler) {
+            final RoutingHandler routingHandler = (RoutingHandler) Proxy.getInvocationHandler(sqlObject);
+            primary.close(routingHandler.primarySqlObject);
+            replica.close(routingHandler.replicaSqlObject);
+        } else {
+            primary.close(sqlObject);
+        }
+    }
+
+    private static boolean hasReadOnlyMethods(final Class<?> sqlObjectType) {
+        for (final Method method : sqlObjectType.getMethods()) {
+            if (method.isAnnotationPresent(ReadOnly.class)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class RoutingHandler implements InvocationHandler {
+
+        private final Object primarySqlObject;
+        private final Object replicaSqlObject;
+
+        private RoutingHandler(final Object primarySqlObject, final Object replicaSqlObject) {
+            this.primarySqlObject = primarySqlObject;
+            this.replicaSqlObject = replicaSqlObject;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(method.getName())) {
+                    return "RoutingDBI proxy for " + primarySqlObject;
+                }
+            }
+
+            final Object target = method.isAnnotationPresent(ReadOnly.class) ? replicaSqlObject : primarySqlObject;
+            try {
+                return method.invoke(target, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
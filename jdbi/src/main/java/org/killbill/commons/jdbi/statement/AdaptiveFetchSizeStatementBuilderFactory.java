@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.statement;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.skife.jdbi.v2.DefaultStatementBuilder;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.StatementBuilder;
+import org.skife.jdbi.v2.tweak.StatementBuilderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+
+//
+// Picks the fetch size of each statement based on the number of rows it typically returns, instead of relying on
+// @SmartFetchSize being set on the right methods:
+// - small results are buffered (driver default)
+// - larger results are fetched in chunks
+// - very large results are streamed, if the driver supports it (MySQL) and the results are fully consumed before
+//   the statement is closed (i.e. the SqlDao method doesn't return an Iterator)
+//
+// Result sizes are sampled (the ResultSet is wrapped to count rows) every SAMPLING_RATE executions of a statement.
+// Statements are keyed by SqlDao method and table name (the same SqlDao can back several tables, e.g. history tables),
+// which keeps the stats bounded: ad-hoc statements (no SqlDao method) aren't adapted.
+// An explicit @SmartFetchSize, applied later by JDBI, still has the last word.
+//
+public class AdaptiveFetchSizeStatementBuilderFactory implements StatementBuilderFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveFetchSizeStatementBuilderFactory.class);
+
+    public static final int DEFAULT_CHUNKED_THRESHOLD = 1000;
+    public static final int DEFAULT_STREAMING_THRESHOLD = 10000;
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    // Magic value to force MySQL to stream from the database
+    // See http://dev.mysql.com/doc/refman/5.0/en/connector-j-reference-implementation-notes.html (ResultSet)
+    private static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
+    private static final int SAMPLING_RATE = 16;
+
+    private static final String TABLE_NAME_DEFINE = "tableName";
+
+    public enum FetchMode {
+        BUFFERED,
+        CHUNKED,
+        STREAMING
+    }
+
+    private final int chunkedThreshold;
+    private final int streamingThreshold;
+    private final int chunkSize;
+    private final ConcurrentMap<StatementKey, ResultSizeStats> resultSizeStats = new ConcurrentHashMap<StatementKey, ResultSizeStats>();
+    private final StatementBuilder delegate = new DefaultStatementBuilder();
+
+    // Detected on the first connection
+    private volatile Boolean streamingSupported;
+
+    public AdaptiveFetchSizeStatementBuilderFactory() {
+        this(DEFAULT_CHUNKED_THRESHOLD, DEFAULT_STREAMING_THRESHOLD, DEFAULT_CHUNK_SIZE);
+    }
+
+    public AdaptiveFetchSizeStatementBuilderFactory(final int chunkedThreshold, final int streamingThreshold, final int chunkSize) {
+        this.chunkedThreshold = chunkedThreshold;
+        this.streamingThreshold = streamingThreshold;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public StatementBuilder createStatementBuilder(final Connection connection) {
+        if (streamingSupported == null) {
+            streamingSupported = detectStreamingSupport(connection);
+        }
+        return new AdaptiveFetchSizeStatementBuilder();
+    }
+
+    @VisibleForTesting
+    Boolean isStreamingSupported() {
+        return streamingSupported;
+    }
+
+    @VisibleForTesting
+    FetchMode getFetchMode(final Method sqlObjectMethod, final String tableName) {
+        final ResultSizeStats stats = resultSizeStats.get(new StatementKey(sqlObjectMethod, tableName));
+        return stats == null ? FetchMode.BUFFERED : stats.fetchMode;
+    }
+
+    private boolean detectStreamingSupport(final Connection connection) {
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            statement.setFetchSize(STREAMING_FETCH_SIZE);
+            return true;
+        } catch (final SQLException e) {
+            // Other engines, e.g. H2
+            return false;
+        } finally {
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (final SQLException e) {
+                    logger.debug("Unable to close statement", e);
+                }
+            }
+        }
+    }
+
+    private FetchMode computeFetchMode(final long averageRows, final boolean fullyConsumed) {
+        if (averageRows >= streamingThreshold && fullyConsumed && Boolean.TRUE.equals(streamingSupported)) {
+            return FetchMode.STREAMING;
+        } else if (averageRows >= chunkedThreshold) {
+            return FetchMode.CHUNKED;
+        } else {
+            return FetchMode.BUFFERED;
+        }
+    }
+
+    private static StatementKey getStatementKey(final StatementContext ctx) {
+        // The SQL may vary with the other StringTemplate attributes, but its result size shouldn't
+        final Object tableName = ctx.getAttribute(TABLE_NAME_DEFINE);
+        return new StatementKey(ctx.getSqlObjectMethod(), tableName == null ? null : tableName.toString());
+    }
+
+    private final class AdaptiveFetchSizeStatementBuilder implements StatementBuilder {
+
+        @Override
+        public PreparedStatement create(final Connection conn, final String sql, final StatementContext ctx) throws SQLException {
+            final PreparedStatement stmt = delegate.create(conn, sql, ctx);
+            if (ctx.getSqlObjectMethod() == null) {
+                return stmt;
+            }
+
+            final StatementKey statementKey = getStatementKey(ctx);
+            ResultSizeStats stats = resultSizeStats.get(statementKey);
+            if (stats == null) {
+                final boolean fullyConsumed = !Iterator.class.isAssignableFrom(ctx.getSqlObjectMethod().getReturnType());
+                resultSizeStats.putIfAbsent(statementKey, new ResultSizeStats(fullyConsumed));
+                stats = resultSizeStats.get(statementKey);
+            }
+
+            if (stats.fetchMode == FetchMode.STREAMING) {
+                stmt.setFetchSize(STREAMING_FETCH_SIZE);
+            } else if (stats.fetchMode == FetchMode.CHUNKED) {
+                stmt.setFetchSize(chunkSize);
+            }
+
+            if (stats.executions.getAndIncrement() % SAMPLING_RATE == 0) {
+                return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                                  new Class[]{PreparedStatement.class},
+                                                                  new RowCountingStatementHandler(stmt, stats));
+            } else {
+                return stmt;
+            }
+        }
+
+        @Override
+        public CallableStatement createCall(final Connection conn, final String sql, final StatementContext ctx) throws SQLException {
+            return delegate.createCall(conn, sql, ctx);
+        }
+
+        @Override
+        public void close(final Connection conn, final String sql, final Statement stmt) throws SQLException {
+            if (stmt != null && Proxy.isProxyClass(stmt.getClass()) && Proxy.getInvocationHandler(stmt) instanceof RowCountingStatementHandler) {
+                final RowCountingStatementHandler handler = (RowCountingStatementHandler) Proxy.getInvocationHandler(stmt);
+                if (handler.resultSetHandler != null) {
+                    handler.stats.record(handler.resultSetHandler.rows);
+                }
+                delegate.close(conn, sql, handler.stmt);
+            } else {
+                delegate.close(conn, sql, stmt);
+            }
+        }
+
+        @Override
+        public void close(final Connection conn) {
+            delegate.close(conn);
+        }
+    }
+
+    private static final class StatementKey {
+
+        private final Method sqlObjectMethod;
+        private final String tableName;
+
+        private StatementKey(final Method sqlObjectMethod, final String tableName) {
+            this.sqlObjectMethod = sqlObjectMethod;
+            this.tableName = tableName;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final StatementKey that = (StatementKey) o;
+            return sqlObjectMethod.equals(that.sqlObjectMethod) && Objects.equal(tableName, that.tableName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(sqlObjectMethod, tableName);
+        }
+    }
+
+    private final class ResultSizeStats {
+
+        private final boolean fullyConsumed;
+        private final AtomicLong executions = new AtomicLong();
+
+        // Exponential moving average of the number of rows returned
+        private long averageRows = -1;
+        private volatile FetchMode fetchMode = FetchMode.BUFFERED;
+
+        private ResultSizeStats(final boolean fullyConsumed) {
+            this.fullyConsumed = fullyConsumed;
+        }
+
+        private synchronized void record(final long rows) {
+            averageRows = averageRows < 0 ? rows : averageRows + (rows - averageRows) / 4;
+            fetchMode = computeFetchMode(averageRows, fullyConsumed);
+        }
+    }
+
+    private static final class RowCountingStatementHandler implements InvocationHandler {
+
+        private final PreparedStatement stmt;
+        private final ResultSizeStats stats;
+
+        private RowCountingResultSetHandler resultSetHandler;
+
+        private RowCountingStatementHandler(final PreparedStatement stmt, final ResultSizeStats stats) {
+            this.stmt = stmt;
+            this.stats = stats;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Object result;
+            try {
+                result = method.invoke(stmt, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            if (result instanceof ResultSet && resultSetHandler == null) {
+                resultSetHandler = new RowCountingResultSetHandler((ResultSet) result);
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                                              new Class[]{ResultSet.class},
+                                              resultSetHandler);
+            } else {
+                return result;
+            }
+        }
+    }
+
+    private static final class RowCountingResultSetHandler implements InvocationHandler {
+
+        private final ResultSet resultSet;
+
+        private long rows = 0;
+
+        private RowCountingResultSetHandler(final ResultSet resultSet) {
+            this.resultSet = resultSet;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Object result;
+            try {
+                result = method.invoke(resultSet, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            if ("next".equals(method.getName()) && Boolean.TRUE.equals(result)) {
+                rows++;
+            }
+            return result;
+        }
+    }
+}
@@ -17,13 +17,13 @@
 
 package org.killbill.commons.jdbi.template;
 
+import org.killbill.commons.jdbi.ReusableStringTemplate3StatementLocator;
+import org.killbill.commons.jdbi.mapper.LowerToCamelBeanMapperFactories;
 import org.killbill.commons.jdbi.mapper.LowerToCamelBeanMapperFactory;
 import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.SQLStatement;
 import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
 import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizingAnnotation;
-import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
-import org.skife.jdbi.v2.sqlobject.stringtemplate.StringTemplate3StatementLocator;
 import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
 import org.skife.jdbi.v2.tweak.StatementLocator;
 
@@ -34,7 +34,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
@@ -68,8 +68,9 @@ public @interface KillBillSqlDaoStringTemplate {
 
         private StatementLocator getLocator(final String locatorPath) {
 
-            if (locatorCache.containsKey(locatorPath)) {
-                return locatorCache.get(locatorPath);
+            final StatementLocator cachedLocator = locatorCache.get(locatorPath);
+            if (cachedLocator != null) {
+                return cachedLocator;
             }
 
             // A bit of java magic to extract parameterizedType
@@ -77,15 +78,19 @@ public @interface KillBillSqlDaoStringTemplate {
                     (ParameterizedType) getClass().getGenericSuperclass();
 
 
-            final StringTemplate3StatementLocator.Builder builder = StringTemplate3StatementLocator.builder(locatorPath)
-                    .shouldCache()
-                    .withSuperGroup((Class) parameterizedType.getActualTypeArguments()[0])
-                    .allowImplicitTemplateGroup()
-                    .treatLiteralsAsTemplates();
+            // Renders each (template, defines) combination once, instead of on every statement execution
+            final StatementLocator locator = new ReusableStringTemplate3StatementLocator(locatorPath, (Class) parameterizedType.getActualTypeArguments()[0], true, true);
+            // Another thread may have beaten us to it, make sure we all share the same instance
+            final StatementLocator existingLocator = locatorCache.putIfAbsent(locatorPath, locator);
+            return existingLocator != null ? existingLocator : locator;
+        }
 
-            final StatementLocator locator = builder.build();
-            locatorCache.put(locatorPath, locator);
-            return locator;
+        // The ModelDao type argument of the factory subclass
+        private Class getModelDaoClass() {
+            // A bit of java magic to extract parameterizedType
+            final ParameterizedType parameterizedType =
+                    (ParameterizedType) getClass().getGenericSuperclass();
+            return (Class) parameterizedType.getActualTypeArguments()[1];
         }
 
 
@@ -93,39 +98,17 @@ public @interface KillBillSqlDaoStringTemplate {
 
             final KillBillSqlDaoStringTemplate a = (KillBillSqlDaoStringTemplate) annotation;
 
-            // A bit of java magic to extract parameterizedType
-            final ParameterizedType parameterizedType =
-                    (ParameterizedType) getClass().getGenericSuperclass();
-
             final String locatorPath = DEFAULT_VALUE.equals(a.value()) ? mungify(sqlObjectType) : a.value();
             final StatementLocator l = getLocator(locatorPath);
+            final List<LowerToCamelBeanMapperFactory> mapperFactories = LowerToCamelBeanMapperFactories.getMapperFactories(sqlObjectType, getModelDaoClass());
             return new SqlStatementCustomizer() {
                 public void apply(final SQLStatement statement) {
                     statement.setStatementLocator(l);
 
                     if (statement instanceof Query) {
                         final Query query = (Query) statement;
-
-                        // Find the model class associated with this sqlObjectType (which is a SqlDao class) to register its mapper
-                        // If a custom mapper is defined via @RegisterMapper, don't register our generic one
-                        if (sqlObjectType.getGenericInterfaces() != null &&
-                                sqlObjectType.getAnnotation(RegisterMapper.class) == null) {
-                            for (int i = 0; i < sqlObjectType.getGenericInterfaces().length; i++) {
-                                if (sqlObjectType.getGenericInterfaces()[i] instanceof ParameterizedType) {
-                                    final ParameterizedType type = (ParameterizedType) sqlObjectType.getGenericInterfaces()[i];
-                                    for (int j = 0; j < type.getActualTypeArguments().length; j++) {
-                                        final Type modelType = type.getActualTypeArguments()[j];
-                                        if (modelType instanceof Class) {
-                                            final Class modelClazz = (Class) modelType;
-                                            final Class modelDaoClass = (Class) parameterizedType.getActualTypeArguments()[1];
-                                            if (modelDaoClass.isAssignableFrom(modelClazz)) {
-                                                query.registerMapper(new LowerToCamelBeanMapperFactory(modelClazz));
-                                            }
-                                        }
-                                    }
-                                }
-
-                            }
+                        for (int i = 0; i < mapperFactories.size(); i++) {
+                            query.registerMapper(mapperFactories.get(i));
                         }
                     }
                 }
@@ -17,6 +17,10 @@
 package org.killbill.commons.jdbi.transaction;
 
 import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.TransactionCallback;
@@ -28,11 +32,19 @@ import org.skife.jdbi.v2.tweak.transactions.LocalTransactionHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * A TransactionHandler that automatically retries transactions that fail due to
  * serialization failures or innodb wait lock timeout, which can generally be resolved by automatically
  * retrying the transaction.  Any TransactionCallback used under this runner
  * should be aware that it may be invoked multiple times.
+ * <p/>
+ * Retries are delayed by an exponential backoff with jitter, so that transactions which deadlocked
+ * together don't collide again. The number of retries is also capped by a budget shared by all threads:
+ * each committed transaction earns a fraction of a retry, each retry spends one. When the database is
+ * overloaded and the budget is exhausted, failures are propagated instead of amplified.
  */
 public class RestartTransactionRunner extends DelegatingTransactionHandler implements TransactionHandler {
 
@@ -41,42 +53,125 @@ public class RestartTransactionRunner extends DelegatingTransactionHandler imple
     private static final String SQLSTATE_TXN_SERIALIZATION_FAILED = "40001";
     private static final String SQLSTATE_INNODB_WAIT_LOCK_TIMEOUT_EXCEEDED = "41000";
 
+    // The retry budget is kept in thousandths of a retry
+    private static final long RETRY_COST = 1000L;
+
     private final Configuration configuration;
+    private final MetricRegistry metricRegistry;
+    private final AtomicLong retryBudget;
+    private final ConcurrentMap<String, Counter> restartCounters = new ConcurrentHashMap<String, Counter>();
+    private final Counter budgetExhaustedCounter;
+    private final Random random = new Random();
 
     public RestartTransactionRunner(final TransactionHandler delegate) {
         this(new Configuration(), delegate);
     }
 
     public RestartTransactionRunner(final Configuration configuration, final TransactionHandler delegate) {
+        this(configuration, delegate, null);
+    }
+
+    // The MetricRegistry is optional, it is used to count restarts per SQLState
+    public RestartTransactionRunner(final Configuration configuration, final TransactionHandler delegate, final MetricRegistry metricRegistry) {
         super(delegate);
         this.configuration = configuration;
+        this.metricRegistry = metricRegistry;
+        this.retryBudget = new AtomicLong(configuration.maxRetryBudget * RETRY_COST);
+        this.budgetExhaustedCounter = metricRegistry == null ? null : metricRegistry.counter(MetricRegistry.name(RestartTransactionRunner.class, "retryBudgetExhausted"));
     }
 
     @Override
     public <ReturnType> ReturnType inTransaction(final Handle handle, final TransactionCallback<ReturnType> callback) {
         int retriesRemaining = configuration.maxRetries;
+        int attempt = 0;
 
         while (true) {
             try {
-                return getDelegate().inTransaction(handle, callback);
+                final ReturnType result = getDelegate().inTransaction(handle, callback);
+                depositRetryBudget();
+                return result;
             } catch (Exception e) {
-                if (!isSqlState(configuration.serializationFailureSqlStates, e) || --retriesRemaining <= 0) {
-                    if (e instanceof RuntimeException) {
-                        throw (RuntimeException) e;
+                final String sqlState = getSqlState(configuration.serializationFailureSqlStates, e);
+                if (sqlState == null || --retriesRemaining <= 0) {
+                    throw propagate(e);
+                }
+                if (!withdrawRetryBudget()) {
+                    log.warn("Not restarting transaction due to SQLState {}: retry budget exhausted", sqlState);
+                    if (budgetExhaustedCounter != null) {
+                        budgetExhaustedCounter.inc();
                     }
-                    throw new TransactionFailedException(e);
+                    throw propagate(e);
                 }
 
-                if (e instanceof SQLException) {
-                    final String sqlState = ((SQLException) e).getSQLState();
-                    log.warn("Restarting transaction due to SQLState {}, retries remaining {}", sqlState, retriesRemaining);
-                } else {
-                    log.warn("Restarting transaction due to {}, retries remaining {}", e.toString(), retriesRemaining);
+                final long backoffMs = computeBackoffMs(attempt++);
+                log.warn("Restarting transaction due to SQLState {} in {} ms, retries remaining {}", sqlState, backoffMs, retriesRemaining);
+                incrementRestartCounter(sqlState);
+
+                if (backoffMs > 0) {
+                    try {
+                        Thread.sleep(backoffMs);
+                    } catch (final InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw propagate(e);
+                    }
                 }
             }
         }
     }
 
+    private RuntimeException propagate(final Exception e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new TransactionFailedException(e);
+    }
+
+    // Exponential backoff with "equal jitter": a random delay between half and the full backoff
+    private long computeBackoffMs(final int attempt) {
+        if (configuration.initialBackoffMs <= 0) {
+            return 0;
+        }
+
+        final long backoffMs = Math.min(configuration.maxBackoffMs, configuration.initialBackoffMs << Math.min(attempt, 30));
+        final long halfBackoffMs = backoffMs / 2;
+        return halfBackoffMs + (long) (random.nextDouble() * (backoffMs - halfBackoffMs));
+    }
+
+    private void depositRetryBudget() {
+        final long maxBudget = configuration.maxRetryBudget * RETRY_COST;
+        final long deposit = (long) (configuration.retryBudgetRatio * RETRY_COST);
+        while (true) {
+            final long budget = retryBudget.get();
+            if (budget >= maxBudget || retryBudget.compareAndSet(budget, Math.min(maxBudget, budget + deposit))) {
+                return;
+            }
+        }
+    }
+
+    private boolean withdrawRetryBudget() {
+        while (true) {
+            final long budget = retryBudget.get();
+            if (budget < RETRY_COST) {
+                return false;
+            } else if (retryBudget.compareAndSet(budget, budget - RETRY_COST)) {
+                return true;
+            }
+        }
+    }
+
+    private void incrementRestartCounter(final String sqlState) {
+        if (metricRegistry == null) {
+            return;
+        }
+
+        Counter counter = restartCounters.get(sqlState);
+        if (counter == null) {
+            restartCounters.putIfAbsent(sqlState, metricRegistry.counter(MetricRegistry.name(RestartTransactionRunner.class, "restarts", sqlState)));
+            counter = restartCounters.get(sqlState);
+        }
+        counter.inc();
+    }
+
     @Override
     public <ReturnType> ReturnType inTransaction(final Handle handle,
                                                  final TransactionIsolationLevel level,
@@ -94,7 +189,15 @@ public class RestartTransactionRunner extends DelegatingTransactionHandler imple
      * Returns true iff the Throwable or one of its causes is an SQLException whose SQLState begins
      * with the passed state.
      */
-    protected boolean isSqlState(final String[] expectedSqlStates, Throwable throwable) {
+    protected boolean isSqlState(final String[] expectedSqlStates, final Throwable throwable) {
+        return getSqlState(expectedSqlStates, throwable) != null;
+    }
+
+    /**
+     * Returns the SQLState of the first SQLException (the Throwable or one of its causes) whose SQLState
+     * begins with one of the passed states, null if there is none.
+     */
+    protected String getSqlState(final String[] expectedSqlStates, Throwable throwable) {
         do {
             if (throwable instanceof SQLException) {
                 final String sqlState = ((SQLException) throwable).getSQLState();
@@ -102,36 +205,63 @@ public class RestartTransactionRunner extends DelegatingTransactionHandler imple
                 if (sqlState != null) {
                     for (final String expectedSqlState : expectedSqlStates) {
                         if (sqlState.startsWith(expectedSqlState)) {
-                            return true;
+                            return sqlState;
                         }
                     }
                 }
             }
         } while ((throwable = throwable.getCause()) != null);
 
-        return false;
+        return null;
     }
 
     public static class Configuration {
 
         private final int maxRetries;
         private final String[] serializationFailureSqlStates;
+        private final long initialBackoffMs;
+        private final long maxBackoffMs;
+        private final double retryBudgetRatio;
+        private final long maxRetryBudget;
 
         public Configuration() {
-            this(5, new String[]{SQLSTATE_TXN_SERIALIZATION_FAILED, SQLSTATE_INNODB_WAIT_LOCK_TIMEOUT_EXCEEDED});
+            this(5, new String[]{SQLSTATE_TXN_SERIALIZATION_FAILED, SQLSTATE_INNODB_WAIT_LOCK_TIMEOUT_EXCEEDED}, 10, 1000, 0.2, 100);
         }
 
-        private Configuration(final int maxRetries, final String[] serializationFailureSqlStates) {
+        private Configuration(final int maxRetries,
+                              final String[] serializationFailureSqlStates,
+                              final long initialBackoffMs,
+                              final long maxBackoffMs,
+                              final double retryBudgetRatio,
+                              final long maxRetryBudget) {
             this.maxRetries = maxRetries;
             this.serializationFailureSqlStates = serializationFailureSqlStates;
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            this.retryBudgetRatio = retryBudgetRatio;
+            this.maxRetryBudget = maxRetryBudget;
         }
 
         public Configuration withMaxRetries(final int maxRetries) {
-            return new Configuration(maxRetries, serializationFailureSqlStates);
+            return new Configuration(maxRetries, serializationFailureSqlStates, initialBackoffMs, maxBackoffMs, retryBudgetRatio, maxRetryBudget);
         }
 
         public Configuration withSerializationFailureSqlState(final String[] serializationFailureSqlState) {
-            return new Configuration(maxRetries, serializationFailureSqlState);
+            return new Configuration(maxRetries, serializationFailureSqlState, initialBackoffMs, maxBackoffMs, retryBudgetRatio, maxRetryBudget);
+        }
+
+        /**
+         * Backoff before the first retry, doubled for each subsequent retry up to maxBackoffMs. 0 retries immediately.
+         */
+        public Configuration withBackoff(final long initialBackoffMs, final long maxBackoffMs) {
+            return new Configuration(maxRetries, serializationFailureSqlStates, initialBackoffMs, maxBackoffMs, retryBudgetRatio, maxRetryBudget);
+        }
+
+        /**
+         * Each committed transaction earns retryBudgetRatio retry, up to maxRetryBudget retries (the initial budget).
+         */
+        public Configuration withRetryBudget(final double retryBudgetRatio, final long maxRetryBudget) {
+            return new Configuration(maxRetries, serializationFailureSqlStates, initialBackoffMs, maxBackoffMs, retryBudgetRatio, maxRetryBudget);
         }
     }
 }
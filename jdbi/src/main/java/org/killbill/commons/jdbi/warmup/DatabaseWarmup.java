@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+import javax.sql.DataSource;
+
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.StringTemplateGroup;
+import org.antlr.stringtemplate.language.AngleBracketTemplateLexer;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlCall;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Warms up a connection pool after startup, before the first requests pay for it.
+ * <p/>
+ * The pool is filled by borrowing the specified number of connections at once, and the registered statements are
+ * prepared on each of these connections, so that server side prepared statements (useServerPrepStmts) are already
+ * cached by the driver when the application issues them. Statements of SqlDaos are rendered from their
+ * StringTemplate group, using the @Define attributes specified at registration time.
+ * <p/>
+ * Warmup is best effort: failures are logged and never prevent the application from starting.
+ */
+public class DatabaseWarmup {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseWarmup.class);
+
+    private final String name;
+    private final Set<String> statements = new LinkedHashSet<String>();
+
+    public DatabaseWarmup(final String name) {
+        this.name = name;
+    }
+
+    public synchronized DatabaseWarmup addStatement(final String sql) {
+        statements.add(sql);
+        return this;
+    }
+
+    //
+    // Render the statements of the SqlDao from its StringTemplate group (e.g. /org/killbill/queue/dao/QueueSqlDao.sql.stg),
+    // optionally inheriting the templates of the group of superGroupSqlDaoClass. Methods with a (non @Nullable) @Define
+    // attribute which isn't specified are skipped, e.g. the statements of an optional table which isn't configured.
+    //
+    public synchronized DatabaseWarmup addSqlDao(final Class<?> sqlDaoClass, final Class<?> superGroupSqlDaoClass, final Map<String, ?> defines) {
+        final StringTemplateGroup group = loadGroup(sqlDaoClass);
+        if (superGroupSqlDaoClass != null && !superGroupSqlDaoClass.equals(sqlDaoClass)) {
+            group.setSuperGroup(loadGroup(superGroupSqlDaoClass));
+        }
+
+        for (final Method method : sqlDaoClass.getMethods()) {
+            final String templateName = getTemplateName(method);
+            if (templateName == null || !hasRequiredDefines(method, defines)) {
+                continue;
+            }
+
+            final StringTemplate template;
+            if (group.isDefined(templateName)) {
+                template = group.getInstanceOf(templateName);
+            } else {
+                // Literal SQL in the annotation
+                template = new StringTemplate(templateName, AngleBracketTemplateLexer.class);
+                template.setGroup(group);
+            }
+            template.setAttributes(new HashMap<String, Object>(defines));
+            statements.add(rewriteNamedParameters(template.toString()));
+        }
+        return this;
+    }
+
+    public synchronized List<String> getStatements() {
+        return ImmutableList.copyOf(statements);
+    }
+
+    // Same as below, without recording the duration (no metrics-core needed)
+    public int warmup(final DataSource dataSource, final int nbConnections) {
+        return warmup(dataSource, nbConnections, null);
+    }
+
+    //
+    // Borrow nbConnections at once (which forces the pool to open them) and prepare each statement on each of them.
+    // Returns the number of statements successfully prepared.
+    //
+    public int warmup(final DataSource dataSource, final int nbConnections, final MetricRegistry metricRegistry) {
+        final List<String> statementsToPrepare = getStatements();
+        final long startNanos = System.nanoTime();
+
+        final List<Connection> connections = new ArrayList<Connection>(nbConnections);
+        int nbPrepared = 0;
+        int nbFailed = 0;
+        try {
+            try {
+                for (int i = 0; i < nbConnections; i++) {
+                    connections.add(dataSource.getConnection());
+                }
+            } catch (final SQLException e) {
+                logger.warn("Unable to open connection {} for warmup {}", connections.size() + 1, name, e);
+            }
+
+            for (final Connection connection : connections) {
+                for (final String sql : statementsToPrepare) {
+                    if (prepare(connection, sql)) {
+                        nbPrepared++;
+                    } else {
+                        nbFailed++;
+                    }
+                }
+            }
+        } finally {
+            closeQuietly(connections);
+        }
+
+        final long durationNanos = System.nanoTime() - startNanos;
+        if (metricRegistry != null) {
+            metricRegistry.timer(MetricRegistry.name(DatabaseWarmup.class, name, "duration")).update(durationNanos, TimeUnit.NANOSECONDS);
+        }
+        logger.info("Warmup {} completed in {} ms: {} connection(s), {} statement(s) prepared, {} failed",
+                    name, TimeUnit.NANOSECONDS.toMillis(durationNanos), connections.size(), nbPrepared, nbFailed);
+        return nbPrepared;
+    }
+
+    private boolean prepare(final Connection connection, final String sql) {
+        PreparedStatement statement = null;
+        try {
+            statement = connection.prepareStatement(sql);
+            return true;
+        } catch (final SQLException e) {
+            logger.debug("Unable to prepare statement {}", sql, e);
+            return false;
+        } finally {
+            if (statement != null) {
+                try {
+                    // With cachePrepStmts, this returns the server side statement to the driver cache
+                    statement.close();
+                } catch (final SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    private void closeQuietly(final Collection<Connection> connections) {
+        for (final Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                logger.debug("Unable to close connection", e);
+            }
+        }
+    }
+
+    private static String getTemplateName(final Method method) {
+        final String value;
+        if (method.getAnnotation(SqlQuery.class) != null) {
+            value = method.getAnnotation(SqlQuery.class).value();
+        } else if (method.getAnnotation(SqlUpdate.class) != null) {
+            value = method.getAnnotation(SqlUpdate.class).value();
+        } else if (method.getAnnotation(SqlBatch.class) != null) {
+            value = method.getAnnotation(SqlBatch.class).value();
+        } else if (method.getAnnotation(SqlCall.class) != null) {
+            value = method.getAnnotation(SqlCall.class).value();
+        } else {
+            return null;
+        }
+        // Same default as jdbi: the template is named after the method
+        return SqlQuery.DEFAULT_VALUE.equals(value) || value.isEmpty() ? method.getName() : value;
+    }
+
+    private static boolean hasRequiredDefines(final Method method, final Map<String, ?> defines) {
+        for (final Annotation[] parameterAnnotations : method.getParameterAnnotations()) {
+            String define = null;
+            boolean isNullable = false;
+            for (final Annotation annotation : parameterAnnotations) {
+                if (annotation instanceof Define) {
+                    define = ((Define) annotation).value();
+                } else if ("Nullable".equals(annotation.annotationType().getSimpleName())) {
+                    // Any flavor (javax.annotation, ...)
+                    isNullable = true;
+                }
+            }
+            if (define != null && !isNullable && defines.get(define) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static StringTemplateGroup loadGroup(final Class<?> sqlDaoClass) {
+        final String path = "/" + sqlDaoClass.getName().replaceAll("\\.", Matcher.quoteReplacement("/")) + ".sql.stg";
+        final InputStream ins = sqlDaoClass.getResourceAsStream(path);
+        if (ins == null) {
+            throw new IllegalStateException("unable to find group file " + path + " on classpath");
+        }
+
+        final InputStreamReader reader = new InputStreamReader(ins);
+        try {
+            return new StringTemplateGroup(reader, AngleBracketTemplateLexer.class);
+        } finally {
+            try {
+                reader.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    //
+    // Same rewriting as jdbi (ColonPrefixNamedParamStatementRewriter): each :name becomes a ?, except in quoted text,
+    // so that the prepared SQL matches the one issued later on (the driver cache is keyed by the SQL string).
+    //
+    static String rewriteNamedParameters(final String sql) {
+        final StringBuilder result = new StringBuilder(sql.length());
+        char quote = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            final char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                result.append(c);
+                i++;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                result.append(c);
+                i++;
+            } else if (c == ':' && i + 1 < sql.length() && isParameterNameCharacter(sql.charAt(i + 1))) {
+                result.append('?');
+                i++;
+                while (i < sql.length() && isParameterNameCharacter(sql.charAt(i))) {
+                    i++;
+                }
+            } else {
+                result.append(c);
+                i++;
+            }
+        }
+        return result.toString();
+    }
+
+    private static boolean isParameterNameCharacter(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
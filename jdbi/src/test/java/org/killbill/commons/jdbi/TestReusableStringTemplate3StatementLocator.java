@@ -21,6 +21,7 @@ import java.io.IOException;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.Define;
 import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
+import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -56,6 +57,19 @@ public class TestReusableStringTemplate3StatementLocator extends JDBITestBase {
         somethingLiteralSqlDao.delete(TABLE_NAME);
     }
 
+    @Test(groups = "slow")
+    public void testRenderedSqlCache() throws IOException {
+        final ReusableStringTemplate3StatementLocator locator = new ReusableStringTemplate3StatementLocator("/org/killbill/commons/jdbi/SomethingNonLiteralSqlDao.sql.stg", true, true);
+        dbi.setStatementLocator(locator);
+        final SomethingNonLiteralSqlDao somethingNonLiteralSqlDao = dbi.onDemand(SomethingNonLiteralSqlDao.class);
+
+        for (int i = 0; i < 3; i++) {
+            somethingNonLiteralSqlDao.delete(TABLE_NAME);
+        }
+        Assert.assertEquals(locator.getRenderedSqlCacheStats().missCount(), 1);
+        Assert.assertEquals(locator.getRenderedSqlCacheStats().hitCount(), 2);
+    }
+
     private static interface SomethingNonLiteralSqlDao extends Transactional<SomethingLiteralSqlDao> {
 
         @SqlUpdate
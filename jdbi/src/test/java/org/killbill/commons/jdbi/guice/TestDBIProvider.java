@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.commons.jdbi.guice;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.killbill.commons.jdbi.metrics.InstrumentedDBIProvider;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestDBIProvider {
+
+    @Test(groups = "fast")
+    public void testStatementMetricsAreOptIn() throws Exception {
+        Assert.assertTrue(runStatement(false).getTimers().isEmpty());
+        Assert.assertFalse(runStatement(true).getTimers().isEmpty());
+    }
+
+    private MetricRegistry runStatement(final boolean isStatementMetricsEnabled) {
+        final Properties properties = new Properties();
+        properties.put("org.killbill.dao.url", "jdbc:h2:mem:" + UUID.randomUUID().toString() + ";MODE=MYSQL;DB_CLOSE_DELAY=-1");
+        properties.put("org.killbill.dao.statementMetrics", String.valueOf(isStatementMetricsEnabled));
+        final DaoConfig daoConfig = new ConfigurationObjectFactory(properties).build(DaoConfig.class);
+        // No pool metrics, only the statement timers end up in the registry
+        final DataSource dataSource = new DataSourceProvider(daoConfig, "dbi-provider-" + isStatementMetricsEnabled, false).get();
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final InstrumentedDBIProvider dbiProvider = new InstrumentedDBIProvider(daoConfig, dataSource, null);
+        dbiProvider.setMetricRegistry(metricRegistry);
+        final IDBI dbi = dbiProvider.get();
+
+        final Handle handle = dbi.open();
+        try {
+            handle.select("select 1");
+        } finally {
+            handle.close();
+        }
+        return metricRegistry;
+    }
+}
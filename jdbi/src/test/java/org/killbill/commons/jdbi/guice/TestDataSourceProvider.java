@@ -28,10 +28,14 @@ import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
+import org.killbill.commons.jdbi.metrics.InstrumentedDataSource;
+import org.killbill.commons.jdbi.metrics.InstrumentedDataSourceProvider;
+import org.killbill.commons.jdbi.warmup.DatabaseWarmup;
 import org.skife.config.ConfigurationObjectFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
 import com.jolbox.bonecp.BoneCPDataSource;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import com.zaxxer.hikari.HikariDataSource;
@@ -82,6 +86,72 @@ public class TestDataSourceProvider {
         }
     }
 
+    @Test(groups = "fast")
+    public void testDataSourceProviderWithMetrics() throws Exception {
+        final Class[] expectedDataSourceClasses = new Class[]{HikariDataSource.class, BoneCPDataSource.class, ComboPooledDataSource.class};
+        final DataSourceConnectionPoolingType[] poolingTypes = new DataSourceConnectionPoolingType[]{DataSourceConnectionPoolingType.HIKARICP,
+                                                                                                    DataSourceConnectionPoolingType.BONECP,
+                                                                                                    DataSourceConnectionPoolingType.C3P0};
+        for (int i = 0; i < poolingTypes.length; i++) {
+            final DaoConfig daoConfig = buildDaoConfig(poolingTypes[i], DataSourceProvider.DatabaseType.H2);
+            final MetricRegistry metricRegistry = new MetricRegistry();
+
+            final DataSourceProvider dataSourceProvider = new InstrumentedDataSourceProvider(daoConfig, TEST_POOL, false, metricRegistry);
+
+            final DataSource dataSource = dataSourceProvider.get();
+            Assert.assertTrue(dataSource instanceof InstrumentedDataSource);
+            Assert.assertTrue(expectedDataSourceClasses[i].isInstance(((InstrumentedDataSource) dataSource).getDelegate()));
+
+            final String prefix = MetricRegistry.name(DataSourceProvider.class, TEST_POOL);
+            Assert.assertTrue(metricRegistry.getTimers().containsKey(MetricRegistry.name(prefix, "wait")));
+            Assert.assertTrue(metricRegistry.getTimers().containsKey(MetricRegistry.name(prefix, "usage")));
+            Assert.assertTrue(metricRegistry.getCounters().containsKey(MetricRegistry.name(prefix, "timeouts")));
+            Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(prefix, "active")).getValue(), 0);
+            Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(prefix, "pending")).getValue(), 0);
+            Assert.assertNotNull(metricRegistry.getGauges().get(MetricRegistry.name(prefix, "idle")).getValue());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDataSourceProvidersSharingPoolName() throws Exception {
+        final DaoConfig daoConfig = buildDaoConfig(DataSourceConnectionPoolingType.HIKARICP, DataSourceProvider.DatabaseType.H2);
+        final MetricRegistry metricRegistry = new MetricRegistry();
+
+        final DataSource firstDataSource = new InstrumentedDataSourceProvider(daoConfig, TEST_POOL, false, metricRegistry).get();
+        final DataSource secondDataSource = new InstrumentedDataSourceProvider(daoConfig, TEST_POOL, false, metricRegistry).get();
+        Assert.assertNotSame(secondDataSource, firstDataSource);
+
+        // The gauges follow the latest DataSource
+        final String prefix = MetricRegistry.name(DataSourceProvider.class, TEST_POOL);
+        final Connection connection = secondDataSource.getConnection();
+        try {
+            Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(prefix, "active")).getValue(), 1);
+        } finally {
+            connection.close();
+        }
+        Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(prefix, "active")).getValue(), 0);
+        Assert.assertEquals(metricRegistry.timer(MetricRegistry.name(prefix, "usage")).getCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testDataSourceProviderWithWarmup() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("org.killbill.dao.url", "jdbc:h2:file:killbill;MODE=MYSQL;DB_CLOSE_DELAY=-1;MVCC=true;DB_CLOSE_ON_EXIT=FALSE");
+        properties.put("org.killbill.dao.minIdle", "2");
+        properties.put("org.killbill.dao.warmup", "true");
+        final DaoConfig daoConfig = new ConfigurationObjectFactory(properties).build(DaoConfig.class);
+        final MetricRegistry metricRegistry = new MetricRegistry();
+
+        final DatabaseWarmup databaseWarmup = new DatabaseWarmup(TEST_POOL).addStatement("select 1");
+        final DataSourceProvider dataSourceProvider = new InstrumentedDataSourceProvider(daoConfig, TEST_POOL, false, metricRegistry);
+        dataSourceProvider.setDatabaseWarmup(databaseWarmup);
+        dataSourceProvider.get();
+
+        // The minIdle connections were borrowed at once during the (single) warmup, which prepared the statements on them
+        Assert.assertEquals(metricRegistry.timer(MetricRegistry.name(DatabaseWarmup.class, TEST_POOL, "duration")).getCount(), 1);
+        Assert.assertEquals(metricRegistry.timer(MetricRegistry.name(DataSourceProvider.class, TEST_POOL, "usage")).getCount(), 2);
+    }
+
     private DaoConfig buildDaoConfig(DataSourceConnectionPoolingType poolingType, DataSourceProvider.DatabaseType databaseType) {
         final Properties properties = new Properties();
         properties.put("org.killbill.dao.poolingType", poolingType.toString());
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.log;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.skife.jdbi.v2.tweak.SQLLog.BatchLogger;
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestSlf4jLogging {
+
+    private List<String> loggedCalls;
+    private Logger logger;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        loggedCalls = new LinkedList<String>();
+        // Records the logging calls, with all levels enabled
+        logger = (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(),
+                                                 new Class[]{Logger.class},
+                                                 new InvocationHandler() {
+                                                     @Override
+                                                     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                                                         if (method.getName().startsWith("is")) {
+                                                             return true;
+                                                         }
+                                                         loggedCalls.add(method.getName() + " " + args[0]);
+                                                         return null;
+                                                     }
+                                                 });
+    }
+
+    @Test(groups = "fast")
+    public void testLogEverything() throws Exception {
+        final Slf4jLogging sqlLog = new Slf4jLogging(logger, LogLevel.INFO);
+
+        sqlLog.logSQL(1, "select 1");
+        sqlLog.logBeginTransaction(null);
+        final BatchLogger batchLogger = sqlLog.logBatch();
+        batchLogger.add("insert 1");
+        batchLogger.add("insert 2");
+        batchLogger.log(2);
+
+        Assert.assertEquals(loggedCalls.size(), 3);
+        Assert.assertEquals(loggedCalls.get(0), "info statement:[{}] took {} millis");
+        Assert.assertEquals(loggedCalls.get(1), "info begin transaction on [{}]");
+        Assert.assertEquals(loggedCalls.get(2), "info batch:[{}] took {} millis");
+    }
+
+    @Test(groups = "fast")
+    public void testSlowQueryLog() throws Exception {
+        final Slf4jLogging sqlLog = new Slf4jLogging(logger, LogLevel.WARN, 100);
+
+        sqlLog.logSQL(99, "select 1");
+        sqlLog.logBeginTransaction(null);
+        sqlLog.logCommitTransaction(10, null);
+        final BatchLogger batchLogger = sqlLog.logBatch();
+        batchLogger.add("insert 1");
+        batchLogger.log(50);
+        Assert.assertEquals(loggedCalls.size(), 0);
+
+        sqlLog.logSQL(100, "select 1");
+        sqlLog.logCommitTransaction(200, null);
+        Assert.assertEquals(loggedCalls.size(), 2);
+        Assert.assertEquals(loggedCalls.get(0), "warn statement:[{}] took {} millis");
+        Assert.assertEquals(loggedCalls.get(1), "warn commit transaction on [{}] took {} millis");
+    }
+}
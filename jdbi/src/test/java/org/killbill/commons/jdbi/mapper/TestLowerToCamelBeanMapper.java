@@ -17,7 +17,10 @@
 package org.killbill.commons.jdbi.mapper;
 
 import java.io.IOException;
+import java.util.List;
 
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.exceptions.DBIException;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
@@ -67,6 +70,66 @@ public class TestLowerToCamelBeanMapper extends JDBITestBase {
         Assert.assertEquals(foundStephane.getAnotherLowerCasedField(), fieldBStephane);
     }
 
+    @Test(groups = "slow")
+    public void testWithMultipleRowsAndColumnLayouts() throws Exception {
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(SomethingBean.class));
+
+        final SomethingSqlDao somethingSqlDao = dbi.onDemand(SomethingSqlDao.class);
+        for (int i = 0; i < 10; i++) {
+            somethingSqlDao.create(i, "something-" + i, i * 10);
+        }
+
+        // The column mapping plan is reused across rows and statements
+        for (int j = 0; j < 2; j++) {
+            final List<SomethingBean> somethings = somethingSqlDao.getSomethings();
+            Assert.assertEquals(somethings.size(), 10);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(somethings.get(i).getLowerCasedField(), "something-" + i);
+                Assert.assertEquals(somethings.get(i).getAnotherLowerCasedField(), i * 10);
+            }
+        }
+
+        // Different column layout with the same mapper
+        final SomethingBean foundOnlyFieldB = somethingSqlDao.getSomethingFieldB(3);
+        Assert.assertNull(foundOnlyFieldB.getLowerCasedField());
+        Assert.assertEquals(foundOnlyFieldB.getAnotherLowerCasedField(), 30);
+    }
+
+    @Test(groups = "slow")
+    public void testWithInterleavedResultSets() throws Exception {
+        final SomethingSqlDao somethingSqlDao = dbi.onDemand(SomethingSqlDao.class);
+        for (int i = 0; i < 10; i++) {
+            somethingSqlDao.create(i, "something-" + i, i * 10);
+        }
+
+        // The same mapper reads two result sets with different column layouts at the same time
+        final LowerToCamelBeanMapper<SomethingBean> mapper = new LowerToCamelBeanMapper<SomethingBean>(SomethingBean.class);
+        final Handle handle1 = dbi.open();
+        final Handle handle2 = dbi.open();
+        try {
+            final ResultIterator<SomethingBean> somethings = handle1.createQuery("select lower_cased_field, another_lower_cased_field from something order by id")
+                                                                    .map(mapper)
+                                                                    .iterator();
+            final ResultIterator<SomethingBean> somethingsFieldB = handle2.createQuery("select another_lower_cased_field from something order by id")
+                                                                          .map(mapper)
+                                                                          .iterator();
+            for (int i = 0; i < 10; i++) {
+                final SomethingBean something = somethings.next();
+                Assert.assertEquals(something.getLowerCasedField(), "something-" + i);
+                Assert.assertEquals(something.getAnotherLowerCasedField(), i * 10);
+
+                final SomethingBean somethingFieldB = somethingsFieldB.next();
+                Assert.assertNull(somethingFieldB.getLowerCasedField());
+                Assert.assertEquals(somethingFieldB.getAnotherLowerCasedField(), i * 10);
+            }
+            somethings.close();
+            somethingsFieldB.close();
+        } finally {
+            handle1.close();
+            handle2.close();
+        }
+    }
+
     private interface SomethingSqlDao {
 
         @SqlUpdate("insert into something (id, lower_cased_field, another_lower_cased_field) values (:id, :fieldA, :fieldB)")
@@ -76,6 +139,12 @@ public class TestLowerToCamelBeanMapper extends JDBITestBase {
 
         @SqlQuery("select lower_cased_field, another_lower_cased_field from something where id = :id")
         public SomethingBean getSomething(@Bind("id") final int id);
+
+        @SqlQuery("select lower_cased_field, another_lower_cased_field from something order by id")
+        public List<SomethingBean> getSomethings();
+
+        @SqlQuery("select another_lower_cased_field from something where id = :id")
+        public SomethingBean getSomethingFieldB(@Bind("id") final int id);
     }
 
     // Needs to be public for the reflection magic
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.metrics;
+
+import org.killbill.commons.jdbi.JDBITestBase;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestMetricsTimingCollector extends JDBITestBase {
+
+    @BeforeMethod(groups = "slow")
+    public void cleanupDb() throws Exception {
+        cleanupDb("drop table if exists something;\n" +
+                  "create table something (id int primary key, name varchar(100))");
+    }
+
+    @Test(groups = "slow")
+    public void testTimersPerStatementAndTable() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        dbi.setTimingCollector(new MetricsTimingCollector(metricRegistry, "sql"));
+
+        final SomethingSqlDao somethingSqlDao = dbi.onDemand(SomethingSqlDao.class);
+        somethingSqlDao.create(1, "pierre", "something");
+        somethingSqlDao.create(2, "stephane", "something");
+        Assert.assertEquals(somethingSqlDao.getName(1, "something"), "pierre");
+        Assert.assertEquals(somethingSqlDao.getName(2, "something_else"), "stephane");
+
+        final Handle handle = dbi.open();
+        try {
+            handle.execute("delete from something");
+        } finally {
+            handle.close();
+        }
+
+        Assert.assertEquals(metricRegistry.getTimers().size(), 4);
+        Assert.assertEquals(metricRegistry.getTimers().get("sql.create.something").getCount(), 2);
+        Assert.assertEquals(metricRegistry.getTimers().get("sql.getName.something").getCount(), 1);
+        Assert.assertEquals(metricRegistry.getTimers().get("sql.getName.something_else").getCount(), 1);
+        Assert.assertEquals(metricRegistry.getTimers().get("sql.other.all").getCount(), 1);
+    }
+
+    private interface SomethingSqlDao {
+
+        // The tableName attribute is only used for the metrics here
+        @SqlUpdate("insert into something (id, name) values (:id, :name)")
+        public void create(@Bind("id") final int id,
+                           @Bind("name") final String name,
+                           @Define("tableName") final String tableName);
+
+        @SqlQuery("select name from something where id = :id")
+        public String getName(@Bind("id") final int id,
+                              @Define("tableName") final String tableName);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.routing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.killbill.commons.jdbi.JDBITestBase;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestRoutingDBI extends JDBITestBase {
+
+    private static final String DDL = "drop table if exists something;\n" +
+                                      "create table something (id int primary key, name varchar(100))";
+
+    private JdbcConnectionPool replicaDataSource;
+    private JdbcConnectionPool otherReplicaDataSource;
+
+    @BeforeMethod(groups = "slow")
+    public void cleanupDb() throws Exception {
+        cleanupDb(DDL);
+        final Handle handle = dbi.open();
+        try {
+            handle.execute("insert into something (id, name) values (1, 'primary')");
+        } finally {
+            handle.close();
+        }
+
+        replicaDataSource = createReplica("replica");
+        otherReplicaDataSource = createReplica("other-replica");
+    }
+
+    @AfterMethod(groups = "slow")
+    public void closeReplicas() throws Exception {
+        replicaDataSource.dispose();
+        otherReplicaDataSource.dispose();
+    }
+
+    @Test(groups = "slow")
+    public void testReadOnlyMethodsGoToReplica() throws Exception {
+        final RoutingDBI routingDBI = new RoutingDBI(dbi, new DBI(replicaDataSource));
+        final SomethingSqlDao somethingSqlDao = routingDBI.onDemand(SomethingSqlDao.class);
+
+        Assert.assertEquals(somethingSqlDao.getNameFromReplica(1), "replica");
+        Assert.assertEquals(somethingSqlDao.getName(1), "primary");
+
+        somethingSqlDao.create(2, "new");
+        Assert.assertEquals(somethingSqlDao.getName(2), "new");
+        Assert.assertNull(somethingSqlDao.getNameFromReplica(2));
+
+        // Handles are always bound to the primary
+        final Handle handle = routingDBI.open();
+        try {
+            Assert.assertEquals(handle.attach(SomethingSqlDao.class).getNameFromReplica(2), "new");
+        } finally {
+            handle.close();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testReplicaRoundRobinAndFailover() throws Exception {
+        final DataSource primaryDataSource = embeddedDB.getDataSource();
+        final ReplicaDataSource replicas = new ReplicaDataSource(ImmutableList.<DataSource>of(replicaDataSource, otherReplicaDataSource), primaryDataSource, 60000L);
+        final SomethingSqlDao somethingSqlDao = new RoutingDBI(dbi, new DBI(replicas)).onDemand(SomethingSqlDao.class);
+
+        Assert.assertEquals(somethingSqlDao.getNameFromReplica(1), "replica");
+        Assert.assertEquals(somethingSqlDao.getNameFromReplica(1), "other-replica");
+        Assert.assertEquals(somethingSqlDao.getNameFromReplica(1), "replica");
+
+        // Take the first replica down
+        replicaDataSource.dispose();
+        Assert.assertEquals(somethingSqlDao.getNameFromReplica(1), "other-replica");
+        Assert.assertEquals(somethingSqlDao.getNameFromReplica(1), "other-replica");
+        Assert.assertFalse(replicas.isHealthy(0));
+        Assert.assertTrue(replicas.isHealthy(1));
+
+        // Fallback to the primary when all replicas are down
+        otherReplicaDataSource.dispose();
+        Assert.assertEquals(somethingSqlDao.getNameFromReplica(1), "primary");
+        Assert.assertFalse(replicas.isHealthy(1));
+    }
+
+    private JdbcConnectionPool createReplica(final String name) throws SQLException {
+        final JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID().toString() + ";MODE=MYSQL;DB_CLOSE_DELAY=-1", "sa", "");
+        final Connection connection = dataSource.getConnection();
+        try {
+            connection.createStatement().execute(DDL);
+            connection.createStatement().execute("insert into something (id, name) values (1, '" + name + "')");
+        } finally {
+            connection.close();
+        }
+        return dataSource;
+    }
+
+    private interface SomethingSqlDao {
+
+        @SqlUpdate("insert into something (id, name) values (:id, :name)")
+        public void create(@Bind("id") final int id,
+                           @Bind("name") final String name);
+
+        @SqlQuery("select name from something where id = :id")
+        public String getName(@Bind("id") final int id);
+
+        @ReadOnly
+        @SqlQuery("select name from something where id = :id")
+        public String getNameFromReplica(@Bind("id") final int id);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.statement;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.killbill.commons.jdbi.JDBITestBase;
+import org.killbill.commons.jdbi.statement.AdaptiveFetchSizeStatementBuilderFactory.FetchMode;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestAdaptiveFetchSizeStatementBuilderFactory extends JDBITestBase {
+
+    @BeforeMethod(groups = "slow")
+    public void cleanupDb() throws Exception {
+        cleanupDb("drop table if exists something;\n" +
+                  "create table something (id int primary key, name varchar(100))");
+    }
+
+    @Test(groups = "slow")
+    public void testFetchModeFollowsResultSize() throws Exception {
+        final AdaptiveFetchSizeStatementBuilderFactory statementBuilderFactory = new AdaptiveFetchSizeStatementBuilderFactory(10, 20, 5);
+        dbi.setStatementBuilderFactory(statementBuilderFactory);
+
+        final SomethingSqlDao somethingSqlDao = dbi.onDemand(SomethingSqlDao.class);
+        for (int i = 0; i < 30; i++) {
+            somethingSqlDao.create(i, "name-" + i);
+        }
+
+        // Not streamed by H2
+        Assert.assertFalse(statementBuilderFactory.isStreamingSupported());
+
+        // Results are not impacted by the sampling or the fetch size
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(somethingSqlDao.getFirstNames(5).size(), 5);
+            Assert.assertEquals(somethingSqlDao.getAllNames().size(), 30);
+        }
+
+        final Iterator<String> iterator = somethingSqlDao.iterateAllNames();
+        int nbRows = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            nbRows++;
+        }
+        Assert.assertEquals(nbRows, 30);
+
+        Assert.assertEquals(statementBuilderFactory.getFetchMode(SomethingSqlDao.class.getMethod("getFirstNames", int.class), null), FetchMode.BUFFERED);
+        Assert.assertEquals(statementBuilderFactory.getFetchMode(SomethingSqlDao.class.getMethod("getAllNames"), null), FetchMode.CHUNKED);
+        Assert.assertEquals(statementBuilderFactory.getFetchMode(SomethingSqlDao.class.getMethod("iterateAllNames"), null), FetchMode.CHUNKED);
+        Assert.assertEquals(statementBuilderFactory.getFetchMode(SomethingSqlDao.class.getMethod("create", int.class, String.class), null), FetchMode.BUFFERED);
+    }
+
+    private interface SomethingSqlDao {
+
+        @SqlUpdate("insert into something (id, name) values (:id, :name)")
+        public void create(@Bind("id") final int id,
+                           @Bind("name") final String name);
+
+        @SqlQuery("select name from something where id < :max order by id")
+        public List<String> getFirstNames(@Bind("max") final int max);
+
+        @SqlQuery("select name from something order by id")
+        public List<String> getAllNames();
+
+        @SqlQuery("select name from something order by id")
+        public Iterator<String> iterateAllNames();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.transaction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.exceptions.TransactionFailedException;
+import org.skife.jdbi.v2.tweak.TransactionHandler;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestRestartTransactionRunner {
+
+    private static final TransactionCallback<String> CALLBACK = new TransactionCallback<String>() {
+        @Override
+        public String inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+            return "committed";
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testRestartsWithBackoff() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final AtomicInteger attempts = new AtomicInteger();
+        final RestartTransactionRunner runner = new RestartTransactionRunner(new RestartTransactionRunner.Configuration().withBackoff(5, 10),
+                                                                             failingTransactionHandler(attempts, 2, "40001"),
+                                                                             metricRegistry);
+
+        final long startMs = System.currentTimeMillis();
+        Assert.assertEquals(runner.inTransaction(null, CALLBACK), "committed");
+        Assert.assertEquals(attempts.get(), 3);
+        // At least 5 / 2 + 10 / 2 ms of backoff
+        Assert.assertTrue(System.currentTimeMillis() - startMs >= 7);
+        Assert.assertEquals(metricRegistry.counter(MetricRegistry.name(RestartTransactionRunner.class, "restarts", "40001")).getCount(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testNoRestartForOtherFailures() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final RestartTransactionRunner runner = new RestartTransactionRunner(failingTransactionHandler(attempts, 1, "23000"));
+
+        try {
+            runner.inTransaction(null, CALLBACK);
+            Assert.fail();
+        } catch (final TransactionFailedException e) {
+            Assert.assertEquals(attempts.get(), 1);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRetryBudget() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final AtomicInteger attempts = new AtomicInteger();
+        // A single retry in the budget, a committed transaction earns half a retry
+        final RestartTransactionRunner.Configuration configuration = new RestartTransactionRunner.Configuration().withBackoff(0, 0).withRetryBudget(0.5, 1);
+        final RestartTransactionRunner runner = new RestartTransactionRunner(configuration, failingTransactionHandler(attempts, 2, "41000"), metricRegistry);
+
+        try {
+            runner.inTransaction(null, CALLBACK);
+            Assert.fail();
+        } catch (final TransactionFailedException e) {
+            // The budget allowed a single retry
+            Assert.assertEquals(attempts.get(), 2);
+        }
+        Assert.assertEquals(metricRegistry.counter(MetricRegistry.name(RestartTransactionRunner.class, "retryBudgetExhausted")).getCount(), 1);
+
+        // Two commits earn a retry back
+        Assert.assertEquals(runner.inTransaction(null, CALLBACK), "committed");
+        Assert.assertEquals(runner.inTransaction(null, CALLBACK), "committed");
+
+        // Fail once more
+        attempts.set(1);
+        Assert.assertEquals(runner.inTransaction(null, CALLBACK), "committed");
+        Assert.assertEquals(attempts.get(), 3);
+        Assert.assertEquals(metricRegistry.counter(MetricRegistry.name(RestartTransactionRunner.class, "restarts", "41000")).getCount(), 2);
+    }
+
+    // Fails the first nbFailures transactions with the specified SQLState
+    private TransactionHandler failingTransactionHandler(final AtomicInteger attempts, final int nbFailures, final String sqlState) {
+        return (TransactionHandler) Proxy.newProxyInstance(TransactionHandler.class.getClassLoader(),
+                                                           new Class[]{TransactionHandler.class},
+                                                           new InvocationHandler() {
+                                                               @Override
+                                                               public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                                                                   if (attempts.incrementAndGet() <= nbFailures) {
+                                                                       throw new TransactionFailedException(new SQLException("Deadlock", sqlState));
+                                                                   }
+                                                                   return ((TransactionCallback) args[args.length - 1]).inTransaction(null, null);
+                                                               }
+                                                           });
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.warmup;
+
+import org.killbill.commons.jdbi.JDBITestBase;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestDatabaseWarmup extends JDBITestBase {
+
+    private static final String TABLE_NAME = "warmup";
+
+    @BeforeMethod(groups = "slow")
+    public void cleanupDb() throws Exception {
+        cleanupDb("drop table if exists " + TABLE_NAME + ";\n" +
+                  "create table " + TABLE_NAME + " (id int primary key, value varchar(32))");
+    }
+
+    @Test(groups = "fast")
+    public void testRewriteNamedParameters() {
+        Assert.assertEquals(DatabaseWarmup.rewriteNamedParameters("select * from t where a = :a and b_c = :b_c1"), "select * from t where a = ? and b_c = ?");
+        Assert.assertEquals(DatabaseWarmup.rewriteNamedParameters("select ':a', \":b\" from t where c = :c"), "select ':a', \":b\" from t where c = ?");
+        Assert.assertEquals(DatabaseWarmup.rewriteNamedParameters("select 1 :"), "select 1 :");
+    }
+
+    @Test(groups = "slow")
+    public void testWarmup() throws Exception {
+        final DatabaseWarmup databaseWarmup = new DatabaseWarmup("test").addSqlDao(WarmupSqlDao.class, null, ImmutableMap.<String, Object>of("tableName", TABLE_NAME))
+                                                                        .addStatement("select * from table_which_does_not_exist");
+
+        Assert.assertEquals(databaseWarmup.getStatements().size(), 4);
+        Assert.assertTrue(databaseWarmup.getStatements().containsAll(ImmutableList.<String>of("select value from warmup where id = ? and value != ':notAParameter'",
+                                                                                              "insert into warmup (id, value) values (?, ?)",
+                                                                                              "select count(*) from warmup")));
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        // The statement on the missing table fails to prepare, but doesn't prevent the others from being prepared
+        Assert.assertEquals(databaseWarmup.warmup(embeddedDB.getDataSource(), 2, metricRegistry), 6);
+        Assert.assertEquals(metricRegistry.timer(MetricRegistry.name(DatabaseWarmup.class, "test", "duration")).getCount(), 1);
+
+        // The warmed up statements are the ones issued by the SqlDao
+        final WarmupSqlDao warmupSqlDao = dbi.onDemand(WarmupSqlDao.class);
+        warmupSqlDao.insertValue(1, "foo", TABLE_NAME);
+        Assert.assertEquals(warmupSqlDao.getValue(1, TABLE_NAME), "foo");
+    }
+}
+
+@org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator
+interface WarmupSqlDao {
+
+    @SqlQuery
+    public String getValue(@Bind("id") int id, @Define("tableName") String tableName);
+
+    @SqlUpdate
+    public void insertValue(@Bind("id") int id, @Bind("value") String value, @Define("tableName") String tableName);
+
+    @SqlQuery("select count(*) from <tableName>")
+    public int count(@Define("tableName") String tableName);
+
+    // Not specified at registration time, so skipped
+    @SqlQuery("select count(*) from <otherTableName>")
+    public int countOther(@Define("otherTableName") String otherTableName);
+}
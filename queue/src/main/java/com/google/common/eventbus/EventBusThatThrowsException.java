@@ -16,121 +16,40 @@
 
 package com.google.common.eventbus;
 
-import com.google.common.collect.SetMultimap;
-import org.killbill.bus.api.BusEvent;
-
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
+import org.killbill.bus.BusHandlerRegistry;
 
 /**
- * Bus exceptions in the guava framework are swallowed  and that sucks.
- * <p/>
- * I sumitted a ticket https://code.google.com/p/guava-libraries/issues/detail?id=981 which was then merged into
- * https://code.google.com/p/guava-libraries/issues/detail?id=780
- * <p/>
- * They closed the bug, but i am still not seeing any way to get those exceptions back, so since we REALLY
- * need it, we have to hack the code:
+ * EventBus with a postWithException method that will throw an EventBusException if there is any exceptions during
+ * the dispatch phase.
  * <p/>
- * There is a new postWithException method that will throw an EventBusException if there is any exceptions during
- * the dispatch phase, which means that some handlers might have been called successfully and others not, which is
- * fine with our 'at least once' delivery semantics.
+ * The persistent bus now dispatches its events through {@link BusHandlerRegistry}, which doesn't need to hack into
+ * the private fields of the Guava EventBus anymore: this class is only kept as an adapter on top of it for existing users.
+ *
+ * @deprecated use {@link BusHandlerRegistry} instead
  */
+@Deprecated
 public class EventBusThatThrowsException extends EventBus {
 
-    public EventBusThatThrowsException(String identifier) {
-        super(identifier);
-    }
+    private final BusHandlerRegistry busHandlerRegistry;
 
-    public void postWithException(Object event) throws EventBusException {
-        Set<Class<?>> dispatchTypes = flattenHierarchy(event.getClass());
-
-        boolean dispatched = false;
-        for (Class<?> eventType : dispatchTypes) {
-            getHandlersByTypeLock().readLock().lock();
-            try {
-                Set<EventHandler> wrappers = getHandlersByType().get(eventType);
-
-                if (!wrappers.isEmpty()) {
-                    dispatched = true;
-                    for (EventHandler wrapper : wrappers) {
-                        enqueueEvent(event, wrapper);
-                    }
-                }
-            } finally {
-                getHandlersByTypeLock().readLock().unlock();
-            }
-        }
-
-        if (!dispatched && !(event instanceof DeadEvent)) {
-            post(new DeadEvent(this, event));
-        }
-
-        dispatchQueuedEventsWithException();
-    }
-
-    void dispatchQueuedEventsWithException() throws EventBusException {
-        // don't dispatch if we're already dispatching, that would allow reentrancy
-        // and out-of-order events. Instead, leave the events to be dispatched
-        // after the in-progress dispatch is complete.
-        if (getIsDispatching().get()) {
-            return;
-        }
-
-        getIsDispatching().set(true);
-        try {
-            Queue<EventWithHandler> events = getEventsToDispatch().get();
-            EventWithHandler eventWithHandler;
-            while ((eventWithHandler = events.poll()) != null) {
-                dispatchWithException(eventWithHandler.event, eventWithHandler.handler);
-            }
-        } finally {
-            getIsDispatching().remove();
-            getEventsToDispatch().remove();
-        }
-    }
-
-    void dispatchWithException(Object event, EventHandler wrapper) throws EventBusException {
-        try {
-            wrapper.handleEvent(event);
-        } catch (InvocationTargetException e) {
-            throw new EventBusException(e);
-        }
-    }
-
-
-    //
-    // Even more ugliness to access private fields from the BusEvent class. Obviously this is very fragile;
-    // if they decide to just rename their field name field, all hell breaks loose. So updating guava will
-    //  require some attention-- but none of our tests would work so we should also see it pretty quick!
-    //
-    private ReadWriteLock getHandlersByTypeLock() throws EventBusException {
-        return getDeclaredField("handlersByTypeLock");
-    }
-
-    private SetMultimap<Class<?>, EventHandler> getHandlersByType() throws EventBusException {
-        return getDeclaredField("handlersByType");
+    public EventBusThatThrowsException(final String identifier) {
+        super(identifier);
+        this.busHandlerRegistry = new BusHandlerRegistry(this);
     }
 
-    private ThreadLocal<Boolean> getIsDispatching() throws EventBusException {
-        return getDeclaredField("isDispatching");
+    @Override
+    public void register(final Object object) {
+        super.register(object);
+        busHandlerRegistry.register(object);
     }
 
-    private ThreadLocal<Queue<EventWithHandler>> getEventsToDispatch() throws EventBusException {
-        return getDeclaredField("eventsToDispatch");
+    @Override
+    public void unregister(final Object object) {
+        super.unregister(object);
+        busHandlerRegistry.unregister(object);
     }
 
-    private <T> T getDeclaredField(final String fieldName) throws EventBusException {
-        try {
-            final Field f = EventBus.class.getDeclaredField(fieldName);
-            f.setAccessible(true);
-            return (T) f.get(this);
-        } catch (NoSuchFieldException e) {
-            throw new EventBusException("Failed to retrieve private field from BusEvent class " + fieldName, e);
-        } catch (IllegalAccessException e) {
-            throw new EventBusException("Failed to retrieve private field from BusEvent class " + fieldName, e);
-        }
+    public void postWithException(final Object event) throws EventBusException {
+        busHandlerRegistry.postWithException(event);
     }
 }
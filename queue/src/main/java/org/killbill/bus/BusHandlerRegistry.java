@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.DeadEvent;
+import com.google.common.eventbus.EventBusException;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+
+/**
+ * Subscriber registry used by the persistent bus to dispatch events to the handlers annotated with {@link Subscribe}.
+ * <p/>
+ * The registration semantics are the ones of the Guava EventBus (public methods with a single argument, handlers are
+ * synchronized unless annotated with {@link AllowConcurrentEvents}, {@link DeadEvent} when nobody listens), but
+ * the handler array for a given event class is computed once and reused until the next (un)registration, so dispatching
+ * an event does not need to walk the class hierarchy or take a lock.
+ * <p/>
+ * As with the Guava EventBus, events posted from within a handler are not dispatched right away: they are queued and
+ * dispatched, in order, once the in-progress dispatch completes.
+ * <p/>
+ * Dispatching stops at the first handler throwing an exception, which is fine with our 'at least once' delivery semantics:
+ * the event will be retried and handlers might then be called more than once.
+ */
+public class BusHandlerRegistry {
+
+    private static final LoadingCache<Class<?>, List<Method>> SUBSCRIBER_METHODS_CACHE = CacheBuilder.newBuilder()
+                                                                                               .weakKeys()
+                                                                                               .build(new CacheLoader<Class<?>, List<Method>>() {
+                                                                                                   @Override
+                                                                                                   public List<Method> load(final Class<?> listenerClass) {
+                                                                                                       return findSubscriberMethods(listenerClass);
+                                                                                                   }
+                                                                                               });
+
+    private static final LoadingCache<Class<?>, Set<Class<?>>> EVENT_HIERARCHY_CACHE = CacheBuilder.newBuilder()
+                                                                                               .weakKeys()
+                                                                                               .build(new CacheLoader<Class<?>, Set<Class<?>>>() {
+                                                                                                   @Override
+                                                                                                   @SuppressWarnings({"unchecked", "rawtypes"})
+                                                                                                   public Set<Class<?>> load(final Class<?> eventClass) {
+                                                                                                       return (Set) TypeToken.of(eventClass).getTypes().rawTypes();
+                                                                                                   }
+                                                                                               });
+
+    private static final BusHandler[] NO_HANDLERS = new BusHandler[0];
+
+    private final Object source;
+
+    // Guarded by this
+    private final SetMultimap<Class<?>, BusHandler> handlersByType;
+
+    // Dispatch tables, lazily built for each posted event class and reset on each (un)registration
+    private final ConcurrentMap<Class<?>, BusHandler[]> handlersByEventClass;
+
+    // Events posted by the handlers, while dispatching on the current thread
+    private final ThreadLocal<DispatchQueue> dispatchQueues = new ThreadLocal<DispatchQueue>() {
+        @Override
+        protected DispatchQueue initialValue() {
+            return new DispatchQueue();
+        }
+    };
+
+    public BusHandlerRegistry(final Object source) {
+        this.source = source;
+        this.handlersByType = LinkedHashMultimap.create();
+        this.handlersByEventClass = new ConcurrentHashMap<Class<?>, BusHandler[]>();
+    }
+
+    public synchronized void register(final Object handlerInstance) {
+        for (final Method method : SUBSCRIBER_METHODS_CACHE.getUnchecked(handlerInstance.getClass())) {
+            handlersByType.put(method.getParameterTypes()[0], createHandler(handlerInstance, method));
+        }
+        handlersByEventClass.clear();
+    }
+
+    public synchronized void unregister(final Object handlerInstance) {
+        for (final Method method : SUBSCRIBER_METHODS_CACHE.getUnchecked(handlerInstance.getClass())) {
+            if (!handlersByType.remove(method.getParameterTypes()[0], createHandler(handlerInstance, method))) {
+                throw new IllegalArgumentException("missing event handler for an annotated method. Is " + handlerInstance + " registered?");
+            }
+        }
+        handlersByEventClass.clear();
+    }
+
+    public void postWithException(final Object event) throws EventBusException {
+        final BusHandler[] handlers = getHandlers(event.getClass());
+        if (handlers.length == 0) {
+            if (!(event instanceof DeadEvent)) {
+                postWithException(new DeadEvent(source, event));
+            }
+            return;
+        }
+
+        final DispatchQueue dispatchQueue = dispatchQueues.get();
+        if (dispatchQueue.isDispatching) {
+            // Don't dispatch reentrant posts right away, that would deliver events out-of-order
+            dispatchQueue.events.add(new QueuedEvent(event, handlers));
+            return;
+        }
+
+        dispatchQueue.isDispatching = true;
+        try {
+            dispatch(event, handlers);
+
+            QueuedEvent queuedEvent;
+            while ((queuedEvent = dispatchQueue.events.poll()) != null) {
+                dispatch(queuedEvent.event, queuedEvent.handlers);
+            }
+        } finally {
+            dispatchQueue.events.clear();
+            dispatchQueue.isDispatching = false;
+        }
+    }
+
+    private void dispatch(final Object event, final BusHandler[] handlers) throws EventBusException {
+        for (final BusHandler handler : handlers) {
+            try {
+                handler.handleEvent(event);
+            } catch (final InvocationTargetException e) {
+                throw new EventBusException(e);
+            }
+        }
+    }
+
+    private BusHandler[] getHandlers(final Class<?> eventClass) {
+        final BusHandler[] handlers = handlersByEventClass.get(eventClass);
+        if (handlers != null) {
+            return handlers;
+        }
+
+        // Build the dispatch table under the registration lock, so we don't cache a stale one if a handler is being (un)registered
+        synchronized (this) {
+            final List<BusHandler> result = new ArrayList<BusHandler>();
+            for (final Class<?> eventType : EVENT_HIERARCHY_CACHE.getUnchecked(eventClass)) {
+                result.addAll(handlersByType.get(eventType));
+            }
+            final BusHandler[] newHandlers = result.isEmpty() ? NO_HANDLERS : result.toArray(new BusHandler[result.size()]);
+            handlersByEventClass.put(eventClass, newHandlers);
+            return newHandlers;
+        }
+    }
+
+    private static BusHandler createHandler(final Object handlerInstance, final Method method) {
+        if (method.getAnnotation(AllowConcurrentEvents.class) != null) {
+            return new BusHandler(handlerInstance, method);
+        } else {
+            return new SynchronizedBusHandler(handlerInstance, method);
+        }
+    }
+
+    // Same lookup as Guava: public methods annotated with @Subscribe, either directly or on the method they override
+    private static List<Method> findSubscriberMethods(final Class<?> listenerClass) {
+        final ImmutableList.Builder<Method> result = ImmutableList.builder();
+        final Set<? extends Class<?>> supers = TypeToken.of(listenerClass).getTypes().rawTypes();
+        for (final Method method : listenerClass.getMethods()) {
+            for (final Class<?> superClass : supers) {
+                final Method superMethod;
+                try {
+                    superMethod = superClass.getMethod(method.getName(), method.getParameterTypes());
+                } catch (final NoSuchMethodException ignored) {
+                    continue;
+                }
+                if (superMethod.isAnnotationPresent(Subscribe.class)) {
+                    final Class<?>[] parameterTypes = method.getParameterTypes();
+                    if (parameterTypes.length != 1) {
+                        throw new IllegalArgumentException("Method " + method + " has @Subscribe annotation, but requires " + parameterTypes.length +
+                                                           " arguments.  Event handler methods must require a single argument.");
+                    }
+                    // Skip the access checks on each invocation
+                    method.setAccessible(true);
+                    result.add(method);
+                    break;
+                }
+            }
+        }
+        return result.build();
+    }
+
+    private static final class DispatchQueue {
+
+        private final Queue<QueuedEvent> events = new LinkedList<QueuedEvent>();
+        private boolean isDispatching;
+    }
+
+    private static final class QueuedEvent {
+
+        private final Object event;
+        private final BusHandler[] handlers;
+
+        private QueuedEvent(final Object event, final BusHandler[] handlers) {
+            this.event = event;
+            this.handlers = handlers;
+        }
+    }
+
+    private static class BusHandler {
+
+        private final Object target;
+        private final Method method;
+
+        private BusHandler(final Object target, final Method method) {
+            this.target = target;
+            this.method = method;
+        }
+
+        public void handleEvent(final Object event) throws InvocationTargetException {
+            try {
+                method.invoke(target, event);
+            } catch (final IllegalArgumentException e) {
+                throw new Error("Method rejected target/argument: " + event, e);
+            } catch (final IllegalAccessException e) {
+                throw new Error("Method became inaccessible: " + event, e);
+            } catch (final InvocationTargetException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final BusHandler that = (BusHandler) o;
+            return target == that.target && method.equals(that.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(target) + method.hashCode();
+        }
+    }
+
+    private static final class SynchronizedBusHandler extends BusHandler {
+
+        private SynchronizedBusHandler(final Object target, final Method method) {
+            super(target, method);
+        }
+
+        @Override
+        public synchronized void handleEvent(final Object event) throws InvocationTargetException {
+            super.handleEvent(event);
+        }
+    }
+}
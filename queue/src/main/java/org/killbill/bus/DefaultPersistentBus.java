@@ -39,13 +39,17 @@ import org.killbill.bus.api.BusEventWithMetadata;
 import org.killbill.bus.api.PersistentBus;
 import org.killbill.bus.api.PersistentBusConfig;
 import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.InMemoryPersistentBusSqlDao;
 import org.killbill.bus.dao.PersistentBusSqlDao;
 import org.killbill.clock.Clock;
 import org.killbill.clock.DefaultClock;
 import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.DefaultQueueLifecycle;
+import org.killbill.queue.GroupCommitWriter;
 import org.killbill.queue.InTransaction;
+import org.killbill.queue.OutboxRelay;
+import org.killbill.queue.api.OutboundSink;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.skife.config.ConfigurationObjectFactory;
 import org.skife.jdbi.v2.IDBI;
@@ -56,27 +60,30 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.eventbus.EventBusThatThrowsException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class DefaultPersistentBus extends DefaultQueueLifecycle implements PersistentBus {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultPersistentBus.class);
-    private final EventBusDelegate eventBusDelegate;
+    private final BusHandlerRegistry busHandlerRegistry;
     private final DBBackedQueue<BusEventModelDao> dao;
+    private final GroupCommitWriter<BusEventModelDao> groupCommitWriter;
     private final Clock clock;
+    private final PersistentBusConfig persistentBusConfig;
+    private final String dbBackedQId;
+    private final MetricRegistry metricRegistry;
     final Timer dispatchTimer;
 
     private AtomicBoolean isStarted;
 
-    private static final class EventBusDelegate extends EventBusThatThrowsException {
-
-        public EventBusDelegate(final String busName) {
-            super(busName);
-        }
-    }
-
     @Inject
     public DefaultPersistentBus(@Named(QUEUE_NAME) final IDBI dbi, final Clock clock, final PersistentBusConfig config, final MetricRegistry metricRegistry, final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        this(config.isInMemory() ? new InMemoryPersistentBusSqlDao(config.getHistoryTableName(), databaseTransactionNotificationApi) : dbi.onDemand(PersistentBusSqlDao.class),
+             clock, config, metricRegistry, databaseTransactionNotificationApi);
+    }
+
+    protected DefaultPersistentBus(final PersistentBusSqlDao sqlDao, final Clock clock, final PersistentBusConfig config, final MetricRegistry metricRegistry, final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
         super("Bus", Executors.newFixedThreadPool(config.getNbThreads(), new ThreadFactory() {
             @Override
             public Thread newThread(final Runnable r) {
@@ -85,11 +92,13 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                                   config.getTableName() + "-th");
             }
         }), config.getNbThreads(), config);
-        final PersistentBusSqlDao sqlDao = dbi.onDemand(PersistentBusSqlDao.class);
         this.clock = clock;
-        final String dbBackedQId = "bus-" + config.getTableName();
+        this.persistentBusConfig = config;
+        this.dbBackedQId = "bus-" + config.getTableName();
+        this.metricRegistry = metricRegistry;
         this.dao = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, dbBackedQId, metricRegistry, databaseTransactionNotificationApi);
-        this.eventBusDelegate = new EventBusDelegate("Killbill EventBus");
+        this.busHandlerRegistry = new BusHandlerRegistry(this);
+        this.groupCommitWriter = new GroupCommitWriter<BusEventModelDao>(dao, dbBackedQId, config.getPostAsyncMaxBatchSize(), config.getPostAsyncQueueCapacity(), metricRegistry);
         this.dispatchTimer = metricRegistry.timer(MetricRegistry.name(DefaultPersistentBus.class, "dispatch"));
         this.isStarted = new AtomicBoolean(false);
     }
@@ -103,6 +112,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     public void start() {
         if (isStarted.compareAndSet(false, true)) {
             dao.initialize();
+            groupCommitWriter.start();
             startQueue();
         }
     }
@@ -110,10 +120,20 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     @Override
     public void stop() {
         if (isStarted.compareAndSet(true, false)) {
+            groupCommitWriter.stop();
             stopQueue();
         }
     }
 
+    /**
+     * @param sink destination of the bus events
+     * @return a relay (to be started) publishing all the bus events to the sink
+     */
+    public OutboxRelay<BusEventModelDao> createOutboxRelay(final OutboundSink sink) {
+        return new OutboxRelay<BusEventModelDao>(dao, dbBackedQId + "-outbox", sink, clock, persistentBusConfig.getOutboxBatchSize(),
+                                                 persistentBusConfig.getOutboxPollInterval().getMillis(), persistentBusConfig.getOutboxSettleDelay().getMillis(), metricRegistry);
+    }
+
     @Override
     public int doProcessEvents() {
         final List<BusEventModelDao> events = dao.getReadyEntries();
@@ -132,7 +152,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
             final Timer.Context dispatchTimerContext = dispatchTimer.time();
             try {
-                eventBusDelegate.postWithException(evt);
+                busHandlerRegistry.postWithException(evt);
             } catch (final com.google.common.eventbus.EventBusException e) {
 
                 if (e.getCause() != null && e.getCause() instanceof InvocationTargetException) {
@@ -171,7 +191,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     @Override
     public void register(final Object handlerInstance) throws EventBusException {
         if (isStarted.get()) {
-            eventBusDelegate.register(handlerInstance);
+            busHandlerRegistry.register(handlerInstance);
         } else {
             log.warn("Attempting to register handler " + handlerInstance + " in a non initialized bus");
         }
@@ -180,7 +200,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     @Override
     public void unregister(final Object handlerInstance) throws EventBusException {
         if (isStarted.get()) {
-            eventBusDelegate.unregister(handlerInstance);
+            busHandlerRegistry.unregister(handlerInstance);
         } else {
             log.warn("Attempting to unregister handler " + handlerInstance + " in a non initialized bus");
         }
@@ -189,25 +209,52 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     @Override
     public void post(final BusEvent event) throws EventBusException {
         try {
-            if (isStarted.get()) {
-                final String json = objectMapper.writeValueAsString(event);
-                final BusEventModelDao entry = new BusEventModelDao(Hostname.get(), clock.getUTCNow(), event.getClass().getName(), json,
-                                                                    event.getUserToken(), event.getSearchKey1(), event.getSearchKey2());
+            final BusEventModelDao entry = createBusEventEntry(event);
+            if (entry != null) {
                 dao.insertEntry(entry);
-
-            } else {
-                log.warn("Attempting to post event " + event + " in a non initialized bus");
             }
         } catch (final Exception e) {
             log.error("Failed to post BusEvent " + event, e);
         }
     }
 
+    @Override
+    public ListenableFuture<Long> postAsync(final BusEvent event) {
+        if (!isStarted.get()) {
+            return Futures.<Long>immediateFailedFuture(new EventBusException("Attempting to post event " + event + " in a non initialized bus"));
+        }
+
+        final BusEventModelDao entry = createBusEventEntry(event);
+        if (entry == null) {
+            return Futures.<Long>immediateFailedFuture(new EventBusException("Unable to post event " + event));
+        }
+        return groupCommitWriter.write(entry);
+    }
+
     @Override
     public void postFromTransaction(final BusEvent event, final Connection connection) throws EventBusException {
+        final BusEventModelDao entry = createBusEventEntry(event);
+        if (entry == null) {
+            return;
+        }
+
+        final InTransaction.InTransactionHandler<PersistentBusSqlDao, Void> handler = new InTransaction.InTransactionHandler<PersistentBusSqlDao, Void>() {
+
+            @Override
+            public Void withSqlDao(final PersistentBusSqlDao transactional) throws Exception {
+                dao.insertEntryFromTransaction(transactional, entry);
+                return null;
+            }
+        };
+
+        executeFromTransaction(connection, handler);
+    }
+
+    // Also used by QueueTransaction to buffer the event until the unit of work is flushed: returns null if the event should be dropped
+    public BusEventModelDao createBusEventEntry(final BusEvent event) {
         if (!isStarted.get()) {
             log.warn("Attempting to post event " + event + " in a non initialized bus");
-            return;
+            return null;
         }
 
         final String json;
@@ -215,27 +262,27 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
             json = objectMapper.writeValueAsString(event);
         } catch (final JsonProcessingException e) {
             log.warn("Unable to serialize event " + event, e);
-            return;
+            return null;
         }
 
-        final BusEventModelDao entry = new BusEventModelDao(Hostname.get(),
-                                                            clock.getUTCNow(),
-                                                            event.getClass().getName(),
-                                                            json,
-                                                            event.getUserToken(),
-                                                            event.getSearchKey1(),
-                                                            event.getSearchKey2());
+        return new BusEventModelDao(Hostname.get(),
+                                    clock.getUTCNow(),
+                                    event.getClass().getName(),
+                                    json,
+                                    event.getUserToken(),
+                                    event.getSearchKey1(),
+                                    event.getSearchKey2());
+    }
 
+    public void insertEntriesFromTransaction(final Connection connection, final List<BusEventModelDao> entries) {
         final InTransaction.InTransactionHandler<PersistentBusSqlDao, Void> handler = new InTransaction.InTransactionHandler<PersistentBusSqlDao, Void>() {
-
             @Override
             public Void withSqlDao(final PersistentBusSqlDao transactional) throws Exception {
-                dao.insertEntryFromTransaction(transactional, entry);
+                dao.insertEntriesFromTransaction(transactional, entries);
                 return null;
             }
         };
-
-        InTransaction.execute(connection, handler, PersistentBusSqlDao.class);
+        executeFromTransaction(connection, handler);
     }
 
     @Override
@@ -251,7 +298,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                 return getAvailableBusEventsForSearchKeysInternal(transactional, searchKey1, searchKey2);
             }
         };
-        return InTransaction.execute(connection, handler, PersistentBusSqlDao.class);
+        return executeFromTransaction(connection, handler);
     }
 
     @Override
@@ -267,7 +314,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                 return getAvailableBusEventsForSearchKeysInternal(transactional, null, searchKey2);
             }
         };
-        return InTransaction.execute(connection, handler, PersistentBusSqlDao.class);
+        return executeFromTransaction(connection, handler);
     }
 
     @Override
@@ -288,7 +335,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                 return getAvailableOrInProcessingBusEventsForSearchKeysInternal(transactional, searchKey1, searchKey2);
             }
         };
-        return InTransaction.execute(connection, handler, PersistentBusSqlDao.class);
+        return executeFromTransaction(connection, handler);
     }
 
     @Override
@@ -304,6 +351,30 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                 return getAvailableOrInProcessingBusEventsForSearchKeysInternal(transactional, null, searchKey2);
             }
         };
+        return executeFromTransaction(connection, handler);
+    }
+
+    @Override
+    public <T extends BusEvent> List<BusEventWithMetadata<T>> getDeadLetterBusEvents(@Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2, final Long fromRecordId, final int max) {
+        return toBusEventWithMetadataList(dao.getDeadLetterEntries(null, className, searchKey1, searchKey2, fromRecordId, max));
+    }
+
+    @Override
+    public long getNbDeadLetterBusEvents(@Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2) {
+        return dao.getNbDeadLetterEntries(null, className, searchKey1, searchKey2);
+    }
+
+    @Override
+    public long replayDeadLetterBusEvents(@Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2, final int batchSize) {
+        return dao.replayDeadLetterEntries(null, className, searchKey1, searchKey2, batchSize);
+    }
+
+    private <R> R executeFromTransaction(final Connection connection, final InTransaction.InTransactionHandler<PersistentBusSqlDao, R> handler) {
+        if (dao.getSqlDao() instanceof InMemoryPersistentBusSqlDao) {
+            // There is no database transaction to join: the connection is ignored and the in-memory transaction is used instead
+            // (the writes aren't rolled back with the client transaction, see QueueTransaction)
+            return InTransaction.execute((PersistentBusSqlDao) dao.getSqlDao(), handler);
+        }
         return InTransaction.execute(connection, handler, PersistentBusSqlDao.class);
     }
 
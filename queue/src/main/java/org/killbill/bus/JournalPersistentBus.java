@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.JournalPersistentBusSqlDao;
+import org.killbill.clock.Clock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Persistent bus backed by a local memory-mapped journal instead of the database, for single node deployments
+ * (see JournalPersistentBusSqlDao). Use BusEventJournalMigration to move existing entries between the database
+ * and the journal.
+ */
+public class JournalPersistentBus extends DefaultPersistentBus {
+
+    private final JournalPersistentBusSqlDao sqlDao;
+
+    @Inject
+    public JournalPersistentBus(final Clock clock, final PersistentBusConfig config, final MetricRegistry metricRegistry, final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) throws IOException {
+        this(new JournalPersistentBusSqlDao(config, databaseTransactionNotificationApi), clock, config, metricRegistry, databaseTransactionNotificationApi);
+    }
+
+    private JournalPersistentBus(final JournalPersistentBusSqlDao sqlDao, final Clock clock, final PersistentBusConfig config, final MetricRegistry metricRegistry, final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(sqlDao, clock, config, metricRegistry, databaseTransactionNotificationApi);
+        this.sqlDao = sqlDao;
+    }
+
+    @Override
+    public void start() {
+        try {
+            sqlDao.open();
+        } catch (final IOException e) {
+            throw new IllegalStateException("Unable to open the bus journal", e);
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        sqlDao.close();
+    }
+}
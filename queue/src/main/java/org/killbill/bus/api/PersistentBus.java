@@ -23,6 +23,8 @@ import java.util.List;
 
 import org.killbill.queue.api.QueueLifecycle;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 public interface PersistentBus extends QueueLifecycle {
 
     public static final String EVENT_BUS_GROUP_NAME = "bus-grp";
@@ -83,6 +85,15 @@ public interface PersistentBus extends QueueLifecycle {
      */
     public void post(BusEvent event) throws EventBusException;
 
+    /**
+     * Post an event asynchronously: the event is serialized on the caller thread, and inserted by a background writer
+     * which groups concurrent posts into a single transaction.
+     *
+     * @param event to be posted
+     * @return a future which completes with the record id of the event once it has been committed, or with the failure
+     */
+    public ListenableFuture<Long> postAsync(BusEvent event);
+
     /**
      * Post an event from within a transaction.
      * Guarantees that the event is persisted on disk from within the same transaction
@@ -169,4 +180,35 @@ public interface PersistentBus extends QueueLifecycle {
      * @return a list of BusEventWithMetadata objects matching the search
      */
     public <T extends BusEvent> List<BusEventWithMetadata<T>> getAvailableOrInProcessingBusEventsFromTransactionForSearchKey2(Long searchKey2, Connection connection);
+
+    /**
+     * Retrieve the bus events which exhausted their retries and were moved to the dead letter table
+     *
+     * @param className    the event class name to filter on, or null for all classes
+     * @param searchKey1   the value for key1, or null
+     * @param searchKey2   the value for key2, or null
+     * @param fromRecordId only return events whose record_id is strictly greater than this value
+     * @param max          the maximum number of events to return
+     * @return a list of BusEventWithMetadata objects ordered by record_id
+     */
+    public <T extends BusEvent> List<BusEventWithMetadata<T>> getDeadLetterBusEvents(String className, Long searchKey1, Long searchKey2, Long fromRecordId, int max);
+
+    /**
+     * @param className  the event class name to filter on, or null for all classes
+     * @param searchKey1 the value for key1, or null
+     * @param searchKey2 the value for key2, or null
+     * @return the number of matching bus events in the dead letter table
+     */
+    public long getNbDeadLetterBusEvents(String className, Long searchKey1, Long searchKey2);
+
+    /**
+     * Move the matching dead letter bus events back into the bus so they get dispatched again
+     *
+     * @param className  the event class name to filter on, or null for all classes
+     * @param searchKey1 the value for key1, or null
+     * @param searchKey2 the value for key2, or null
+     * @param batchSize  the number of events to move per transaction
+     * @return the number of events replayed
+     */
+    public long replayDeadLetterBusEvents(String className, Long searchKey1, Long searchKey2, int batchSize);
 }
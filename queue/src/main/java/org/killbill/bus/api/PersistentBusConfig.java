@@ -21,6 +21,7 @@ package org.killbill.bus.api;
 import org.killbill.queue.api.PersistentQueueConfig;
 import org.skife.config.Config;
 import org.skife.config.Default;
+import org.skife.config.DefaultNull;
 import org.skife.config.Description;
 import org.skife.config.TimeSpan;
 
@@ -45,6 +46,18 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Number retry for a given event when an exception occurs")
     public abstract int getMaxFailureRetries();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.retry.initialDelay")
+    @Default("0s")
+    @Description("Delay before a failed bus event is retried the first time, doubled (with jitter) for each subsequent failure; 0 to retry right away")
+    public abstract TimeSpan getRetryInitialDelay();
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.retry.maxDelay")
+    @Default("1h")
+    @Description("Max delay before a failed bus event is retried")
+    public abstract TimeSpan getRetryMaxDelay();
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.claimed")
     @Default("5")
@@ -93,6 +106,70 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Number of threads to use")
     public abstract int getQueueCapacity();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.fairScheduling")
+    @Default("false")
+    @Description("Whether to round-robin across search_key2 (tenants) when claiming bus events")
+    public abstract boolean isUsingFairScheduling();
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.fairScheduling.claimedPerSearchKey2")
+    @Default("2")
+    @Description("Max number of bus events claimed per search_key2 (tenant) at once when fair scheduling is on")
+    public abstract int getMaxEntriesClaimedPerSearchKey2();
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.fairScheduling.claimRatePerSearchKey2")
+    @Default("0")
+    @Description("Max number of bus events claimed per second per search_key2 (tenant) when fair scheduling is on, 0 to disable")
+    public abstract int getMaxClaimRatePerSearchKey2();
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.keysetPagination")
+    @Default("false")
+    @Description("Whether to fetch ready bus events starting after the last record_id seen instead of rescanning the table from the start")
+    public abstract boolean isUsingKeysetPagination();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.postAsync.maxBatchSize")
+    @Default("100")
+    @Description("Max number of bus events inserted in the same transaction by postAsync")
+    public abstract int getPostAsyncMaxBatchSize();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.postAsync.capacity")
+    @Default("10000")
+    @Description("Max number of bus events waiting to be inserted by postAsync")
+    public abstract int getPostAsyncQueueCapacity();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.outbox.batchSize")
+    @Default("5000")
+    @Description("Max number of bus events read and published at once by the outbox relay")
+    public abstract int getOutboxBatchSize();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.outbox.pollInterval")
+    @Default("1s")
+    @Description("Time to wait between polls once the outbox relay has caught up")
+    public abstract TimeSpan getOutboxPollInterval();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.outbox.settleDelay")
+    @Default("5s")
+    @Description("How long the outbox relay waits for a missing record id (uncommitted transaction) before skipping it, should be greater than the longest transaction posting bus events")
+    public abstract TimeSpan getOutboxSettleDelay();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.journal.directory")
+    @DefaultNull
+    @Description("Directory of the memory-mapped journal, for the JournalPersistentBus only")
+    public abstract String getJournalDirectory();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.journal.segmentSize")
+    @Default("67108864")
+    @Description("Size in bytes of each journal segment file, for the JournalPersistentBus only")
+    public abstract int getJournalSegmentSize();
+
+    @Config("org.killbill.persistent.bus.${instanceName}.journal.checkpointInterval")
+    @Default("1s")
+    @Description("How often the journal consumer offset is persisted (and consumed segments deleted), for the JournalPersistentBus only")
+    public abstract TimeSpan getJournalCheckpointInterval();
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.tableName")
     @Default("bus_events")
@@ -104,4 +181,10 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Default("bus_events_history")
     @Description("Bus events history table name")
     public abstract String getHistoryTableName();
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.deadLetterTableName")
+    @DefaultNull
+    @Description("Bus events dead letter table name (events which exhausted all their retries), if not set they are moved to the history table")
+    public abstract String getDeadLetterTableName();
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus.dao;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.dao.InMemoryQueueSqlDao;
+
+import com.google.common.collect.ImmutableSet;
+
+public class InMemoryPersistentBusSqlDao extends InMemoryQueueSqlDao<BusEventModelDao> implements PersistentBusSqlDao {
+
+    private static final Set<PersistentQueueEntryLifecycleState> AVAILABLE_STATES = ImmutableSet.<PersistentQueueEntryLifecycleState>of(PersistentQueueEntryLifecycleState.AVAILABLE);
+    private static final Set<PersistentQueueEntryLifecycleState> AVAILABLE_OR_IN_PROCESSING_STATES = ImmutableSet.<PersistentQueueEntryLifecycleState>of(PersistentQueueEntryLifecycleState.AVAILABLE,
+                                                                                                                                                       PersistentQueueEntryLifecycleState.IN_PROCESSING);
+
+    // Same as readyOrderByClause in PersistentBusSqlDao.sql.stg
+    private static final Comparator<BusEventModelDao> READY_ORDERING = new Comparator<BusEventModelDao>() {
+        @Override
+        public int compare(final BusEventModelDao o1, final BusEventModelDao o2) {
+            return o1.getRecordId().compareTo(o2.getRecordId());
+        }
+    };
+
+    public InMemoryPersistentBusSqlDao(@Nullable final String historyTableName, @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(READY_ORDERING, historyTableName, databaseTransactionNotificationApi);
+    }
+
+    @Override
+    protected BusEventModelDao copyEntry(final BusEventModelDao entry, final Long recordId, @Nullable final String processingOwner, @Nullable final DateTime nextAvailable,
+                                         final PersistentQueueEntryLifecycleState processingState, final Long errorCount) {
+        return new BusEventModelDao(recordId, entry.getCreatingOwner(), processingOwner, entry.getCreatedDate(), nextAvailable, processingState,
+                                    entry.getClassName(), entry.getEventJson(), errorCount, entry.getUserToken(), entry.getSearchKey1(), entry.getSearchKey2());
+    }
+
+    @Override
+    public List<BusEventModelDao> getReadyQueueEntriesForSearchKeys(final Long searchKey1, final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, null, searchKey1, searchKey2, AVAILABLE_STATES, null);
+    }
+
+    @Override
+    public List<BusEventModelDao> getReadyQueueEntriesForSearchKey2(final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, null, null, searchKey2, AVAILABLE_STATES, null);
+    }
+
+    @Override
+    public List<BusEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKeys(final Long searchKey1, final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, null, searchKey1, searchKey2, AVAILABLE_OR_IN_PROCESSING_STATES, null);
+    }
+
+    @Override
+    public List<BusEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKey2(final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, null, null, searchKey2, AVAILABLE_OR_IN_PROCESSING_STATES, null);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.journal.MappedJournal;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.skife.jdbi.v2.exceptions.TransactionFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * In-memory bus tables whose bus events are also written to a MappedJournal, so that they survive restarts.
+ * <p/>
+ * Entries inserted or updated (claimed, retried) in the bus table are appended to the journal when the transaction
+ * commits -- acknowledging their previous version, if any -- and the entries removed from it (processed or failed) are
+ * acknowledged. The committing thread then waits for the journal fsync. On startup, the unacknowledged entries are loaded
+ * back with their processing state and error count: only the history and dead letter tables are kept in memory.
+ * <p/>
+ * Record ids are reserved in blocks, whose upper bound is persisted next to the journal: ids are never re-used after a
+ * restart, even once the entries which used them have been acknowledged.
+ */
+public class JournalPersistentBusSqlDao extends InMemoryPersistentBusSqlDao {
+
+    private static final Logger log = LoggerFactory.getLogger(JournalPersistentBusSqlDao.class);
+
+    private static final byte ENTRY_FORMAT_VERSION = 1;
+
+    private static final String RECORD_ID_FILE_NAME = "record_id.reserved";
+    private static final String RECORD_ID_TMP_FILE_NAME = RECORD_ID_FILE_NAME + ".tmp";
+    private static final long RECORD_ID_RESERVATION_SIZE = 1000;
+
+    private final String tableName;
+    private final File journalDirectory;
+    private final MappedJournal journal;
+    private final ConcurrentMap<Long, Long> journalPositionByRecordId;
+    // Per transaction, the record ids inserted (true) or removed (false) from the bus table
+    private final ThreadLocal<Map<Long, Boolean>> pendingOperations;
+    private final ThreadLocal<Boolean> isSyncNeeded;
+    // Highest record id which can be handed out without persisting a new reservation (only updated with the write lock held)
+    private long reservedRecordId;
+    private boolean isLoaded;
+
+    public JournalPersistentBusSqlDao(final PersistentBusConfig config, @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) throws IOException {
+        super(config.getHistoryTableName(), databaseTransactionNotificationApi);
+        Preconditions.checkArgument(config.getJournalDirectory() != null, "The journal directory needs to be configured");
+        this.tableName = config.getTableName();
+        this.journalDirectory = new File(config.getJournalDirectory());
+        this.journal = new MappedJournal(journalDirectory, config.getJournalSegmentSize(), config.getJournalCheckpointInterval().getMillis());
+        this.journalPositionByRecordId = new ConcurrentHashMap<Long, Long>();
+        this.pendingOperations = new ThreadLocal<Map<Long, Boolean>>();
+        this.isSyncNeeded = new ThreadLocal<Boolean>();
+        this.isLoaded = false;
+        open();
+    }
+
+    /**
+     * Open the journal, loading its entries the first time.
+     */
+    public synchronized void open() throws IOException {
+        if (journal.isOpen()) {
+            return;
+        }
+
+        final SortedMap<Long, byte[]> entries = journal.open();
+        if (isLoaded) {
+            // The in-memory tables are already up-to-date
+            return;
+        }
+        reservedRecordId = readReservedRecordId();
+        advanceAutoIncrement(tableName, reservedRecordId);
+        for (final Map.Entry<Long, byte[]> entry : entries.entrySet()) {
+            final BusEventModelDao busEvent = decode(entry.getValue());
+            final Long previousPosition = journalPositionByRecordId.put(busEvent.getRecordId(), entry.getKey());
+            if (previousPosition != null) {
+                journal.acknowledge(previousPosition);
+            }
+            super.removeEntries(Collections.singletonList(busEvent.getRecordId()), tableName);
+            super.insertEntryWithRecordId(busEvent, busEvent.getRecordId(), tableName);
+        }
+        isLoaded = true;
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+
+    @Override
+    public void insertEntry(final BusEventModelDao evt, final String tableName) {
+        begin();
+        boolean isSuccessful = false;
+        try {
+            super.insertEntry(evt, tableName);
+            recordOperation(tableName, getLastInsertId(), true);
+            isSuccessful = true;
+        } finally {
+            if (!isSuccessful) {
+                rollback();
+            }
+        }
+        commit();
+    }
+
+    @Override
+    public void insertEntryWithRecordId(final BusEventModelDao evt, final Long id, final String tableName) {
+        begin();
+        boolean isSuccessful = false;
+        try {
+            super.insertEntryWithRecordId(evt, id, tableName);
+            recordOperation(tableName, id, true);
+            isSuccessful = true;
+        } finally {
+            if (!isSuccessful) {
+                rollback();
+            }
+        }
+        commit();
+    }
+
+    @Override
+    public void insertEntriesWithRecordId(final Iterable<BusEventModelDao> evts, final String tableName) {
+        begin();
+        boolean isSuccessful = false;
+        try {
+            super.insertEntriesWithRecordId(evts, tableName);
+            isSuccessful = true;
+        } finally {
+            if (!isSuccessful) {
+                rollback();
+            }
+        }
+        commit();
+    }
+
+    @Override
+    public int insertEntriesFromDeadLetter(final Collection<Long> recordIds, final String tableName, final String deadLetterTableName) {
+        begin();
+        boolean isSuccessful = false;
+        final int result;
+        try {
+            result = super.insertEntriesFromDeadLetter(recordIds, tableName, deadLetterTableName);
+            for (final Long recordId : recordIds) {
+                recordOperation(tableName, recordId, true);
+            }
+            isSuccessful = true;
+        } finally {
+            if (!isSuccessful) {
+                rollback();
+            }
+        }
+        commit();
+        return result;
+    }
+
+    @Override
+    public int claimEntries(final Collection<Long> recordIds, final Date now, final String owner, final Date nextAvailable, final String tableName) {
+        begin();
+        boolean isSuccessful = false;
+        final int result;
+        try {
+            final Map<Long, BusEventModelDao> previousEntries = getEntriesByRecordId(recordIds, tableName);
+            result = super.claimEntries(recordIds, now, owner, nextAvailable, tableName);
+            recordUpdates(previousEntries, tableName);
+            isSuccessful = true;
+        } finally {
+            if (!isSuccessful) {
+                rollback();
+            }
+        }
+        commit();
+        return result;
+    }
+
+    @Override
+    public int updateOnError(final Long id, final Date nextAvailable, @Nullable final String owner, final Long errorCount, final String tableName) {
+        begin();
+        boolean isSuccessful = false;
+        final int result;
+        try {
+            result = super.updateOnError(id, nextAvailable, owner, errorCount, tableName);
+            if (result > 0) {
+                recordOperation(tableName, id, true);
+            }
+            isSuccessful = true;
+        } finally {
+            if (!isSuccessful) {
+                rollback();
+            }
+        }
+        commit();
+        return result;
+    }
+
+    @Override
+    public void removeEntries(final Collection<Long> recordIds, final String tableName) {
+        begin();
+        boolean isSuccessful = false;
+        try {
+            super.removeEntries(recordIds, tableName);
+            for (final Long recordId : recordIds) {
+                recordOperation(tableName, recordId, false);
+            }
+            isSuccessful = true;
+        } finally {
+            if (!isSuccessful) {
+                rollback();
+            }
+        }
+        commit();
+    }
+
+    private Map<Long, BusEventModelDao> getEntriesByRecordId(final Collection<Long> recordIds, final String tableName) {
+        final Map<Long, BusEventModelDao> entries = new LinkedHashMap<Long, BusEventModelDao>();
+        for (final Long recordId : recordIds) {
+            entries.put(recordId, getByRecordId(recordId, tableName));
+        }
+        return entries;
+    }
+
+    // Only journal the entries which were actually updated (updates replace the entry instance)
+    private void recordUpdates(final Map<Long, BusEventModelDao> previousEntries, final String tableName) {
+        for (final Map.Entry<Long, BusEventModelDao> previousEntry : previousEntries.entrySet()) {
+            final BusEventModelDao entry = getByRecordId(previousEntry.getKey(), tableName);
+            if (entry != null && entry != previousEntry.getValue()) {
+                recordOperation(tableName, previousEntry.getKey(), true);
+            }
+        }
+    }
+
+    private void recordOperation(final String tableName, final Long recordId, final boolean isInsert) {
+        if (!this.tableName.equals(tableName)) {
+            return;
+        }
+
+        Map<Long, Boolean> operations = pendingOperations.get();
+        if (operations == null) {
+            operations = new LinkedHashMap<Long, Boolean>();
+            pendingOperations.set(operations);
+        }
+        // Only the last operation on a given entry matters
+        operations.remove(recordId);
+        operations.put(recordId, isInsert);
+    }
+
+    @Override
+    protected void beforeCommit() {
+        final Map<Long, Boolean> operations = pendingOperations.get();
+        if (operations == null || operations.isEmpty()) {
+            return;
+        }
+
+        // Append the new entries first: if that fails, the transaction is rolled back and the journal left untouched
+        final Map<Long, Long> appendedPositions = new LinkedHashMap<Long, Long>();
+        try {
+            reserveRecordIds(operations.keySet());
+            for (final Map.Entry<Long, Boolean> operation : operations.entrySet()) {
+                final BusEventModelDao entry = operation.getValue() ? getByRecordId(operation.getKey(), tableName) : null;
+                if (entry != null) {
+                    appendedPositions.put(operation.getKey(), journal.append(encode(entry)));
+                }
+            }
+        } catch (final IOException e) {
+            for (final Long position : appendedPositions.values()) {
+                acknowledge(position);
+            }
+            throw new TransactionFailedException("Unable to append bus events to the journal", e);
+        }
+
+        for (final Long recordId : operations.keySet()) {
+            final Long previousPosition = journalPositionByRecordId.remove(recordId);
+            if (previousPosition != null) {
+                acknowledge(previousPosition);
+            }
+        }
+        journalPositionByRecordId.putAll(appendedPositions);
+        isSyncNeeded.set(!appendedPositions.isEmpty());
+    }
+
+    @Override
+    protected void afterCompletion(final boolean isCommitted) {
+        pendingOperations.remove();
+        final Boolean shouldSync = isSyncNeeded.get();
+        isSyncNeeded.remove();
+
+        if (isCommitted && Boolean.TRUE.equals(shouldSync)) {
+            try {
+                journal.awaitSync();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Persist a new reservation before journaling an entry whose record id is past the current one
+    private void reserveRecordIds(final Collection<Long> recordIds) throws IOException {
+        long maxRecordId = reservedRecordId;
+        for (final Long recordId : recordIds) {
+            maxRecordId = Math.max(maxRecordId, recordId);
+        }
+        if (maxRecordId > reservedRecordId) {
+            writeReservedRecordId(maxRecordId + RECORD_ID_RESERVATION_SIZE);
+            reservedRecordId = maxRecordId + RECORD_ID_RESERVATION_SIZE;
+        }
+    }
+
+    private long readReservedRecordId() throws IOException {
+        final File recordIdFile = new File(journalDirectory, RECORD_ID_FILE_NAME);
+        if (!recordIdFile.exists()) {
+            return 0;
+        }
+        final DataInputStream in = new DataInputStream(new FileInputStream(recordIdFile));
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeReservedRecordId(final long recordId) throws IOException {
+        final File tmpRecordIdFile = new File(journalDirectory, RECORD_ID_TMP_FILE_NAME);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(tmpRecordIdFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.writeLong(recordId);
+            randomAccessFile.getFD().sync();
+        } finally {
+            randomAccessFile.close();
+        }
+
+        final File recordIdFile = new File(journalDirectory, RECORD_ID_FILE_NAME);
+        if (!tmpRecordIdFile.renameTo(recordIdFile) && !(recordIdFile.delete() && tmpRecordIdFile.renameTo(recordIdFile))) {
+            throw new IOException("Unable to rename " + tmpRecordIdFile + " to " + recordIdFile);
+        }
+    }
+
+    private void acknowledge(final Long position) {
+        try {
+            journal.acknowledge(position);
+        } catch (final IOException e) {
+            // The entry will be dispatched again after a restart
+            log.warn("Unable to acknowledge journal entry at position " + position, e);
+        }
+    }
+
+    private static byte[] encode(final BusEventModelDao entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ENTRY_FORMAT_VERSION);
+        out.writeLong(entry.getRecordId());
+        writeString(out, entry.getCreatingOwner());
+        out.writeLong(entry.getCreatedDate().getMillis());
+        writeString(out, entry.getClassName());
+        writeString(out, entry.getEventJson());
+        writeString(out, entry.getUserToken() == null ? null : entry.getUserToken().toString());
+        writeLong(out, entry.getSearchKey1());
+        writeLong(out, entry.getSearchKey2());
+        writeString(out, entry.getProcessingOwner());
+        writeLong(out, entry.getNextAvailableDate() == null ? null : entry.getNextAvailableDate().getMillis());
+        writeString(out, entry.getProcessingState() == null ? null : entry.getProcessingState().name());
+        writeLong(out, entry.getErrorCount());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static BusEventModelDao decode(final byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte version = in.readByte();
+        if (version != ENTRY_FORMAT_VERSION) {
+            throw new IOException("Unsupported journal entry format " + version);
+        }
+        final long recordId = in.readLong();
+        final String creatingOwner = readString(in);
+        final DateTime createdDate = new DateTime(in.readLong(), DateTimeZone.UTC);
+        final String className = readString(in);
+        final String eventJson = readString(in);
+        final String userToken = readString(in);
+        final Long searchKey1 = readLong(in);
+        final Long searchKey2 = readLong(in);
+        final String processingOwner = readString(in);
+        final Long nextAvailableMillis = readLong(in);
+        final String processingState = readString(in);
+        final Long errorCount = readLong(in);
+        return new BusEventModelDao(recordId, creatingOwner, processingOwner, createdDate,
+                                    nextAvailableMillis == null ? null : new DateTime(nextAvailableMillis, DateTimeZone.UTC),
+                                    processingState == null ? null : PersistentQueueEntryLifecycleState.valueOf(processingState),
+                                    className, eventJson, errorCount, userToken == null ? null : UUID.fromString(userToken), searchKey1, searchKey2);
+    }
+
+    private static void writeString(final DataOutputStream out, @Nullable final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(Charsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeLong(final DataOutputStream out, @Nullable final Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+}
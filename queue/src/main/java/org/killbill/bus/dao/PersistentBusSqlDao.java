@@ -20,6 +20,7 @@ package org.killbill.bus.dao;
 
 import java.util.List;
 
+import org.killbill.commons.jdbi.routing.ReadOnly;
 import org.killbill.queue.dao.QueueSqlDao;
 import org.killbill.queue.dao.QueueSqlDaoStringTemplate;
 import org.skife.jdbi.v2.sqlobject.Bind;
@@ -29,20 +30,24 @@ import org.skife.jdbi.v2.sqlobject.customizers.Define;
 @QueueSqlDaoStringTemplate
 public interface PersistentBusSqlDao extends QueueSqlDao<BusEventModelDao> {
 
+    @ReadOnly
     @SqlQuery
     public List<BusEventModelDao> getReadyQueueEntriesForSearchKeys(@Bind("searchKey1") final Long searchKey1,
                                                                     @Bind("searchKey2") final Long searchKey2,
                                                                     @Define("tableName") final String tableName);
 
+    @ReadOnly
     @SqlQuery
     public List<BusEventModelDao> getReadyQueueEntriesForSearchKey2(@Bind("searchKey2") final Long searchKey2,
                                                                     @Define("tableName") final String tableName);
 
+    @ReadOnly
     @SqlQuery
     public List<BusEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKeys(@Bind("searchKey1") final Long searchKey1,
                                                                                   @Bind("searchKey2") final Long searchKey2,
                                                                                   @Define("tableName") final String tableName);
 
+    @ReadOnly
     @SqlQuery
     public List<BusEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKey2(@Bind("searchKey2") final Long searchKey2,
                                                                                   @Define("tableName") final String tableName);
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus.journal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.JournalPersistentBusSqlDao;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Move the bus entries between the database bus table and the journal of a JournalPersistentBus.
+ * <p/>
+ * Both buses need to be stopped. Entries keep their record id, and are removed from the source once inserted in
+ * the target: an interrupted migration can simply be run again. The migration fails (without removing anything from the
+ * source) if a record id is already used in the target by a different entry.
+ */
+public class BusEventJournalMigration {
+
+    private static final Logger log = LoggerFactory.getLogger(BusEventJournalMigration.class);
+
+    private final PersistentBusSqlDao databaseSqlDao;
+    private final JournalPersistentBusSqlDao journalSqlDao;
+    private final String tableName;
+    private final int batchSize;
+
+    public BusEventJournalMigration(final IDBI dbi, final JournalPersistentBusSqlDao journalSqlDao, final PersistentBusConfig config, final int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize should be strictly positive");
+        this.databaseSqlDao = dbi.onDemand(PersistentBusSqlDao.class);
+        this.journalSqlDao = journalSqlDao;
+        this.tableName = config.getTableName();
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of entries moved from the database to the journal
+     */
+    public long migrateToJournal() {
+        return migrate(databaseSqlDao, journalSqlDao);
+    }
+
+    /**
+     * @return the number of entries moved from the journal to the database
+     */
+    public long migrateToDatabase() {
+        return migrate(journalSqlDao, databaseSqlDao);
+    }
+
+    private long migrate(final PersistentBusSqlDao source, final PersistentBusSqlDao target) {
+        long nbMigrated = 0;
+        Long fromRecordId = -1L;
+        while (true) {
+            final List<BusEventModelDao> entries = source.getEntriesFromRecordId(fromRecordId, batchSize, tableName);
+            if (entries.isEmpty()) {
+                break;
+            }
+
+            final List<Long> recordIds = new ArrayList<Long>(entries.size());
+            for (final BusEventModelDao entry : entries) {
+                recordIds.add(entry.getRecordId());
+            }
+
+            // Entries already moved by a previous (interrupted) run
+            final Map<Long, BusEventModelDao> existingEntries = new HashMap<Long, BusEventModelDao>();
+            for (final BusEventModelDao entry : target.getEntriesFromIds(recordIds, tableName)) {
+                existingEntries.put(entry.getRecordId(), entry);
+            }
+
+            final List<BusEventModelDao> entriesToInsert = new ArrayList<BusEventModelDao>(entries.size());
+            for (final BusEventModelDao entry : entries) {
+                final BusEventModelDao existingEntry = existingEntries.get(entry.getRecordId());
+                if (existingEntry == null) {
+                    // Claims don't survive the migration
+                    entriesToInsert.add(new BusEventModelDao(entry, null, null, PersistentQueueEntryLifecycleState.AVAILABLE));
+                } else if (!isSameEntry(entry, existingEntry)) {
+                    // Don't remove the source entry, it would be lost
+                    throw new IllegalStateException(String.format("Unable to migrate bus event recordId='%s', another event already uses that record id in the target", entry.getRecordId()));
+                }
+            }
+
+            if (!entriesToInsert.isEmpty()) {
+                target.inTransaction(new Transaction<Void, QueueSqlDao<BusEventModelDao>>() {
+                    @Override
+                    public Void inTransaction(final QueueSqlDao<BusEventModelDao> transactional, final TransactionStatus status) throws Exception {
+                        transactional.insertEntriesWithRecordId(entriesToInsert, tableName);
+                        return null;
+                    }
+                });
+            }
+            source.inTransaction(new Transaction<Void, QueueSqlDao<BusEventModelDao>>() {
+                @Override
+                public Void inTransaction(final QueueSqlDao<BusEventModelDao> transactional, final TransactionStatus status) throws Exception {
+                    transactional.removeEntries(recordIds, tableName);
+                    return null;
+                }
+            });
+
+            nbMigrated += entriesToInsert.size();
+            fromRecordId = recordIds.get(recordIds.size() - 1);
+        }
+
+        log.info("Migrated {} bus events from {} to {}", nbMigrated, source == journalSqlDao ? "journal" : "database", target == journalSqlDao ? "journal" : "database");
+        return nbMigrated;
+    }
+
+    private static boolean isSameEntry(final BusEventModelDao entry, final BusEventModelDao existingEntry) {
+        // The database may not keep the milliseconds of the created date
+        return Objects.equal(entry.getUserToken(), existingEntry.getUserToken()) &&
+               Objects.equal(entry.getEventJson(), existingEntry.getEventJson()) &&
+               entry.getCreatedDate().getMillis() / 1000 == existingEntry.getCreatedDate().getMillis() / 1000;
+    }
+}
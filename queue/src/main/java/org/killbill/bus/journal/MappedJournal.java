@@ -0,0 +1,425 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus.journal;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Append-only journal of opaque entries, stored in memory-mapped segment files.
+ * <p/>
+ * Positions are global byte offsets across segments (each segment file is named after the position of its first record).
+ * Once processed, entries are acknowledged, which appends an acknowledgment record: on open, the entries which were
+ * never acknowledged are returned. The position of the oldest unacknowledged entry (consumer offset) is periodically
+ * persisted, and the segments before it are deleted.
+ * <p/>
+ * A single thread fsyncs the current segment: callers of awaitSync() wait until everything appended so far is on disk,
+ * so concurrent writers share the same fsync.
+ */
+public class MappedJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedJournal.class);
+
+    private static final String SEGMENT_FILE_SUFFIX = ".segment";
+    private static final String OFFSET_FILE_NAME = "consumer.offset";
+    private static final String OFFSET_TMP_FILE_NAME = OFFSET_FILE_NAME + ".tmp";
+
+    // Record layout: payload length (int), CRC32 of the type and payload (int), type (byte), payload
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final byte ENTRY_RECORD = 1;
+    private static final byte ACK_RECORD = 2;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long checkpointIntervalMs;
+
+    // Guards all the fields below, except checkpointPosition (only used by the sync thread, or once it has stopped)
+    private final Object lock = new Object();
+    private final TreeMap<Long, File> segmentFiles;
+    private final TreeSet<Long> unacknowledgedPositions;
+    private MappedByteBuffer currentSegment;
+    private long currentSegmentPosition;
+    private long writePosition;
+    private long syncedPosition;
+    private long checkpointPosition;
+    private boolean isOpen;
+    private Thread syncThread;
+
+    public MappedJournal(final File directory, final int segmentSize, final long checkpointIntervalMs) {
+        Preconditions.checkArgument(segmentSize > RECORD_HEADER_SIZE, "segmentSize should be greater than %s", RECORD_HEADER_SIZE);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.checkpointIntervalMs = checkpointIntervalMs;
+        this.segmentFiles = new TreeMap<Long, File>();
+        this.unacknowledgedPositions = new TreeSet<Long>();
+        this.isOpen = false;
+    }
+
+    /**
+     * Open the journal, recovering from a partially written last record if needed.
+     *
+     * @return the unacknowledged entries, by position
+     */
+    public SortedMap<Long, byte[]> open() throws IOException {
+        synchronized (lock) {
+            Preconditions.checkState(!isOpen, "Journal %s is already open", directory);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create journal directory " + directory);
+            }
+
+            segmentFiles.clear();
+            unacknowledgedPositions.clear();
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    if (file.getName().endsWith(SEGMENT_FILE_SUFFIX)) {
+                        segmentFiles.put(Long.valueOf(file.getName().substring(0, file.getName().length() - SEGMENT_FILE_SUFFIX.length())), file);
+                    }
+                }
+            }
+            checkpointPosition = readOffsetFile();
+
+            final SortedMap<Long, byte[]> entries = new TreeMap<Long, byte[]>();
+            if (segmentFiles.isEmpty()) {
+                currentSegmentPosition = checkpointPosition;
+                currentSegment = mapSegment(createSegmentFile(currentSegmentPosition));
+                writePosition = currentSegmentPosition;
+            } else {
+                final Long firstSegmentPosition = segmentFiles.floorKey(checkpointPosition);
+                final long replayPosition = firstSegmentPosition == null ? segmentFiles.firstKey() : checkpointPosition;
+                for (final Map.Entry<Long, File> segmentFile : segmentFiles.tailMap(firstSegmentPosition == null ? segmentFiles.firstKey() : firstSegmentPosition, true).entrySet()) {
+                    final boolean isLastSegment = segmentFile.getKey().equals(segmentFiles.lastKey());
+                    final MappedByteBuffer segment = mapSegment(segmentFile.getValue());
+                    final int startOffset = (int) Math.max(0, replayPosition - segmentFile.getKey());
+                    final int endOffset = replaySegment(segmentFile.getValue(), segmentFile.getKey(), segment, startOffset, isLastSegment, entries);
+                    if (isLastSegment) {
+                        currentSegmentPosition = segmentFile.getKey();
+                        currentSegment = segment;
+                        writePosition = currentSegmentPosition + endOffset;
+                    }
+                }
+            }
+            unacknowledgedPositions.addAll(entries.keySet());
+            syncedPosition = writePosition;
+
+            isOpen = true;
+            syncThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runSyncLoop();
+                }
+            }, "journal-sync-" + directory.getName());
+            syncThread.setDaemon(true);
+            syncThread.start();
+
+            log.info("Opened journal {} at position {}: {} unacknowledged entries", directory, writePosition, entries.size());
+            return entries;
+        }
+    }
+
+    public boolean isOpen() {
+        synchronized (lock) {
+            return isOpen;
+        }
+    }
+
+    /**
+     * @return the position of the entry, to acknowledge it
+     */
+    public long append(final byte[] payload) throws IOException {
+        synchronized (lock) {
+            final long position = write(ENTRY_RECORD, payload);
+            unacknowledgedPositions.add(position);
+            return position;
+        }
+    }
+
+    public void acknowledge(final long position) throws IOException {
+        synchronized (lock) {
+            if (unacknowledgedPositions.remove(position)) {
+                write(ACK_RECORD, ByteBuffer.allocate(8).putLong(position).array());
+            }
+        }
+    }
+
+    /**
+     * Wait until all records appended so far are on disk.
+     */
+    public void awaitSync() throws InterruptedException {
+        synchronized (lock) {
+            final long position = writePosition;
+            while (syncedPosition < position) {
+                lock.wait();
+            }
+        }
+    }
+
+    public void close() {
+        final Thread stoppedSyncThread;
+        synchronized (lock) {
+            if (!isOpen) {
+                return;
+            }
+            isOpen = false;
+            stoppedSyncThread = syncThread;
+            syncThread = null;
+            lock.notifyAll();
+        }
+
+        try {
+            stoppedSyncThread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock) {
+            currentSegment.force();
+            syncedPosition = writePosition;
+            lock.notifyAll();
+        }
+        checkpoint();
+        log.info("Closed journal {} at position {}", directory, writePosition);
+    }
+
+    private long write(final byte type, final byte[] payload) throws IOException {
+        Preconditions.checkState(isOpen, "Journal %s is closed", directory);
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+        Preconditions.checkArgument(recordSize <= segmentSize, "Journal record of %s bytes doesn't fit in segments of %s bytes", recordSize, segmentSize);
+
+        if (writePosition - currentSegmentPosition + recordSize > currentSegment.capacity()) {
+            rollSegment();
+        }
+
+        final int offset = (int) (writePosition - currentSegmentPosition);
+        final ByteBuffer record = currentSegment.duplicate();
+        record.position(offset + RECORD_HEADER_SIZE - 1);
+        record.put(type);
+        record.put(payload);
+        currentSegment.putInt(offset + 4, checksum(type, payload));
+        // Length last: a zero length marks the end of the segment
+        currentSegment.putInt(offset, payload.length);
+
+        final long position = writePosition;
+        writePosition += recordSize;
+        lock.notifyAll();
+        return position;
+    }
+
+    private void rollSegment() throws IOException {
+        // Everything written so far is in the current segment
+        currentSegment.force();
+        syncedPosition = writePosition;
+        lock.notifyAll();
+
+        currentSegmentPosition = writePosition;
+        currentSegment = mapSegment(createSegmentFile(currentSegmentPosition));
+    }
+
+    private void runSyncLoop() {
+        long lastCheckpointMs = System.currentTimeMillis();
+        while (true) {
+            final MappedByteBuffer segmentToSync;
+            final long positionToSync;
+            synchronized (lock) {
+                long waitMs = checkpointIntervalMs - (System.currentTimeMillis() - lastCheckpointMs);
+                while (isOpen && syncedPosition == writePosition && waitMs > 0) {
+                    try {
+                        lock.wait(waitMs);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    waitMs = checkpointIntervalMs - (System.currentTimeMillis() - lastCheckpointMs);
+                }
+                if (!isOpen) {
+                    return;
+                }
+                segmentToSync = currentSegment;
+                positionToSync = writePosition;
+            }
+
+            // Appends can keep going while we fsync
+            segmentToSync.force();
+
+            synchronized (lock) {
+                if (positionToSync > syncedPosition) {
+                    syncedPosition = positionToSync;
+                }
+                lock.notifyAll();
+            }
+
+            if (System.currentTimeMillis() - lastCheckpointMs >= checkpointIntervalMs) {
+                checkpoint();
+                lastCheckpointMs = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void checkpoint() {
+        final long position;
+        synchronized (lock) {
+            position = unacknowledgedPositions.isEmpty() ? writePosition : unacknowledgedPositions.first();
+        }
+        if (position == checkpointPosition) {
+            return;
+        }
+
+        try {
+            writeOffsetFile(position);
+        } catch (final IOException e) {
+            log.warn("Unable to write the consumer offset of journal " + directory, e);
+            return;
+        }
+        checkpointPosition = position;
+
+        synchronized (lock) {
+            // Delete the segments which only contain records before the consumer offset (never the current one)
+            final Iterator<Map.Entry<Long, File>> iterator = segmentFiles.headMap(currentSegmentPosition, false).entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Long, File> segmentFile = iterator.next();
+                final Long nextSegmentPosition = segmentFiles.higherKey(segmentFile.getKey());
+                if (nextSegmentPosition > position) {
+                    break;
+                }
+                if (!segmentFile.getValue().delete()) {
+                    log.warn("Unable to delete consumed journal segment {}", segmentFile.getValue());
+                    break;
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    private int replaySegment(final File file, final long segmentPosition, final MappedByteBuffer segment, final int startOffset, final boolean isLastSegment,
+                              final SortedMap<Long, byte[]> entries) throws IOException {
+        int offset = startOffset;
+        while (offset + RECORD_HEADER_SIZE <= segment.capacity()) {
+            final int length = segment.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+
+            boolean isValid = length > 0 && offset + RECORD_HEADER_SIZE + length <= segment.capacity();
+            byte type = 0;
+            byte[] payload = null;
+            if (isValid) {
+                final ByteBuffer record = segment.duplicate();
+                record.position(offset + RECORD_HEADER_SIZE - 1);
+                type = record.get();
+                payload = new byte[length];
+                record.get(payload);
+                isValid = segment.getInt(offset + 4) == checksum(type, payload);
+            }
+
+            if (!isValid) {
+                if (!isLastSegment) {
+                    throw new IOException("Corrupted journal segment " + file + " at offset " + offset);
+                }
+                // Partially written record (crash before the fsync): the following appends will overwrite it
+                log.warn("Truncating journal segment {} at offset {}", file, offset);
+                for (int i = offset; i < segment.capacity(); i++) {
+                    segment.put(i, (byte) 0);
+                }
+                segment.force();
+                break;
+            }
+
+            if (type == ENTRY_RECORD) {
+                entries.put(segmentPosition + offset, payload);
+            } else if (type == ACK_RECORD) {
+                entries.remove(ByteBuffer.wrap(payload).getLong());
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private File createSegmentFile(final long segmentPosition) {
+        final File file = new File(directory, String.format("%020d%s", segmentPosition, SEGMENT_FILE_SUFFIX));
+        segmentFiles.put(segmentPosition, file);
+        return file;
+    }
+
+    private MappedByteBuffer mapSegment(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() == 0) {
+                randomAccessFile.setLength(segmentSize);
+            }
+            // The mapping stays valid once the file is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private long readOffsetFile() throws IOException {
+        final File offsetFile = new File(directory, OFFSET_FILE_NAME);
+        if (!offsetFile.exists()) {
+            return 0;
+        }
+        final DataInputStream in = new DataInputStream(new FileInputStream(offsetFile));
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeOffsetFile(final long position) throws IOException {
+        final File tmpOffsetFile = new File(directory, OFFSET_TMP_FILE_NAME);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(tmpOffsetFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.writeLong(position);
+            randomAccessFile.getFD().sync();
+        } finally {
+            randomAccessFile.close();
+        }
+
+        final File offsetFile = new File(directory, OFFSET_FILE_NAME);
+        if (!tmpOffsetFile.renameTo(offsetFile) && !(offsetFile.delete() && tmpOffsetFile.renameTo(offsetFile))) {
+            throw new IOException("Unable to rename " + tmpOffsetFile + " to " + offsetFile);
+        }
+    }
+
+    private static int checksum(final byte type, final byte[] payload) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(type);
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+}
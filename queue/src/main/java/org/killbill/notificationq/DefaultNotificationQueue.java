@@ -35,6 +35,7 @@ import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
+import org.killbill.notificationq.dao.InMemoryNotificationSqlDao;
 import org.killbill.notificationq.dao.NotificationEventModelDao;
 import org.killbill.notificationq.dao.NotificationSqlDao;
 import org.killbill.queue.DBBackedQueue;
@@ -90,19 +91,41 @@ public class DefaultNotificationQueue implements NotificationQueue {
     @Override
     public void recordFutureNotificationFromTransaction(final Connection connection, final DateTime futureNotificationTime, final NotificationEvent event,
                                                         final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
+        final NotificationEventModelDao notification = createNotificationEntry(futureNotificationTime, event, userToken, searchKey1, searchKey2);
+
+        final InTransaction.InTransactionHandler<NotificationSqlDao, Void> handler = new InTransaction.InTransactionHandler<NotificationSqlDao, Void>() {
+            @Override
+            public Void withSqlDao(final NotificationSqlDao transactional) throws Exception {
+                dao.insertEntryFromTransaction(transactional, notification);
+                return null;
+            }
+        };
+        executeFromTransaction(connection, handler);
+    }
+
+    // Used by QueueTransaction to buffer the notification until the unit of work is flushed
+    public NotificationEventModelDao createNotificationEntry(final DateTime futureNotificationTime, final NotificationEvent event,
+                                                             final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
         final String eventJson = objectMapper.writeValueAsString(event);
         final UUID futureUserToken = UUID.randomUUID();
         final Long searchKey2WithNull = Objects.firstNonNull(searchKey2, 0L);
-        final NotificationEventModelDao notification = new NotificationEventModelDao(Hostname.get(), clock.getUTCNow(), event.getClass().getName(), eventJson, userToken, searchKey1, searchKey2WithNull, futureUserToken, futureNotificationTime, getFullQName());
+        return new NotificationEventModelDao(Hostname.get(), clock.getUTCNow(), event.getClass().getName(), eventJson, userToken, searchKey1, searchKey2WithNull, futureUserToken, futureNotificationTime, getFullQName());
+    }
 
+    // Entries may belong to any queue sharing the same underlying DBBackedQueue (i.e. the same table)
+    public void insertEntriesFromTransaction(final Connection connection, final List<NotificationEventModelDao> notifications) {
         final InTransaction.InTransactionHandler<NotificationSqlDao, Void> handler = new InTransaction.InTransactionHandler<NotificationSqlDao, Void>() {
             @Override
             public Void withSqlDao(final NotificationSqlDao transactional) throws Exception {
-                dao.insertEntryFromTransaction(transactional, notification);
+                dao.insertEntriesFromTransaction(transactional, notifications);
                 return null;
             }
         };
-        InTransaction.execute(connection, handler, NotificationSqlDao.class);
+        executeFromTransaction(connection, handler);
+    }
+
+    public DBBackedQueue<NotificationEventModelDao> getDBBackedQueue() {
+        return dao;
     }
 
     @Override
@@ -118,7 +141,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
                 return getFutureNotificationsInternal(transactional, searchKey1, searchKey2);
             }
         };
-        return InTransaction.execute(connection, handler, NotificationSqlDao.class);
+        return executeFromTransaction(connection, handler);
     }
 
     @Override
@@ -134,7 +157,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
                 return getFutureNotificationsInternal(transactional, null, searchKey2);
             }
         };
-        return InTransaction.execute(connection, handler, NotificationSqlDao.class);
+        return executeFromTransaction(connection, handler);
     }
 
     @Override
@@ -155,7 +178,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
                 return getFutureOrInProcessingNotificationsInternal(transactional, searchKey1, searchKey2);
             }
         };
-        return InTransaction.execute(connection, handler, NotificationSqlDao.class);
+        return executeFromTransaction(connection, handler);
     }
 
     @Override
@@ -171,7 +194,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
                 return getFutureOrInProcessingNotificationsInternal(transactional, null, searchKey2);
             }
         };
-        return InTransaction.execute(connection, handler, NotificationSqlDao.class);
+        return executeFromTransaction(connection, handler);
     }
 
     private <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getFutureNotificationsInternal(final NotificationSqlDao transactionalDao, @Nullable final Long searchKey1, final Long searchKey2) {
@@ -188,6 +211,30 @@ public class DefaultNotificationQueue implements NotificationQueue {
         return toNotificationEventWithMetadataList(entries);
     }
 
+    @Override
+    public <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getDeadLetterNotifications(@Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2, final Long fromRecordId, final int max) {
+        return toNotificationEventWithMetadataList(dao.getDeadLetterEntries(getFullQName(), className, searchKey1, searchKey2, fromRecordId, max));
+    }
+
+    @Override
+    public long getNbDeadLetterNotifications(@Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2) {
+        return dao.getNbDeadLetterEntries(getFullQName(), className, searchKey1, searchKey2);
+    }
+
+    @Override
+    public long replayDeadLetterNotifications(@Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2, final int batchSize) {
+        return dao.replayDeadLetterEntries(getFullQName(), className, searchKey1, searchKey2, batchSize);
+    }
+
+    private <R> R executeFromTransaction(final Connection connection, final InTransaction.InTransactionHandler<NotificationSqlDao, R> handler) {
+        if (dao.getSqlDao() instanceof InMemoryNotificationSqlDao) {
+            // There is no database transaction to join: the connection is ignored and the in-memory transaction is used instead
+            // (the writes aren't rolled back with the client transaction, see QueueTransaction)
+            return InTransaction.execute((NotificationSqlDao) dao.getSqlDao(), handler);
+        }
+        return InTransaction.execute(connection, handler, NotificationSqlDao.class);
+    }
+
     private <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> toNotificationEventWithMetadataList(final List<NotificationEventModelDao> entries) {
         final List<NotificationEventWithMetadata<T>> result = new LinkedList<NotificationEventWithMetadata<T>>();
         for (final NotificationEventModelDao cur : entries) {
@@ -218,7 +265,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
                 return null;
             }
         };
-        InTransaction.execute(connection, handler, NotificationSqlDao.class);
+        executeFromTransaction(connection, handler);
     }
 
     @Override
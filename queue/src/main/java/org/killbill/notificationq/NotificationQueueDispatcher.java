@@ -38,6 +38,7 @@ import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
+import org.killbill.notificationq.dao.InMemoryNotificationSqlDao;
 import org.killbill.notificationq.dao.NotificationEventModelDao;
 import org.killbill.notificationq.dao.NotificationSqlDao;
 import org.killbill.queue.DBBackedQueue;
@@ -98,7 +99,7 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         this.clock = clock;
         this.config = config;
         this.nbProcessedEvents = new AtomicLong();
-        final NotificationSqlDao sqlDao = dbi.onDemand(NotificationSqlDao.class);
+        final NotificationSqlDao sqlDao = config.isInMemory() ? new InMemoryNotificationSqlDao(config.getHistoryTableName(), null) : dbi.onDemand(NotificationSqlDao.class);
         this.dao = new DBBackedQueue<NotificationEventModelDao>(clock, sqlDao, config, "notif-" + config.getTableName(), metricRegistry, null);
 
         this.queues = new TreeMap<String, NotificationQueue>();
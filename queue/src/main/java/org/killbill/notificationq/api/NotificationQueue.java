@@ -149,6 +149,37 @@ public interface NotificationQueue extends QueueLifecycle {
      */
     public <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getFutureOrInProcessingNotificationFromTransactionForSearchKey2(final Long searchKey2, final Connection connection);
 
+    /**
+     * Retrieve the notifications associated with that queue which exhausted their retries and were moved to the dead letter table
+     *
+     * @param className    the event class name to filter on, or null for all classes
+     * @param searchKey1   the value for key1, or null
+     * @param searchKey2   the value for key2, or null
+     * @param fromRecordId only return notifications whose record_id is strictly greater than this value
+     * @param max          the maximum number of notifications to return
+     * @return a list of NotificationEventWithMetadata objects ordered by record_id
+     */
+    public <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getDeadLetterNotifications(final String className, final Long searchKey1, final Long searchKey2, final Long fromRecordId, final int max);
+
+    /**
+     * @param className  the event class name to filter on, or null for all classes
+     * @param searchKey1 the value for key1, or null
+     * @param searchKey2 the value for key2, or null
+     * @return the number of matching notifications for that queue in the dead letter table
+     */
+    public long getNbDeadLetterNotifications(final String className, final Long searchKey1, final Long searchKey2);
+
+    /**
+     * Move the matching dead letter notifications back into the queue so they get dispatched again
+     *
+     * @param className  the event class name to filter on, or null for all classes
+     * @param searchKey1 the value for key1, or null
+     * @param searchKey2 the value for key2, or null
+     * @param batchSize  the number of notifications to move per transaction
+     * @return the number of notifications replayed
+     */
+    public long replayDeadLetterNotifications(final String className, final Long searchKey1, final Long searchKey2, final int batchSize);
+
     /**
      * Move the notification to history table and mark it as 'removed'
      *
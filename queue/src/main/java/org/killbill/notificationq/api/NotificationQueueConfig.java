@@ -18,6 +18,7 @@ package org.killbill.notificationq.api;
 
 import org.skife.config.Config;
 import org.skife.config.Default;
+import org.skife.config.DefaultNull;
 import org.skife.config.Description;
 import org.skife.config.TimeSpan;
 
@@ -44,6 +45,18 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Number retry for a given event when an exception occurs")
     public abstract int getMaxFailureRetries();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.retry.initialDelay")
+    @Default("0s")
+    @Description("Delay before a failed notification is retried the first time, doubled (with jitter) for each subsequent failure; 0 to retry right away")
+    public abstract TimeSpan getRetryInitialDelay();
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.retry.maxDelay")
+    @Default("1h")
+    @Description("Max delay before a failed notification is retried")
+    public abstract TimeSpan getRetryMaxDelay();
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.claimed")
     @Default("7")
@@ -92,6 +105,30 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Capacity for the worker queue")
     public abstract int getQueueCapacity();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.fairScheduling")
+    @Default("false")
+    @Description("Whether to round-robin across search_key2 (tenants) when claiming notifications")
+    public abstract boolean isUsingFairScheduling();
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.fairScheduling.claimedPerSearchKey2")
+    @Default("2")
+    @Description("Max number of notifications claimed per search_key2 (tenant) at once when fair scheduling is on")
+    public abstract int getMaxEntriesClaimedPerSearchKey2();
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.fairScheduling.claimRatePerSearchKey2")
+    @Default("0")
+    @Description("Max number of notifications claimed per second per search_key2 (tenant) when fair scheduling is on, 0 to disable")
+    public abstract int getMaxClaimRatePerSearchKey2();
+
+    // Notifications are ready in effective_date order, not record_id order, so there is no cursor to page from
+    @Override
+    public boolean isUsingKeysetPagination() {
+        return false;
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.tableName")
     @Default("notifications")
@@ -103,4 +140,10 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Default("notifications_history")
     @Description("Notifications history table name")
     public abstract String getHistoryTableName();
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.deadLetterTableName")
+    @DefaultNull
+    @Description("Notifications dead letter table name (notifications which exhausted all their retries), if not set they are moved to the history table")
+    public abstract String getDeadLetterTableName();
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.notificationq.dao;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.dao.InMemoryQueueSqlDao;
+
+import com.google.common.collect.ImmutableSet;
+
+public class InMemoryNotificationSqlDao extends InMemoryQueueSqlDao<NotificationEventModelDao> implements NotificationSqlDao {
+
+    private static final Set<PersistentQueueEntryLifecycleState> AVAILABLE_STATES = ImmutableSet.<PersistentQueueEntryLifecycleState>of(PersistentQueueEntryLifecycleState.AVAILABLE);
+    private static final Set<PersistentQueueEntryLifecycleState> AVAILABLE_OR_IN_PROCESSING_STATES = ImmutableSet.<PersistentQueueEntryLifecycleState>of(PersistentQueueEntryLifecycleState.AVAILABLE,
+                                                                                                                                                       PersistentQueueEntryLifecycleState.IN_PROCESSING);
+
+    // Same as readyOrderByClause in NotificationSqlDao.sql.stg
+    private static final Comparator<NotificationEventModelDao> READY_ORDERING = new Comparator<NotificationEventModelDao>() {
+        @Override
+        public int compare(final NotificationEventModelDao o1, final NotificationEventModelDao o2) {
+            int result = o1.getEffectiveDate().compareTo(o2.getEffectiveDate());
+            if (result == 0) {
+                result = o1.getCreatedDate().compareTo(o2.getCreatedDate());
+            }
+            if (result == 0) {
+                result = o1.getRecordId().compareTo(o2.getRecordId());
+            }
+            return result;
+        }
+    };
+
+    public InMemoryNotificationSqlDao(@Nullable final String historyTableName, @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(READY_ORDERING, historyTableName, databaseTransactionNotificationApi);
+    }
+
+    @Override
+    protected NotificationEventModelDao copyEntry(final NotificationEventModelDao entry, final Long recordId, @Nullable final String processingOwner, @Nullable final DateTime nextAvailable,
+                                                  final PersistentQueueEntryLifecycleState processingState, final Long errorCount) {
+        return new NotificationEventModelDao(recordId, entry.getCreatingOwner(), processingOwner, entry.getCreatedDate(), nextAvailable, processingState,
+                                             entry.getClassName(), entry.getEventJson(), errorCount, entry.getUserToken(), entry.getSearchKey1(), entry.getSearchKey2(),
+                                             entry.getFutureUserToken(), entry.getEffectiveDate(), entry.getQueueName());
+    }
+
+    @Override
+    protected boolean isEffective(final NotificationEventModelDao entry, final Date now) {
+        return entry.getEffectiveDate().getMillis() <= now.getTime();
+    }
+
+    @Override
+    protected String getQueueName(final NotificationEventModelDao entry) {
+        return entry.getQueueName();
+    }
+
+    @Override
+    public List<NotificationEventModelDao> getReadyQueueEntriesForSearchKeys(final String queueName, final Long searchKey1, final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, queueName, searchKey1, searchKey2, AVAILABLE_STATES, null);
+    }
+
+    @Override
+    public List<NotificationEventModelDao> getReadyQueueEntriesForSearchKey2(final String queueName, final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, queueName, null, searchKey2, AVAILABLE_STATES, null);
+    }
+
+    @Override
+    public List<NotificationEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKeys(final String queueName, final Long searchKey1, final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, queueName, searchKey1, searchKey2, AVAILABLE_OR_IN_PROCESSING_STATES, null);
+    }
+
+    @Override
+    public List<NotificationEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKey2(final String queueName, final Long searchKey2, final String tableName) {
+        return getEntriesForSearchKeys(tableName, queueName, null, searchKey2, AVAILABLE_OR_IN_PROCESSING_STATES, null);
+    }
+
+    @Override
+    public int getCountReadyEntries(final Long searchKey1, final Long searchKey2, final Date now, final String tableName) {
+        return getEntriesForSearchKeys(tableName, null, searchKey1, searchKey2, AVAILABLE_STATES, now).size();
+    }
+}
@@ -19,6 +19,7 @@ package org.killbill.notificationq.dao;
 import java.util.Date;
 import java.util.List;
 
+import org.killbill.commons.jdbi.routing.ReadOnly;
 import org.killbill.queue.dao.QueueSqlDao;
 import org.killbill.queue.dao.QueueSqlDaoStringTemplate;
 import org.skife.jdbi.v2.sqlobject.Bind;
@@ -28,29 +29,34 @@ import org.skife.jdbi.v2.sqlobject.customizers.Define;
 @QueueSqlDaoStringTemplate
 public interface NotificationSqlDao extends QueueSqlDao<NotificationEventModelDao> {
 
+    @ReadOnly
     @SqlQuery
     public List<NotificationEventModelDao> getReadyQueueEntriesForSearchKeys(@Bind("queueName") String queueName,
                                                                              @Bind("searchKey1") final Long searchKey1,
                                                                              @Bind("searchKey2") final Long searchKey2,
                                                                              @Define("tableName") final String tableName);
 
+    @ReadOnly
     @SqlQuery
     public List<NotificationEventModelDao> getReadyQueueEntriesForSearchKey2(@Bind("queueName") String queueName,
                                                                              @Bind("searchKey2") final Long searchKey2,
                                                                              @Define("tableName") final String tableName);
 
+    @ReadOnly
     @SqlQuery
     public List<NotificationEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKeys(@Bind("queueName") String queueName,
                                                                                            @Bind("searchKey1") final Long searchKey1,
                                                                                            @Bind("searchKey2") final Long searchKey2,
                                                                                            @Define("tableName") final String tableName);
 
+    @ReadOnly
     @SqlQuery
     public List<NotificationEventModelDao> getReadyOrInProcessingQueueEntriesForSearchKey2(@Bind("queueName") String queueName,
                                                                                            @Bind("searchKey2") final Long searchKey2,
                                                                                            @Define("tableName") final String tableName);
 
 
+    @ReadOnly
     @SqlQuery
     public int getCountReadyEntries(@Bind("searchKey1") final Long searchKey1,
                                     @Bind("searchKey2") final Long searchKey2,
@@ -19,13 +19,19 @@
 package org.killbill.queue;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -41,6 +47,7 @@ import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi
 import org.killbill.queue.api.PersistentQueueConfig;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.dao.EventEntryModelDao;
+import org.killbill.queue.dao.HistoryReaderTracker;
 import org.killbill.queue.dao.QueueSqlDao;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
@@ -50,11 +57,15 @@ import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -66,6 +77,9 @@ import com.google.common.collect.Iterables;
  * <p>This can be configured to either cache the recordId for the entries that are ready be fetched so that we avoid expansive
  * queries to the database. Alternatively, the inflight queue is not used and the search query is always run when we need to retrieve
  * new entries.
+ * <p/>
+ * <p>When not using the inflight queue, fair scheduling can be enabled so that entries are claimed in a round-robin fashion across
+ * search_key2 (tenants) instead of a plain FIFO by record_id; this prevents a single tenant from monopolizing all the workers.
  *
  * @param <T>
  */
@@ -95,9 +109,28 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
     //
     private final static long POLLING_ORPHANS_MSEC = (5L * 60L * 1000L);
 
+    private final static Comparator<EventEntryModelDao> RECORD_ID_ORDERING = new Comparator<EventEntryModelDao>() {
+        @Override
+        public int compare(final EventEntryModelDao o1, final EventEntryModelDao o2) {
+            return o1.getRecordId().compareTo(o2.getRecordId());
+        }
+    };
+
+    //
+    // When running with fair scheduling, search_key2 values are unsigned so this is lower than any existing tenant
+    //
+    private final static long FAIR_SCHEDULING_FIRST_SEARCH_KEY2 = -1L;
+
+    //
+    // When running with keyset pagination, record_id values are unsigned so this is lower than any existing entry
+    //
+    private final static long KEYSET_FIRST_RECORD_ID = -1L;
+
     private final String DB_QUEUE_LOG_ID;
 
     private final QueueSqlDao<T> sqlDao;
+    // Null for database tables, see updateHistoryReader
+    private final HistoryReaderTracker historyReaderTracker;
     private final Clock clock;
     private final PersistentQueueConfig config;
 
@@ -115,11 +148,23 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
     private final Counter totalProcessedFirstFailures;
     private final Counter totalProcessedSuccess;
     private final Counter totalProcessedAborted;
+    private final Histogram retryDelay;
 
     private final AtomicLong lastPollingOrphanTime;
     private final AtomicBoolean isRunningOrphanQuery;
     private final AtomicLong lowestOrphanEntry;
 
+    // Last search_key2 served when running with fair scheduling, so that next polling starts with the following tenant
+    private final AtomicLong lastFairSearchKey2;
+    private final LoadingCache<Long, ClaimPermits> perSearchKey2ClaimPermits;
+
+    // Last record_id fetched when running with keyset pagination, so that next polling only looks at newer entries
+    private final AtomicLong keysetCursor;
+
+    private final ExponentialBackoffRetryPolicy retryPolicy;
+    // When using the inflightQ, failed entries which are retried later are kept here until they become available again
+    private final PriorityBlockingQueue<DelayedRetryEntry> delayedRetryEvents;
+
     //
     // Per thread information to keep track or recordId while it is accessible and right before
     // transaction gets committed/rollback
@@ -137,8 +182,11 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         this.queueId = QUEUE_ID_CNT.incrementAndGet();
         this.useInflightQueue = config.isUsingInflightQueue();
         this.sqlDao = sqlDao;
+        this.historyReaderTracker = sqlDao instanceof HistoryReaderTracker ? (HistoryReaderTracker) sqlDao : null;
         this.config = config;
         this.inflightEvents = useInflightQueue ? new LinkedBlockingQueue<Long>(config.getQueueCapacity()) : null;
+        this.retryPolicy = new ExponentialBackoffRetryPolicy(config);
+        this.delayedRetryEvents = useInflightQueue ? new PriorityBlockingQueue<DelayedRetryEntry>() : null;
         this.isQueueOpenForWrite = new AtomicBoolean(false);
         this.isQueueOpenForRead = new AtomicBoolean(false);
         this.clock = clock;
@@ -167,6 +215,8 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         this.totalProcessedFirstFailures = metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "totalProcessedFirstFailures"));
         //  Number of aborted events
         this.totalProcessedAborted = metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "totalProcessedAborted"));
+        // Delay in milliseconds before failed events are made available again
+        this.retryDelay = metricRegistry.histogram(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "retryDelay"));
         // Export size of inflightQ
         metricRegistry.register(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "inflightQ", "size"), new Gauge<Integer>() {
             @Override
@@ -197,6 +247,18 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         this.lastPollingOrphanTime = new AtomicLong(clock.getUTCNow().getMillis());
         this.isRunningOrphanQuery = new AtomicBoolean(false);
         this.lowestOrphanEntry = new AtomicLong(-1L);
+        this.lastFairSearchKey2 = new AtomicLong(FAIR_SCHEDULING_FIRST_SEARCH_KEY2);
+        this.keysetCursor = new AtomicLong(KEYSET_FIRST_RECORD_ID);
+        this.perSearchKey2ClaimPermits = config.isUsingFairScheduling() && config.getMaxClaimRatePerSearchKey2() > 0 ?
+                                         CacheBuilder.newBuilder()
+                                                     .expireAfterAccess(POLLING_ORPHANS_MSEC, TimeUnit.MILLISECONDS)
+                                                     .build(new CacheLoader<Long, ClaimPermits>() {
+                                                         @Override
+                                                         public ClaimPermits load(final Long searchKey2) {
+                                                             return new ClaimPermits(config.getMaxClaimRatePerSearchKey2(), clock.getUTCNow().getMillis());
+                                                         }
+                                                     }) :
+                                         null;
         this.transientInflightQRowIdCache = useInflightQueue ? new TransientInflightQRowIdCache(queueId) : null;
         this.DB_QUEUE_LOG_ID = "DBBackedQueue-" + dbBackedQId + ": ";
     }
@@ -206,13 +268,15 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
 
         if (useInflightQueue) {
             inflightEvents.clear();
-            final List<T> entries = fetchReadyEntries(thresholdToReopenQForWrite);
-            if (entries.size() == 0) {
+            delayedRetryEvents.clear();
+            loadDelayedRetryEntries();
+            final List<Long> recordIds = fetchReadyRecordIds(thresholdToReopenQForWrite);
+            if (recordIds.size() == 0) {
                 isQueueOpenForRead.set(true);
                 isQueueOpenForWrite.set(true);
             } else {
                 isQueueOpenForRead.set(false);
-                isQueueOpenForWrite.set(entries.size() < thresholdToReopenQForWrite);
+                isQueueOpenForWrite.set(recordIds.size() < thresholdToReopenQForWrite);
             }
         } else {
             isQueueOpenForRead.set(false);
@@ -229,8 +293,20 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         totalProcessedFirstFailures.dec(totalProcessedFirstFailures.getCount());
         totalProcessedAborted.dec(totalProcessedAborted.getCount());
 
+        if (useInflightQueue && config.isUsingFairScheduling()) {
+            log.warn(DB_QUEUE_LOG_ID + "Fair scheduling is ignored when using the inflight queue");
+        }
+        lastFairSearchKey2.set(FAIR_SCHEDULING_FIRST_SEARCH_KEY2);
+
+        if (config.isUsingKeysetPagination() && (useInflightQueue || config.isUsingFairScheduling())) {
+            log.warn(DB_QUEUE_LOG_ID + "Keyset pagination is ignored when using the inflight queue or fair scheduling");
+        }
+        keysetCursor.set(KEYSET_FIRST_RECORD_ID);
+
         log.info(DB_QUEUE_LOG_ID + "Initialized with useInflightQueue = " + useInflightQueue +
                  ", queueId = " + queueId +
+                 ", isUsingFairScheduling = " + config.isUsingFairScheduling() +
+                 ", isUsingKeysetPagination = " + config.isUsingKeysetPagination() +
                  ", isSticky = " + config.isSticky() +
                  ", isQueueOpenForWrite = " + isQueueOpenForWrite.get() +
                  ", isQueueOpenForRead = " + isQueueOpenForRead.get());
@@ -248,11 +324,30 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
     }
 
 
-    public void insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry) {
+    //
+    // Insert all the entries in a single transaction, so that we only pay for one commit. Returns the record ids,
+    // in the same order as the entries (null if the entry could not be inserted).
+    // Note that this still runs one INSERT (and one LAST_INSERT_ID query) per entry: the callers need the record ids and
+    // JDBI does not return the generated keys of a batch.
+    //
+    public List<Long> insertEntries(final List<T> entries) {
+        return sqlDao.inTransaction(new Transaction<List<Long>, QueueSqlDao<T>>() {
+            @Override
+            public List<Long> inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+                final List<Long> recordIds = new ArrayList<Long>(entries.size());
+                for (final T entry : entries) {
+                    recordIds.add(insertEntryFromTransaction(transactional, entry));
+                }
+                return recordIds;
+            }
+        });
+    }
+
+    public Long insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry) {
         final Long lastInsertId = safeInsertEntry(transactional, entry);
         if (lastInsertId == 0) {
             log.warn(DB_QUEUE_LOG_ID + "Failed to insert entry, lastInsertedId " + lastInsertId);
-            return;
+            return null;
         }
 
         // The current thread is in the middle of  a transaction and this is the only times it knows about the recordId for the queue event;
@@ -263,6 +358,36 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
             //log.info(DB_QUEUE_LOG_ID + "Setting for thread " + Thread.currentThread().getId() + ", row = " + lastInsertId);
         }
         totalInsert.inc();
+        return lastInsertId;
+    }
+
+    //
+    // Insert all the entries as part of the caller's transaction. Without the inflight queue, the entries are written
+    // using a single batch insert since nobody needs their record ids; with the inflight queue, each insert needs to
+    // report its record id (JDBI does not return the generated keys of a batch), so we still run one INSERT per entry
+    // and only the registration of the record ids for the post-commit dispatch is done once for the whole list.
+    //
+    public void insertEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        if (useInflightQueue && isQueueOpenForWrite.get()) {
+            final List<Long> recordIds = new ArrayList<Long>(entries.size());
+            for (final T entry : entries) {
+                final Long lastInsertId = safeInsertEntry(transactional, entry);
+                if (lastInsertId == 0) {
+                    log.warn(DB_QUEUE_LOG_ID + "Failed to insert entry, lastInsertedId " + lastInsertId);
+                    continue;
+                }
+                recordIds.add(lastInsertId);
+            }
+            transientInflightQRowIdCache.addRowIds(recordIds);
+            totalInsert.inc(recordIds.size());
+        } else {
+            transactional.insertEntries(entries, config.getTableName());
+            totalInsert.inc(entries.size());
+        }
     }
 
     //
@@ -277,10 +402,22 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         List<T> candidates = ImmutableList.<T>of();
 
         if (!useInflightQueue) {
-            final List<T> entriesToClaim = fetchReadyEntries(config.getMaxEntriesClaimed());
-            totalFetched.inc(entriesToClaim.size());
-            if (entriesToClaim.size() > 0) {
-                candidates = claimEntries(entriesToClaim);
+            if (config.isUsingFairScheduling()) {
+                final List<T> entriesToClaim = fetchReadyEntriesFairly(config.getMaxEntriesClaimed());
+                totalFetched.inc(entriesToClaim.size());
+                if (entriesToClaim.size() > 0) {
+                    candidates = claimEntries(entriesToClaim);
+                    consumeClaimPermits(candidates);
+                }
+                return candidates;
+            }
+
+            final List<Long> recordIdsToClaim = config.isUsingKeysetPagination() ?
+                                                fetchReadyRecordIdsFromCursor(config.getMaxEntriesClaimed()) :
+                                                fetchReadyRecordIds(config.getMaxEntriesClaimed());
+            totalFetched.inc(recordIdsToClaim.size());
+            if (recordIdsToClaim.size() > 0) {
+                candidates = claimAndLoadEntries(recordIdsToClaim);
             }
             return candidates;
         }
@@ -289,6 +426,8 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
 
             checkForOrphanEntries();
 
+            transferDelayedRetryEntries();
+
             candidates = fetchReadyEntriesFromIds();
             // There are entries in the Q, we just return those
             if (candidates.size() > 0) {
@@ -342,12 +481,13 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         return ImmutableList.<T>of();
     }
 
-    private void checkForOrphanEntries() {
+    // Returns true if the orphan query ran, i.e. lowestOrphanEntry has just been refreshed
+    private boolean checkForOrphanEntries() {
         if (clock.getUTCNow().getMillis() > lastPollingOrphanTime.get() + POLLING_ORPHANS_MSEC) {
 
             if (isRunningOrphanQuery.compareAndSet(false, true)) {
-                final List<T> entriesToClaim = fetchReadyEntries(1);
-                final Long previousLowestOrphanEntry = lowestOrphanEntry.getAndSet((entriesToClaim.size() == 0) ? -1L : entriesToClaim.get(0).getRecordId());
+                final List<Long> recordIdsToClaim = fetchReadyRecordIds(1);
+                final Long previousLowestOrphanEntry = lowestOrphanEntry.getAndSet((recordIdsToClaim.size() == 0) ? -1L : recordIdsToClaim.get(0));
 
                 lastPollingOrphanTime.set(clock.getUTCNow().getMillis());
 
@@ -355,8 +495,10 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
                     log.warn(DB_QUEUE_LOG_ID + "Detected unprocessed bus event {}, may need to restart server...", previousLowestOrphanEntry);
                 }
                 isRunningOrphanQuery.set(false);
+                return true;
             }
         }
+        return false;
     }
 
     private boolean removeInflightEventsWhenSwitchingToQueueOpenForRead(final List<T> candidates) {
@@ -375,20 +517,71 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
 
 
     public void updateOnError(final T entry) {
+        final long retryDelayMs = retryPolicy.getRetryDelayMs(entry.getErrorCount());
+        final long nextAvailableMs = clock.getUTCNow().getMillis() + retryDelayMs;
+
         // We are not (re)incrementing counters totalInflightInsert and totalInsert for these entries, this is a matter of semantics
         sqlDao.inTransaction(new Transaction<Void, QueueSqlDao<T>>() {
             @Override
             public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
-                transactional.updateOnError(entry.getRecordId(), clock.getUTCNow().toDate(), entry.getErrorCount(), config.getTableName());
+                // The owner is only set for delayed entries, see readyWhereClause
+                transactional.updateOnError(entry.getRecordId(), new Date(nextAvailableMs), retryDelayMs > 0 ? Hostname.get() : null, entry.getErrorCount(), config.getTableName());
                 if (entry.getErrorCount() == 1) {
                     totalProcessedFirstFailures.inc();
                 }
-                if (useInflightQueue) {
+                if (useInflightQueue && retryDelayMs == 0) {
                     transientInflightQRowIdCache.addRowId(entry.getRecordId());
                 }
                 return null;
             }
         });
+
+        retryDelay.update(retryDelayMs);
+        // The transaction has been committed, the entry will be moved to the inflightQ when it becomes available
+        if (useInflightQueue && retryDelayMs > 0) {
+            delayedRetryEvents.offer(new DelayedRetryEntry(entry.getRecordId(), nextAvailableMs));
+        }
+    }
+
+    //
+    // Entries waiting for their retry delay are not ready, so they would never make it to the inflightQ after a restart
+    //
+    private void loadDelayedRetryEntries() {
+        final Date now = clock.getUTCNow().toDate();
+        final String owner = config.isSticky() ? Hostname.get() : null;
+
+        long fromRecordId = KEYSET_FIRST_RECORD_ID;
+        while (true) {
+            final List<T> entries = sqlDao.getDelayedRetryEntries(now, config.getMaxEntriesClaimed(), fromRecordId, owner, config.getTableName());
+            for (final T entry : entries) {
+                delayedRetryEvents.offer(new DelayedRetryEntry(entry.getRecordId(), entry.getNextAvailableDate().getMillis()));
+                fromRecordId = entry.getRecordId();
+            }
+            if (entries.size() < config.getMaxEntriesClaimed()) {
+                break;
+            }
+        }
+        if (!delayedRetryEvents.isEmpty()) {
+            log.info(DB_QUEUE_LOG_ID + "Found {} entries waiting to be retried", delayedRetryEvents.size());
+        }
+    }
+
+    private void transferDelayedRetryEntries() {
+        final long now = clock.getUTCNow().getMillis();
+        DelayedRetryEntry entry = delayedRetryEvents.peek();
+        while (entry != null && entry.nextAvailableMs <= now) {
+            // Another thread may have grabbed it in between
+            if (delayedRetryEvents.remove(entry)) {
+                if (!inflightEvents.offer(entry.recordId)) {
+                    // Q overflowed, the entry will be picked up from disk
+                    final boolean q = isQueueOpenForWrite.compareAndSet(true, false);
+                    if (q) {
+                        log.info(DB_QUEUE_LOG_ID + "Closing Q for write: Overflowed with retried recordId = " + entry.recordId);
+                    }
+                }
+            }
+            entry = delayedRetryEvents.peek();
+        }
     }
 
     public void moveEntryToHistory(final T entry) {
@@ -423,7 +616,7 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
                 log.debug(DB_QUEUE_LOG_ID + "Moving entry " + entry.getRecordId() + " into history ");
             }
 
-            transactional.insertEntryWithRecordId(entry, entry.getRecordId(), config.getHistoryTableName());
+            transactional.insertEntryWithRecordId(entry, entry.getRecordId(), getTerminalTableName(entry));
             transactional.removeEntry(entry.getRecordId(), config.getTableName());
         } catch (final Exception e) {
             log.warn(DB_QUEUE_LOG_ID + "Failed to move entries [" + entry.getRecordId() + "] into history ", e);
@@ -484,10 +677,137 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
             }
         });
 
-        transactional.insertEntriesWithRecordId(entries, config.getHistoryTableName());
+        if (config.getDeadLetterTableName() == null) {
+            transactional.insertEntriesWithRecordId(entries, config.getHistoryTableName());
+        } else {
+            final List<T> deadLetterEntries = ImmutableList.<T>copyOf(Iterables.filter(entries, new Predicate<T>() {
+                @Override
+                public boolean apply(final T input) {
+                    return input.getProcessingState() == PersistentQueueEntryLifecycleState.FAILED;
+                }
+            }));
+            final List<T> historyEntries = ImmutableList.<T>copyOf(Iterables.filter(entries, new Predicate<T>() {
+                @Override
+                public boolean apply(final T input) {
+                    return input.getProcessingState() != PersistentQueueEntryLifecycleState.FAILED;
+                }
+            }));
+            if (!historyEntries.isEmpty()) {
+                transactional.insertEntriesWithRecordId(historyEntries, config.getHistoryTableName());
+            }
+            if (!deadLetterEntries.isEmpty()) {
+                transactional.insertEntriesWithRecordId(deadLetterEntries, config.getDeadLetterTableName());
+            }
+        }
         transactional.removeEntries(ImmutableList.copyOf(toBeRemovedRecordIds), config.getTableName());
     }
 
+    // Entries which exhausted their retries are parked in the dead letter table (when configured) so they can be inspected and replayed
+    private String getTerminalTableName(final T entry) {
+        if (config.getDeadLetterTableName() != null && entry.getProcessingState() == PersistentQueueEntryLifecycleState.FAILED) {
+            return config.getDeadLetterTableName();
+        } else {
+            return config.getHistoryTableName();
+        }
+    }
+
+    public List<T> getDeadLetterEntries(@Nullable final String queueName, @Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2, final Long fromRecordId, final int max) {
+        if (config.getDeadLetterTableName() == null) {
+            return ImmutableList.<T>of();
+        }
+        return sqlDao.getDeadLetterEntries(queueName, className, searchKey1, searchKey2, fromRecordId, max, config.getDeadLetterTableName());
+    }
+
+    public long getNbDeadLetterEntries(@Nullable final String queueName, @Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2) {
+        if (config.getDeadLetterTableName() == null) {
+            return 0;
+        }
+        final Long count = sqlDao.getCountDeadLetterEntries(queueName, className, searchKey1, searchKey2, config.getDeadLetterTableName());
+        return count == null ? 0 : count;
+    }
+
+    //
+    // Move matching entries back from the dead letter table into the queue, one batch per transaction so that a large replay
+    // does not hold locks on both tables for too long. Entries keep their record_id and start over with a zero error count.
+    //
+    public long replayDeadLetterEntries(@Nullable final String queueName, @Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2, final int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize should be strictly positive");
+        if (config.getDeadLetterTableName() == null) {
+            return 0;
+        }
+
+        long totalReplayed = 0;
+        while (true) {
+            final List<Long> recordIds = sqlDao.inTransaction(new Transaction<List<Long>, QueueSqlDao<T>>() {
+                @Override
+                public List<Long> inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+                    final List<Long> recordIds = transactional.getDeadLetterRecordIds(queueName, className, searchKey1, searchKey2, batchSize, config.getDeadLetterTableName());
+                    if (recordIds.isEmpty()) {
+                        return recordIds;
+                    }
+                    transactional.insertEntriesFromDeadLetter(recordIds, config.getTableName(), config.getDeadLetterTableName());
+                    transactional.removeEntries(recordIds, config.getDeadLetterTableName());
+                    if (useInflightQueue && isQueueOpenForWrite.get()) {
+                        for (final Long recordId : recordIds) {
+                            transientInflightQRowIdCache.addRowId(recordId);
+                        }
+                    }
+                    return recordIds;
+                }
+            });
+            if (recordIds.isEmpty()) {
+                break;
+            }
+            totalReplayed += recordIds.size();
+            log.info(DB_QUEUE_LOG_ID + "Replayed " + recordIds.size() + " entries from " + config.getDeadLetterTableName());
+            if (recordIds.size() < batchSize) {
+                break;
+            }
+        }
+        return totalReplayed;
+    }
+
+    //
+    // Entries ever inserted in the queue (pending, processed or failed), ordered by record_id. Entries only move from the queue table
+    // to the history and dead letter tables, so reading the queue table first makes sure none is missed (an entry may be read twice though).
+    //
+    public List<T> getEntriesFromRecordId(final Long fromRecordId, final int max) {
+        final List<T> entries = new ArrayList<T>(sqlDao.getEntriesFromRecordId(fromRecordId, max, config.getTableName()));
+        entries.addAll(sqlDao.getEntriesFromRecordId(fromRecordId, max, config.getHistoryTableName()));
+        if (config.getDeadLetterTableName() != null) {
+            entries.addAll(sqlDao.getEntriesFromRecordId(fromRecordId, max, config.getDeadLetterTableName()));
+        }
+        Collections.sort(entries, RECORD_ID_ORDERING);
+
+        // Each table returned its first max entries, so the first max entries of the merge are all there
+        final List<T> result = new ArrayList<T>(Math.min(max, entries.size()));
+        for (final T entry : entries) {
+            if (result.size() >= max) {
+                break;
+            }
+            if (result.isEmpty() || !result.get(result.size() - 1).getRecordId().equals(entry.getRecordId())) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    //
+    // Readers of getEntriesFromRecordId (e.g. an outbox relay) report the last record_id they have read: the in-memory history table
+    // is capped, but never evicts entries a reader hasn't reached yet. This is a no-op for database tables.
+    //
+    public void updateHistoryReader(final String readerName, final Long lastReadRecordId) {
+        if (historyReaderTracker != null) {
+            historyReaderTracker.updateHistoryReader(readerName, lastReadRecordId);
+        }
+    }
+
+    public void removeHistoryReader(final String readerName) {
+        if (historyReaderTracker != null) {
+            historyReaderTracker.removeHistoryReader(readerName);
+        }
+    }
+
 
     private List<T> fetchReadyEntriesFromIds() {
         //
@@ -543,6 +863,167 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         return entries;
     }
 
+    //
+    // Walk the table in record_id order starting right after the last entry we fetched, so that each polling is a short range scan
+    // instead of re-reading the whole ready set (the ready predicate excludes states, so it can't be an index prefix: idx_bus_keyset
+    // leads with record_id instead, and covers the predicate so the scan doesn't need to read the rows). Entries behind the cursor which become ready again
+    // (retries, expired claims, transactions which committed late) are picked up when we wrap around -- i.e. as soon as we catch
+    // up with the head of the table -- or when the orphan check finds one.
+    //
+    private List<Long> fetchReadyRecordIdsFromCursor(final int size) {
+        if (checkForOrphanEntries() && lowestOrphanEntry.get() > 0 && lowestOrphanEntry.get() <= keysetCursor.get()) {
+            log.info(DB_QUEUE_LOG_ID + "Resetting keyset cursor {}, found ready entry {} behind it", keysetCursor.get(), lowestOrphanEntry.get());
+            keysetCursor.set(KEYSET_FIRST_RECORD_ID);
+        }
+
+        final Date now = clock.getUTCNow().toDate();
+        final String owner = config.isSticky() ? Hostname.get() : null;
+
+        final long fromRecordId = keysetCursor.get();
+        final List<Long> recordIds = new ArrayList<Long>(sqlDao.getReadyRecordIdsFromRecordId(now, size, fromRecordId, owner, config.getTableName()));
+        if (recordIds.size() < size && fromRecordId != KEYSET_FIRST_RECORD_ID) {
+            // Wrap around
+            for (final Long recordId : sqlDao.getReadyRecordIdsFromRecordId(now, size - recordIds.size(), KEYSET_FIRST_RECORD_ID, owner, config.getTableName())) {
+                if (recordId > fromRecordId) {
+                    break;
+                }
+                recordIds.add(recordId);
+            }
+        }
+        keysetCursor.set(recordIds.isEmpty() ? KEYSET_FIRST_RECORD_ID : recordIds.get(recordIds.size() - 1));
+        return recordIds;
+    }
+
+    private List<Long> fetchReadyRecordIds(final int size) {
+        final Date now = clock.getUTCNow().toDate();
+        final String owner = config.isSticky() ? Hostname.get() : null;
+        return sqlDao.getReadyRecordIds(now, size, owner, config.getTableName());
+    }
+
+    //
+    // Round-robin across the tenants (search_key2) which have ready entries, starting right after the last tenant we served:
+    // each tenant gets at most getMaxEntriesClaimedPerSearchKey2 entries per batch (and no more than its rate limit if configured). If
+    // there is room left, we fill up with the regular FIFO candidates, with the same per tenant cap: the fill-up only serves the entries
+    // without a tenant and the tenants past the first page of ready ones, so a flooding tenant never gets more than its share of a batch.
+    //
+    // The candidates for all the tenants are fetched with a single query, and the rate limit permits are only reserved here:
+    // they are taken once we know which entries we actually claimed (see consumeClaimPermits).
+    //
+    private List<T> fetchReadyEntriesFairly(final int size) {
+        final Date now = clock.getUTCNow().toDate();
+        final String owner = config.isSticky() ? Hostname.get() : null;
+
+        final long fromSearchKey2 = lastFairSearchKey2.get();
+        final List<Long> searchKey2s = new ArrayList<Long>(sqlDao.getReadySearchKey2s(now, size, fromSearchKey2, owner, config.getTableName()));
+        if (searchKey2s.size() < size && fromSearchKey2 != FAIR_SCHEDULING_FIRST_SEARCH_KEY2) {
+            // Wrap around
+            for (final Long searchKey2 : sqlDao.getReadySearchKey2s(now, size - searchKey2s.size(), FAIR_SCHEDULING_FIRST_SEARCH_KEY2, owner, config.getTableName())) {
+                if (searchKey2 > fromSearchKey2) {
+                    break;
+                }
+                searchKey2s.add(searchKey2);
+            }
+        }
+
+        final int maxPerSearchKey2 = config.getMaxEntriesClaimedPerSearchKey2() > 0 ? config.getMaxEntriesClaimedPerSearchKey2() : 1;
+        final Map<Long, Integer> remainingClaimPermits = new HashMap<Long, Integer>();
+        final List<Long> allowedSearchKey2s = new ArrayList<Long>(searchKey2s.size());
+        for (final Long searchKey2 : searchKey2s) {
+            if (getRemainingClaimPermits(remainingClaimPermits, searchKey2, now) > 0) {
+                allowedSearchKey2s.add(searchKey2);
+            }
+        }
+
+        final Map<Long, List<T>> perSearchKey2Candidates = new HashMap<Long, List<T>>();
+        if (!allowedSearchKey2s.isEmpty()) {
+            for (final T entry : sqlDao.getReadyEntriesForSearchKey2s(now, maxPerSearchKey2, allowedSearchKey2s, owner, config.getTableName())) {
+                List<T> cur = perSearchKey2Candidates.get(entry.getSearchKey2());
+                if (cur == null) {
+                    cur = new ArrayList<T>(maxPerSearchKey2);
+                    perSearchKey2Candidates.put(entry.getSearchKey2(), cur);
+                }
+                cur.add(entry);
+            }
+        }
+
+        final List<T> candidates = new ArrayList<T>(size);
+        final Set<Long> candidateRecordIds = new HashSet<Long>();
+        final Map<Long, Integer> nbCandidatesPerSearchKey2 = new HashMap<Long, Integer>();
+        for (int i = 0; i < maxPerSearchKey2 && candidates.size() < size; i++) {
+            for (final Long searchKey2 : allowedSearchKey2s) {
+                if (candidates.size() >= size) {
+                    break;
+                }
+                final List<T> cur = perSearchKey2Candidates.get(searchKey2);
+                if (cur != null && i < cur.size() && reserveClaimPermit(remainingClaimPermits, searchKey2, now)) {
+                    final T entry = cur.get(i);
+                    candidates.add(entry);
+                    candidateRecordIds.add(entry.getRecordId());
+                    nbCandidatesPerSearchKey2.put(searchKey2, i + 1);
+                    // Tenants are ordered by turn, so the last one served in the first round is where the next polling resumes
+                    if (i == 0) {
+                        lastFairSearchKey2.set(searchKey2);
+                    }
+                }
+            }
+        }
+
+        if (candidates.size() < size) {
+            for (final T entry : fetchReadyEntries(size)) {
+                if (candidates.size() >= size) {
+                    break;
+                }
+                if (candidateRecordIds.contains(entry.getRecordId())) {
+                    continue;
+                }
+                if (entry.getSearchKey2() == null) {
+                    candidates.add(entry);
+                    continue;
+                }
+                final Integer nbCandidates = nbCandidatesPerSearchKey2.get(entry.getSearchKey2());
+                if ((nbCandidates == null || nbCandidates < maxPerSearchKey2) && reserveClaimPermit(remainingClaimPermits, entry.getSearchKey2(), now)) {
+                    candidates.add(entry);
+                    nbCandidatesPerSearchKey2.put(entry.getSearchKey2(), nbCandidates == null ? 1 : nbCandidates + 1);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private int getRemainingClaimPermits(final Map<Long, Integer> remainingClaimPermits, final Long searchKey2, final Date now) {
+        if (perSearchKey2ClaimPermits == null) {
+            return Integer.MAX_VALUE;
+        }
+        Integer remaining = remainingClaimPermits.get(searchKey2);
+        if (remaining == null) {
+            remaining = perSearchKey2ClaimPermits.getUnchecked(searchKey2).getAvailablePermits(now.getTime());
+            remainingClaimPermits.put(searchKey2, remaining);
+        }
+        return remaining;
+    }
+
+    private boolean reserveClaimPermit(final Map<Long, Integer> remainingClaimPermits, final Long searchKey2, final Date now) {
+        final int remaining = getRemainingClaimPermits(remainingClaimPermits, searchKey2, now);
+        if (remaining <= 0) {
+            return false;
+        }
+        if (perSearchKey2ClaimPermits != null) {
+            remainingClaimPermits.put(searchKey2, remaining - 1);
+        }
+        return true;
+    }
+
+    private void consumeClaimPermits(final List<T> claimedEntries) {
+        if (perSearchKey2ClaimPermits == null) {
+            return;
+        }
+        for (final T entry : claimedEntries) {
+            if (entry.getSearchKey2() != null) {
+                perSearchKey2ClaimPermits.getUnchecked(entry.getSearchKey2()).consume(1);
+            }
+        }
+    }
+
     private List<T> claimEntries(final List<T> candidates) {
         if (config.isSticky()) {
             return batchClaimEntries(candidates);
@@ -558,14 +1039,11 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         if (candidates.size() == 0) {
             return ImmutableList.of();
         }
-        final Date nextAvailable = clock.getUTCNow().plus(config.getClaimedTime().getMillis()).toDate();
-        final Collection<Long> recordIds = Collections2.transform(candidates, new Function<T, Long>() {
-            @Override
-            public Long apply(T input) {
-                return input.getRecordId();
-            }
-        });
-        final int resultCount = sqlDao.claimEntries(recordIds, clock.getUTCNow().toDate(), Hostname.get(), nextAvailable, config.getTableName());
+        final List<Long> recordIds = new ArrayList<Long>(candidates.size());
+        for (final T candidate : candidates) {
+            recordIds.add(candidate.getRecordId());
+        }
+        final int resultCount = batchClaimRecordIds(recordIds);
         // Same number, we got them all, we can optimize
         if (resultCount == candidates.size()) {
             totalClaimed.inc(resultCount);
@@ -574,19 +1052,28 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         } else if (resultCount == 0) {
             return ImmutableList.of();
         } else {
-            final List<T> maybeClaimedEntries = sqlDao.getEntriesFromIds(ImmutableList.copyOf(recordIds), config.getTableName());
-            final Iterable claimed = Iterables.filter(maybeClaimedEntries, new Predicate<T>() {
-                @Override
-                public boolean apply(T input) {
-                    return input.getProcessingState() == PersistentQueueEntryLifecycleState.IN_PROCESSING && input.getProcessingOwner().equals(Hostname.get());
-                }
-            });
-            final List<T> result = ImmutableList.copyOf(claimed);
-            totalClaimed.inc(result.size());
-            return result;
+            return loadPartiallyClaimedEntries(recordIds);
         }
     }
 
+    private int batchClaimRecordIds(final List<Long> recordIds) {
+        final Date nextAvailable = clock.getUTCNow().plus(config.getClaimedTime().getMillis()).toDate();
+        return sqlDao.claimEntries(recordIds, clock.getUTCNow().toDate(), Hostname.get(), nextAvailable, config.getTableName());
+    }
+
+    // Only some of the entries were claimed: re-read them all and keep the ones we own
+    private List<T> loadPartiallyClaimedEntries(final List<Long> recordIds) {
+        final List<T> maybeClaimedEntries = getEntriesFromIdsInOrder(recordIds);
+        final List<T> result = ImmutableList.copyOf(Iterables.filter(maybeClaimedEntries, new Predicate<T>() {
+            @Override
+            public boolean apply(T input) {
+                return input.getProcessingState() == PersistentQueueEntryLifecycleState.IN_PROCESSING && input.getProcessingOwner().equals(Hostname.get());
+            }
+        }));
+        totalClaimed.inc(result.size());
+        return result;
+    }
+
     //
     // In non sticky mode, we don't optimize claim update because we can't synchronize easily -- we could rely on global lock,
     // but we are looking for performance and that does not the right choice.
@@ -601,18 +1088,66 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
     }
 
     private boolean claimEntry(T entry) {
+        return claimEntry(entry.getRecordId());
+    }
+
+    private boolean claimEntry(final Long recordId) {
         final Date nextAvailable = clock.getUTCNow().plus(config.getClaimedTime().getMillis()).toDate();
-        final boolean claimed = (sqlDao.claimEntry(entry.getRecordId(), clock.getUTCNow().toDate(), Hostname.get(), nextAvailable, config.getTableName()) == 1);
+        final boolean claimed = (sqlDao.claimEntry(recordId, clock.getUTCNow().toDate(), Hostname.get(), nextAvailable, config.getTableName()) == 1);
 
         if (claimed) {
             totalClaimed.inc();
             if (log.isDebugEnabled()) {
-                log.debug(DB_QUEUE_LOG_ID + "Claiming entry " + entry.getRecordId());
+                log.debug(DB_QUEUE_LOG_ID + "Claiming entry " + recordId);
             }
         }
         return claimed;
     }
 
+    //
+    // Second phase of the projection-only fetch: candidates were selected by record_id only, so we only read the full rows
+    // (and their event_json) for the entries we did claim -- losing the claim race against another node costs us nothing more
+    // than the index lookup.
+    //
+    private List<T> claimAndLoadEntries(final List<Long> recordIds) {
+        if (config.isSticky()) {
+            final int resultCount = batchClaimRecordIds(recordIds);
+            // Same number, we got them all: no need to check the owner of each row
+            if (resultCount == recordIds.size()) {
+                totalClaimed.inc(resultCount);
+                return getEntriesFromIdsInOrder(recordIds);
+            } else if (resultCount == 0) {
+                return ImmutableList.of();
+            } else {
+                return loadPartiallyClaimedEntries(recordIds);
+            }
+        }
+
+        final List<Long> claimedRecordIds = new ArrayList<Long>(recordIds.size());
+        for (final Long recordId : recordIds) {
+            if (claimEntry(recordId)) {
+                claimedRecordIds.add(recordId);
+            }
+        }
+        return claimedRecordIds.isEmpty() ? ImmutableList.<T>of() : getEntriesFromIdsInOrder(claimedRecordIds);
+    }
+
+    // getEntriesFromIds returns the rows in whatever order the database reads them: keep the order in which they were claimed
+    private List<T> getEntriesFromIdsInOrder(final List<Long> recordIds) {
+        final Map<Long, T> entriesByRecordId = new HashMap<Long, T>();
+        for (final T entry : sqlDao.getEntriesFromIds(recordIds, config.getTableName())) {
+            entriesByRecordId.put(entry.getRecordId(), entry);
+        }
+        final List<T> result = new ArrayList<T>(entriesByRecordId.size());
+        for (final Long recordId : recordIds) {
+            final T entry = entriesByRecordId.get(recordId);
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
     public QueueSqlDao<T> getSqlDao() {
         return sqlDao;
     }
@@ -682,6 +1217,22 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         }
     }
 
+    private static final class DelayedRetryEntry implements Comparable<DelayedRetryEntry> {
+
+        private final Long recordId;
+        private final long nextAvailableMs;
+
+        private DelayedRetryEntry(final Long recordId, final long nextAvailableMs) {
+            this.recordId = recordId;
+            this.nextAvailableMs = nextAvailableMs;
+        }
+
+        @Override
+        public int compareTo(final DelayedRetryEntry o) {
+            return nextAvailableMs < o.nextAvailableMs ? -1 : (nextAvailableMs == o.nextAvailableMs ? 0 : 1);
+        }
+    }
+
     //
     // Hide the ThreadLocal logic required for inflightQ algorithm in that class and export an easy to use interface.
     //
@@ -708,6 +1259,18 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
             entry.addRowId(rowId);
         }
 
+        public void addRowIds(final List<Long> rowIds) {
+            if (rowIds.isEmpty()) {
+                return;
+            }
+            RowRef entry = rowRefThreadLocal.get();
+            if (entry == null) {
+                entry = new RowRef(queueId);
+                rowRefThreadLocal.set(entry);
+            }
+            entry.addRowIds(rowIds);
+        }
+
         public void reset() {
             rowRefThreadLocal.remove();
         }
@@ -734,6 +1297,10 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
                 rowIds.add(rowId);
             }
 
+            public void addRowIds(final List<Long> newRowIds) {
+                rowIds.addAll(newRowIds);
+            }
+
             public Iterator<Long> iterator() {
                 return rowIds.iterator();
             }
@@ -749,18 +1316,26 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
             sqlDao.inTransaction(new Transaction<Void, QueueSqlDao<T>>() {
                 @Override
                 public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
-                    final Long maxRecordId = transactional.getMaxRecordId(config.getHistoryTableName());
+                    String maxRecordIdTableName = config.getHistoryTableName();
+                    Long maxRecordId = transactional.getMaxRecordId(config.getHistoryTableName());
+                    if (config.getDeadLetterTableName() != null) {
+                        final Long maxDeadLetterRecordId = transactional.getMaxRecordId(config.getDeadLetterTableName());
+                        if (maxDeadLetterRecordId != null && (maxRecordId == null || maxDeadLetterRecordId > maxRecordId)) {
+                            maxRecordIdTableName = config.getDeadLetterTableName();
+                            maxRecordId = maxDeadLetterRecordId;
+                        }
+                    }
                     if (maxRecordId == null || maxRecordId == 0) {
                         // Any value will do
                     } else {
-                        final T dummyEntry = transactional.getByRecordId(maxRecordId, config.getHistoryTableName());
+                        final T dummyEntry = transactional.getByRecordId(maxRecordId, maxRecordIdTableName);
                         final Long lastInsertId = safeInsertEntry(transactional, dummyEntry);
                         if (lastInsertId > maxRecordId) {
                             // Nothing to do
                             transactional.removeEntry(lastInsertId, config.getTableName());
                         } else {
                             final long nextMaxRecordId = maxRecordId + 1;
-                            log.warn("In table {}, last insert id was {} but the max record id of {} is {} - resetting it to {}", config.getTableName(), lastInsertId, config.getHistoryTableName(), maxRecordId, nextMaxRecordId);
+                            log.warn("In table {}, last insert id was {} but the max record id of {} is {} - resetting it to {}", config.getTableName(), lastInsertId, maxRecordIdTableName, maxRecordId, nextMaxRecordId);
                             // Avoid ALTER table, which would rebuild the entire table
                             transactional.insertEntryWithRecordId(dummyEntry, nextMaxRecordId, config.getTableName());
                             transactional.removeEntry(nextMaxRecordId, config.getTableName());
@@ -782,4 +1357,36 @@ public class DBBackedQueue<T extends EventEntryModelDao> implements Observer {
         transactional.insertEntry(entry, config.getTableName());
         return transactional.getLastInsertId();
     }
+
+    //
+    // Token bucket for the claim rate of a search_key2 (burst of one second worth of permits). Unlike Guava's RateLimiter, we can
+    // look at the available permits before running the query, and only take them for the entries we end up claiming.
+    //
+    private static final class ClaimPermits {
+
+        private final double maxPermits;
+        private final double permitsPerMillis;
+
+        private double storedPermits;
+        private long lastRefillMillis;
+
+        private ClaimPermits(final int permitsPerSecond, final long nowMillis) {
+            this.maxPermits = permitsPerSecond;
+            this.permitsPerMillis = permitsPerSecond / 1000.0;
+            this.storedPermits = maxPermits;
+            this.lastRefillMillis = nowMillis;
+        }
+
+        public synchronized int getAvailablePermits(final long nowMillis) {
+            if (nowMillis > lastRefillMillis) {
+                storedPermits = Math.min(maxPermits, storedPermits + (nowMillis - lastRefillMillis) * permitsPerMillis);
+                lastRefillMillis = nowMillis;
+            }
+            return storedPermits < 1 ? 0 : (int) storedPermits;
+        }
+
+        public synchronized void consume(final int permits) {
+            storedPermits -= permits;
+        }
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.Random;
+
+import org.killbill.queue.api.PersistentQueueConfig;
+
+/**
+ * Computes how long a failed entry should wait before being available again: the delay doubles with each failure,
+ * starting at getRetryInitialDelay and capped at getRetryMaxDelay, and is randomized between half and the full value
+ * so that entries failing together don't all come back at the same time.
+ */
+public class ExponentialBackoffRetryPolicy {
+
+    // Beyond that, the delay would overflow anyway
+    private static final int MAX_SHIFT = 30;
+
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final Random random;
+
+    public ExponentialBackoffRetryPolicy(final PersistentQueueConfig config) {
+        this(config.getRetryInitialDelay().getMillis(), config.getRetryMaxDelay().getMillis(), new Random());
+    }
+
+    public ExponentialBackoffRetryPolicy(final long initialDelayMs, final long maxDelayMs, final Random random) {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+    }
+
+    public boolean isEnabled() {
+        return initialDelayMs > 0;
+    }
+
+    /**
+     * @param errorCount number of failures so far for the entry (starting at 1)
+     * @return the delay in milliseconds before the next attempt, 0 if the entry should be retried right away
+     */
+    public long getRetryDelayMs(final long errorCount) {
+        if (!isEnabled()) {
+            return 0;
+        }
+
+        final int shift = (int) Math.min(Math.max(errorCount - 1, 0), MAX_SHIFT);
+        final long delayMs = Math.min(initialDelayMs << shift, maxDelayMs);
+        final long halfDelayMs = delayMs / 2;
+        return halfDelayMs + (long) (random.nextDouble() * (delayMs - halfDelayMs + 1));
+    }
+}
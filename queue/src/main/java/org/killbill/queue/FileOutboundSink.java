@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.queue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.killbill.queue.api.OutboundSink;
+import org.killbill.queue.dao.EventEntryModelDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Sink which appends the entries to a file per relay (one tab separated line per entry: record id, created date,
+ * class name, search keys, user token and event json), e.g. as a stand-in for a message broker.
+ * <p/>
+ * The checkpoint is the record id of the last line, so delivery is exactly-once: a partially written or corrupted
+ * last line (crash during a publish) is dropped and published again.
+ */
+public class FileOutboundSink implements OutboundSink {
+
+    private static final Logger log = LoggerFactory.getLogger(FileOutboundSink.class);
+
+    private static final String FILE_SUFFIX = ".events";
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final File directory;
+
+    public FileOutboundSink(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        this.directory = directory;
+    }
+
+    public File getFile(final String relayName) {
+        return new File(directory, relayName + FILE_SUFFIX);
+    }
+
+    @Override
+    public synchronized Long getLastPublishedRecordId(final String relayName) throws IOException {
+        final File file = getFile(relayName);
+        if (!file.exists()) {
+            return null;
+        }
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long lastNewLine = findPreviousNewLine(randomAccessFile, randomAccessFile.length());
+            while (true) {
+                if (lastNewLine + 1 != randomAccessFile.length()) {
+                    randomAccessFile.setLength(lastNewLine + 1);
+                }
+                if (lastNewLine < 0) {
+                    return null;
+                }
+
+                final long lineStart = findPreviousNewLine(randomAccessFile, lastNewLine) + 1;
+                final Long recordId = readRecordId(randomAccessFile, lineStart);
+                if (recordId != null) {
+                    return recordId;
+                }
+                // Corrupted line: drop it as well, so that its entry is published again
+                log.warn("Dropping corrupted line at offset {} in {}", lineStart, file);
+                lastNewLine = lineStart - 1;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public synchronized void publish(final String relayName, final List<? extends EventEntryModelDao> entries) throws IOException {
+        final FileOutputStream fileOutputStream = new FileOutputStream(getFile(relayName), true);
+        try {
+            final BufferedOutputStream out = new BufferedOutputStream(fileOutputStream);
+            for (final EventEntryModelDao entry : entries) {
+                final String line = Joiner.on('\t').useForNull("").join(entry.getRecordId(),
+                                                                        entry.getCreatedDate(),
+                                                                        entry.getClassName(),
+                                                                        entry.getSearchKey1(),
+                                                                        entry.getSearchKey2(),
+                                                                        entry.getUserToken(),
+                                                                        entry.getEventJson());
+                out.write(line.getBytes(Charsets.UTF_8));
+                out.write('\n');
+            }
+            out.flush();
+            // One fsync per batch
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    // Record id at the start of the line, null if the line doesn't start with one
+    private static Long readRecordId(final RandomAccessFile randomAccessFile, final long lineStart) throws IOException {
+        randomAccessFile.seek(lineStart);
+        final StringBuilder recordId = new StringBuilder();
+        int c;
+        while ((c = randomAccessFile.read()) != '\t') {
+            if (c == -1 || c == '\n') {
+                return null;
+            }
+            recordId.append((char) c);
+        }
+        try {
+            return Long.valueOf(recordId.toString());
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Position of the last new line before the given position, -1 if none
+    private static long findPreviousNewLine(final RandomAccessFile randomAccessFile, final long before) throws IOException {
+        final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long end = before;
+        while (end > 0) {
+            final long start = Math.max(0, end - buffer.length);
+            final int length = (int) (end - start);
+            randomAccessFile.seek(start);
+            randomAccessFile.readFully(buffer, 0, length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer[i] == '\n') {
+                    return start + i;
+                }
+            }
+            end = start;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.queue.dao.EventEntryModelDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Writes entries into the queue on behalf of the callers, from a single thread.
+ * <p/>
+ * Entries submitted concurrently are grouped into one transaction (up to maxBatchSize entries), so the cost of the
+ * commit is paid once for the whole group instead of once per entry. Each caller gets a future which completes
+ * with the record id of its entry once the transaction has been committed (or with the failure). If the group fails,
+ * its entries are retried one transaction each, so that a single bad entry only fails its own caller.
+ * <p/>
+ * Only the commit is shared: each entry is still written with its own INSERT, since the callers need the record ids
+ * and JDBI does not return the generated keys of a batch insert.
+ */
+public class GroupCommitWriter<T extends EventEntryModelDao> {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private static final long POLLING_TIMEOUT_MSEC = 100;
+    private static final long STOP_TIMEOUT_MSEC = 15L * 1000L;
+
+    private final DBBackedQueue<T> dao;
+    private final String name;
+    private final int maxBatchSize;
+    private final LinkedBlockingQueue<PendingEntry<T>> pendingEntries;
+    private final Histogram batchSize;
+
+    private volatile boolean isRunning;
+    private ExecutorService executor;
+
+    public GroupCommitWriter(final DBBackedQueue<T> dao, final String name, final int maxBatchSize, final int capacity, final MetricRegistry metricRegistry) {
+        this.dao = dao;
+        this.name = name;
+        this.maxBatchSize = maxBatchSize;
+        this.pendingEntries = new LinkedBlockingQueue<PendingEntry<T>>(capacity);
+        // Number of entries committed per transaction
+        this.batchSize = metricRegistry.histogram(MetricRegistry.name(GroupCommitWriter.class, name, "batchSize"));
+        this.isRunning = false;
+    }
+
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, name + "-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        // The writer thread flushes the entries already submitted before exiting
+        isRunning = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+                log.warn("{}: Group commit writer did not exit within {} ms", name, STOP_TIMEOUT_MSEC);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failPendingEntries();
+        executor = null;
+    }
+
+    public ListenableFuture<Long> write(final T entry) {
+        final PendingEntry<T> pendingEntry = new PendingEntry<T>(entry);
+        if (!isRunning) {
+            pendingEntry.future.setException(new IllegalStateException(name + ": writer is not running"));
+        } else if (!pendingEntries.offer(pendingEntry)) {
+            pendingEntry.future.setException(new IllegalStateException(name + ": too many pending entries (" + pendingEntries.size() + ")"));
+        } else if (!isRunning) {
+            // We raced with stop(), make sure nobody waits forever
+            failPendingEntries();
+        }
+        return pendingEntry.future;
+    }
+
+    private void runWriter() {
+        log.info("{}: Group commit writer starting", name);
+        try {
+            while (isRunning || !pendingEntries.isEmpty()) {
+                final PendingEntry<T> first = pendingEntries.poll(POLLING_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                final List<PendingEntry<T>> batch = new ArrayList<PendingEntry<T>>(maxBatchSize);
+                batch.add(first);
+                pendingEntries.drainTo(batch, maxBatchSize - 1);
+                flush(batch);
+            }
+        } catch (final InterruptedException e) {
+            log.info("{}: Group commit writer got interrupted, exiting...", name);
+        } finally {
+            log.info("{}: Group commit writer has exited", name);
+        }
+    }
+
+    private void flush(final List<PendingEntry<T>> batch) {
+        final List<T> entries = new ArrayList<T>(batch.size());
+        for (final PendingEntry<T> cur : batch) {
+            entries.add(cur.entry);
+        }
+
+        final List<Long> recordIds;
+        try {
+            recordIds = dao.insertEntries(entries);
+        } catch (final Exception e) {
+            if (batch.size() == 1) {
+                log.warn(name + ": Failed to insert entry", e);
+                batch.get(0).future.setException(e);
+            } else {
+                // The whole transaction was rolled back: find out which entries are to blame
+                log.warn(name + ": Failed to insert " + batch.size() + " entries, retrying them one by one", e);
+                for (final PendingEntry<T> cur : batch) {
+                    flush(ImmutableList.<PendingEntry<T>>of(cur));
+                }
+            }
+            return;
+        }
+
+        batchSize.update(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            final Long recordId = recordIds.get(i);
+            if (recordId == null) {
+                batch.get(i).future.setException(new IllegalStateException(name + ": failed to insert entry"));
+            } else {
+                batch.get(i).future.set(recordId);
+            }
+        }
+    }
+
+    private void failPendingEntries() {
+        PendingEntry<T> cur;
+        while ((cur = pendingEntries.poll()) != null) {
+            cur.future.setException(new IllegalStateException(name + ": writer has been stopped"));
+        }
+    }
+
+    private static final class PendingEntry<T> {
+
+        private final T entry;
+        private final SettableFuture<Long> future;
+
+        private PendingEntry(final T entry) {
+            this.entry = entry;
+            this.future = SettableFuture.create();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.killbill.queue.api.OutboundSink;
+import org.killbill.queue.dao.EventEntryModelDao;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * In-process sink, which keeps the published entries (and the checkpoints) in memory: mostly useful for tests, or to
+ * hand the entries over to another component of the same JVM.
+ */
+public class InMemoryOutboundSink implements OutboundSink {
+
+    private final Map<String, List<EventEntryModelDao>> publishedEntries = new HashMap<String, List<EventEntryModelDao>>();
+
+    @Override
+    public synchronized Long getLastPublishedRecordId(final String relayName) {
+        final List<EventEntryModelDao> entries = publishedEntries.get(relayName);
+        return entries == null || entries.isEmpty() ? null : entries.get(entries.size() - 1).getRecordId();
+    }
+
+    @Override
+    public synchronized void publish(final String relayName, final List<? extends EventEntryModelDao> entries) {
+        List<EventEntryModelDao> existingEntries = publishedEntries.get(relayName);
+        if (existingEntries == null) {
+            existingEntries = new ArrayList<EventEntryModelDao>();
+            publishedEntries.put(relayName, existingEntries);
+        }
+        existingEntries.addAll(entries);
+        notifyAll();
+    }
+
+    public synchronized List<EventEntryModelDao> getPublishedEntries(final String relayName) {
+        final List<EventEntryModelDao> entries = publishedEntries.get(relayName);
+        return entries == null ? ImmutableList.<EventEntryModelDao>of() : ImmutableList.<EventEntryModelDao>copyOf(entries);
+    }
+
+    /**
+     * @return whether at least nbEntries entries have been published by that relay before the timeout
+     */
+    public synchronized boolean waitForPublishedEntries(final String relayName, final int nbEntries, final long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (getPublishedEntries(relayName).size() < nbEntries) {
+            final long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+}
@@ -18,9 +18,15 @@
 package org.killbill.queue;
 
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.sql.DataSource;
 
@@ -30,8 +36,10 @@ import org.killbill.commons.jdbi.argument.EnumArgumentFactory;
 import org.killbill.commons.jdbi.argument.LocalDateArgumentFactory;
 import org.killbill.commons.jdbi.argument.UUIDArgumentFactory;
 import org.killbill.commons.jdbi.mapper.UUIDMapper;
+import org.killbill.queue.dao.QueueSqlDao;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,19 +47,62 @@ public class InTransaction {
 
     private static final Logger logger = LoggerFactory.getLogger(InTransaction.class);
 
-    public static <K, R> R execute(final Connection connection, final InTransactionHandler<K, R> handler, final Class<K> klass) {
-        final DBI dbi = buildDDBI(connection);
+    //
+    // Building a DBI, opening a Handle and attaching the SqlDao for each call is expensive compared to the few statements
+    // issued from the client transaction. Instead, each thread keeps a Handle (and the SqlDaos attached to it) from a shared
+    // DBI. The connection of that Handle delegates to the client connection bound for the duration of the call.
+    //
+    private static final ThreadLocal<Connection> currentConnection = new ThreadLocal<Connection>();
+
+    private static final Connection currentConnectionDelegate = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                                                                    new Class[]{Connection.class},
+                                                                                                    new CurrentConnectionHandler());
+
+    private static final DBI sharedDBI = configureDBI(new DBI(new ConnectionFactory() {
+        @Override
+        public Connection openConnection() throws SQLException {
+            return currentConnectionDelegate;
+        }
+    }));
+
+    private static final ThreadLocal<AttachedSqlDaos> attachedSqlDaos = new ThreadLocal<AttachedSqlDaos>() {
+        @Override
+        protected AttachedSqlDaos initialValue() {
+            return new AttachedSqlDaos();
+        }
+    };
 
-        final Handle handle = dbi.open();
+    public static <K, R> R execute(final Connection connection, final InTransactionHandler<K, R> handler, final Class<K> klass) {
+        // Support nested calls, potentially on different connections
+        final Connection previousConnection = currentConnection.get();
+        currentConnection.set(connection);
         try {
-            final K transactional = handle.attach(klass);
+            final K transactional = attachedSqlDaos.get().getSqlDao(klass);
             return handler.withSqlDao(transactional);
         } catch (final Exception e) {
             logger.error("Failed to process transaction", e);
             return null;
         } finally {
             // We do not release the connection -- client is responsible for closing it
-            // h.close();
+            if (previousConnection == null) {
+                currentConnection.remove();
+            } else {
+                currentConnection.set(previousConnection);
+            }
+        }
+    }
+
+    // For DAOs managing their own transactions (i.e. not attached to a JDBC connection), see InMemoryQueueSqlDao
+    public static <K extends QueueSqlDao<?>, R> R execute(final K sqlDao, final InTransactionHandler<K, R> handler) {
+        sqlDao.begin();
+        try {
+            final R result = handler.withSqlDao(sqlDao);
+            sqlDao.commit();
+            return result;
+        } catch (final Exception e) {
+            sqlDao.rollback();
+            logger.error("Failed to process transaction", e);
+            return null;
         }
     }
 
@@ -61,7 +112,10 @@ public class InTransaction {
     }
 
     public static DBI buildDDBI(final DataSource dataSource) {
-        final DBI dbi = new DBI(dataSource);
+        return configureDBI(new DBI(dataSource));
+    }
+
+    private static DBI configureDBI(final DBI dbi) {
         dbi.registerArgumentFactory(new UUIDArgumentFactory());
         dbi.registerArgumentFactory(new DateTimeZoneArgumentFactory());
         dbi.registerArgumentFactory(new DateTimeArgumentFactory());
@@ -76,6 +130,44 @@ public class InTransaction {
         public R withSqlDao(final K transactional) throws Exception;
     }
 
+    private static final class AttachedSqlDaos {
+
+        private final Map<Class<?>, Object> sqlDaos = new HashMap<Class<?>, Object>();
+
+        private Handle handle;
+
+        private <K> K getSqlDao(final Class<K> klass) {
+            if (handle == null) {
+                // Never closed, as this would close the client connection
+                handle = sharedDBI.open();
+            }
+
+            Object sqlDao = sqlDaos.get(klass);
+            if (sqlDao == null) {
+                sqlDao = handle.attach(klass);
+                sqlDaos.put(klass, sqlDao);
+            }
+            return klass.cast(sqlDao);
+        }
+    }
+
+    private static final class CurrentConnectionHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Connection connection = currentConnection.get();
+            if (connection == null) {
+                throw new SQLException("No connection bound to the current thread, InTransaction SqlDaos can only be used within InTransaction#execute");
+            }
+
+            try {
+                return method.invoke(connection, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
     private static final class DataSourceWithDelegate implements DataSource {
 
         private final Connection connection;
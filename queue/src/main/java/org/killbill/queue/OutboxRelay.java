@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.killbill.clock.Clock;
+import org.killbill.queue.api.OutboundSink;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.dao.EventEntryModelDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Publishes the queue entries to an OutboundSink in record id order, from a single thread.
+ * <p/>
+ * The relay tails the queue, including the history and dead letter tables (see DBBackedQueue#getEntriesFromRecordId),
+ * in large batches: external consumers don't need to poll the database, and nothing is written per entry.
+ * <p/>
+ * Record ids are allocated before the commit, so a missing record id may be an entry whose transaction hasn't committed
+ * yet: entries after a gap are only published once the relay has seen that gap for settleDelayMs (the gap is then
+ * assumed to be a rolled back transaction). Consecutive entries are published right away.
+ * <p/>
+ * Only entries in a terminal state (processed, removed or failed) are published: the relay stops at the first entry
+ * which is still available or in processing, and resumes from it once it is done.
+ */
+public class OutboxRelay<T extends EventEntryModelDao> {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxRelay.class);
+
+    private static final long STOP_TIMEOUT_MSEC = 15L * 1000L;
+
+    private static final Set<PersistentQueueEntryLifecycleState> TERMINAL_STATES = ImmutableSet.<PersistentQueueEntryLifecycleState>of(PersistentQueueEntryLifecycleState.PROCESSED,
+                                                                                                                                     PersistentQueueEntryLifecycleState.REMOVED,
+                                                                                                                                     PersistentQueueEntryLifecycleState.FAILED);
+
+    private final DBBackedQueue<T> dao;
+    private final String name;
+    private final OutboundSink sink;
+    private final Clock clock;
+    private final int maxBatchSize;
+    private final long pollIntervalMs;
+    private final long settleDelayMs;
+    private final Meter publishedEntries;
+    private final Histogram batchSize;
+    private final Object pollLock = new Object();
+
+    private volatile boolean isRunning;
+    private volatile Long lastPublishedRecordId;
+    private Thread relayThread;
+    // First missing record id of each gap -> when the relay first saw it (only used by the relay thread)
+    private final Map<Long, Long> gapFirstSeenMillis = new HashMap<Long, Long>();
+
+    public OutboxRelay(final DBBackedQueue<T> dao, final String name, final OutboundSink sink, final Clock clock, final int maxBatchSize,
+                       final long pollIntervalMs, final long settleDelayMs, final MetricRegistry metricRegistry) {
+        this.dao = dao;
+        this.name = name;
+        this.sink = sink;
+        this.clock = clock;
+        this.maxBatchSize = maxBatchSize;
+        this.pollIntervalMs = pollIntervalMs;
+        this.settleDelayMs = settleDelayMs;
+        this.publishedEntries = metricRegistry.meter(MetricRegistry.name(OutboxRelay.class, name, "publishedEntries"));
+        // Number of entries published at once
+        this.batchSize = metricRegistry.histogram(MetricRegistry.name(OutboxRelay.class, name, "batchSize"));
+        this.isRunning = false;
+    }
+
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        // Keep the in-memory history until the relay knows where to resume from
+        dao.updateHistoryReader(name, -1L);
+        relayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runRelay();
+            }
+        }, name + "-relay");
+        relayThread.setDaemon(true);
+        relayThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        // The relay thread finishes its current batch before exiting
+        isRunning = false;
+        synchronized (pollLock) {
+            pollLock.notifyAll();
+        }
+        try {
+            relayThread.join(STOP_TIMEOUT_MSEC);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        relayThread = null;
+        dao.removeHistoryReader(name);
+    }
+
+    /**
+     * @return the record id of the last entry published since the relay started, null if none
+     */
+    public Long getLastPublishedRecordId() {
+        return lastPublishedRecordId;
+    }
+
+    private void runRelay() {
+        log.info("{}: Outbox relay starting", name);
+        // Null until read from the sink, and again after a failure (the sink may have published part of the batch)
+        Long fromRecordId = null;
+        while (isRunning) {
+            try {
+                if (fromRecordId == null) {
+                    final Long sinkRecordId = sink.getLastPublishedRecordId(name);
+                    fromRecordId = sinkRecordId == null ? -1L : sinkRecordId;
+                    dao.updateHistoryReader(name, fromRecordId);
+                }
+
+                final List<T> entries = getSettledEntries(fromRecordId);
+                if (!entries.isEmpty()) {
+                    sink.publish(name, entries);
+                    fromRecordId = entries.get(entries.size() - 1).getRecordId();
+                    lastPublishedRecordId = fromRecordId;
+                    dao.updateHistoryReader(name, fromRecordId);
+                    publishedEntries.mark(entries.size());
+                    batchSize.update(entries.size());
+                }
+
+                // Keep going right away while we are catching up
+                if (entries.size() < maxBatchSize) {
+                    waitForNextPoll();
+                }
+            } catch (final Exception e) {
+                log.warn(name + ": Failed to relay entries, will retry", e);
+                fromRecordId = null;
+                waitForNextPoll();
+            }
+        }
+        log.info("{}: Outbox relay has exited", name);
+    }
+
+    private List<T> getSettledEntries(final Long fromRecordId) {
+        final List<T> entries = dao.getEntriesFromRecordId(fromRecordId, maxBatchSize);
+        final long nowMillis = clock.getUTCNow().getMillis();
+
+        // Gaps before the checkpoint are resolved
+        final Iterator<Long> gapIterator = gapFirstSeenMillis.keySet().iterator();
+        while (gapIterator.hasNext()) {
+            if (gapIterator.next() <= fromRecordId) {
+                gapIterator.remove();
+            }
+        }
+
+        final List<T> result = new ArrayList<T>(entries.size());
+        // Nothing is known before the first entry when starting from scratch
+        long expectedRecordId = fromRecordId < 0 && !entries.isEmpty() ? entries.get(0).getRecordId() : fromRecordId + 1;
+        boolean isSettled = true;
+        for (final T entry : entries) {
+            if (!TERMINAL_STATES.contains(entry.getProcessingState())) {
+                // Not done yet: stop there, so that it gets published (in order) once done
+                break;
+            }
+            if (entry.getRecordId() != expectedRecordId) {
+                Long firstSeenMillis = gapFirstSeenMillis.get(expectedRecordId);
+                if (firstSeenMillis == null) {
+                    firstSeenMillis = nowMillis;
+                    gapFirstSeenMillis.put(expectedRecordId, firstSeenMillis);
+                }
+                // Keep going to record all the gaps of the batch, so that they settle together
+                isSettled = isSettled && nowMillis - firstSeenMillis >= settleDelayMs;
+            }
+            if (isSettled) {
+                result.add(entry);
+            }
+            expectedRecordId = entry.getRecordId() + 1;
+        }
+        return result;
+    }
+
+    private void waitForNextPoll() {
+        synchronized (pollLock) {
+            if (!isRunning) {
+                return;
+            }
+            try {
+                pollLock.wait(pollIntervalMs);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                isRunning = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.bus.DefaultPersistentBus;
+import org.killbill.bus.api.BusEvent;
+import org.killbill.bus.api.PersistentBus;
+import org.killbill.bus.api.PersistentBus.EventBusException;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.notificationq.DefaultNotificationQueue;
+import org.killbill.notificationq.api.NotificationEvent;
+import org.killbill.notificationq.api.NotificationQueue;
+import org.killbill.notificationq.dao.NotificationEventModelDao;
+
+/**
+ * Unit of work collecting the bus events and notifications written as part of one client transaction.
+ * <p/>
+ * Instead of one insert per post, the entries are buffered and written on {@link #flush()} with one batch
+ * per table, through the client connection. The caller is expected to flush right before committing: there is
+ * no hook to do it automatically since the transaction is owned by the caller. Entries for queues which are not
+ * backed by the database implementations are written through immediately.
+ * <p/>
+ * With the in-memory backend (see PersistentQueueConfig#isInMemory), the connection is ignored: the entries are
+ * written to the in-memory tables on {@link #flush()} and are not rolled back if the client transaction is.
+ * <p/>
+ * Instances are not thread safe and should not outlive the transaction they were created for.
+ */
+public class QueueTransaction {
+
+    private final Connection connection;
+    private final Map<DefaultPersistentBus, List<BusEventModelDao>> busEvents;
+    private final Map<DBBackedQueue<NotificationEventModelDao>, PendingNotifications> notifications;
+
+    public QueueTransaction(final Connection connection) {
+        this.connection = connection;
+        this.busEvents = new LinkedHashMap<DefaultPersistentBus, List<BusEventModelDao>>();
+        this.notifications = new LinkedHashMap<DBBackedQueue<NotificationEventModelDao>, PendingNotifications>();
+    }
+
+    public void post(final PersistentBus bus, final BusEvent event) throws EventBusException {
+        if (!(bus instanceof DefaultPersistentBus)) {
+            bus.postFromTransaction(event, connection);
+            return;
+        }
+
+        final DefaultPersistentBus defaultBus = (DefaultPersistentBus) bus;
+        final BusEventModelDao entry = defaultBus.createBusEventEntry(event);
+        if (entry == null) {
+            return;
+        }
+
+        List<BusEventModelDao> entries = busEvents.get(defaultBus);
+        if (entries == null) {
+            entries = new ArrayList<BusEventModelDao>();
+            busEvents.put(defaultBus, entries);
+        }
+        entries.add(entry);
+    }
+
+    public void recordFutureNotification(final NotificationQueue queue, final DateTime futureNotificationTime, final NotificationEvent event,
+                                         final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
+        if (!(queue instanceof DefaultNotificationQueue)) {
+            queue.recordFutureNotificationFromTransaction(connection, futureNotificationTime, event, userToken, searchKey1, searchKey2);
+            return;
+        }
+
+        final DefaultNotificationQueue defaultQueue = (DefaultNotificationQueue) queue;
+        final NotificationEventModelDao entry = defaultQueue.createNotificationEntry(futureNotificationTime, event, userToken, searchKey1, searchKey2);
+
+        // Queues from the same service share the same table, group them together
+        PendingNotifications pending = notifications.get(defaultQueue.getDBBackedQueue());
+        if (pending == null) {
+            pending = new PendingNotifications(defaultQueue);
+            notifications.put(defaultQueue.getDBBackedQueue(), pending);
+        }
+        pending.entries.add(entry);
+    }
+
+    public int getNbPendingEntries() {
+        int result = 0;
+        for (final List<BusEventModelDao> entries : busEvents.values()) {
+            result += entries.size();
+        }
+        for (final PendingNotifications pending : notifications.values()) {
+            result += pending.entries.size();
+        }
+        return result;
+    }
+
+    //
+    // Write all the pending entries using the client connection. The record ids (when the inflight queue is used)
+    // are registered at that point, and only handed to the dispatchers once the transaction commits.
+    //
+    public void flush() {
+        for (final Map.Entry<DefaultPersistentBus, List<BusEventModelDao>> entry : busEvents.entrySet()) {
+            entry.getKey().insertEntriesFromTransaction(connection, entry.getValue());
+        }
+        busEvents.clear();
+
+        for (final PendingNotifications pending : notifications.values()) {
+            pending.queue.insertEntriesFromTransaction(connection, pending.entries);
+        }
+        notifications.clear();
+    }
+
+    private static final class PendingNotifications {
+
+        private final DefaultNotificationQueue queue;
+        private final List<NotificationEventModelDao> entries;
+
+        private PendingNotifications(final DefaultNotificationQueue queue) {
+            this.queue = queue;
+            this.entries = new ArrayList<NotificationEventModelDao>();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.queue.api;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.killbill.queue.dao.EventEntryModelDao;
+
+/**
+ * Destination of an OutboxRelay (e.g. a message broker), to publish the queue entries to external consumers.
+ * <p/>
+ * The sink owns the checkpoint: a sink which stores it atomically with the published entries gets exactly-once
+ * delivery, otherwise the entries published right before a crash are published again (consumers can dedupe on
+ * the record id).
+ */
+public interface OutboundSink {
+
+    /**
+     * @param relayName name of the relay
+     * @return the record id of the last entry published by that relay, null if none
+     */
+    public Long getLastPublishedRecordId(String relayName) throws IOException;
+
+    /**
+     * Publish the entries, ordered by record id. After a failure, the relay starts over from getLastPublishedRecordId.
+     *
+     * @param relayName name of the relay
+     * @param entries   entries to publish
+     */
+    public void publish(String relayName, List<? extends EventEntryModelDao> entries) throws IOException;
+}
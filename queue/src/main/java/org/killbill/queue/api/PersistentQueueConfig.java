@@ -26,6 +26,10 @@ public interface PersistentQueueConfig {
 
     public int getMaxFailureRetries();
 
+    public TimeSpan getRetryInitialDelay();
+
+    public TimeSpan getRetryMaxDelay();
+
     public boolean isUsingInflightQueue();
 
     public int getMaxEntriesClaimed();
@@ -40,9 +44,19 @@ public interface PersistentQueueConfig {
 
     public int getQueueCapacity();
 
+    public boolean isUsingFairScheduling();
+
+    public int getMaxEntriesClaimedPerSearchKey2();
+
+    public int getMaxClaimRatePerSearchKey2();
+
+    public boolean isUsingKeysetPagination();
+
     public String getTableName();
 
     public String getHistoryTableName();
 
+    public String getDeadLetterTableName();
+
     public abstract int getNbThreads();
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dao;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizerFactory;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizingAnnotation;
+
+//
+// Like @Define, but only defines whether the argument is set: templates which only branch on an optional filter
+// (<if(className)> ...) then render the same SQL for all values, which keeps the rendered SQL cache small.
+// The value itself still needs to be bound (@Bind).
+//
+@SqlStatementCustomizingAnnotation(DefinePresence.DefinePresenceFactory.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER})
+public @interface DefinePresence {
+
+    String value();
+
+    public static class DefinePresenceFactory implements SqlStatementCustomizerFactory {
+
+        @Override
+        public SqlStatementCustomizer createForType(final Annotation annotation, final Class sqlObjectType) {
+            throw new UnsupportedOperationException("Not defined on type");
+        }
+
+        @Override
+        public SqlStatementCustomizer createForMethod(final Annotation annotation, final Class sqlObjectType, final Method method) {
+            throw new UnsupportedOperationException("Not defined on method");
+        }
+
+        @Override
+        public SqlStatementCustomizer createForParameter(final Annotation annotation, final Class sqlObjectType, final Method method, final Object arg) {
+            final String key = ((DefinePresence) annotation).value();
+            final Boolean isPresent = arg != null;
+            return new SqlStatementCustomizer() {
+                @Override
+                public void apply(final SQLStatement statement) {
+                    statement.define(key, isPresent);
+                }
+            };
+        }
+    }
+}
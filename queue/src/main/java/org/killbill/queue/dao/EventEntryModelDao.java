@@ -36,6 +36,8 @@ public interface EventEntryModelDao {
 
     String getCreatingOwner();
 
+    DateTime getCreatedDate();
+
     DateTime getNextAvailableDate();
 
     PersistentQueueEntryLifecycleState getProcessingState();
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dao;
+
+/**
+ * Implemented by the DAOs which need to know how far the readers of the history table (e.g. an outbox relay) have gone,
+ * such as the in-memory DAO which caps its history table. Database tables keep their history, so the JDBI generated
+ * DAOs (which can only implement SQL statements) don't implement it.
+ */
+public interface HistoryReaderTracker {
+
+    public void updateHistoryReader(String readerName, Long lastReadRecordId);
+
+    public void removeHistoryReader(String readerName);
+}
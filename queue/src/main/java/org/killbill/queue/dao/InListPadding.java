@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+//
+// Each size of an IN list renders a different SQL text, i.e. a different entry in the StringTemplate cache and in the driver
+// (server-side) prepared statement cache. The collection binders round the size up to the next power of two so that all
+// batches map to a handful of statements.
+//
+final class InListPadding {
+
+    private InListPadding() {
+    }
+
+    // A null padding repeats the last value, which does not change the result of a plain IN predicate
+    static List<Long> padToPowerOfTwo(final Collection<Long> values, @Nullable final Long padding) {
+        final List<Long> result = new ArrayList<Long>(values);
+        if (result.isEmpty()) {
+            return result;
+        }
+        final int paddedSize = Integer.bitCount(result.size()) == 1 ? result.size() : Integer.highestOneBit(result.size()) << 1;
+        final Long paddingValue = padding != null ? padding : result.get(result.size() - 1);
+        while (result.size() < paddedSize) {
+            result.add(paddingValue);
+        }
+        return result;
+    }
+}
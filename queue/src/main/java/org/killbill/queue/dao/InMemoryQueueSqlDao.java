@@ -0,0 +1,1133 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.exceptions.TransactionException;
+import org.skife.jdbi.v2.exceptions.TransactionFailedException;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
+
+/**
+ * Memory backed implementation of the queue tables, to be used in place of the JDBI generated DAO.
+ * <p/>
+ * Each table keeps its entries in concurrent skip lists: by record id, in the order of the readiness query
+ * (e.g. effective date for notifications) and by search keys, so the queries don't need to scan the whole table.
+ * <p/>
+ * Transactions buffer their changes and only apply them on commit, with the write lock held: queries take the read lock,
+ * so they never see the changes of a transaction which hasn't (fully) committed, and no lock is held while running the
+ * caller's code. As in the database, the rows written by a transaction stay locked until it completes, so concurrent
+ * claims of the same entry are serialized. Statements issued outside of a transaction are committed right away.
+ * Commits/rollbacks are dispatched to the DatabaseTransactionNotificationApi (if any) to feed the inflight queue.
+ */
+public abstract class InMemoryQueueSqlDao<T extends EventEntryModelDao> implements QueueSqlDao<T>, HistoryReaderTracker {
+
+    // Entries moved to the history table are only kept for troubleshooting (and history readers), cap the memory used
+    private static final int MAX_HISTORY_ENTRIES = 10000;
+
+    // Same default as innodb_lock_wait_timeout
+    private static final long ROW_LOCK_WAIT_TIMEOUT_MSEC = 50L * 1000L;
+
+    private static final Comparator<EventEntryModelDao> RECORD_ID_ORDERING = new Comparator<EventEntryModelDao>() {
+        @Override
+        public int compare(final EventEntryModelDao o1, final EventEntryModelDao o2) {
+            return o1.getRecordId().compareTo(o2.getRecordId());
+        }
+    };
+
+    private final Comparator<T> readyOrdering;
+    private final String historyTableName;
+    private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+    private final ConcurrentMap<String, InMemoryTable> tables;
+    // Reader name -> last record id it has read, history entries after the smallest one are never evicted
+    private final ConcurrentMap<String, Long> historyReaders;
+
+    // Read lock for the queries, write lock to apply the changes of a transaction
+    private final ReentrantReadWriteLock lock;
+    // Guards the row locks of all the tables
+    private final Object rowLockMonitor;
+    private final ThreadLocal<InMemoryTransaction> currentTransaction;
+    private final ThreadLocal<Long> lastInsertId;
+
+    protected InMemoryQueueSqlDao(final Comparator<T> readyOrdering,
+                                  @Nullable final String historyTableName,
+                                  @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        this.readyOrdering = readyOrdering;
+        this.historyTableName = historyTableName;
+        this.databaseTransactionNotificationApi = databaseTransactionNotificationApi;
+        this.tables = new ConcurrentHashMap<String, InMemoryTable>();
+        this.historyReaders = new ConcurrentHashMap<String, Long>();
+        this.lock = new ReentrantReadWriteLock();
+        this.rowLockMonitor = new Object();
+        this.currentTransaction = new ThreadLocal<InMemoryTransaction>();
+        this.lastInsertId = new ThreadLocal<Long>();
+    }
+
+    //
+    // Hooks for the bus and notification specific models
+    //
+
+    protected abstract T copyEntry(T entry, Long recordId, @Nullable String processingOwner, @Nullable DateTime nextAvailable,
+                                   PersistentQueueEntryLifecycleState processingState, Long errorCount);
+
+    // Whether the entry is effective at that time -- entries are expected to become effective in the ready ordering
+    protected boolean isEffective(final T entry, final Date now) {
+        return true;
+    }
+
+    @Nullable
+    protected String getQueueName(final T entry) {
+        return null;
+    }
+
+    // Called with the write lock held right before the changes of the outermost transaction are applied -- throwing rolls the transaction back
+    protected void beforeCommit() {
+    }
+
+    // Called once the outermost transaction has completed and all the locks have been released
+    protected void afterCompletion(final boolean isCommitted) {
+    }
+
+    // Make sure the next generated record id is greater than recordId (e.g. to not re-use ids handed out before a restart)
+    protected void advanceAutoIncrement(final String tableName, final Long recordId) {
+        getTable(tableName).advanceAutoIncrement(recordId);
+    }
+
+    @Override
+    public void updateHistoryReader(final String readerName, final Long lastReadRecordId) {
+        historyReaders.put(readerName, lastReadRecordId);
+    }
+
+    @Override
+    public void removeHistoryReader(final String readerName) {
+        historyReaders.remove(readerName);
+    }
+
+    //
+    // QueueSqlDao
+    //
+
+    @Override
+    public Long getMaxRecordId(final String tableName) {
+        lock.readLock().lock();
+        try {
+            return getView(tableName).getMaxRecordId();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Long resetLastInsertId() {
+        lastInsertId.set(0L);
+        return 0L;
+    }
+
+    @Override
+    public Long getLastInsertId() {
+        final Long result = lastInsertId.get();
+        return result == null ? 0L : result;
+    }
+
+    @Override
+    public T getByRecordId(final Long id, final String tableName) {
+        lock.readLock().lock();
+        try {
+            return getView(tableName).get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<T> getEntriesFromIds(final List<Long> recordIds, final String tableName) {
+        lock.readLock().lock();
+        try {
+            final TableView view = getView(tableName);
+            final List<T> result = new ArrayList<T>(recordIds.size());
+            for (final Long recordId : recordIds) {
+                final T entry = view.get(recordId);
+                if (entry != null) {
+                    result.add(entry);
+                }
+            }
+            Collections.sort(result, readyOrdering);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<T> getEntriesFromRecordId(final Long fromRecordId, final int max, final String tableName) {
+        lock.readLock().lock();
+        try {
+            final List<T> result = new ArrayList<T>();
+            for (final T entry : getView(tableName).getEntriesByRecordId(fromRecordId)) {
+                if (result.size() >= max) {
+                    break;
+                }
+                result.add(entry);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<T> getReadyEntries(final Date now, final int max, @Nullable final String owner, final String tableName) {
+        lock.readLock().lock();
+        try {
+            final List<T> result = new ArrayList<T>();
+            for (final T entry : getView(tableName).getEntriesInReadyOrder()) {
+                if (result.size() >= max || !isEffective(entry, now)) {
+                    break;
+                }
+                if (isReady(entry, now, owner)) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getReadyRecordIds(final Date now, final int max, @Nullable final String owner, final String tableName) {
+        final List<Long> result = new ArrayList<Long>();
+        for (final T entry : getReadyEntries(now, max, owner, tableName)) {
+            result.add(entry.getRecordId());
+        }
+        return result;
+    }
+
+    @Override
+    public List<Long> getReadyRecordIdsFromRecordId(final Date now, final int max, final Long fromRecordId, @Nullable final String owner, final String tableName) {
+        lock.readLock().lock();
+        try {
+            final List<Long> result = new ArrayList<Long>();
+            for (final T entry : getView(tableName).getEntriesByRecordId(fromRecordId)) {
+                if (result.size() >= max) {
+                    break;
+                }
+                if (isEffective(entry, now) && isReady(entry, now, owner)) {
+                    result.add(entry.getRecordId());
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getReadySearchKey2s(final Date now, final int max, final Long fromSearchKey2, @Nullable final String owner, final String tableName) {
+        lock.readLock().lock();
+        try {
+            final TableView view = getView(tableName);
+            final List<Long> result = new ArrayList<Long>();
+            for (final Long searchKey2 : view.getSearchKey2s(fromSearchKey2)) {
+                if (result.size() >= max) {
+                    break;
+                }
+                for (final T entry : view.getEntriesForSearchKey2(searchKey2)) {
+                    if (isReady(entry, now, owner)) {
+                        result.add(searchKey2);
+                        break;
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<T> getReadyEntriesForSearchKey2s(final Date now, final int max, final Collection<Long> searchKey2s, @Nullable final String owner, final String tableName) {
+        lock.readLock().lock();
+        try {
+            final TableView view = getView(tableName);
+            final List<T> result = new ArrayList<T>();
+            for (final Long searchKey2 : searchKey2s) {
+                int nbEntries = 0;
+                for (final T entry : view.getEntriesForSearchKey2(searchKey2)) {
+                    if (nbEntries >= max) {
+                        break;
+                    }
+                    if (isReady(entry, now, owner)) {
+                        result.add(entry);
+                        nbEntries++;
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<T> getInProcessingEntries(final String tableName) {
+        lock.readLock().lock();
+        try {
+            final List<T> result = new ArrayList<T>();
+            for (final T entry : getView(tableName).getEntriesInReadyOrder()) {
+                if (entry.getProcessingState() == PersistentQueueEntryLifecycleState.IN_PROCESSING) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int claimEntry(final Long id, final Date now, final String owner, final Date nextAvailable, final String tableName) {
+        return claimEntries(Collections.singletonList(id), now, owner, nextAvailable, tableName);
+    }
+
+    @Override
+    public int claimEntries(final Collection<Long> recordIds, final Date now, final String owner, final Date nextAvailable, final String tableName) {
+        final InMemoryTable table = getTable(tableName);
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            int result = 0;
+            for (final Long recordId : recordIds) {
+                // Like a locking read, so that a concurrent claim waits for us and then sees the entry as claimed
+                final T entry = lockRow(table, recordId);
+                if (entry != null && isClaimable(entry, now)) {
+                    write(table, recordId, copyEntry(entry, recordId, owner, new DateTime(nextAvailable), PersistentQueueEntryLifecycleState.IN_PROCESSING, entry.getErrorCount()));
+                    result++;
+                }
+            }
+            isSuccessful = true;
+            return result;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    @Override
+    public List<T> getDelayedRetryEntries(final Date now, final int max, final Long fromRecordId, @Nullable final String owner, final String tableName) {
+        lock.readLock().lock();
+        try {
+            final List<T> result = new ArrayList<T>();
+            for (final T entry : getView(tableName).getEntriesByRecordId(fromRecordId)) {
+                if (result.size() >= max) {
+                    break;
+                }
+                if (entry.getProcessingState() == PersistentQueueEntryLifecycleState.AVAILABLE &&
+                    (owner == null || owner.equals(entry.getCreatingOwner())) &&
+                    entry.getProcessingOwner() != null &&
+                    entry.getNextAvailableDate() != null &&
+                    entry.getNextAvailableDate().getMillis() > now.getTime()) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int updateOnError(final Long id, final Date nextAvailable, @Nullable final String owner, final Long errorCount, final String tableName) {
+        final InMemoryTable table = getTable(tableName);
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            final T entry = lockRow(table, id);
+            final int result;
+            if (entry == null) {
+                result = 0;
+            } else {
+                write(table, id, copyEntry(entry, id, owner, nextAvailable == null ? null : new DateTime(nextAvailable), PersistentQueueEntryLifecycleState.AVAILABLE, errorCount));
+                result = 1;
+            }
+            isSuccessful = true;
+            return result;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    @Override
+    public void removeEntry(final Long id, final String tableName) {
+        removeEntries(Collections.singletonList(id), tableName);
+    }
+
+    @Override
+    public void removeEntries(final Collection<Long> recordIds, final String tableName) {
+        final InMemoryTable table = getTable(tableName);
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            for (final Long recordId : recordIds) {
+                if (lockRow(table, recordId) != null) {
+                    write(table, recordId, null);
+                }
+            }
+            isSuccessful = true;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    @Override
+    public void insertEntry(final T evt, final String tableName) {
+        final InMemoryTable table = getTable(tableName);
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            final Long recordId = table.autoIncrement.incrementAndGet();
+            insert(table, copyEntry(evt, recordId, evt.getProcessingOwner(), evt.getNextAvailableDate(), evt.getProcessingState(), evt.getErrorCount()));
+            lastInsertId.set(recordId);
+            isSuccessful = true;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    @Override
+    public void insertEntries(final Iterable<T> evts, final String tableName) {
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            for (final T evt : evts) {
+                insertEntry(evt, tableName);
+            }
+            isSuccessful = true;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    @Override
+    public void insertEntryWithRecordId(final T evt, final Long id, final String tableName) {
+        final InMemoryTable table = getTable(tableName);
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            insert(table, copyEntry(evt, id, evt.getProcessingOwner(), evt.getNextAvailableDate(), evt.getProcessingState(), evt.getErrorCount()));
+            isSuccessful = true;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    @Override
+    public void insertEntriesWithRecordId(final Iterable<T> evts, final String tableName) {
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            for (final T evt : evts) {
+                insertEntryWithRecordId(evt, evt.getRecordId(), tableName);
+            }
+            isSuccessful = true;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    @Override
+    public List<T> getDeadLetterEntries(@Nullable final String queueName, @Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2,
+                                        final Long fromRecordId, final int max, final String deadLetterTableName) {
+        lock.readLock().lock();
+        try {
+            final List<T> result = new ArrayList<T>();
+            for (final T entry : getView(deadLetterTableName).getEntriesByRecordId(fromRecordId)) {
+                if (result.size() >= max) {
+                    break;
+                }
+                if (isMatchingDeadLetter(entry, queueName, className, searchKey1, searchKey2)) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Long getCountDeadLetterEntries(@Nullable final String queueName, @Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2,
+                                          final String deadLetterTableName) {
+        lock.readLock().lock();
+        try {
+            long result = 0;
+            for (final T entry : getView(deadLetterTableName).getEntriesByRecordId(-1L)) {
+                if (isMatchingDeadLetter(entry, queueName, className, searchKey1, searchKey2)) {
+                    result++;
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getDeadLetterRecordIds(@Nullable final String queueName, @Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2,
+                                             final int max, final String deadLetterTableName) {
+        final List<Long> result = new ArrayList<Long>();
+        for (final T entry : getDeadLetterEntries(queueName, className, searchKey1, searchKey2, -1L, max, deadLetterTableName)) {
+            result.add(entry.getRecordId());
+        }
+        return result;
+    }
+
+    @Override
+    public int insertEntriesFromDeadLetter(final Collection<Long> recordIds, final String tableName, final String deadLetterTableName) {
+        final InMemoryTable table = getTable(tableName);
+        final InMemoryTable deadLetterTable = getTable(deadLetterTableName);
+        final int position = beginStatement();
+        boolean isSuccessful = false;
+        try {
+            int result = 0;
+            for (final Long recordId : recordIds) {
+                final T entry = new TableView(deadLetterTable, currentTransaction.get()).get(recordId);
+                if (entry != null) {
+                    insert(table, copyEntry(entry, recordId, null, null, PersistentQueueEntryLifecycleState.AVAILABLE, 0L));
+                    result++;
+                }
+            }
+            isSuccessful = true;
+            return result;
+        } finally {
+            endStatement(position, isSuccessful);
+        }
+    }
+
+    //
+    // Helpers for the bus and notification specific queries
+    //
+
+    protected boolean isInTransaction() {
+        return currentTransaction.get() != null;
+    }
+
+    protected List<T> getEntriesForSearchKeys(final String tableName, @Nullable final String queueName, @Nullable final Long searchKey1, final Long searchKey2,
+                                              final Set<PersistentQueueEntryLifecycleState> states, @Nullable final Date effectiveBefore) {
+        lock.readLock().lock();
+        try {
+            final List<T> result = new ArrayList<T>();
+            for (final T entry : getView(tableName).getEntriesForSearchKey2(searchKey2)) {
+                if (states.contains(entry.getProcessingState()) &&
+                    (searchKey1 == null || searchKey1.equals(entry.getSearchKey1())) &&
+                    (queueName == null || queueName.equals(getQueueName(entry))) &&
+                    (effectiveBefore == null || isEffective(entry, effectiveBefore))) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isReady(final T entry, final Date now, @Nullable final String owner) {
+        return isClaimable(entry, now) &&
+               isEffective(entry, now) &&
+               (owner == null || owner.equals(entry.getCreatingOwner()));
+    }
+
+    private boolean isClaimable(final T entry, final Date now) {
+        return entry.getProcessingState() != PersistentQueueEntryLifecycleState.PROCESSED &&
+               entry.getProcessingState() != PersistentQueueEntryLifecycleState.REMOVED &&
+               (entry.getProcessingOwner() == null || entry.getNextAvailableDate() == null || entry.getNextAvailableDate().getMillis() <= now.getTime());
+    }
+
+    private boolean isMatchingDeadLetter(final T entry, @Nullable final String queueName, @Nullable final String className, @Nullable final Long searchKey1, @Nullable final Long searchKey2) {
+        return (queueName == null || queueName.equals(getQueueName(entry))) &&
+               (className == null || className.equals(entry.getClassName())) &&
+               (searchKey1 == null || searchKey1.equals(entry.getSearchKey1())) &&
+               (searchKey2 == null || searchKey2.equals(entry.getSearchKey2()));
+    }
+
+    private boolean isReadByAllHistoryReaders(final Long recordId) {
+        for (final Long lastReadRecordId : historyReaders.values()) {
+            if (recordId > lastReadRecordId) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private InMemoryTable getTable(final String tableName) {
+        InMemoryTable table = tables.get(tableName);
+        if (table == null) {
+            tables.putIfAbsent(tableName, new InMemoryTable(tableName.equals(historyTableName)));
+            table = tables.get(tableName);
+        }
+        return table;
+    }
+
+    // What the current thread sees: the committed entries, with the changes of its transaction (if any) on top
+    private TableView getView(final String tableName) {
+        return new TableView(getTable(tableName), currentTransaction.get());
+    }
+
+    //
+    // Writes (always part of a transaction, the statement's own one if the caller didn't start any)
+    //
+
+    private int beginStatement() {
+        beginTransaction();
+        return currentTransaction.get().changes.size();
+    }
+
+    private void endStatement(final int position, final boolean isSuccessful) {
+        if (isSuccessful) {
+            commit();
+        } else {
+            // A failed statement doesn't leave any change behind, even if the enclosing transaction goes on
+            currentTransaction.get().rollbackTo(position);
+            rollback();
+        }
+    }
+
+    // Lock the row until the end of the transaction and return its current entry (null if there is none)
+    @Nullable
+    private T lockRow(final InMemoryTable table, final Long recordId) {
+        final InMemoryTransaction transaction = currentTransaction.get();
+        synchronized (rowLockMonitor) {
+            final long deadline = System.currentTimeMillis() + ROW_LOCK_WAIT_TIMEOUT_MSEC;
+            InMemoryTransaction owner;
+            while ((owner = table.rowLocks.get(recordId)) != null && owner != transaction) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new UnableToExecuteStatementException("Lock wait timeout exceeded; try restarting transaction", (StatementContext) null);
+                }
+                try {
+                    rowLockMonitor.wait(remaining);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UnableToExecuteStatementException("Interrupted while waiting for a row lock", e, (StatementContext) null);
+                }
+            }
+            if (owner == null) {
+                table.rowLocks.put(recordId, transaction);
+                transaction.addLockedRow(table, recordId);
+            }
+        }
+        return new TableView(table, transaction).get(recordId);
+    }
+
+    private void insert(final InMemoryTable table, final T entry) {
+        if (lockRow(table, entry.getRecordId()) != null) {
+            throw new UnableToExecuteStatementException("Duplicate entry '" + entry.getRecordId() + "' for key 'PRIMARY'", (StatementContext) null);
+        }
+        write(table, entry.getRecordId(), entry);
+        table.advanceAutoIncrement(entry.getRecordId());
+    }
+
+    private void write(final InMemoryTable table, final Long recordId, @Nullable final T entry) {
+        currentTransaction.get().write(table, recordId, entry);
+    }
+
+    //
+    // Transactional
+    //
+
+    @Override
+    public <ReturnType> ReturnType inTransaction(final Transaction<ReturnType, QueueSqlDao<T>> transaction) {
+        final InMemoryTransactionStatus status = new InMemoryTransactionStatus();
+        beginTransaction();
+        final ReturnType result;
+        try {
+            result = transaction.inTransaction(this, status);
+        } catch (final RuntimeException e) {
+            rollback();
+            throw e;
+        } catch (final Exception e) {
+            rollback();
+            throw new TransactionFailedException("Transaction failed due to exception being thrown from within the callback. See cause for the original exception.", e);
+        }
+
+        if (status.isRollbackOnly()) {
+            rollback();
+        } else {
+            commit();
+        }
+        return result;
+    }
+
+    @Override
+    public <ReturnType> ReturnType inTransaction(final TransactionIsolationLevel isolation, final Transaction<ReturnType, QueueSqlDao<T>> transaction) {
+        // Queries only ever see committed changes anyways
+        return inTransaction(transaction);
+    }
+
+    @Override
+    public void begin() {
+        beginTransaction();
+    }
+
+    @Override
+    public void commit() {
+        final InMemoryTransaction transaction = getTransaction();
+        if (transaction.depth > 1) {
+            transaction.depth--;
+            return;
+        }
+
+        boolean isCommitted = false;
+        try {
+            applyChanges(transaction);
+            isCommitted = true;
+        } finally {
+            endTransaction(transaction, isCommitted);
+        }
+    }
+
+    @Override
+    public void rollback() {
+        final InMemoryTransaction transaction = getTransaction();
+        if (transaction.depth > 1) {
+            transaction.depth--;
+            return;
+        }
+        endTransaction(transaction, false);
+    }
+
+    @Override
+    public void checkpoint(final String name) {
+        final InMemoryTransaction transaction = getTransactionForSavepoint(name);
+        // Re-using a name moves the savepoint, as in MySQL
+        transaction.savepoints.remove(name);
+        transaction.savepoints.put(name, transaction.changes.size());
+    }
+
+    @Override
+    public void release(final String name) {
+        final InMemoryTransaction transaction = getTransactionForSavepoint(name);
+        if (transaction.savepoints.get(name) == null) {
+            throw new TransactionException(String.format("Attempt to release non-existent savepoint, '%s'", name));
+        }
+        // Releasing a savepoint also releases the ones created after it
+        transaction.removeSavepointsFrom(name, true);
+    }
+
+    @Override
+    public void rollback(final String name) {
+        final InMemoryTransaction transaction = getTransactionForSavepoint(name);
+        final Integer position = transaction.savepoints.get(name);
+        if (position == null) {
+            throw new TransactionException(String.format("Attempt to rollback to non-existent savepoint, '%s'", name));
+        }
+        transaction.rollbackTo(position);
+        // The savepoint itself stays valid, the ones created after it are gone
+        transaction.removeSavepointsFrom(name, false);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void beginTransaction() {
+        final InMemoryTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            currentTransaction.set(new InMemoryTransaction());
+        } else {
+            transaction.depth++;
+        }
+    }
+
+    private InMemoryTransaction getTransaction() {
+        final InMemoryTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            throw new TransactionException("No transaction in progress");
+        }
+        return transaction;
+    }
+
+    private InMemoryTransaction getTransactionForSavepoint(final String name) {
+        final InMemoryTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            throw new TransactionException(String.format("Savepoint '%s' requires an active transaction", name));
+        }
+        return transaction;
+    }
+
+    private void applyChanges(final InMemoryTransaction transaction) {
+        lock.writeLock().lock();
+        try {
+            beforeCommit();
+
+            for (final Map.Entry<InMemoryTable, InMemoryEntries> cur : transaction.changesByTable.entrySet()) {
+                final InMemoryTable table = cur.getKey();
+                final InMemoryEntries changes = cur.getValue();
+                int nbInserted = 0;
+                for (final Long recordId : changes.changedRecordIds) {
+                    final T entry = changes.entriesByRecordId.get(recordId);
+                    if (entry == null) {
+                        table.entries.remove(recordId);
+                    } else if (table.entries.put(entry) == null) {
+                        nbInserted++;
+                    }
+                }
+
+                // Evict as many history entries as we inserted, oldest first
+                while (table.isHistoryTable && nbInserted-- > 0 && table.entries.entriesByRecordId.size() > MAX_HISTORY_ENTRIES &&
+                       isReadByAllHistoryReaders(table.entries.entriesByRecordId.firstKey())) {
+                    table.entries.remove(table.entries.entriesByRecordId.firstKey());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void endTransaction(final InMemoryTransaction transaction, final boolean isCommitted) {
+        currentTransaction.remove();
+        synchronized (rowLockMonitor) {
+            for (final Map.Entry<InMemoryTable, List<Long>> cur : transaction.lockedRows.entrySet()) {
+                for (final Long recordId : cur.getValue()) {
+                    cur.getKey().rowLocks.remove(recordId);
+                }
+            }
+            if (!transaction.lockedRows.isEmpty()) {
+                rowLockMonitor.notifyAll();
+            }
+        }
+
+        afterCompletion(isCommitted);
+
+        if (databaseTransactionNotificationApi != null) {
+            databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(isCommitted ? DatabaseTransactionEventType.COMMIT : DatabaseTransactionEventType.ROLLBACK));
+        }
+    }
+
+    private static final class InMemoryTransactionStatus implements TransactionStatus {
+
+        private boolean rollbackOnly = false;
+
+        @Override
+        public void setRollbackOnly() {
+            rollbackOnly = true;
+        }
+
+        public boolean isRollbackOnly() {
+            return rollbackOnly;
+        }
+    }
+
+    private final class Change {
+
+        private final InMemoryTable table;
+        private final Long recordId;
+        private final T entry;
+
+        private Change(final InMemoryTable table, final Long recordId, @Nullable final T entry) {
+            this.table = table;
+            this.recordId = recordId;
+            this.entry = entry;
+        }
+    }
+
+    // State of the transaction of a thread -- only ever accessed by that thread
+    private final class InMemoryTransaction {
+
+        // All the changes, in order (so we can go back to a savepoint)
+        private final List<Change> changes;
+        // The resulting changed entries, per table
+        private final Map<InMemoryTable, InMemoryEntries> changesByTable;
+        // Savepoint name -> number of changes when the savepoint was created
+        private final LinkedHashMap<String, Integer> savepoints;
+        private final Map<InMemoryTable, List<Long>> lockedRows;
+        private int depth;
+
+        private InMemoryTransaction() {
+            this.changes = new ArrayList<Change>();
+            this.changesByTable = new HashMap<InMemoryTable, InMemoryEntries>();
+            this.savepoints = new LinkedHashMap<String, Integer>();
+            this.lockedRows = new HashMap<InMemoryTable, List<Long>>();
+            this.depth = 1;
+        }
+
+        public void write(final InMemoryTable table, final Long recordId, @Nullable final T entry) {
+            changes.add(new Change(table, recordId, entry));
+            applyChange(table, recordId, entry);
+        }
+
+        public void rollbackTo(final int position) {
+            if (position == changes.size()) {
+                return;
+            }
+            changes.subList(position, changes.size()).clear();
+            changesByTable.clear();
+            for (final Change change : changes) {
+                applyChange(change.table, change.recordId, change.entry);
+            }
+        }
+
+        public void removeSavepointsFrom(final String name, final boolean inclusive) {
+            boolean found = false;
+            final Iterator<String> iterator = savepoints.keySet().iterator();
+            while (iterator.hasNext()) {
+                final String cur = iterator.next();
+                if (found || (inclusive && cur.equals(name))) {
+                    iterator.remove();
+                }
+                found = found || cur.equals(name);
+            }
+        }
+
+        public void addLockedRow(final InMemoryTable table, final Long recordId) {
+            List<Long> recordIds = lockedRows.get(table);
+            if (recordIds == null) {
+                recordIds = new ArrayList<Long>();
+                lockedRows.put(table, recordIds);
+            }
+            recordIds.add(recordId);
+        }
+
+        private void applyChange(final InMemoryTable table, final Long recordId, @Nullable final T entry) {
+            InMemoryEntries tableChanges = changesByTable.get(table);
+            if (tableChanges == null) {
+                tableChanges = new InMemoryEntries();
+                changesByTable.put(table, tableChanges);
+            }
+            tableChanges.changedRecordIds.add(recordId);
+            if (entry == null) {
+                tableChanges.remove(recordId);
+            } else {
+                tableChanges.put(entry);
+            }
+        }
+    }
+
+    // Read-only view of a table, merging the committed entries with the changes of the transaction (if any)
+    private final class TableView {
+
+        private final InMemoryEntries committed;
+        private final InMemoryEntries changes;
+
+        private TableView(final InMemoryTable table, @Nullable final InMemoryTransaction transaction) {
+            this.committed = table.entries;
+            this.changes = transaction == null ? null : transaction.changesByTable.get(table);
+        }
+
+        @Nullable
+        public T get(final Long recordId) {
+            if (isChanged(recordId)) {
+                return changes.entriesByRecordId.get(recordId);
+            }
+            return committed.entriesByRecordId.get(recordId);
+        }
+
+        @Nullable
+        public Long getMaxRecordId() {
+            Long result = changes == null || changes.entriesByRecordId.isEmpty() ? null : changes.entriesByRecordId.lastKey();
+            for (final Long recordId : committed.entriesByRecordId.descendingKeySet()) {
+                if (!isChanged(recordId)) {
+                    result = result == null || recordId > result ? recordId : result;
+                    break;
+                }
+            }
+            return result;
+        }
+
+        public Iterable<T> getEntriesByRecordId(final Long fromRecordId) {
+            final Iterable<T> committedEntries = committed.entriesByRecordId.tailMap(fromRecordId, false).values();
+            if (changes == null) {
+                return committedEntries;
+            }
+            return merge(committedEntries, changes.entriesByRecordId.tailMap(fromRecordId, false).values(), RECORD_ID_ORDERING);
+        }
+
+        public Iterable<T> getEntriesInReadyOrder() {
+            if (changes == null) {
+                return committed.entriesInReadyOrder;
+            }
+            return merge(committed.entriesInReadyOrder, changes.entriesInReadyOrder, readyOrdering);
+        }
+
+        public Iterable<Long> getSearchKey2s(final Long fromSearchKey2) {
+            final Iterable<Long> committedSearchKey2s = committed.recordIdsBySearchKey2.tailMap(fromSearchKey2, false).keySet();
+            if (changes == null) {
+                return committedSearchKey2s;
+            }
+            // Search keys only found in the changes (the others may not have any visible entry left, the callers check the entries anyways)
+            final Iterable<Long> newSearchKey2s = Iterables.filter(changes.recordIdsBySearchKey2.tailMap(fromSearchKey2, false).keySet(), new Predicate<Long>() {
+                @Override
+                public boolean apply(final Long searchKey2) {
+                    return !committed.recordIdsBySearchKey2.containsKey(searchKey2);
+                }
+            });
+            return Iterables.mergeSorted(ImmutableList.<Iterable<Long>>of(committedSearchKey2s, newSearchKey2s), Ordering.<Long>natural());
+        }
+
+        // Entries for that search key, in the ready ordering
+        public List<T> getEntriesForSearchKey2(@Nullable final Long searchKey2) {
+            if (searchKey2 == null) {
+                return Collections.<T>emptyList();
+            }
+
+            final List<T> result = new ArrayList<T>();
+            final Set<Long> committedRecordIds = committed.recordIdsBySearchKey2.get(searchKey2);
+            if (committedRecordIds != null) {
+                for (final Long recordId : committedRecordIds) {
+                    final T entry = isChanged(recordId) ? null : committed.entriesByRecordId.get(recordId);
+                    if (entry != null) {
+                        result.add(entry);
+                    }
+                }
+            }
+            final Set<Long> changedRecordIds = changes == null ? null : changes.recordIdsBySearchKey2.get(searchKey2);
+            if (changedRecordIds != null) {
+                for (final Long recordId : changedRecordIds) {
+                    final T entry = changes.entriesByRecordId.get(recordId);
+                    if (entry != null) {
+                        result.add(entry);
+                    }
+                }
+            }
+            Collections.sort(result, readyOrdering);
+            return result;
+        }
+
+        private boolean isChanged(final Long recordId) {
+            return changes != null && changes.changedRecordIds.contains(recordId);
+        }
+
+        private Iterable<T> merge(final Iterable<T> committedEntries, final Iterable<T> changedEntries, final Comparator<? super T> ordering) {
+            final Iterable<T> visibleCommittedEntries = Iterables.filter(committedEntries, new Predicate<T>() {
+                @Override
+                public boolean apply(final T entry) {
+                    return !isChanged(entry.getRecordId());
+                }
+            });
+            return Iterables.mergeSorted(ImmutableList.<Iterable<T>>of(visibleCommittedEntries, changedEntries), ordering);
+        }
+    }
+
+    private final class InMemoryTable {
+
+        private final boolean isHistoryTable;
+        // Committed entries, only modified with the write lock held
+        private final InMemoryEntries entries;
+        private final AtomicLong autoIncrement;
+        // Record id -> transaction holding the lock on the row, guarded by rowLockMonitor
+        private final Map<Long, InMemoryTransaction> rowLocks;
+
+        private InMemoryTable(final boolean isHistoryTable) {
+            this.isHistoryTable = isHistoryTable;
+            this.entries = new InMemoryEntries();
+            this.autoIncrement = new AtomicLong(0);
+            this.rowLocks = new HashMap<Long, InMemoryTransaction>();
+        }
+
+        public void advanceAutoIncrement(final Long recordId) {
+            long current;
+            while ((current = autoIncrement.get()) < recordId && !autoIncrement.compareAndSet(current, recordId)) {
+                // Retry
+            }
+        }
+    }
+
+    // Entries and their indexes -- either the committed entries of a table or the changes of a transaction to it
+    private final class InMemoryEntries {
+
+        private final ConcurrentSkipListMap<Long, T> entriesByRecordId;
+        private final ConcurrentSkipListSet<T> entriesInReadyOrder;
+        private final ConcurrentSkipListMap<Long, ConcurrentSkipListSet<Long>> recordIdsBySearchKey2;
+        // For the changes of a transaction only, the record ids inserted, updated or removed
+        private final Set<Long> changedRecordIds;
+
+        private InMemoryEntries() {
+            this.entriesByRecordId = new ConcurrentSkipListMap<Long, T>();
+            this.entriesInReadyOrder = new ConcurrentSkipListSet<T>(readyOrdering);
+            this.recordIdsBySearchKey2 = new ConcurrentSkipListMap<Long, ConcurrentSkipListSet<Long>>();
+            this.changedRecordIds = new HashSet<Long>();
+        }
+
+        @Nullable
+        public T put(final T entry) {
+            final T previousEntry = remove(entry.getRecordId());
+            entriesByRecordId.put(entry.getRecordId(), entry);
+            entriesInReadyOrder.add(entry);
+            if (entry.getSearchKey2() != null) {
+                ConcurrentSkipListSet<Long> recordIds = recordIdsBySearchKey2.get(entry.getSearchKey2());
+                if (recordIds == null) {
+                    recordIds = new ConcurrentSkipListSet<Long>();
+                    recordIdsBySearchKey2.put(entry.getSearchKey2(), recordIds);
+                }
+                recordIds.add(entry.getRecordId());
+            }
+            return previousEntry;
+        }
+
+        @Nullable
+        public T remove(final Long recordId) {
+            final T previousEntry = entriesByRecordId.remove(recordId);
+            if (previousEntry == null) {
+                return null;
+            }
+            entriesInReadyOrder.remove(previousEntry);
+            if (previousEntry.getSearchKey2() != null) {
+                final ConcurrentSkipListSet<Long> recordIds = recordIdsBySearchKey2.get(previousEntry.getSearchKey2());
+                if (recordIds != null) {
+                    recordIds.remove(recordId);
+                    if (recordIds.isEmpty()) {
+                        recordIdsBySearchKey2.remove(previousEntry.getSearchKey2());
+                    }
+                }
+            }
+            return previousEntry;
+        }
+    }
+}
@@ -24,8 +24,9 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
+import org.killbill.commons.jdbi.binder.SmartBindBean;
+import org.killbill.commons.jdbi.routing.ReadOnly;
 import org.skife.jdbi.v2.sqlobject.Bind;
-import org.skife.jdbi.v2.sqlobject.BindBean;
 import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
@@ -53,6 +54,11 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
     public List<T> getEntriesFromIds(@RecordIdCollectionBinder final List<Long> recordIds,
                                      @Define("tableName") final String tableName);
 
+    @SqlQuery
+    public List<T> getEntriesFromRecordId(@Bind("fromRecordId") final Long fromRecordId,
+                                          @Bind("max") final int max,
+                                          @Define("tableName") final String tableName);
+
     @SqlQuery
     public List<T> getReadyEntries(@Bind("now") Date now,
                                    @Bind("max") int max,
@@ -61,6 +67,34 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                                    @Nullable @Define("owner") String owner,
                                    @Define("tableName") final String tableName);
 
+    @SqlQuery
+    public List<Long> getReadyRecordIds(@Bind("now") Date now,
+                                        @Bind("max") int max,
+                                        @Nullable @Define("owner") String owner,
+                                        @Define("tableName") final String tableName);
+
+    @SqlQuery
+    public List<Long> getReadyRecordIdsFromRecordId(@Bind("now") Date now,
+                                                    @Bind("max") int max,
+                                                    @Bind("fromRecordId") Long fromRecordId,
+                                                    @Nullable @Define("owner") String owner,
+                                                    @Define("tableName") final String tableName);
+
+    @SqlQuery
+    public List<Long> getReadySearchKey2s(@Bind("now") Date now,
+                                          @Bind("max") int max,
+                                          @Bind("fromSearchKey2") Long fromSearchKey2,
+                                          @Nullable @Define("owner") String owner,
+                                          @Define("tableName") final String tableName);
+
+    @SqlQuery
+    public List<T> getReadyEntriesForSearchKey2s(@Bind("now") Date now,
+                                                 @Bind("max") int max,
+                                                 @SearchKey2CollectionBinder final Collection<Long> searchKey2s,
+                                                 @Nullable @Define("owner") String owner,
+                                                 @Define("tableName") final String tableName);
+
+    @ReadOnly
     @SqlQuery
     public List<T> getInProcessingEntries(@Define("tableName") final String tableName);
 
@@ -78,9 +112,17 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                             @Bind("nextAvailable") Date nextAvailable,
                             @Define("tableName") final String tableName);
 
+    @SqlQuery
+    public List<T> getDelayedRetryEntries(@Bind("now") Date now,
+                                          @Bind("max") int max,
+                                          @Bind("fromRecordId") Long fromRecordId,
+                                          @Nullable @Define("owner") String owner,
+                                          @Define("tableName") final String tableName);
+
     @SqlUpdate
     public int updateOnError(@Bind("recordId") Long id,
-                             @Bind("now") Date now,
+                             @Bind("nextAvailable") Date nextAvailable,
+                             @Nullable @Bind("owner") String owner,
                              @Bind("errorCount") Long errorCount,
                              @Define("tableName") final String tableName);
 
@@ -93,15 +135,50 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                               @Define("tableName") final String tableName);
 
     @SqlUpdate
-    public void insertEntry(@BindBean T evt,
+    public void insertEntry(@SmartBindBean T evt,
                             @Define("tableName") final String tableName);
 
+    @SqlBatch("insertEntry")
+    public void insertEntries(@SmartBindBean Iterable<T> evts,
+                              @Define("tableName") final String tableName);
+
     @SqlUpdate
-    public void insertEntryWithRecordId(@BindBean T evt,
+    public void insertEntryWithRecordId(@SmartBindBean T evt,
                                         @Bind("recordId") Long id,
                                         @Define("tableName") final String tableName);
 
-    @SqlBatch
-    public void insertEntriesWithRecordId(@BindBean Iterable<T> evts,
+    @ReadOnly
+    @SqlQuery
+    public List<T> getDeadLetterEntries(@Nullable @DefinePresence("queueName") @Bind("queueName") final String queueName,
+                                        @Nullable @DefinePresence("className") @Bind("className") final String className,
+                                        @Nullable @DefinePresence("searchKey1") @Bind("searchKey1") final Long searchKey1,
+                                        @Nullable @DefinePresence("searchKey2") @Bind("searchKey2") final Long searchKey2,
+                                        @Bind("fromRecordId") Long fromRecordId,
+                                        @Bind("max") int max,
+                                        @Define("deadLetterTableName") final String deadLetterTableName);
+
+    @ReadOnly
+    @SqlQuery
+    public Long getCountDeadLetterEntries(@Nullable @DefinePresence("queueName") @Bind("queueName") final String queueName,
+                                          @Nullable @DefinePresence("className") @Bind("className") final String className,
+                                          @Nullable @DefinePresence("searchKey1") @Bind("searchKey1") final Long searchKey1,
+                                          @Nullable @DefinePresence("searchKey2") @Bind("searchKey2") final Long searchKey2,
+                                          @Define("deadLetterTableName") final String deadLetterTableName);
+
+    @SqlQuery
+    public List<Long> getDeadLetterRecordIds(@Nullable @DefinePresence("queueName") @Bind("queueName") final String queueName,
+                                             @Nullable @DefinePresence("className") @Bind("className") final String className,
+                                             @Nullable @DefinePresence("searchKey1") @Bind("searchKey1") final Long searchKey1,
+                                             @Nullable @DefinePresence("searchKey2") @Bind("searchKey2") final Long searchKey2,
+                                             @Bind("max") int max,
+                                             @Define("deadLetterTableName") final String deadLetterTableName);
+
+    @SqlUpdate
+    public int insertEntriesFromDeadLetter(@RecordIdCollectionBinder final Collection<Long> recordIds,
+                                           @Define("tableName") final String tableName,
+                                           @Define("deadLetterTableName") final String deadLetterTableName);
+
+    @SqlBatch("insertEntryWithRecordId")
+    public void insertEntriesWithRecordId(@SmartBindBean Iterable<T> evts,
                                           @Define("tableName") final String tableName);
 }
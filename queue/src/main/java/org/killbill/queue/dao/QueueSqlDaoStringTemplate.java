@@ -22,8 +22,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
@@ -33,11 +32,11 @@ import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.SQLStatement;
 import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
 import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizingAnnotation;
-import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
-import org.skife.jdbi.v2.sqlobject.stringtemplate.StringTemplate3StatementLocator;
 import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
 import org.skife.jdbi.v2.tweak.StatementLocator;
 
+import org.killbill.commons.jdbi.ReusableStringTemplate3StatementLocator;
+import org.killbill.commons.jdbi.mapper.LowerToCamelBeanMapperFactories;
 import org.killbill.commons.jdbi.mapper.LowerToCamelBeanMapperFactory;
 
 
@@ -68,58 +67,38 @@ public @interface QueueSqlDaoStringTemplate {
         }
 
 
-        private static StatementLocator getLocator(final String locatorPath) {
+        static StatementLocator getLocator(final String locatorPath) {
 
-            if (enableGroupTemplateCaching && locatorCache.containsKey(locatorPath)) {
-                return locatorCache.get(locatorPath);
+            final StatementLocator cachedLocator = enableGroupTemplateCaching ? locatorCache.get(locatorPath) : null;
+            if (cachedLocator != null) {
+                return cachedLocator;
             }
 
-            final StringTemplate3StatementLocator.Builder builder = StringTemplate3StatementLocator.builder(locatorPath)
-                    .shouldCache()
-                    .withSuperGroup(QueueSqlDao.class)
-                    .allowImplicitTemplateGroup()
-                    .treatLiteralsAsTemplates();
-
-            final StatementLocator locator = builder.build();
+            // Renders each (template, defines) combination once, instead of on every poll
+            final StatementLocator locator = new ReusableStringTemplate3StatementLocator(locatorPath, QueueSqlDao.class, true, true);
             if (enableGroupTemplateCaching) {
-                locatorCache.put(locatorPath, locator);
+                // Another thread may have beaten us to it, make sure we all share the same instance
+                final StatementLocator existingLocator = locatorCache.putIfAbsent(locatorPath, locator);
+                return existingLocator != null ? existingLocator : locator;
             }
             return locator;
         }
 
-
         public SqlStatementCustomizer createForType(final Annotation annotation, final Class sqlObjectType) {
 
             final QueueSqlDaoStringTemplate a = (QueueSqlDaoStringTemplate) annotation;
 
             final String locatorPath = DEFAULT_VALUE.equals(a.value()) ? mungify(sqlObjectType) : a.value();
             final StatementLocator l = getLocator(locatorPath);
+            final List<LowerToCamelBeanMapperFactory> mapperFactories = LowerToCamelBeanMapperFactories.getMapperFactories(sqlObjectType, EventEntryModelDao.class);
             return new SqlStatementCustomizer() {
                 public void apply(final SQLStatement statement) {
                     statement.setStatementLocator(l);
 
                     if (statement instanceof Query) {
                         final Query query = (Query) statement;
-
-                        // Find the model class associated with this sqlObjectType (which is a SqlDao class) to register its mapper
-                        // If a custom mapper is defined via @RegisterMapper, don't register our generic one
-                        if (sqlObjectType.getGenericInterfaces() != null &&
-                                sqlObjectType.getAnnotation(RegisterMapper.class) == null) {
-                            for (int i = 0; i < sqlObjectType.getGenericInterfaces().length; i++) {
-                                if (sqlObjectType.getGenericInterfaces()[i] instanceof ParameterizedType) {
-                                    final ParameterizedType type = (ParameterizedType) sqlObjectType.getGenericInterfaces()[i];
-                                    for (int j = 0; j < type.getActualTypeArguments().length; j++) {
-                                        final Type modelType = type.getActualTypeArguments()[j];
-                                        if (modelType instanceof Class) {
-                                            final Class modelClazz = (Class) modelType;
-                                            if (EventEntryModelDao.class.isAssignableFrom(modelClazz)) {
-                                                query.registerMapper(new LowerToCamelBeanMapperFactory(modelClazz));
-                                            }
-                                        }
-                                    }
-                                }
-
-                            }
+                        for (int i = 0; i < mapperFactories.size(); i++) {
+                            query.registerMapper(mapperFactories.get(i));
                         }
                     }
                 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dao;
+
+import org.killbill.commons.jdbi.warmup.DatabaseWarmup;
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.dao.QueueSqlDaoStringTemplate.QueueSqlDaoStringTemplateFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Registers the statements of a queue SqlDao (e.g. PersistentBusSqlDao or NotificationSqlDao) with a DatabaseWarmup,
+ * rendered for the tables of the queue configuration.
+ */
+public class QueueSqlDaoWarmup {
+
+    public static DatabaseWarmup addSqlDao(final DatabaseWarmup databaseWarmup, final Class<? extends QueueSqlDao> sqlDaoClass, final PersistentQueueConfig config) {
+        // Load (and cache) the StringTemplate group used by the SqlDao, instead of doing it on the first query
+        QueueSqlDaoStringTemplateFactory.getLocator(QueueSqlDaoStringTemplateFactory.mungify(sqlDaoClass));
+
+        final ImmutableMap.Builder<String, Object> defines = ImmutableMap.<String, Object>builder().put("tableName", config.getTableName());
+        // Optional, the dead letter statements are skipped when not set
+        if (config.getDeadLetterTableName() != null) {
+            defines.put("deadLetterTableName", config.getDeadLetterTableName());
+        }
+        return databaseWarmup.addSqlDao(sqlDaoClass, QueueSqlDao.class, defines.build());
+    }
+}
@@ -22,7 +22,9 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import org.skife.jdbi.v2.SQLStatement;
 import org.skife.jdbi.v2.sqlobject.Binder;
@@ -42,13 +44,18 @@ public @interface RecordIdCollectionBinder {
 
                 @Override
                 public void bind(SQLStatement<?> query, RecordIdCollectionBinder bind, Collection<Long> ids) {
-                    query.define("record_ids", ids);
+                    final List<Long> paddedIds = InListPadding.padToPowerOfTwo(ids, null);
 
+                    // Templates only iterate over record_ids to render the :id_<i0> placeholders, so we define the positions
+                    // rather than the ids themselves: the rendered SQL then only depends on the bucket size and can be cached
+                    final List<Integer> positions = new ArrayList<Integer>(paddedIds.size());
                     int idx = 0;
-                    for (Long id : ids) {
+                    for (Long id : paddedIds) {
                         query.bind("id_" + idx, id);
+                        positions.add(idx);
                         idx++;
                     }
+                    query.define("record_ids", positions);
                 }
             };
         }
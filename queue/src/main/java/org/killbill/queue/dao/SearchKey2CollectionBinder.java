@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dao;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.sqlobject.Binder;
+import org.skife.jdbi.v2.sqlobject.BinderFactory;
+import org.skife.jdbi.v2.sqlobject.BindingAnnotation;
+
+@BindingAnnotation(SearchKey2CollectionBinder.SearchKey2CollectionBinderFactory.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER})
+public @interface SearchKey2CollectionBinder {
+
+    public static class SearchKey2CollectionBinderFactory implements BinderFactory {
+
+        // search_key2 values are positive, so the padding never matches any row
+        static final Long PADDING_SEARCH_KEY2 = -1L;
+
+        @Override
+        public Binder build(Annotation annotation) {
+            return new Binder<SearchKey2CollectionBinder, Collection<Long>>() {
+
+                @Override
+                public void bind(SQLStatement<?> query, SearchKey2CollectionBinder bind, Collection<Long> searchKey2s) {
+                    // Unlike record ids, we can't repeat the last value: each search_key2 renders its own sub-query, which would
+                    // return the same rows twice. We pad with a value which doesn't match anything instead.
+                    final List<Long> paddedSearchKey2s = InListPadding.padToPowerOfTwo(searchKey2s, PADDING_SEARCH_KEY2);
+
+                    // Same as RecordIdCollectionBinder: the rendered SQL only depends on the bucket size
+                    final List<Integer> positions = new ArrayList<Integer>(paddedSearchKey2s.size());
+                    int idx = 0;
+                    for (Long searchKey2 : paddedSearchKey2s) {
+                        query.bind("searchKey2_" + idx, searchKey2);
+                        positions.add(idx);
+                        idx++;
+                    }
+                    query.define("search_key2s", positions);
+                }
+            };
+        }
+    }
+}
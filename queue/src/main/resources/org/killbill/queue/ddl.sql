@@ -44,6 +44,28 @@ CREATE TABLE notifications_history (
     PRIMARY KEY(record_id)
 );
 
+DROP TABLE IF EXISTS notifications_dead_letter;
+CREATE TABLE notifications_dead_letter (
+    record_id int(11) unsigned NOT NULL AUTO_INCREMENT,
+    class_name varchar(256) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token char(36),
+    created_date datetime NOT NULL,
+    creating_owner char(50) NOT NULL,
+    processing_owner char(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int(11) unsigned DEFAULT 0,
+    search_key1 int(11) unsigned default null,
+    search_key2 int(11) unsigned default null,
+    queue_name char(64) NOT NULL,
+    effective_date datetime NOT NULL,
+    future_user_token char(36),
+    PRIMARY KEY(record_id)
+);
+CREATE INDEX notifications_dead_letter_class_name ON notifications_dead_letter(queue_name, class_name, search_key2, search_key1);
+CREATE INDEX notifications_dead_letter_search_keys ON notifications_dead_letter(search_key2, search_key1);
+
 DROP TABLE IF EXISTS bus_events;
 CREATE TABLE bus_events (
     record_id int(11) unsigned NOT NULL AUTO_INCREMENT,
@@ -61,6 +83,7 @@ CREATE TABLE bus_events (
     PRIMARY KEY(record_id)
 );
 CREATE INDEX  `idx_bus_where` ON bus_events (`processing_state`,`processing_owner`,`processing_available_date`);
+CREATE INDEX  `idx_bus_keyset` ON bus_events (`record_id`,`processing_state`,`processing_owner`,`processing_available_date`,`creating_owner`);
 CREATE INDEX bus_events_search_keys ON bus_events(search_key2, search_key1);
 
 DROP TABLE IF EXISTS bus_events_history;
@@ -79,3 +102,22 @@ CREATE TABLE bus_events_history (
     search_key2 int(11) unsigned default null,
     PRIMARY KEY(record_id)
 );
+
+DROP TABLE IF EXISTS bus_events_dead_letter;
+CREATE TABLE bus_events_dead_letter (
+    record_id int(11) unsigned NOT NULL AUTO_INCREMENT,
+    class_name varchar(128) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token char(36),
+    created_date datetime NOT NULL,
+    creating_owner char(50) NOT NULL,
+    processing_owner char(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int(11) unsigned DEFAULT 0,
+    search_key1 int(11) unsigned default null,
+    search_key2 int(11) unsigned default null,
+    PRIMARY KEY(record_id)
+);
+CREATE INDEX bus_events_dead_letter_class_name ON bus_events_dead_letter(class_name, search_key2, search_key1);
+CREATE INDEX bus_events_dead_letter_search_keys ON bus_events_dead_letter(search_key2, search_key1);
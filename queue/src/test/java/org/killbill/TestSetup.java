@@ -25,6 +25,8 @@ import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
 import org.killbill.bus.api.PersistentBusConfig;
 import org.killbill.clock.ClockMock;
+import org.killbill.commons.embeddeddb.EmbeddedDB;
+import org.killbill.commons.embeddeddb.h2.H2EmbeddedDB;
 import org.killbill.commons.embeddeddb.mysql.MySQLEmbeddedDB;
 import org.killbill.commons.jdbi.argument.DateTimeArgumentFactory;
 import org.killbill.commons.jdbi.argument.DateTimeZoneArgumentFactory;
@@ -53,7 +55,10 @@ import static org.testng.Assert.assertNotNull;
 
 public class TestSetup {
 
-    private MySQLEmbeddedDB embeddedDB;
+    // Set by the h2 profile
+    private static final String TEST_H2_PROPERTY = "org.killbill.billing.dbi.test.h2";
+
+    private EmbeddedDB embeddedDB;
 
     protected DBI dbi;
     protected PersistentBusConfig persistentBusConfig;
@@ -69,7 +74,11 @@ public class TestSetup {
 
         clock = new ClockMock();
 
-        embeddedDB = new MySQLEmbeddedDB("killbillq", "killbillq", "killbillq", false);
+        if (Boolean.valueOf(System.getProperty(TEST_H2_PROPERTY))) {
+            embeddedDB = new H2EmbeddedDB();
+        } else {
+            embeddedDB = new MySQLEmbeddedDB("killbillq", "killbillq", "killbillq", false);
+        }
         embeddedDB.initialize();
         embeddedDB.start();
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.DeadEvent;
+import com.google.common.eventbus.EventBusException;
+import com.google.common.eventbus.EventBusThatThrowsException;
+import com.google.common.eventbus.Subscribe;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestBusHandlerRegistry {
+
+    @Test(groups = "fast")
+    public void testDispatchToEventHierarchy() throws Exception {
+        final BusHandlerRegistry registry = new BusHandlerRegistry(this);
+        final RecordingHandler handler = new RecordingHandler();
+        registry.register(handler);
+        // Registering twice is a no-op
+        registry.register(handler);
+
+        registry.postWithException("foo");
+        registry.postWithException(12);
+
+        assertEquals(handler.strings, ImmutableList.<Object>of("foo"));
+        assertEquals(handler.objects, ImmutableList.<Object>of("foo", 12));
+        assertEquals(handler.deadEvents.size(), 0);
+
+        registry.unregister(handler);
+        registry.postWithException("bar");
+        assertEquals(handler.objects.size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testDeadEvent() throws Exception {
+        final BusHandlerRegistry registry = new BusHandlerRegistry(this);
+        final DeadEventHandler handler = new DeadEventHandler();
+        registry.register(handler);
+
+        registry.postWithException("foo");
+
+        assertEquals(handler.deadEvents.size(), 1);
+        assertEquals(handler.deadEvents.get(0).getEvent(), "foo");
+        assertEquals(handler.deadEvents.get(0).getSource(), this);
+    }
+
+    @Test(groups = "fast")
+    public void testHandlerException() throws Exception {
+        final BusHandlerRegistry registry = new BusHandlerRegistry(this);
+        registry.register(new FailingHandler());
+
+        try {
+            registry.postWithException("foo");
+            Assert.fail();
+        } catch (final EventBusException e) {
+            assertTrue(e.getCause() instanceof InvocationTargetException);
+            assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReentrantPostsAreDispatchedInOrder() throws Exception {
+        final BusHandlerRegistry registry = new BusHandlerRegistry(this);
+        final ReentrantHandler firstHandler = new ReentrantHandler(registry);
+        final ReentrantHandler secondHandler = new ReentrantHandler(registry);
+        registry.register(firstHandler);
+        registry.register(secondHandler);
+
+        registry.postWithException("foo");
+
+        // Both handlers see "foo" before any of the events posted from within the handlers
+        final List<Object> expected = ImmutableList.<Object>of("foo", 3, 3);
+        assertEquals(firstHandler.events, expected);
+        assertEquals(secondHandler.events, expected);
+    }
+
+    @Test(groups = "fast")
+    @SuppressWarnings("deprecation")
+    public void testEventBusThatThrowsException() throws Exception {
+        final EventBusThatThrowsException eventBus = new EventBusThatThrowsException("test");
+        final RecordingHandler handler = new RecordingHandler();
+        eventBus.register(handler);
+
+        eventBus.postWithException("foo");
+        eventBus.post(12);
+        assertEquals(handler.objects, ImmutableList.<Object>of("foo", 12));
+
+        eventBus.unregister(handler);
+        eventBus.register(new FailingHandler());
+        try {
+            eventBus.postWithException("bar");
+            Assert.fail();
+        } catch (final EventBusException e) {
+            assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testUnregisterUnknownHandler() {
+        new BusHandlerRegistry(this).unregister(new RecordingHandler());
+    }
+
+    public static class RecordingHandler {
+
+        private final List<Object> strings = new ArrayList<Object>();
+        private final List<Object> objects = new ArrayList<Object>();
+        private final List<DeadEvent> deadEvents = new ArrayList<DeadEvent>();
+
+        @Subscribe
+        public void handleString(final String event) {
+            strings.add(event);
+        }
+
+        @AllowConcurrentEvents
+        @Subscribe
+        public void handleObject(final Object event) {
+            objects.add(event);
+        }
+
+        @Subscribe
+        public void handleDeadEvent(final DeadEvent event) {
+            deadEvents.add(event);
+        }
+    }
+
+    public static class DeadEventHandler {
+
+        private final List<DeadEvent> deadEvents = new ArrayList<DeadEvent>();
+
+        @Subscribe
+        public void handleDeadEvent(final DeadEvent event) {
+            deadEvents.add(event);
+        }
+    }
+
+    public static class ReentrantHandler {
+
+        private final BusHandlerRegistry registry;
+        private final List<Object> events = new ArrayList<Object>();
+
+        public ReentrantHandler(final BusHandlerRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Subscribe
+        public void handleString(final String event) throws EventBusException {
+            events.add(event);
+            registry.postWithException(event.length());
+        }
+
+        @Subscribe
+        public void handleInteger(final Integer event) {
+            events.add(event);
+        }
+    }
+
+    public static class FailingHandler {
+
+        @Subscribe
+        public void handleString(final String event) {
+            throw new IllegalStateException(event);
+        }
+    }
+}
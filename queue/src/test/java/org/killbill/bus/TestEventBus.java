@@ -36,7 +36,7 @@ public class TestEventBus {
         busService = new InMemoryPersistentBus(new PersistentBusConfig() {
             @Override
             public boolean isInMemory() {
-                return false;
+                return true;
             }
             @Override
             public boolean isSticky() {
@@ -44,23 +44,67 @@ public class TestEventBus {
             }
             @Override
             public int getMaxFailureRetries() {
+                return 3;
+            }
+            @Override
+            public TimeSpan getRetryInitialDelay() {
+                return new TimeSpan("0s");
+            }
+            @Override
+            public TimeSpan getRetryMaxDelay() {
+                return new TimeSpan("1h");
+            }
+            @Override
+            public String getDeadLetterTableName() {
+                return null;
+            }
+            @Override
+            public int getPostAsyncMaxBatchSize() {
+                return 100;
+            }
+            @Override
+            public int getPostAsyncQueueCapacity() {
+                return 10000;
+            }
+            @Override
+            public int getOutboxBatchSize() {
+                return 5000;
+            }
+            @Override
+            public TimeSpan getOutboxPollInterval() {
+                return new TimeSpan("1s");
+            }
+            @Override
+            public TimeSpan getOutboxSettleDelay() {
+                return new TimeSpan("5s");
+            }
+            @Override
+            public String getJournalDirectory() {
+                return null;
+            }
+            @Override
+            public int getJournalSegmentSize() {
                 return 0;
             }
             @Override
+            public TimeSpan getJournalCheckpointInterval() {
+                return null;
+            }
+            @Override
             public int getMaxEntriesClaimed() {
-                return 0;
+                return 10;
             }
             @Override
             public int getMaxInflightQEntriesClaimed() {
-                return 0;
+                return 10;
             }
             @Override
             public TimeSpan getClaimedTime() {
-                return null;
+                return new TimeSpan("5m");
             }
             @Override
             public long getSleepTimeMs() {
-                return 0;
+                return 10;
             }
             @Override
             public boolean isProcessingOff() {
@@ -68,7 +112,7 @@ public class TestEventBus {
             }
             @Override
             public int getNbThreads() {
-                return 0;
+                return 1;
             }
             @Override
             public boolean isUsingInflightQueue() {
@@ -76,15 +120,31 @@ public class TestEventBus {
             }
             @Override
             public int getQueueCapacity() {
+                return 100;
+            }
+            @Override
+            public boolean isUsingFairScheduling() {
+                return false;
+            }
+            @Override
+            public int getMaxEntriesClaimedPerSearchKey2() {
+                return 0;
+            }
+            @Override
+            public int getMaxClaimRatePerSearchKey2() {
                 return 0;
             }
             @Override
+            public boolean isUsingKeysetPagination() {
+                return false;
+            }
+            @Override
             public String getTableName() {
-                return "test";
+                return "bus_events";
             }
             @Override
             public String getHistoryTableName() {
-                return null;
+                return "bus_events_history";
             }
         });
         testEventBusBase = new TestEventBusBase(busService);
@@ -110,4 +170,9 @@ public class TestEventBus {
     public void testDifferentType() {
         testEventBusBase.testDifferentType();
     }
+
+    @Test(groups = "fast")
+    public void testPostAsync() {
+        testEventBusBase.testPostAsync();
+    }
 }
@@ -16,7 +16,10 @@
 
 package org.killbill.bus;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.eventbus.AllowConcurrentEvents;
 import org.slf4j.Logger;
@@ -29,6 +32,8 @@ import org.killbill.bus.api.PersistentBus;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class TestEventBusBase {
 
@@ -247,6 +252,27 @@ public class TestEventBusBase {
         }
     }
 
+    public List<Long> testPostAsync() {
+        try {
+            final int nbEvents = 50;
+            final MyEventHandler handler = new MyEventHandler(nbEvents, 0);
+            eventBus.register(handler);
+
+            final List<ListenableFuture<Long>> futures = new ArrayList<ListenableFuture<Long>>();
+            for (int i = 0; i < nbEvents; i++) {
+                futures.add(eventBus.postAsync(new MyEvent("my-event", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID())));
+            }
+            final List<Long> recordIds = Futures.allAsList(futures).get(10, TimeUnit.SECONDS);
+
+            final boolean completed = handler.waitForCompletion(10000);
+            Assert.assertEquals(completed, true);
+            return recordIds;
+        } catch (Exception e) {
+            Assert.fail("", e);
+            return null;
+        }
+    }
+
     public void testDifferentType() {
         try {
             final MyEventHandler handler = new MyEventHandler(1, 0);
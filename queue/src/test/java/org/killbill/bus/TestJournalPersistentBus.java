@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.bus.TestEventBusBase.MyEvent;
+import org.killbill.bus.TestEventBusBase.MyEventHandler;
+import org.killbill.bus.api.PersistentBus;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.JournalPersistentBusSqlDao;
+import org.killbill.clock.DefaultClock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+public class TestJournalPersistentBus {
+
+    private File journalDirectory;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() throws Exception {
+        journalDirectory = Files.createTempDir();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void afterMethod() throws Exception {
+        for (final File file : journalDirectory.listFiles()) {
+            file.delete();
+        }
+        journalDirectory.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testSimple() throws Exception {
+        final PersistentBus busService = createBus(false);
+        busService.start();
+        try {
+            new TestEventBusBase(busService).testSimple();
+        } finally {
+            busService.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testEntriesSurviveRestart() throws Exception {
+        // Processed entries are acknowledged
+        final PersistentBus busService = createBus(false);
+        busService.start();
+        final MyEventHandler handler = new MyEventHandler(3, 0);
+        busService.register(handler);
+        for (int i = 0; i < 3; i++) {
+            busService.post(new MyEvent("processed", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+        }
+        Assert.assertTrue(handler.waitForCompletion(10000));
+        busService.stop();
+
+        // The other ones are reloaded after a restart
+        final PersistentBus busServiceWithProcessingOff = createBus(true);
+        busServiceWithProcessingOff.start();
+        for (int i = 0; i < 2; i++) {
+            busServiceWithProcessingOff.post(new MyEvent("pending", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+        }
+        busServiceWithProcessingOff.stop();
+
+        final PersistentBus restartedBusService = createBus(true);
+        restartedBusService.start();
+        try {
+            Assert.assertEquals(restartedBusService.<MyEvent>getAvailableBusEventsForSearchKey2(2L).size(), 2);
+            Assert.assertEquals(restartedBusService.<MyEvent>getAvailableBusEventsForSearchKeys(1L, 2L).get(0).getEvent().getName(), "pending");
+        } finally {
+            restartedBusService.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRecordIdsAndStateSurviveRestart() throws Exception {
+        final PersistentBusConfig config = createConfig(true);
+        final JournalPersistentBusSqlDao sqlDao = new JournalPersistentBusSqlDao(config, null);
+        for (long i = 0; i < 3; i++) {
+            sqlDao.insertEntry(new BusEventModelDao("owner", new DateTime(DateTimeZone.UTC), String.class.getName(), "json", UUID.randomUUID(), i, 2L), config.getTableName());
+        }
+        final Long lastRecordIdBeforeRestart = sqlDao.getLastInsertId();
+        final Date now = new Date();
+        final Date nextAvailable = new Date(now.getTime() + 60000L);
+        Assert.assertEquals(sqlDao.claimEntry(lastRecordIdBeforeRestart - 2, now, "owner", nextAvailable, config.getTableName()), 1);
+        Assert.assertEquals(sqlDao.updateOnError(lastRecordIdBeforeRestart - 1, nextAvailable, "owner", 3L, config.getTableName()), 1);
+        // The most recent entry is gone: its record id shouldn't be re-used
+        sqlDao.removeEntries(Collections.singletonList(lastRecordIdBeforeRestart), config.getTableName());
+        sqlDao.close();
+
+        final JournalPersistentBusSqlDao restartedSqlDao = new JournalPersistentBusSqlDao(config, null);
+        try {
+            final BusEventModelDao claimedEntry = restartedSqlDao.getByRecordId(lastRecordIdBeforeRestart - 2, config.getTableName());
+            Assert.assertEquals(claimedEntry.getProcessingState(), PersistentQueueEntryLifecycleState.IN_PROCESSING);
+            Assert.assertEquals(claimedEntry.getProcessingOwner(), "owner");
+            Assert.assertEquals(claimedEntry.getNextAvailableDate().getMillis(), nextAvailable.getTime());
+
+            final BusEventModelDao retriedEntry = restartedSqlDao.getByRecordId(lastRecordIdBeforeRestart - 1, config.getTableName());
+            Assert.assertEquals(retriedEntry.getProcessingState(), PersistentQueueEntryLifecycleState.AVAILABLE);
+            Assert.assertEquals(retriedEntry.getErrorCount(), (Long) 3L);
+
+            Assert.assertNull(restartedSqlDao.getByRecordId(lastRecordIdBeforeRestart, config.getTableName()));
+            restartedSqlDao.insertEntry(new BusEventModelDao("owner", new DateTime(DateTimeZone.UTC), String.class.getName(), "json", UUID.randomUUID(), 4L, 2L), config.getTableName());
+            Assert.assertTrue(restartedSqlDao.getLastInsertId() > lastRecordIdBeforeRestart);
+        } finally {
+            restartedSqlDao.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBatchInsertIsJournaled() throws Exception {
+        final PersistentBusConfig config = createConfig(true);
+        final JournalPersistentBusSqlDao sqlDao = new JournalPersistentBusSqlDao(config, null);
+        // Outside of any transaction
+        sqlDao.insertEntries(ImmutableList.<BusEventModelDao>of(new BusEventModelDao("owner", new DateTime(DateTimeZone.UTC), String.class.getName(), "json", UUID.randomUUID(), 1L, 2L),
+                                                                new BusEventModelDao("owner", new DateTime(DateTimeZone.UTC), String.class.getName(), "json", UUID.randomUUID(), 2L, 2L)),
+                             config.getTableName());
+        sqlDao.close();
+
+        final JournalPersistentBusSqlDao restartedSqlDao = new JournalPersistentBusSqlDao(config, null);
+        try {
+            Assert.assertEquals(restartedSqlDao.getEntriesFromRecordId(-1L, 10, config.getTableName()).size(), 2);
+        } finally {
+            restartedSqlDao.close();
+        }
+    }
+
+    private PersistentBus createBus(final boolean isProcessingOff) throws Exception {
+        return new JournalPersistentBus(new DefaultClock(), createConfig(isProcessingOff), new MetricRegistry(), new DatabaseTransactionNotificationApi());
+    }
+
+    private PersistentBusConfig createConfig(final boolean isProcessingOff) {
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.persistent.bus.main.journal.directory", journalDirectory.getAbsolutePath());
+        properties.setProperty("org.killbill.persistent.bus.main.journal.checkpointInterval", "10ms");
+        properties.setProperty("org.killbill.persistent.bus.main.off", String.valueOf(isProcessingOff));
+        properties.setProperty("org.killbill.persistent.bus.main.sleep", "10");
+        properties.setProperty("org.killbill.persistent.bus.main.nbThreads", "1");
+        return new ConfigurationObjectFactory(properties).buildWithReplacements(PersistentBusConfig.class, ImmutableMap.<String, String>of("instanceName", "main"));
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.killbill.bus;
 
+import java.util.List;
+
 import org.killbill.TestSetup;
 import org.killbill.bus.api.PersistentBus;
 import org.testng.Assert;
@@ -26,6 +28,8 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableSet;
+
 public class TestPersistentEventBus extends TestSetup {
 
     private TestEventBusBase testEventBusBase;
@@ -71,4 +75,12 @@ public class TestPersistentEventBus extends TestSetup {
         testEventBusBase.testSimpleWithExceptionAndFail();
         Assert.assertEquals(busService.getInProcessingBusEvents().size(), 0);
     }
+
+    @Test(groups = "slow")
+    public void testPostAsync() {
+        final List<Long> recordIds = testEventBusBase.testPostAsync();
+        Assert.assertFalse(recordIds.contains(null));
+        Assert.assertEquals(ImmutableSet.copyOf(recordIds).size(), recordIds.size());
+        Assert.assertEquals(busService.getInProcessingBusEvents().size(), 0);
+    }
 }
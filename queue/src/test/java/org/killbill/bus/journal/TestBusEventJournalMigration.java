@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus.journal;
+
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.TestSetup;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.JournalPersistentBusSqlDao;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+public class TestBusEventJournalMigration extends TestSetup {
+
+    private File journalDirectory;
+    private PersistentBusConfig config;
+
+    @BeforeMethod(groups = "slow")
+    public void beforeMethod() throws Exception {
+        super.beforeMethod();
+        journalDirectory = Files.createTempDir();
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.persistent.bus.journal.journal.directory", journalDirectory.getAbsolutePath());
+        config = new ConfigurationObjectFactory(properties).buildWithReplacements(PersistentBusConfig.class, ImmutableMap.<String, String>of("instanceName", "journal"));
+    }
+
+    @AfterMethod(groups = "slow")
+    public void afterMethod() throws Exception {
+        for (final File file : journalDirectory.listFiles()) {
+            file.delete();
+        }
+        journalDirectory.delete();
+    }
+
+    @Test(groups = "slow")
+    public void testMigrateToJournalAndBack() throws Exception {
+        final PersistentBusSqlDao databaseSqlDao = getDBI().onDemand(PersistentBusSqlDao.class);
+        for (int i = 0; i < 25; i++) {
+            databaseSqlDao.insertEntry(new BusEventModelDao("owner", clock.getUTCNow(), String.class.getName(), "{\"value\":" + i + "}", UUID.randomUUID(), 1L, (long) i),
+                                       config.getTableName());
+        }
+        final List<BusEventModelDao> databaseEntries = databaseSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName());
+        Assert.assertEquals(databaseEntries.size(), 25);
+
+        JournalPersistentBusSqlDao journalSqlDao = new JournalPersistentBusSqlDao(config, null);
+        Assert.assertEquals(new BusEventJournalMigration(getDBI(), journalSqlDao, config, 10).migrateToJournal(), 25);
+        Assert.assertEquals(databaseSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName()).size(), 0);
+        journalSqlDao.close();
+
+        // Reload the entries from the journal
+        journalSqlDao = new JournalPersistentBusSqlDao(config, null);
+        final List<BusEventModelDao> journalEntries = journalSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName());
+        Assert.assertEquals(journalEntries.size(), 25);
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals(journalEntries.get(i).getRecordId(), databaseEntries.get(i).getRecordId());
+            Assert.assertEquals(journalEntries.get(i).getEventJson(), databaseEntries.get(i).getEventJson());
+            Assert.assertEquals(journalEntries.get(i).getUserToken(), databaseEntries.get(i).getUserToken());
+            Assert.assertEquals(journalEntries.get(i).getSearchKey2(), databaseEntries.get(i).getSearchKey2());
+        }
+
+        Assert.assertEquals(new BusEventJournalMigration(getDBI(), journalSqlDao, config, 10).migrateToDatabase(), 25);
+        Assert.assertEquals(journalSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName()).size(), 0);
+        journalSqlDao.close();
+
+        final List<BusEventModelDao> migratedEntries = databaseSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName());
+        Assert.assertEquals(migratedEntries.size(), 25);
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals(migratedEntries.get(i).getRecordId(), databaseEntries.get(i).getRecordId());
+            Assert.assertEquals(migratedEntries.get(i).getEventJson(), databaseEntries.get(i).getEventJson());
+        }
+
+        // Nothing left in the journal
+        journalSqlDao = new JournalPersistentBusSqlDao(config, null);
+        Assert.assertEquals(journalSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName()).size(), 0);
+        journalSqlDao.close();
+    }
+
+    @Test(groups = "slow")
+    public void testMigrationFailsOnRecordIdConflict() throws Exception {
+        final PersistentBusSqlDao databaseSqlDao = getDBI().onDemand(PersistentBusSqlDao.class);
+        databaseSqlDao.insertEntry(new BusEventModelDao("owner", clock.getUTCNow(), String.class.getName(), "{\"value\":1}", UUID.randomUUID(), 1L, 1L), config.getTableName());
+        final Long recordId = databaseSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName()).get(0).getRecordId();
+
+        final JournalPersistentBusSqlDao journalSqlDao = new JournalPersistentBusSqlDao(config, null);
+        try {
+            // Another event already uses that record id in the journal
+            journalSqlDao.insertEntryWithRecordId(new BusEventModelDao("owner", clock.getUTCNow(), String.class.getName(), "{\"value\":2}", UUID.randomUUID(), 1L, 1L),
+                                                  recordId, config.getTableName());
+            try {
+                new BusEventJournalMigration(getDBI(), journalSqlDao, config, 10).migrateToJournal();
+                Assert.fail("The migration should have failed");
+            } catch (final IllegalStateException ignored) {
+            }
+
+            // Nothing was lost
+            Assert.assertEquals(databaseSqlDao.getEntriesFromRecordId(-1L, 100, config.getTableName()).size(), 1);
+            Assert.assertEquals(journalSqlDao.getByRecordId(recordId, config.getTableName()).getEventJson(), "{\"value\":2}");
+        } finally {
+            journalSqlDao.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.bus.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.RandomAccessFile;
+import java.util.SortedMap;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestMappedJournal {
+
+    private File directory;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void afterMethod() throws Exception {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testReplayUnacknowledgedEntries() throws Exception {
+        MappedJournal journal = new MappedJournal(directory, 1024, 10);
+        Assert.assertTrue(journal.open().isEmpty());
+
+        final long first = journal.append(bytes("first"));
+        final long second = journal.append(bytes("second"));
+        final long third = journal.append(bytes("third"));
+        journal.acknowledge(second);
+        journal.awaitSync();
+        journal.close();
+
+        journal = new MappedJournal(directory, 1024, 10);
+        SortedMap<Long, byte[]> entries = journal.open();
+        Assert.assertEquals(entries.size(), 2);
+        Assert.assertEquals(string(entries.get(first)), "first");
+        Assert.assertEquals(string(entries.get(third)), "third");
+
+        // Appends resume after the existing records
+        final long fourth = journal.append(bytes("fourth"));
+        Assert.assertTrue(fourth > third);
+        journal.acknowledge(first);
+        journal.acknowledge(third);
+        journal.close();
+
+        journal = new MappedJournal(directory, 1024, 10);
+        entries = journal.open();
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(string(entries.get(fourth)), "fourth");
+        journal.close();
+    }
+
+    @Test(groups = "fast")
+    public void testSegmentRollingAndDeletion() throws Exception {
+        final MappedJournal journal = new MappedJournal(directory, 128, 10);
+        journal.open();
+
+        for (int i = 0; i < 50; i++) {
+            journal.acknowledge(journal.append(bytes("entry-" + i)));
+        }
+        Assert.assertTrue(getNbSegments() > 1);
+
+        // Once the consumer offset is persisted, only the current segment is left
+        final long timeoutMs = System.currentTimeMillis() + 5000;
+        while (getNbSegments() > 1 && System.currentTimeMillis() < timeoutMs) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(getNbSegments(), 1);
+
+        final long lastPosition = journal.append(bytes("last"));
+        journal.close();
+
+        final MappedJournal reopenedJournal = new MappedJournal(directory, 128, 10);
+        final SortedMap<Long, byte[]> entries = reopenedJournal.open();
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(string(entries.get(lastPosition)), "last");
+        reopenedJournal.close();
+    }
+
+    @Test(groups = "fast")
+    public void testPartiallyWrittenRecord() throws Exception {
+        MappedJournal journal = new MappedJournal(directory, 1024, 10);
+        journal.open();
+        final long first = journal.append(bytes("first"));
+        final long second = journal.append(bytes("second"));
+        journal.close();
+
+        // Corrupt the last record, as if the process crashed while writing it
+        final RandomAccessFile segment = new RandomAccessFile(directory.listFiles(new SegmentFilter())[0], "rw");
+        try {
+            segment.seek(second + 9);
+            segment.write(bytes("garbage"));
+        } finally {
+            segment.close();
+        }
+
+        journal = new MappedJournal(directory, 1024, 10);
+        SortedMap<Long, byte[]> entries = journal.open();
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(string(entries.get(first)), "first");
+
+        // The truncated record is overwritten
+        Assert.assertEquals(journal.append(bytes("third")), second);
+        journal.close();
+
+        journal = new MappedJournal(directory, 1024, 10);
+        entries = journal.open();
+        Assert.assertEquals(entries.size(), 2);
+        Assert.assertEquals(string(entries.get(second)), "third");
+        journal.close();
+    }
+
+    private int getNbSegments() {
+        return directory.listFiles(new SegmentFilter()).length;
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(Charsets.UTF_8);
+    }
+
+    private static String string(final byte[] value) {
+        return new String(value, Charsets.UTF_8);
+    }
+
+    private static final class SegmentFilter implements FileFilter {
+
+        @Override
+        public boolean accept(final File file) {
+            return file.getName().endsWith(".segment");
+        }
+    }
+}
@@ -125,6 +125,21 @@ public class MockNotificationQueue implements NotificationQueue {
         return null;
     }
 
+    @Override
+    public <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getDeadLetterNotifications(final String className, final Long searchKey1, final Long searchKey2, final Long fromRecordId, final int max) {
+        return null;
+    }
+
+    @Override
+    public long getNbDeadLetterNotifications(final String className, final Long searchKey1, final Long searchKey2) {
+        return 0;
+    }
+
+    @Override
+    public long replayDeadLetterNotifications(final String className, final Long searchKey1, final Long searchKey2, final int batchSize) {
+        return 0;
+    }
+
     @Override
     public <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getFutureOrInProcessingNotificationForSearchKeys(Long searchKey1, Long searchKey2) {
         return null;
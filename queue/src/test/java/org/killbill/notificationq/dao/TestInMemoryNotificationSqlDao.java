@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.notificationq.dao;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInMemoryNotificationSqlDao {
+
+    private static final String TABLE_NAME = "notifications";
+    private static final String HISTORY_TABLE_NAME = "notifications_history";
+    private static final String OWNER = "Yop";
+
+    private InMemoryNotificationSqlDao dao;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() throws Exception {
+        dao = new InMemoryNotificationSqlDao(HISTORY_TABLE_NAME, null);
+    }
+
+    @Test(groups = "fast")
+    public void testReadyEntriesOrderedByEffectiveDate() throws Exception {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        dao.insertEntry(createEntry(now, now.minusMinutes(1), "late"), TABLE_NAME);
+        dao.insertEntry(createEntry(now, now.minusMinutes(5), "early"), TABLE_NAME);
+        dao.insertEntry(createEntry(now, now.plusMinutes(5), "future"), TABLE_NAME);
+
+        final List<NotificationEventModelDao> ready = dao.getReadyEntries(now.toDate(), 10, OWNER, TABLE_NAME);
+        Assert.assertEquals(ready.size(), 2);
+        Assert.assertEquals(ready.get(0).getQueueName(), "early");
+        Assert.assertEquals(ready.get(1).getQueueName(), "late");
+        Assert.assertEquals(dao.getCountReadyEntries(1L, 2L, now.toDate(), TABLE_NAME), 2);
+
+        final NotificationEventModelDao early = ready.get(0);
+        Assert.assertEquals(dao.claimEntry(early.getRecordId(), now.toDate(), OWNER, now.plusMinutes(5).toDate(), TABLE_NAME), 1);
+        Assert.assertEquals(dao.claimEntry(early.getRecordId(), now.toDate(), OWNER, now.plusMinutes(5).toDate(), TABLE_NAME), 0);
+
+        final NotificationEventModelDao claimed = dao.getByRecordId(early.getRecordId(), TABLE_NAME);
+        Assert.assertEquals(claimed.getProcessingState(), PersistentQueueEntryLifecycleState.IN_PROCESSING);
+        Assert.assertEquals(claimed.getProcessingOwner(), OWNER);
+        Assert.assertEquals(dao.getReadyEntries(now.toDate(), 10, OWNER, TABLE_NAME).size(), 1);
+        Assert.assertEquals(dao.getReadyOrInProcessingQueueEntriesForSearchKeys("early", 1L, 2L, TABLE_NAME).size(), 1);
+        Assert.assertEquals(dao.getReadyQueueEntriesForSearchKeys("early", 1L, 2L, TABLE_NAME).size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRollbackOnException() throws Exception {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        dao.insertEntry(createEntry(now, now, "kept"), TABLE_NAME);
+        final Long keptRecordId = dao.getLastInsertId();
+
+        try {
+            dao.inTransaction(new Transaction<Void, QueueSqlDao<NotificationEventModelDao>>() {
+                @Override
+                public Void inTransaction(final QueueSqlDao<NotificationEventModelDao> transactional, final TransactionStatus status) throws Exception {
+                    transactional.insertEntry(createEntry(now, now, "discarded"), TABLE_NAME);
+                    transactional.removeEntry(keptRecordId, TABLE_NAME);
+                    throw new IllegalStateException("Rollback");
+                }
+            });
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Rollback");
+        }
+
+        final List<NotificationEventModelDao> ready = dao.getReadyEntries(now.toDate(), 10, OWNER, TABLE_NAME);
+        Assert.assertEquals(ready.size(), 1);
+        Assert.assertEquals(ready.get(0).getRecordId(), keptRecordId);
+    }
+
+    private NotificationEventModelDao createEntry(final DateTime now, final DateTime effectiveDate, final String queueName) {
+        return new NotificationEventModelDao(OWNER, now, String.class.getName(), UUID.randomUUID().toString(), UUID.randomUUID(), 1L, 2L,
+                                             UUID.randomUUID(), effectiveDate, queueName);
+    }
+}
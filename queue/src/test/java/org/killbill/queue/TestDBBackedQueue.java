@@ -19,6 +19,7 @@ package org.killbill.queue;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import org.killbill.Hostname;
 import org.killbill.TestSetup;
@@ -40,6 +41,7 @@ import org.testng.annotations.Test;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
@@ -628,6 +630,362 @@ public class TestDBBackedQueue extends TestSetup {
         assertEquals(queue.getTotalInsert(), 2000);
     }
 
+    /**
+     * Tenant 1 floods the queue with 50 events, then tenants 2 and 3 post one event each.
+     * <p/>
+     * With fair scheduling, the very first batch should include the events from the small tenants.
+     */
+    @Test(groups = "slow")
+    public void testFairScheduling() {
+        for (int i = 0; i < 50; i++) {
+            sqlDao.insertEntry(createEntry(new Long(i), OWNER, 1L), "bus_events");
+        }
+        sqlDao.insertEntry(createEntry(50L, OWNER, 2L), "bus_events");
+        sqlDao.insertEntry(createEntry(51L, OWNER, 3L), "bus_events");
+
+        final PersistentBusConfig config = createConfig(5, -1, false, false, true, 2);
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "fairScheduling-bus_event", metricRegistry, null);
+        queue.initialize();
+
+        // Round-robin (2 max per tenant): the remaining slot stays empty rather than going to tenant 1
+        final List<BusEventModelDao> claimed = queue.getReadyEntries();
+        assertEquals(getSearchKeys1(claimed), ImmutableList.<Long>of(0L, 50L, 51L, 1L));
+
+        // Next polling starts after tenant 3, wraps around and only finds tenant 1
+        final List<BusEventModelDao> nextClaimed = queue.getReadyEntries();
+        assertEquals(nextClaimed.size(), 2);
+        for (final BusEventModelDao cur : nextClaimed) {
+            assertEquals(cur.getSearchKey2(), (Long) 1L);
+        }
+    }
+
+    /**
+     * Tenant 1 posts 10 events and tenant 2 a single one, each tenant may claim 2 events per second.
+     * <p/>
+     * Permits are only taken for the entries actually claimed: tenant 2 keeps the one it didn't use.
+     */
+    @Test(groups = "slow")
+    public void testFairSchedulingWithClaimRate() {
+        for (int i = 0; i < 10; i++) {
+            sqlDao.insertEntry(createEntry(new Long(i), OWNER, 1L), "bus_events");
+        }
+        sqlDao.insertEntry(createEntry(10L, OWNER, 2L), "bus_events");
+
+        final PersistentBusConfig config = createConfig(5, -1, false, false, true, 2, 2, false);
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "fairSchedulingWithClaimRate-bus_event", metricRegistry, null);
+        queue.initialize();
+
+        // Tenant 1 is capped by its rate, we don't fill up the batch with its other events
+        assertEquals(getSearchKeys1(queue.getReadyEntries()), ImmutableList.<Long>of(0L, 10L, 1L));
+
+        // Tenant 2 still has one permit left, tenant 1 has none
+        sqlDao.insertEntry(createEntry(11L, OWNER, 2L), "bus_events");
+        assertEquals(getSearchKeys1(queue.getReadyEntries()), ImmutableList.<Long>of(11L));
+
+        clock.addDeltaFromReality(1000L);
+        assertEquals(getSearchKeys1(queue.getReadyEntries()), ImmutableList.<Long>of(2L, 3L));
+    }
+
+    /**
+     * A failed entry is retried after 5 to 10 seconds (10s initial delay with jitter): it should not be claimed before that.
+     */
+    @Test(groups = "slow")
+    public void testRetryWithDelay() {
+        final PersistentBusConfig config = createConfig(10, -1, false, false, false, 0, 0, false, "10s");
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "retryWithDelay-bus_event", metricRegistry, null);
+        queue.initialize();
+
+        queue.insertEntry(createEntry(1L));
+        final List<BusEventModelDao> claimed = queue.getReadyEntries();
+        assertEquals(claimed.size(), 1);
+        queue.updateOnError(new BusEventModelDao(claimed.get(0), OWNER, clock.getUTCNow(), PersistentQueueEntryLifecycleState.AVAILABLE, 1L));
+
+        assertEquals(queue.getReadyEntries().size(), 0);
+        clock.addDeltaFromReality(4000L);
+        assertEquals(queue.getReadyEntries().size(), 0);
+
+        clock.addDeltaFromReality(7000L);
+        final List<BusEventModelDao> retried = queue.getReadyEntries();
+        assertEquals(retried.size(), 1);
+        assertEquals(retried.get(0).getRecordId(), claimed.get(0).getRecordId());
+        assertEquals(retried.get(0).getErrorCount(), (Long) 1L);
+    }
+
+    /**
+     * Same as above with the inflightQ, where delayed entries are kept in memory until they are due:
+     * they should be reloaded from disk when the queue restarts.
+     */
+    @Test(groups = "slow")
+    public void testInflightQRetryWithDelayAndRestart() {
+        final PersistentBusConfig config = createConfig(1, 10, false, true, false, 0, 0, false, "10s");
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "inflightQRetryWithDelay-bus_event", metricRegistry, databaseTransactionNotificationApi);
+        queue.initialize();
+
+        queue.insertEntry(createEntry(1L));
+        final List<BusEventModelDao> claimed = queue.getReadyEntries();
+        assertEquals(claimed.size(), 1);
+        queue.updateOnError(new BusEventModelDao(claimed.get(0), OWNER, clock.getUTCNow(), PersistentQueueEntryLifecycleState.AVAILABLE, 1L));
+
+        clock.addDeltaFromReality(4000L);
+        assertEquals(queue.getReadyEntries().size(), 0);
+
+        final DBBackedQueue<BusEventModelDao> restartedQueue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "inflightQRetryWithDelayRestarted-bus_event", metricRegistry, databaseTransactionNotificationApi);
+        restartedQueue.initialize();
+        assertTrue(restartedQueue.isQueueOpenForRead());
+        assertEquals(restartedQueue.getReadyEntries().size(), 0);
+
+        clock.addDeltaFromReality(7000L);
+        final List<BusEventModelDao> retried = restartedQueue.getReadyEntries();
+        assertEquals(retried.size(), 1);
+        assertEquals(retried.get(0).getRecordId(), claimed.get(0).getRecordId());
+    }
+
+    /**
+     * The dead letter table is opt-in: by default, FAILED entries keep going to the history table.
+     */
+    @Test(groups = "slow")
+    public void testFailedEntriesWithoutDeadLetterTable() {
+        // Default configuration
+        Assert.assertNull(persistentBusConfig.getDeadLetterTableName());
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, persistentBusConfig, "withoutDeadLetter-bus_event", metricRegistry, databaseTransactionNotificationApi);
+        queue.initialize();
+
+        queue.insertEntry(createEntry(1L));
+        final List<BusEventModelDao> claimed = queue.getReadyEntries();
+        assertEquals(claimed.size(), 1);
+        queue.moveEntriesToHistory(ImmutableList.<BusEventModelDao>of(new BusEventModelDao(claimed.get(0), OWNER, clock.getUTCNow(), PersistentQueueEntryLifecycleState.FAILED)));
+
+        final List<BusEventModelDao> history = sqlDao.getEntriesFromIds(ImmutableList.<Long>of(claimed.get(0).getRecordId()), "bus_events_history");
+        assertEquals(history.size(), 1);
+        assertEquals(history.get(0).getProcessingState(), PersistentQueueEntryLifecycleState.FAILED);
+
+        assertEquals(queue.getNbDeadLetterEntries(null, null, null, null), 0);
+        assertEquals(queue.getDeadLetterEntries(null, null, null, null, 0L, 10).size(), 0);
+        assertEquals(queue.replayDeadLetterEntries(null, null, null, null, 10), 0);
+        assertEquals(sqlDao.getCountDeadLetterEntries(null, null, null, null, "bus_events_dead_letter"), (Long) 0L);
+    }
+
+    @Test(groups = "slow")
+    public void testDeadLetterReplay() {
+        final PersistentBusConfig config = createConfig(10, -1, false, false);
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "deadLetter-bus_event", metricRegistry, null);
+        queue.initialize();
+
+        for (int i = 0; i < 5; i++) {
+            queue.insertEntry(createEntry(new Long(i), OWNER, i % 2 == 0 ? 1L : 2L));
+        }
+
+        final List<BusEventModelDao> claimed = queue.getReadyEntries();
+        assertEquals(claimed.size(), 5);
+        final List<BusEventModelDao> terminal = new ArrayList<BusEventModelDao>();
+        for (final BusEventModelDao cur : claimed) {
+            // Only the first entry succeeds, the others exhausted their retries
+            final PersistentQueueEntryLifecycleState state = cur.getSearchKey1() == 0L ? PersistentQueueEntryLifecycleState.PROCESSED : PersistentQueueEntryLifecycleState.FAILED;
+            terminal.add(new BusEventModelDao(cur, OWNER, clock.getUTCNow(), state));
+        }
+        queue.moveEntriesToHistory(terminal);
+
+        assertEquals(queue.getNbDeadLetterEntries(null, null, null, null), 4);
+        assertEquals(queue.getNbDeadLetterEntries(null, null, null, 1L), 2);
+        assertEquals(queue.getNbDeadLetterEntries(null, String.class.getName(), 3L, 2L), 1);
+        assertEquals(sqlDao.getMaxRecordId("bus_events_history"), claimed.get(0).getRecordId());
+
+        // Keyset pagination over the dead letters
+        final List<BusEventModelDao> firstPage = queue.getDeadLetterEntries(null, null, null, null, 0L, 3);
+        assertEquals(firstPage.size(), 3);
+        final List<BusEventModelDao> secondPage = queue.getDeadLetterEntries(null, null, null, null, firstPage.get(2).getRecordId(), 3);
+        assertEquals(secondPage.size(), 1);
+        assertEquals(secondPage.get(0).getSearchKey1(), (Long) 4L);
+
+        // Replay the dead letters for search_key2 = 2, one entry per batch
+        assertEquals(queue.replayDeadLetterEntries(null, null, null, 2L, 1), 2);
+        assertEquals(queue.getNbDeadLetterEntries(null, null, null, null), 2);
+
+        final List<BusEventModelDao> replayed = queue.getReadyEntries();
+        assertEquals(replayed.size(), 2);
+        for (final BusEventModelDao cur : replayed) {
+            assertEquals(cur.getSearchKey2(), (Long) 2L);
+            assertEquals(cur.getErrorCount(), (Long) 0L);
+        }
+    }
+
+    @Test(groups = "load")
+    public void testFairSchedulingLoad() {
+        // FIFO: tenant 1 takes whole batches while the small tenants wait
+        assertEquals(runTenantFloodLoad(false).get(0), (Integer) 10);
+
+        // Fair: tenant 1 never gets more than its cap, whatever the number of ready entries of the small tenants
+        final List<Integer> floodingTenantShares = runTenantFloodLoad(true);
+        log.error("Flooding tenant share per batch with fair scheduling: " + floodingTenantShares);
+        for (final Integer floodingTenantShare : floodingTenantShares) {
+            assertTrue(floodingTenantShare <= 2);
+        }
+    }
+
+    // Returns, for each polling until the events of the small tenants are claimed, the number of events of the flooding tenant in the batch
+    private List<Integer> runTenantFloodLoad(final boolean isUsingFairScheduling) {
+        final int NB_FLOOD_EVENTS = Integer.getInteger("org.killbill.queue.load.nbFloodEvents", 2000);
+        final int NB_SMALL_TENANTS = 20;
+        final int NB_SMALL_TENANT_EVENTS = 5;
+        final int CLAIMED_EVENTS = 10;
+
+        beforeMethodQuietly();
+
+        for (int i = 0; i < NB_FLOOD_EVENTS; i++) {
+            sqlDao.insertEntry(createEntry(new Long(i), OWNER, 1L), "bus_events");
+        }
+        for (int i = 0; i < NB_SMALL_TENANT_EVENTS; i++) {
+            for (int j = 0; j < NB_SMALL_TENANTS; j++) {
+                sqlDao.insertEntry(createEntry(new Long(i), OWNER, new Long(j + 2)), "bus_events");
+            }
+        }
+
+        final PersistentBusConfig config = createConfig(CLAIMED_EVENTS, -1, false, false, isUsingFairScheduling, 2);
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "fairSchedulingLoad-" + isUsingFairScheduling + "-bus_event", metricRegistry, null);
+        queue.initialize();
+
+        final List<Integer> floodingTenantShares = new ArrayList<Integer>();
+        int remainingSmallTenantEvents = NB_SMALL_TENANTS * NB_SMALL_TENANT_EVENTS;
+        while (remainingSmallTenantEvents > 0) {
+            final List<BusEventModelDao> ready = queue.getReadyEntries();
+            int floodingTenantShare = 0;
+            for (final BusEventModelDao cur : ready) {
+                if (cur.getSearchKey2() == 1L) {
+                    floodingTenantShare++;
+                } else {
+                    remainingSmallTenantEvents--;
+                }
+                queue.moveEntryToHistory(new BusEventModelDao(cur, Hostname.get(), clock.getUTCNow(), PersistentQueueEntryLifecycleState.PROCESSED));
+            }
+            floodingTenantShares.add(floodingTenantShare);
+        }
+        return floodingTenantShares;
+    }
+
+    /**
+     * We write 10 events and claim 3 at a time; the second event fails after the first polling and becomes ready again right away.
+     * <p/>
+     * With keyset pagination, it is only picked up again once the cursor wraps around.
+     */
+    @Test(groups = "slow")
+    public void testKeysetPagination() {
+        for (int i = 0; i < 10; i++) {
+            sqlDao.insertEntry(createEntry(new Long(i)), "bus_events");
+        }
+
+        final PersistentBusConfig config = createConfig(3, -1, false, false, false, 0, true);
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "keysetPagination-bus_event", metricRegistry, null);
+        queue.initialize();
+
+        final List<BusEventModelDao> firstClaimed = queue.getReadyEntries();
+        assertEquals(getSearchKeys1(firstClaimed), ImmutableList.<Long>of(0L, 1L, 2L));
+        sqlDao.updateOnError(firstClaimed.get(1).getRecordId(), clock.getUTCNow().toDate(), null, 1L, "bus_events");
+        moveToHistory(ImmutableList.<BusEventModelDao>of(firstClaimed.get(0), firstClaimed.get(2)));
+
+        final List<BusEventModelDao> secondClaimed = queue.getReadyEntries();
+        assertEquals(getSearchKeys1(secondClaimed), ImmutableList.<Long>of(3L, 4L, 5L));
+        moveToHistory(secondClaimed);
+
+        final List<BusEventModelDao> thirdClaimed = queue.getReadyEntries();
+        assertEquals(getSearchKeys1(thirdClaimed), ImmutableList.<Long>of(6L, 7L, 8L));
+        moveToHistory(thirdClaimed);
+
+        // Reached the head of the table, wrap around
+        final List<BusEventModelDao> fourthClaimed = queue.getReadyEntries();
+        assertEquals(getSearchKeys1(fourthClaimed), ImmutableList.<Long>of(9L, 1L));
+        moveToHistory(fourthClaimed);
+
+        assertEquals(queue.getReadyEntries().size(), 0);
+
+        sqlDao.insertEntry(createEntry(10L), "bus_events");
+        assertEquals(getSearchKeys1(queue.getReadyEntries()), ImmutableList.<Long>of(10L));
+    }
+
+    @Test(groups = "load")
+    public void testKeysetPaginationLoad() {
+        final long fifoNanos = runReadinessQueryLoad(false);
+        final long keysetNanos = runReadinessQueryLoad(true);
+
+        log.error("Readiness query load test: FIFO = " + (fifoNanos / 1000000) + " ms, keyset = " + (keysetNanos / 1000000) + " ms");
+        // FIFO re-reads the entries claimed by the other node at each polling, keyset only once
+        assertTrue(keysetNanos < fifoNanos, "Keyset pagination (" + keysetNanos + " ns) should be faster than FIFO (" + fifoNanos + " ns)");
+    }
+
+    // Returns the time spent in getReadyEntries to drain the first NB_POLLINGS batches of a large backlog, whose first half
+    // is claimed by another node
+    private long runReadinessQueryLoad(final boolean isUsingKeysetPagination) {
+        final int NB_EVENTS = Integer.getInteger("org.killbill.queue.load.nbEvents", 100000);
+        final int NB_EVENTS_PER_TRANSACTION = 10000;
+        final int NB_POLLINGS = 100;
+        final int CLAIMED_EVENTS = 100;
+
+        beforeMethodQuietly();
+
+        for (int i = 0; i < NB_EVENTS; i += NB_EVENTS_PER_TRANSACTION) {
+            final int from = i;
+            sqlDao.inTransaction(new Transaction<Void, QueueSqlDao<BusEventModelDao>>() {
+                @Override
+                public Void inTransaction(final QueueSqlDao<BusEventModelDao> transactional, final TransactionStatus status) throws Exception {
+                    for (int j = from; j < from + NB_EVENTS_PER_TRANSACTION && j < NB_EVENTS; j++) {
+                        transactional.insertEntry(createEntry(new Long(j)), "bus_events");
+                    }
+                    return null;
+                }
+            });
+        }
+
+        final Date nextAvailable = clock.getUTCNow().plusHours(1).toDate();
+        final List<Long> recordIdsToClaim = new ArrayList<Long>();
+        for (final BusEventModelDao entry : sqlDao.getEntriesFromRecordId(-1L, NB_EVENTS / 2, "bus_events")) {
+            recordIdsToClaim.add(entry.getRecordId());
+            if (recordIdsToClaim.size() == NB_EVENTS_PER_TRANSACTION) {
+                sqlDao.claimEntries(recordIdsToClaim, clock.getUTCNow().toDate(), "other-node", nextAvailable, "bus_events");
+                recordIdsToClaim.clear();
+            }
+        }
+        if (!recordIdsToClaim.isEmpty()) {
+            sqlDao.claimEntries(recordIdsToClaim, clock.getUTCNow().toDate(), "other-node", nextAvailable, "bus_events");
+        }
+
+        final PersistentBusConfig config = createConfig(CLAIMED_EVENTS, -1, false, false, false, 0, isUsingKeysetPagination);
+        queue = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "readinessQueryLoad-" + isUsingKeysetPagination + "-bus_event", metricRegistry, null);
+        queue.initialize();
+
+        long cumlGetReadyEntries = 0;
+        for (int i = 0; i < NB_POLLINGS; i++) {
+            final long t1 = System.nanoTime();
+            final List<BusEventModelDao> ready = queue.getReadyEntries();
+            cumlGetReadyEntries += System.nanoTime() - t1;
+            assertEquals(ready.size(), CLAIMED_EVENTS);
+            moveToHistory(ready);
+        }
+        return cumlGetReadyEntries;
+    }
+
+    private List<Long> getSearchKeys1(final List<BusEventModelDao> entries) {
+        final List<Long> result = new ArrayList<Long>();
+        for (final BusEventModelDao cur : entries) {
+            result.add(cur.getSearchKey1());
+        }
+        return result;
+    }
+
+    private void moveToHistory(final List<BusEventModelDao> entries) {
+        final List<BusEventModelDao> processed = new ArrayList<BusEventModelDao>();
+        for (final BusEventModelDao cur : entries) {
+            processed.add(new BusEventModelDao(cur, OWNER, clock.getUTCNow(), PersistentQueueEntryLifecycleState.PROCESSED));
+        }
+        queue.moveEntriesToHistory(processed);
+    }
+
+    private void beforeMethodQuietly() {
+        try {
+            beforeMethod();
+        } catch (final Exception e) {
+            Assert.fail("Failed to cleanup tables", e);
+        }
+    }
+
     public class ReaderRunnable implements Runnable {
 
         private final int readerId;
@@ -708,9 +1066,13 @@ public class TestDBBackedQueue extends TestSetup {
     }
 
 
-    private BusEventModelDao createEntry(Long searchKey1, String owner) {
+    private BusEventModelDao createEntry(Long searchKey1, String owner, Long searchKey2) {
         final String json = "json";
-        return new BusEventModelDao(owner, clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, 1L);
+        return new BusEventModelDao(owner, clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, searchKey2);
+    }
+
+    private BusEventModelDao createEntry(Long searchKey1, String owner) {
+        return createEntry(searchKey1, owner, 1L);
     }
 
     private BusEventModelDao createEntry(Long searchKey1) {
@@ -718,6 +1080,28 @@ public class TestDBBackedQueue extends TestSetup {
     }
 
     private PersistentBusConfig createConfig(final int claimed, final int qCapacity, final boolean isSticky, final boolean isUsingInflightQ) {
+        return createConfig(claimed, qCapacity, isSticky, isUsingInflightQ, false, 0);
+    }
+
+    private PersistentBusConfig createConfig(final int claimed, final int qCapacity, final boolean isSticky, final boolean isUsingInflightQ,
+                                             final boolean isUsingFairScheduling, final int claimedPerSearchKey2) {
+        return createConfig(claimed, qCapacity, isSticky, isUsingInflightQ, isUsingFairScheduling, claimedPerSearchKey2, false);
+    }
+
+    private PersistentBusConfig createConfig(final int claimed, final int qCapacity, final boolean isSticky, final boolean isUsingInflightQ,
+                                             final boolean isUsingFairScheduling, final int claimedPerSearchKey2, final boolean isUsingKeysetPagination) {
+        return createConfig(claimed, qCapacity, isSticky, isUsingInflightQ, isUsingFairScheduling, claimedPerSearchKey2, 0, isUsingKeysetPagination);
+    }
+
+    private PersistentBusConfig createConfig(final int claimed, final int qCapacity, final boolean isSticky, final boolean isUsingInflightQ,
+                                             final boolean isUsingFairScheduling, final int claimedPerSearchKey2, final int claimRatePerSearchKey2,
+                                             final boolean isUsingKeysetPagination) {
+        return createConfig(claimed, qCapacity, isSticky, isUsingInflightQ, isUsingFairScheduling, claimedPerSearchKey2, claimRatePerSearchKey2, isUsingKeysetPagination, "0s");
+    }
+
+    private PersistentBusConfig createConfig(final int claimed, final int qCapacity, final boolean isSticky, final boolean isUsingInflightQ,
+                                             final boolean isUsingFairScheduling, final int claimedPerSearchKey2, final int claimRatePerSearchKey2,
+                                             final boolean isUsingKeysetPagination, final String retryInitialDelay) {
         return new PersistentBusConfig() {
             @Override
             public boolean isInMemory() {
@@ -734,6 +1118,61 @@ public class TestDBBackedQueue extends TestSetup {
                 return 0;
             }
 
+            @Override
+            public TimeSpan getRetryInitialDelay() {
+                return new TimeSpan(retryInitialDelay);
+            }
+
+            @Override
+            public TimeSpan getRetryMaxDelay() {
+                return new TimeSpan("1h");
+            }
+
+            @Override
+            public String getDeadLetterTableName() {
+                return "bus_events_dead_letter";
+            }
+
+            @Override
+            public int getPostAsyncMaxBatchSize() {
+                return 100;
+            }
+
+            @Override
+            public int getPostAsyncQueueCapacity() {
+                return 10000;
+            }
+
+            @Override
+            public int getOutboxBatchSize() {
+                return 5000;
+            }
+
+            @Override
+            public TimeSpan getOutboxPollInterval() {
+                return new TimeSpan("1s");
+            }
+
+            @Override
+            public TimeSpan getOutboxSettleDelay() {
+                return new TimeSpan("5s");
+            }
+
+            @Override
+            public String getJournalDirectory() {
+                return null;
+            }
+
+            @Override
+            public int getJournalSegmentSize() {
+                return 0;
+            }
+
+            @Override
+            public TimeSpan getJournalCheckpointInterval() {
+                return null;
+            }
+
             @Override
             public int getMaxEntriesClaimed() {
                 return claimed;
@@ -774,6 +1213,26 @@ public class TestDBBackedQueue extends TestSetup {
                 return qCapacity;
             }
 
+            @Override
+            public boolean isUsingFairScheduling() {
+                return isUsingFairScheduling;
+            }
+
+            @Override
+            public int getMaxEntriesClaimedPerSearchKey2() {
+                return claimedPerSearchKey2;
+            }
+
+            @Override
+            public int getMaxClaimRatePerSearchKey2() {
+                return claimRatePerSearchKey2;
+            }
+
+            @Override
+            public boolean isUsingKeysetPagination() {
+                return isUsingKeysetPagination;
+            }
+
             @Override
             public String getTableName() {
                 return "bus_events";
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestExponentialBackoffRetryPolicy {
+
+    @Test(groups = "fast")
+    public void testDisabled() {
+        final ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(0, 60000, new Random(0));
+        assertFalse(policy.isEnabled());
+        for (int i = 1; i < 10; i++) {
+            assertEquals(policy.getRetryDelayMs(i), 0);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBackoffWithJitter() {
+        final ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(1000, 60000, new Random(0));
+        assertTrue(policy.isEnabled());
+
+        long expectedMaxDelayMs = 1000;
+        for (int i = 1; i < 100; i++) {
+            final long delayMs = policy.getRetryDelayMs(i);
+            assertTrue(delayMs >= expectedMaxDelayMs / 2, "errorCount = " + i + ", delay = " + delayMs);
+            assertTrue(delayMs <= expectedMaxDelayMs, "errorCount = " + i + ", delay = " + delayMs);
+            expectedMaxDelayMs = Math.min(expectedMaxDelayMs * 2, 60000);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.queue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+public class TestFileOutboundSink {
+
+    private static final String RELAY_NAME = "test-relay";
+
+    private File directory;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void afterMethod() throws Exception {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testCheckpointAfterPartialWrite() throws Exception {
+        final FileOutboundSink sink = new FileOutboundSink(directory);
+        Assert.assertNull(sink.getLastPublishedRecordId(RELAY_NAME));
+
+        sink.publish(RELAY_NAME, ImmutableList.<BusEventModelDao>of(createEntry(1L), createEntry(2L)));
+        sink.publish(RELAY_NAME, ImmutableList.<BusEventModelDao>of(createEntry(5L)));
+        Assert.assertEquals(sink.getLastPublishedRecordId(RELAY_NAME), (Long) 5L);
+
+        // Crash in the middle of a publish
+        final FileOutputStream out = new FileOutputStream(sink.getFile(RELAY_NAME), true);
+        try {
+            out.write("6\t2015-01-01T00:00:00.000Z\tjava.lang.Str".getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        Assert.assertEquals(sink.getLastPublishedRecordId(RELAY_NAME), (Long) 5L);
+
+        sink.publish(RELAY_NAME, ImmutableList.<BusEventModelDao>of(createEntry(6L)));
+        final List<String> lines = Files.readLines(sink.getFile(RELAY_NAME), Charsets.UTF_8);
+        Assert.assertEquals(lines.size(), 4);
+        Assert.assertTrue(lines.get(3).startsWith("6\t"));
+        Assert.assertTrue(lines.get(3).endsWith("\t{\"id\":6}"));
+        Assert.assertEquals(sink.getLastPublishedRecordId(RELAY_NAME), (Long) 6L);
+    }
+
+    @Test(groups = "fast")
+    public void testCheckpointAfterCorruptedLine() throws Exception {
+        final FileOutboundSink sink = new FileOutboundSink(directory);
+        sink.publish(RELAY_NAME, ImmutableList.<BusEventModelDao>of(createEntry(1L), createEntry(2L)));
+
+        // Complete lines, but without a record id
+        final FileOutputStream out = new FileOutputStream(sink.getFile(RELAY_NAME), true);
+        try {
+            out.write("garbage\n\u0000\u0000\n".getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        Assert.assertEquals(sink.getLastPublishedRecordId(RELAY_NAME), (Long) 2L);
+        Assert.assertEquals(Files.readLines(sink.getFile(RELAY_NAME), Charsets.UTF_8).size(), 2);
+    }
+
+    private BusEventModelDao createEntry(final Long recordId) {
+        return new BusEventModelDao(recordId, "owner", null, new DateTime(DateTimeZone.UTC), null, PersistentQueueEntryLifecycleState.AVAILABLE,
+                                    String.class.getName(), "{\"id\":" + recordId + "}", 0L, UUID.randomUUID(), 1L, 2L);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.InMemoryPersistentBusSqlDao;
+import org.killbill.clock.ClockMock;
+import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.jdbi.v2.Transaction;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TestGroupCommitWriter {
+
+    private static final Long POISON_SEARCH_KEY1 = 5L;
+
+    @Test(groups = "fast")
+    public void testPoisonEntryOnlyFailsItsOwnCaller() throws Exception {
+        final PersistentBusConfig config = new ConfigurationObjectFactory(new Properties()).buildWithReplacements(PersistentBusConfig.class, ImmutableMap.<String, String>of("instanceName", "main"));
+        final CountDownLatch allEntriesSubmitted = new CountDownLatch(1);
+        final PoisonSqlDao sqlDao = new PoisonSqlDao(allEntriesSubmitted);
+        final ClockMock clock = new ClockMock();
+        final DBBackedQueue<BusEventModelDao> dao = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "groupCommitWriter", new MetricRegistry(), null);
+        final GroupCommitWriter<BusEventModelDao> writer = new GroupCommitWriter<BusEventModelDao>(dao, "groupCommitWriter", 100, 100, new MetricRegistry());
+        writer.start();
+        try {
+            // The first entry blocks the writer, so that all the other ones end up in the same group (with the poison entry)
+            final List<ListenableFuture<Long>> futures = new ArrayList<ListenableFuture<Long>>();
+            for (long i = 0; i < 10; i++) {
+                futures.add(writer.write(new BusEventModelDao("owner", clock.getUTCNow(), String.class.getName(), "json", UUID.randomUUID(), i, 1L)));
+            }
+            allEntriesSubmitted.countDown();
+
+            for (int i = 0; i < futures.size(); i++) {
+                if (POISON_SEARCH_KEY1.equals((long) i)) {
+                    try {
+                        futures.get(i).get(10, TimeUnit.SECONDS);
+                        Assert.fail("Poison entry should have failed");
+                    } catch (final ExecutionException e) {
+                        Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+                    }
+                } else {
+                    Assert.assertNotNull(futures.get(i).get(10, TimeUnit.SECONDS));
+                }
+            }
+            Assert.assertTrue(sqlDao.getMaxGroupSize() > 1);
+            Assert.assertEquals(sqlDao.getReadyEntries(clock.getUTCNow().toDate(), 100, null, config.getTableName()).size(), 9);
+        } finally {
+            writer.stop();
+        }
+    }
+
+    private static final class PoisonSqlDao extends InMemoryPersistentBusSqlDao {
+
+        private final CountDownLatch allEntriesSubmitted;
+
+        private int currentGroupSize;
+        private int maxGroupSize;
+
+        private PoisonSqlDao(final CountDownLatch allEntriesSubmitted) {
+            super(null, null);
+            this.allEntriesSubmitted = allEntriesSubmitted;
+        }
+
+        @Override
+        public <ReturnType> ReturnType inTransaction(final Transaction<ReturnType, QueueSqlDao<BusEventModelDao>> transaction) {
+            currentGroupSize = 0;
+            return super.inTransaction(transaction);
+        }
+
+        @Override
+        public void insertEntry(final BusEventModelDao evt, final String tableName) {
+            if (evt.getSearchKey1() == 0L) {
+                try {
+                    allEntriesSubmitted.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (POISON_SEARCH_KEY1.equals(evt.getSearchKey1())) {
+                throw new IllegalArgumentException("Poison entry");
+            }
+            super.insertEntry(evt, tableName);
+            maxGroupSize = Math.max(maxGroupSize, ++currentGroupSize);
+        }
+
+        private int getMaxGroupSize() {
+            return maxGroupSize;
+        }
+    }
+}
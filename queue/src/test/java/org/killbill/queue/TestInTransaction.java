@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.UUID;
+
+import org.killbill.TestSetup;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.queue.InTransaction.InTransactionHandler;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestInTransaction extends TestSetup {
+
+    @Test(groups = "slow")
+    public void testSqlDaoBoundToClientConnection() throws Exception {
+        final String tableName = persistentBusConfig.getTableName();
+        final InTransactionHandler<PersistentBusSqlDao, PersistentBusSqlDao> insertEntry = new InTransactionHandler<PersistentBusSqlDao, PersistentBusSqlDao>() {
+            @Override
+            public PersistentBusSqlDao withSqlDao(final PersistentBusSqlDao transactional) throws Exception {
+                transactional.insertEntry(new BusEventModelDao("owner", clock.getUTCNow(), String.class.getName(), "{}", UUID.randomUUID(), 1L, 2L), tableName);
+                Assert.assertTrue(transactional.getMaxRecordId(tableName) > 0);
+                return transactional;
+            }
+        };
+        final InTransactionHandler<PersistentBusSqlDao, Long> getMaxRecordId = new InTransactionHandler<PersistentBusSqlDao, Long>() {
+            @Override
+            public Long withSqlDao(final PersistentBusSqlDao transactional) throws Exception {
+                return transactional.getMaxRecordId(tableName);
+            }
+        };
+
+        final Handle handle = dbi.open();
+        final PersistentBusSqlDao firstSqlDao;
+        try {
+            handle.begin();
+            firstSqlDao = InTransaction.execute(handle.getConnection(), insertEntry, PersistentBusSqlDao.class);
+            // The insertion was part of the client transaction
+            handle.rollback();
+        } finally {
+            handle.close();
+        }
+
+        final Handle otherHandle = dbi.open();
+        try {
+            Assert.assertEquals(InTransaction.execute(otherHandle.getConnection(), getMaxRecordId, PersistentBusSqlDao.class), (Long) 0L);
+            // The SqlDao attachment is reused
+            Assert.assertSame(InTransaction.execute(otherHandle.getConnection(), insertEntry, PersistentBusSqlDao.class), firstSqlDao);
+            Assert.assertTrue(InTransaction.execute(otherHandle.getConnection(), getMaxRecordId, PersistentBusSqlDao.class) > 0);
+        } finally {
+            otherHandle.close();
+        }
+
+        // No connection outside of InTransaction#execute
+        try {
+            firstSqlDao.getMaxRecordId(tableName);
+            Assert.fail();
+        } catch (final RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("No connection bound"), e.getMessage());
+        }
+    }
+}
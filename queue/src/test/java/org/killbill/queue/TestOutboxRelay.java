@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.queue;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.bus.DefaultPersistentBus;
+import org.killbill.bus.InMemoryPersistentBus;
+import org.killbill.bus.TestEventBusBase.MyEvent;
+import org.killbill.bus.TestEventBusBase.MyEventHandler;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.InMemoryPersistentBusSqlDao;
+import org.killbill.clock.ClockMock;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.dao.EventEntryModelDao;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+
+public class TestOutboxRelay {
+
+    private static final String RELAY_NAME = "bus-bus_events-outbox";
+
+    @Test(groups = "fast")
+    public void testRelayResumesFromSinkCheckpoint() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.persistent.bus.main.sleep", "10");
+        properties.setProperty("org.killbill.persistent.bus.main.nbThreads", "1");
+        properties.setProperty("org.killbill.persistent.bus.main.outbox.batchSize", "7");
+        properties.setProperty("org.killbill.persistent.bus.main.outbox.pollInterval", "10ms");
+        properties.setProperty("org.killbill.persistent.bus.main.outbox.settleDelay", "0s");
+        final PersistentBusConfig config = new ConfigurationObjectFactory(properties).buildWithReplacements(PersistentBusConfig.class, ImmutableMap.<String, String>of("instanceName", "main"));
+        final DefaultPersistentBus busService = new InMemoryPersistentBus(config);
+        busService.start();
+
+        final InMemoryOutboundSink sink = new InMemoryOutboundSink();
+        try {
+            // Entries are relayed once processed
+            final MyEventHandler handler = new MyEventHandler(10, 0);
+            busService.register(handler);
+            for (int i = 0; i < 10; i++) {
+                busService.post(new MyEvent("processed", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+            }
+            Assert.assertTrue(handler.waitForCompletion(10000));
+            busService.unregister(handler);
+
+            OutboxRelay<BusEventModelDao> relay = busService.createOutboxRelay(sink);
+            relay.start();
+            Assert.assertTrue(sink.waitForPublishedEntries(RELAY_NAME, 10, 10000));
+            relay.stop();
+
+            for (int i = 0; i < 15; i++) {
+                busService.post(new MyEvent("new", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+            }
+            relay = busService.createOutboxRelay(sink);
+            relay.start();
+            Assert.assertTrue(sink.waitForPublishedEntries(RELAY_NAME, 25, 10000));
+            relay.stop();
+        } finally {
+            busService.stop();
+        }
+
+        final List<EventEntryModelDao> publishedEntries = sink.getPublishedEntries(RELAY_NAME);
+        Assert.assertEquals(publishedEntries.size(), 25);
+        for (int i = 1; i < publishedEntries.size(); i++) {
+            Assert.assertTrue(publishedEntries.get(i).getRecordId() > publishedEntries.get(i - 1).getRecordId());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRelayWaitsForRecordIdGaps() throws Exception {
+        final PersistentBusConfig config = new ConfigurationObjectFactory(new Properties()).buildWithReplacements(PersistentBusConfig.class, ImmutableMap.<String, String>of("instanceName", "main"));
+        final InMemoryPersistentBusSqlDao sqlDao = new InMemoryPersistentBusSqlDao(config.getHistoryTableName(), null);
+        final ClockMock clock = new ClockMock();
+        final DBBackedQueue<BusEventModelDao> dao = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "outboxRelay", new MetricRegistry(), null);
+        final InMemoryOutboundSink sink = new InMemoryOutboundSink();
+        final OutboxRelay<BusEventModelDao> relay = new OutboxRelay<BusEventModelDao>(dao, RELAY_NAME, sink, clock, 100, 10, 60000, new MetricRegistry());
+
+        // Entry 3 hasn't committed yet
+        insertEntry(sqlDao, 1L, config.getTableName());
+        insertEntry(sqlDao, 2L, config.getHistoryTableName());
+        insertEntry(sqlDao, 4L, config.getTableName());
+        relay.start();
+        try {
+            Assert.assertTrue(sink.waitForPublishedEntries(RELAY_NAME, 2, 10000));
+            Thread.sleep(100);
+            Assert.assertEquals(sink.getPublishedEntries(RELAY_NAME).size(), 2);
+
+            // Once it has committed, both entries are published right away
+            insertEntry(sqlDao, 3L, config.getTableName());
+            Assert.assertTrue(sink.waitForPublishedEntries(RELAY_NAME, 4, 10000));
+
+            // Entry 5 was rolled back: entry 6 is only published after the settle delay
+            insertEntry(sqlDao, 6L, config.getTableName());
+            Thread.sleep(100);
+            Assert.assertEquals(sink.getPublishedEntries(RELAY_NAME).size(), 4);
+            clock.addDeltaFromReality(60000);
+            Assert.assertTrue(sink.waitForPublishedEntries(RELAY_NAME, 5, 10000));
+        } finally {
+            relay.stop();
+        }
+
+        final List<EventEntryModelDao> publishedEntries = sink.getPublishedEntries(RELAY_NAME);
+        for (int i = 0; i < publishedEntries.size(); i++) {
+            Assert.assertEquals(publishedEntries.get(i).getRecordId(), (Long) (i < 4 ? i + 1L : 6L));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRelayWaitsForPendingEntries() throws Exception {
+        final PersistentBusConfig config = new ConfigurationObjectFactory(new Properties()).buildWithReplacements(PersistentBusConfig.class, ImmutableMap.<String, String>of("instanceName", "main"));
+        final InMemoryPersistentBusSqlDao sqlDao = new InMemoryPersistentBusSqlDao(config.getHistoryTableName(), null);
+        final ClockMock clock = new ClockMock();
+        final DBBackedQueue<BusEventModelDao> dao = new DBBackedQueue<BusEventModelDao>(clock, sqlDao, config, "outboxRelay", new MetricRegistry(), null);
+        final InMemoryOutboundSink sink = new InMemoryOutboundSink();
+        final OutboxRelay<BusEventModelDao> relay = new OutboxRelay<BusEventModelDao>(dao, RELAY_NAME, sink, clock, 100, 10, 60000, new MetricRegistry());
+
+        // Entry 2 hasn't been processed yet
+        insertEntry(sqlDao, 1L, config.getHistoryTableName());
+        insertEntry(sqlDao, 2L, PersistentQueueEntryLifecycleState.AVAILABLE, config.getTableName());
+        insertEntry(sqlDao, 3L, config.getHistoryTableName());
+        relay.start();
+        try {
+            Assert.assertTrue(sink.waitForPublishedEntries(RELAY_NAME, 1, 10000));
+            Thread.sleep(100);
+            Assert.assertEquals(sink.getPublishedEntries(RELAY_NAME).size(), 1);
+
+            // Once processed, both entries are published
+            sqlDao.removeEntry(2L, config.getTableName());
+            insertEntry(sqlDao, 2L, config.getHistoryTableName());
+            Assert.assertTrue(sink.waitForPublishedEntries(RELAY_NAME, 3, 10000));
+        } finally {
+            relay.stop();
+        }
+
+        final List<EventEntryModelDao> publishedEntries = sink.getPublishedEntries(RELAY_NAME);
+        for (int i = 0; i < publishedEntries.size(); i++) {
+            Assert.assertEquals(publishedEntries.get(i).getRecordId(), (Long) (i + 1L));
+            Assert.assertEquals(publishedEntries.get(i).getProcessingState(), PersistentQueueEntryLifecycleState.PROCESSED);
+        }
+    }
+
+    private void insertEntry(final InMemoryPersistentBusSqlDao sqlDao, final Long recordId, final String tableName) {
+        insertEntry(sqlDao, recordId, PersistentQueueEntryLifecycleState.PROCESSED, tableName);
+    }
+
+    private void insertEntry(final InMemoryPersistentBusSqlDao sqlDao, final Long recordId, final PersistentQueueEntryLifecycleState processingState, final String tableName) {
+        sqlDao.insertEntryWithRecordId(new BusEventModelDao(recordId, "owner", null, new DateTime(DateTimeZone.UTC), null, processingState,
+                                                            String.class.getName(), "{}", 0L, UUID.randomUUID(), recordId, 2L), recordId, tableName);
+    }
+}
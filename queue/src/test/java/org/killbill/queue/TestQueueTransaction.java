@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.TestSetup;
+import org.killbill.bus.DefaultPersistentBus;
+import org.killbill.bus.TestEventBusBase.MyEvent;
+import org.killbill.bus.TestEventBusBase.MyEventHandler;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.notificationq.DefaultNotificationQueueService;
+import org.killbill.notificationq.DefaultUUIDNotificationKey;
+import org.killbill.notificationq.api.NotificationEvent;
+import org.killbill.notificationq.api.NotificationQueue;
+import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class TestQueueTransaction extends TestSetup {
+
+    private static final NotificationQueueHandler NO_OP_HANDLER = new NotificationQueueHandler() {
+        @Override
+        public void handleReadyNotification(final NotificationEvent eventJson, final DateTime eventDateTime, final UUID userToken, final Long searchKey1, final Long searchKey2) {
+        }
+    };
+
+    private DefaultNotificationQueueService queueService;
+
+    @Override
+    @BeforeClass(groups = "slow")
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+        queueService = new DefaultNotificationQueueService(getDBI(), clock, getNotificationQueueConfig(), metricRegistry);
+    }
+
+    @Test(groups = "slow")
+    public void testNotificationsFlushedBeforeCommit() throws Exception {
+        // Both queues share the same table: their notifications are written together
+        final NotificationQueue fred = queueService.createNotificationQueue("TransactionTest", "Fred", NO_OP_HANDLER);
+        final NotificationQueue barney = queueService.createNotificationQueue("TransactionTest", "Barney", NO_OP_HANDLER);
+        final DateTime readyTime = clock.getUTCNow().plusDays(1);
+
+        final Handle handle = dbi.open();
+        try {
+            handle.begin();
+            final QueueTransaction queueTransaction = new QueueTransaction(handle.getConnection());
+            for (int i = 0; i < 3; i++) {
+                queueTransaction.recordFutureNotification(fred, readyTime, new DefaultUUIDNotificationKey(UUID.randomUUID()), UUID.randomUUID(), 1L, 2L);
+                queueTransaction.recordFutureNotification(barney, readyTime, new DefaultUUIDNotificationKey(UUID.randomUUID()), UUID.randomUUID(), 1L, 2L);
+            }
+            Assert.assertEquals(queueTransaction.getNbPendingEntries(), 6);
+
+            queueTransaction.flush();
+            Assert.assertEquals(queueTransaction.getNbPendingEntries(), 0);
+            handle.commit();
+        } finally {
+            handle.close();
+        }
+
+        Assert.assertEquals(fred.getFutureNotificationForSearchKeys(1L, 2L).size(), 3);
+        Assert.assertEquals(barney.getFutureNotificationForSearchKeys(1L, 2L).size(), 3);
+    }
+
+    @Test(groups = "slow")
+    public void testNotificationsRolledBack() throws Exception {
+        final NotificationQueue wilma = queueService.createNotificationQueue("TransactionTest", "Wilma", NO_OP_HANDLER);
+
+        final Handle handle = dbi.open();
+        try {
+            handle.begin();
+            final QueueTransaction queueTransaction = new QueueTransaction(handle.getConnection());
+            queueTransaction.recordFutureNotification(wilma, clock.getUTCNow().plusDays(1), new DefaultUUIDNotificationKey(UUID.randomUUID()), UUID.randomUUID(), 1L, 2L);
+            queueTransaction.flush();
+            handle.rollback();
+        } finally {
+            handle.close();
+        }
+
+        Assert.assertEquals(wilma.getFutureNotificationForSearchKeys(1L, 2L).size(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testBusEventsDispatchedAfterCommit() throws Exception {
+        postAndWaitForDispatch(getPersistentBusConfig());
+    }
+
+    @Test(groups = "slow")
+    public void testBusEventsDispatchedAfterCommitWithInflightQueue() throws Exception {
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("org.killbill.persistent.bus.main.useInflightQ", "true");
+        final PersistentBusConfig config = new ConfigurationObjectFactory(properties).buildWithReplacements(PersistentBusConfig.class,
+                                                                                                            ImmutableMap.<String, String>of("instanceName", "main"));
+        Assert.assertTrue(config.isUsingInflightQueue());
+        postAndWaitForDispatch(config);
+    }
+
+    private void postAndWaitForDispatch(final PersistentBusConfig config) throws Exception {
+        final DefaultPersistentBus bus = new DefaultPersistentBus(getDBI(), clock, config, metricRegistry, databaseTransactionNotificationApi);
+        final MyEventHandler handler = new MyEventHandler(5, 0);
+        bus.start();
+        try {
+            bus.register(handler);
+
+            final Handle handle = dbi.open();
+            try {
+                handle.begin();
+                final QueueTransaction queueTransaction = new QueueTransaction(handle.getConnection());
+                for (int i = 0; i < 5; i++) {
+                    queueTransaction.post(bus, new MyEvent("Batched", (long) i, "MY_EVENT", 1L, 2L, UUID.randomUUID()));
+                }
+                queueTransaction.flush();
+                handle.commit();
+            } finally {
+                handle.close();
+            }
+
+            Assert.assertTrue(handler.waitForCompletion(10000));
+        } finally {
+            bus.stop();
+        }
+    }
+}
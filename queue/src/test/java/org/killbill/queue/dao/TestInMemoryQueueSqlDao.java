@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue.dao;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.InMemoryPersistentBusSqlDao;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.skife.jdbi.v2.exceptions.TransactionException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInMemoryQueueSqlDao {
+
+    private static final String TABLE_NAME = "bus_events";
+    private static final String HISTORY_TABLE_NAME = "bus_events_history";
+
+    private InMemoryPersistentBusSqlDao sqlDao;
+    private ExecutorService executor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        sqlDao = new InMemoryPersistentBusSqlDao(HISTORY_TABLE_NAME, null);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testUncommittedChangesAreNotVisible() throws Exception {
+        sqlDao.begin();
+        insertEntry(1L);
+        insertEntry(2L);
+        Assert.assertEquals(countReadyEntries(), 2);
+
+        // Other threads can query while the transaction is in progress, but don't see its changes
+        Assert.assertEquals(countReadyEntriesFromOtherThread().get(5, TimeUnit.SECONDS), (Integer) 0);
+
+        sqlDao.commit();
+        Assert.assertEquals(countReadyEntriesFromOtherThread().get(5, TimeUnit.SECONDS), (Integer) 2);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentClaimWaitsForTransaction() throws Exception {
+        insertEntry(1L);
+        final Long recordId = sqlDao.getLastInsertId();
+
+        sqlDao.begin();
+        Assert.assertEquals(claimEntry(recordId), 1);
+
+        final Future<Integer> concurrentClaim = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return claimEntry(recordId);
+            }
+        });
+        try {
+            concurrentClaim.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("The claim should wait for the row lock");
+        } catch (final TimeoutException ignored) {
+        }
+
+        sqlDao.commit();
+        // The entry was claimed in the meantime
+        Assert.assertEquals(concurrentClaim.get(5, TimeUnit.SECONDS), (Integer) 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRollbackToSavepoint() {
+        sqlDao.begin();
+        insertEntry(1L);
+        sqlDao.checkpoint("first");
+        insertEntry(2L);
+        sqlDao.checkpoint("second");
+        insertEntry(3L);
+        Assert.assertEquals(countReadyEntries(), 3);
+
+        sqlDao.rollback("first");
+        Assert.assertEquals(countReadyEntries(), 1);
+
+        // The savepoint survives the rollback, the later ones don't
+        insertEntry(4L);
+        sqlDao.rollback("first");
+        Assert.assertEquals(countReadyEntries(), 1);
+        try {
+            sqlDao.rollback("second");
+            Assert.fail("Savepoint should have been discarded");
+        } catch (final TransactionException ignored) {
+        }
+
+        insertEntry(5L);
+        sqlDao.commit();
+        Assert.assertEquals(countReadyEntries(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testReleaseSavepoint() {
+        sqlDao.begin();
+        insertEntry(1L);
+        sqlDao.checkpoint("first");
+        insertEntry(2L);
+        sqlDao.checkpoint("second");
+        sqlDao.release("first");
+        try {
+            sqlDao.rollback("second");
+            Assert.fail("Savepoint should have been released");
+        } catch (final TransactionException ignored) {
+        }
+
+        // Releasing doesn't undo anything, but the outer transaction can still roll everything back
+        Assert.assertEquals(countReadyEntries(), 2);
+        sqlDao.rollback();
+        Assert.assertEquals(countReadyEntries(), 0);
+    }
+
+    @Test(groups = "fast", expectedExceptions = TransactionException.class)
+    public void testSavepointOutsideOfTransaction() {
+        sqlDao.checkpoint("first");
+    }
+
+    @Test(groups = "fast")
+    public void testHistoryIsOnlyEvictedOnceRead() {
+        sqlDao.updateHistoryReader("relay", 10L);
+        for (long recordId = 1; recordId <= 10020; recordId++) {
+            sqlDao.insertEntryWithRecordId(new BusEventModelDao(recordId, "owner", null, new DateTime(DateTimeZone.UTC), null, PersistentQueueEntryLifecycleState.PROCESSED,
+                                                                String.class.getName(), "json", 0L, UUID.randomUUID(), recordId, 1L), recordId, HISTORY_TABLE_NAME);
+        }
+        // Only the entries already read are evicted
+        Assert.assertEquals(sqlDao.getEntriesFromRecordId(0L, 20000, HISTORY_TABLE_NAME).get(0).getRecordId(), (Long) 11L);
+
+        sqlDao.removeHistoryReader("relay");
+        sqlDao.insertEntryWithRecordId(new BusEventModelDao(10021L, "owner", null, new DateTime(DateTimeZone.UTC), null, PersistentQueueEntryLifecycleState.PROCESSED,
+                                                            String.class.getName(), "json", 0L, UUID.randomUUID(), 10021L, 1L), 10021L, HISTORY_TABLE_NAME);
+        Assert.assertEquals(sqlDao.getEntriesFromRecordId(0L, 20000, HISTORY_TABLE_NAME).get(0).getRecordId(), (Long) 12L);
+    }
+
+    private void insertEntry(final Long searchKey1) {
+        sqlDao.insertEntry(new BusEventModelDao("owner", new DateTime(DateTimeZone.UTC), String.class.getName(), "json", UUID.randomUUID(), searchKey1, 1L), TABLE_NAME);
+    }
+
+    private int claimEntry(final Long recordId) {
+        final Date now = new Date();
+        return sqlDao.claimEntries(Collections.singletonList(recordId), now, "owner", new Date(now.getTime() + 60000L), TABLE_NAME);
+    }
+
+    private Future<Integer> countReadyEntriesFromOtherThread() {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return countReadyEntries();
+            }
+        });
+    }
+
+    private int countReadyEntries() {
+        return sqlDao.getReadyEntries(new Date(), 100, null, TABLE_NAME).size();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.killbill.TestSetup;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.commons.jdbi.warmup.DatabaseWarmup;
+import org.killbill.notificationq.dao.NotificationSqlDao;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestQueueSqlDaoWarmup extends TestSetup {
+
+    @Test(groups = "slow")
+    public void testStatementsPrepare() throws Exception {
+        final DatabaseWarmup databaseWarmup = new DatabaseWarmup("queue");
+        QueueSqlDaoWarmup.addSqlDao(databaseWarmup, PersistentBusSqlDao.class, persistentBusConfig);
+        QueueSqlDaoWarmup.addSqlDao(databaseWarmup, NotificationSqlDao.class, notificationQueueConfig);
+
+        final List<String> failedStatements = new ArrayList<String>();
+        final Handle handle = dbi.open();
+        try {
+            final Connection connection = handle.getConnection();
+            for (final String sql : databaseWarmup.getStatements()) {
+                try {
+                    connection.prepareStatement(sql).close();
+                } catch (final SQLException e) {
+                    failedStatements.add(sql);
+                }
+            }
+        } finally {
+            handle.close();
+        }
+        // All the statements are rendered for the configured tables, and are valid SQL
+        Assert.assertTrue(databaseWarmup.getStatements().size() > 0);
+        // No dead letter table configured by default
+        Assert.assertNull(persistentBusConfig.getDeadLetterTableName());
+        for (final String sql : databaseWarmup.getStatements()) {
+            Assert.assertFalse(sql.contains("dead_letter"), sql);
+        }
+        Assert.assertEquals(failedStatements, new ArrayList<String>());
+    }
+}
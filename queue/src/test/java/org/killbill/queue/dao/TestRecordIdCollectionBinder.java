@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestRecordIdCollectionBinder {
+
+    @Test(groups = "fast")
+    public void testPadEmpty() {
+        Assert.assertEquals(InListPadding.padToPowerOfTwo(ImmutableList.<Long>of(), null), ImmutableList.<Long>of());
+    }
+
+    @Test(groups = "fast")
+    public void testPadSingleId() {
+        Assert.assertEquals(InListPadding.padToPowerOfTwo(ImmutableList.<Long>of(7L), null), ImmutableList.<Long>of(7L));
+    }
+
+    @Test(groups = "fast")
+    public void testPowerOfTwoIsNotPadded() {
+        for (int k = 1; k <= 10; k++) {
+            final List<Long> ids = createIds(1 << k);
+            Assert.assertEquals(InListPadding.padToPowerOfTwo(ids, null), ids);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testPadWithLastId() {
+        for (int k = 0; k <= 10; k++) {
+            final List<Long> ids = createIds((1 << k) + 1);
+            final List<Long> paddedIds = InListPadding.padToPowerOfTwo(ids, null);
+
+            Assert.assertEquals(paddedIds.size(), 1 << (k + 1));
+            Assert.assertEquals(paddedIds.subList(0, ids.size()), ids);
+            for (final Long id : paddedIds.subList(ids.size(), paddedIds.size())) {
+                Assert.assertEquals(id, ids.get(ids.size() - 1));
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testPadWithPaddingValue() {
+        final List<Long> ids = createIds(5);
+        final List<Long> paddedIds = InListPadding.padToPowerOfTwo(ids, -1L);
+
+        Assert.assertEquals(paddedIds.subList(0, ids.size()), ids);
+        Assert.assertEquals(paddedIds.subList(ids.size(), paddedIds.size()), ImmutableList.<Long>of(-1L, -1L, -1L));
+    }
+
+    private List<Long> createIds(final int size) {
+        final List<Long> ids = new ArrayList<Long>(size);
+        for (long i = 0; i < size; i++) {
+            ids.add(100L + i);
+        }
+        return ids;
+    }
+}
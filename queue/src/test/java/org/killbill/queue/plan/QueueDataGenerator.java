@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.plan;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Random;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+
+//
+// Generates realistic queue tables: mostly available entries, a few in processing, processed (sticky) and failed ones,
+// search keys spread over many accounts and, for notifications, effective dates spread over the past month and next year.
+// The generation is deterministic for a given seed.
+//
+public class QueueDataGenerator {
+
+    private static final String[] OWNERS = {"host-1", "host-2", "host-3", "host-4"};
+    private static final int BATCH_SIZE = 5000;
+
+    private final Random random;
+    private final DateTime now;
+    private final int nbAccounts;
+
+    public QueueDataGenerator(final long seed, final DateTime now, final int nbAccounts) {
+        this.random = new Random(seed);
+        this.now = now;
+        this.nbAccounts = nbAccounts;
+    }
+
+    public void generateBusEvents(final Connection connection, final String tableName, final int nbRows) throws SQLException {
+        generate(connection, tableName, nbRows, false);
+    }
+
+    public void generateNotifications(final Connection connection, final String tableName, final int nbRows) throws SQLException {
+        generate(connection, tableName, nbRows, true);
+    }
+
+    private void generate(final Connection connection, final String tableName, final int nbRows, final boolean isNotification) throws SQLException {
+        final String sql = "insert into " + tableName + " (class_name, event_json, user_token, created_date, creating_owner, processing_owner, " +
+                           "processing_available_date, processing_state, error_count, search_key1, search_key2" +
+                           (isNotification ? ", queue_name, effective_date, future_user_token) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)" : ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+        final boolean wasAutoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            for (int i = 0; i < nbRows; i++) {
+                bindRow(statement, i, nbRows, isNotification);
+                statement.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                    connection.commit();
+                }
+            }
+            statement.executeBatch();
+            connection.commit();
+        } finally {
+            statement.close();
+            connection.setAutoCommit(wasAutoCommit);
+        }
+    }
+
+    private void bindRow(final PreparedStatement statement, final int i, final int nbRows, final boolean isNotification) throws SQLException {
+        // Entries are inserted in creation order, one second apart
+        final DateTime createdDate = now.minusSeconds(nbRows - i);
+        final String owner = OWNERS[random.nextInt(OWNERS.length)];
+        final double stateDice = random.nextDouble();
+
+        statement.setString(1, "org.killbill.queue.plan.GeneratedEvent");
+        statement.setString(2, "{\"accountId\":\"" + UUID.randomUUID() + "\",\"amount\":" + random.nextInt(10000) + "}");
+        statement.setString(3, UUID.randomUUID().toString());
+        statement.setTimestamp(4, new Timestamp(createdDate.getMillis()));
+        statement.setString(5, owner);
+        if (stateDice < 0.94) {
+            statement.setNull(6, Types.CHAR);
+            statement.setNull(7, Types.TIMESTAMP);
+            statement.setString(8, PersistentQueueEntryLifecycleState.AVAILABLE.name());
+        } else if (stateDice < 0.95) {
+            statement.setString(6, owner);
+            statement.setTimestamp(7, new Timestamp(now.plusMinutes(5).getMillis()));
+            statement.setString(8, PersistentQueueEntryLifecycleState.IN_PROCESSING.name());
+        } else if (stateDice < 0.99) {
+            statement.setString(6, owner);
+            statement.setTimestamp(7, new Timestamp(createdDate.getMillis()));
+            statement.setString(8, PersistentQueueEntryLifecycleState.PROCESSED.name());
+        } else {
+            statement.setString(6, owner);
+            statement.setTimestamp(7, new Timestamp(createdDate.getMillis()));
+            statement.setString(8, PersistentQueueEntryLifecycleState.FAILED.name());
+        }
+        statement.setLong(9, stateDice < 0.99 ? 0 : 3);
+        statement.setLong(10, 1 + random.nextInt(10));
+        statement.setLong(11, 1 + random.nextInt(nbAccounts));
+
+        if (isNotification) {
+            final DateTime effectiveDate = now.plusDays(random.nextInt(395) - 30).plusSeconds(random.nextInt(86400));
+            statement.setString(12, "svc:queue-" + random.nextInt(10));
+            statement.setTimestamp(13, new Timestamp(effectiveDate.getMillis()));
+            statement.setString(14, UUID.randomUUID().toString());
+        }
+    }
+}
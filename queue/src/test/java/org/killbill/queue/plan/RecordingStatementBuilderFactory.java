@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.plan;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.skife.jdbi.v2.DefaultStatementBuilder;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.StatementBuilder;
+import org.skife.jdbi.v2.tweak.StatementBuilderFactory;
+
+// Keeps track of the last statement prepared through jdbi (SQL and bound parameters), so that it can be explained
+public class RecordingStatementBuilderFactory implements StatementBuilderFactory {
+
+    private final StatementBuilder delegate = new DefaultStatementBuilder();
+
+    private volatile RecordedStatement lastStatement;
+
+    @Override
+    public StatementBuilder createStatementBuilder(final Connection connection) {
+        return new StatementBuilder() {
+            @Override
+            public PreparedStatement create(final Connection conn, final String sql, final StatementContext ctx) throws SQLException {
+                final RecordedStatement recordedStatement = new RecordedStatement(sql);
+                lastStatement = recordedStatement;
+                return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                                  new Class[]{PreparedStatement.class},
+                                                                  new RecordingHandler(delegate.create(conn, sql, ctx), recordedStatement));
+            }
+
+            @Override
+            public CallableStatement createCall(final Connection conn, final String sql, final StatementContext ctx) throws SQLException {
+                return delegate.createCall(conn, sql, ctx);
+            }
+
+            @Override
+            public void close(final Connection conn, final String sql, final Statement stmt) throws SQLException {
+                delegate.close(conn, sql, stmt);
+            }
+
+            @Override
+            public void close(final Connection conn) {
+                delegate.close(conn);
+            }
+        };
+    }
+
+    public RecordedStatement getLastStatement() {
+        return lastStatement;
+    }
+
+    public static final class RecordedStatement {
+
+        private final String sql;
+        // Parameter index -> setter invocation
+        private final Map<Integer, Object[]> parameters = new TreeMap<Integer, Object[]>();
+
+        private RecordedStatement(final String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        // Bind the same values on the target statement, skipping the first nbSkippedParameters ones
+        public void replay(final PreparedStatement target, final int nbSkippedParameters) throws SQLException {
+            for (final Map.Entry<Integer, Object[]> entry : parameters.entrySet()) {
+                final int index = entry.getKey() - nbSkippedParameters;
+                if (index < 1) {
+                    continue;
+                }
+
+                final Method setter = (Method) entry.getValue()[0];
+                final Object[] args = ((Object[]) entry.getValue()[1]).clone();
+                args[0] = index;
+                try {
+                    setter.invoke(target, args);
+                } catch (final IllegalAccessException e) {
+                    throw new SQLException(e);
+                } catch (final InvocationTargetException e) {
+                    throw new SQLException(e.getCause());
+                }
+            }
+        }
+
+        private void record(final Method setter, final Object[] args) {
+            parameters.put((Integer) args[0], new Object[]{setter, args});
+        }
+    }
+
+    private static final class RecordingHandler implements InvocationHandler {
+
+        private final PreparedStatement target;
+        private final RecordedStatement recordedStatement;
+
+        private RecordingHandler(final PreparedStatement target, final RecordedStatement recordedStatement) {
+            this.target = target;
+            this.recordedStatement = recordedStatement;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (method.getName().startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                recordedStatement.record(method, args);
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
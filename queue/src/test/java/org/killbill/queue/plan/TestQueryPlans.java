@@ -0,0 +1,412 @@
+/*
+ * Copyright 2015 Groupon, Inc
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.plan;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.killbill.TestSetup;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.notificationq.dao.NotificationSqlDao;
+import org.killbill.queue.plan.RecordingStatementBuilderFactory.RecordedStatement;
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Query plan regression harness for the hot queue queries.
+ * <p/>
+ * The queue tables are seeded with a realistic volume of entries, each query is run through its SqlDao (so the
+ * rendered template and bound values are the ones used in production), then explained: the plan should not scan the
+ * whole table, nor sort the rows when the template relies on an index for the ordering. Each query is also timed.
+ * <p/>
+ * Run with -Ptest-stress (embedded MySQL). The volume is controlled by -Dorg.killbill.queue.plan.nbRows (per table).
+ */
+public class TestQueryPlans extends TestSetup {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestQueryPlans.class);
+
+    private static final int NB_ROWS = Integer.getInteger("org.killbill.queue.plan.nbRows", 1000000);
+    private static final int NB_TIMED_ITERATIONS = Integer.getInteger("org.killbill.queue.plan.nbIterations", 10);
+
+    private static final String PRIMARY_KEY = "primary";
+
+    private static final Pattern MYSQL_UPDATE_PATTERN = Pattern.compile("^\\s*update\\s+(\\S+)\\s+set\\s+(.*?)\\s+where\\s+(.*)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern H2_INDEX_PATTERN = Pattern.compile("/\\*\\s*PUBLIC\\.([A-Za-z0-9_]+)[:\\s]");
+
+    private final RecordingStatementBuilderFactory recordingStatementBuilderFactory = new RecordingStatementBuilderFactory();
+
+    private boolean isMySQL;
+    private PersistentBusSqlDao busSqlDao;
+    private NotificationSqlDao notificationSqlDao;
+
+    @Override
+    @BeforeClass(groups = "stress")
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        final QueueDataGenerator generator = new QueueDataGenerator(42L, clock.getUTCNow(), Math.max(1, NB_ROWS / 10));
+        final Handle handle = dbi.open();
+        try {
+            final Connection connection = handle.getConnection();
+            isMySQL = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ENGLISH).contains("mysql");
+
+            final long startNanos = System.nanoTime();
+            generator.generateBusEvents(connection, persistentBusConfig.getTableName(), NB_ROWS);
+            generator.generateNotifications(connection, notificationQueueConfig.getTableName(), NB_ROWS);
+            handle.execute(isMySQL ? "analyze table " + persistentBusConfig.getTableName() + ", " + notificationQueueConfig.getTableName() : "analyze");
+            logger.info("Generated {} entries per table in {} s", NB_ROWS, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        } finally {
+            handle.close();
+        }
+
+        dbi.setStatementBuilderFactory(recordingStatementBuilderFactory);
+        busSqlDao = dbi.onDemand(PersistentBusSqlDao.class);
+        notificationSqlDao = dbi.onDemand(NotificationSqlDao.class);
+    }
+
+    @Override
+    @AfterClass(groups = "stress")
+    public void afterClass() throws Exception {
+        super.afterClass();
+    }
+
+    @Test(groups = "stress")
+    public void testBusQueryPlans() throws Exception {
+        final String tableName = persistentBusConfig.getTableName();
+        final Date now = clock.getUTCNow().toDate();
+        final Date nextAvailable = clock.getUTCNow().plusMinutes(5).toDate();
+        final List<Long> processedRecordIds = getProcessedRecordIds(tableName);
+
+        final List<QueryCase> queryCases = new ArrayList<QueryCase>();
+        queryCases.add(new QueryCase("bus.getReadyEntries", tableName, SortExpectation.NO_SORT, PRIMARY_KEY, "idx_bus_keyset") {
+            @Override
+            public void run() {
+                busSqlDao.getReadyEntries(now, 10, null, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("bus.getReadyEntries (sticky)", tableName, SortExpectation.NO_SORT, PRIMARY_KEY, "idx_bus_keyset") {
+            @Override
+            public void run() {
+                busSqlDao.getReadyEntries(now, 10, "host-1", tableName);
+            }
+        });
+        // Range scan from the cursor, in record_id order (either on the primary key or on the covering idx_bus_keyset)
+        queryCases.add(new QueryCase("bus.getReadyRecordIdsFromRecordId", tableName, SortExpectation.NO_SORT, PRIMARY_KEY, "idx_bus_keyset") {
+            @Override
+            public void run() {
+                busSqlDao.getReadyRecordIdsFromRecordId(now, 10, (long) NB_ROWS / 2, null, tableName);
+            }
+        });
+        // Already processed entries: nothing is claimed, but the statement is the same
+        queryCases.add(new QueryCase("bus.claimEntry", tableName, SortExpectation.NO_SORT, PRIMARY_KEY) {
+            @Override
+            public void run() {
+                busSqlDao.claimEntry(processedRecordIds.get(0), now, "host-1", nextAvailable, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("bus.claimEntries", tableName, SortExpectation.NO_SORT, PRIMARY_KEY) {
+            @Override
+            public void run() {
+                busSqlDao.claimEntries(processedRecordIds, now, "host-1", nextAvailable, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("bus.getReadyQueueEntriesForSearchKeys", tableName, SortExpectation.SORT_ALLOWED, "bus_events_search_keys") {
+            @Override
+            public void run() {
+                busSqlDao.getReadyQueueEntriesForSearchKeys(1L, 12L, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("bus.getReadyQueueEntriesForSearchKey2", tableName, SortExpectation.SORT_ALLOWED, "bus_events_search_keys") {
+            @Override
+            public void run() {
+                busSqlDao.getReadyQueueEntriesForSearchKey2(12L, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("bus.getInProcessingEntries", tableName, SortExpectation.SORT_ALLOWED, "idx_bus_where") {
+            @Override
+            public void run() {
+                busSqlDao.getInProcessingEntries(tableName);
+            }
+        });
+
+        checkQueryPlans(queryCases);
+    }
+
+    @Test(groups = "stress")
+    public void testNotificationQueryPlans() throws Exception {
+        final String tableName = notificationQueueConfig.getTableName();
+        final Date now = clock.getUTCNow().toDate();
+        final Date nextAvailable = clock.getUTCNow().plusMinutes(5).toDate();
+        final List<Long> processedRecordIds = getProcessedRecordIds(tableName);
+
+        final List<QueryCase> queryCases = new ArrayList<QueryCase>();
+        queryCases.add(new QueryCase("notifications.getReadyEntries", tableName, SortExpectation.NO_SORT_WITH_INNODB, "idx_get_ready", "idx_comp_where") {
+            @Override
+            public void run() {
+                notificationSqlDao.getReadyEntries(now, 10, null, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("notifications.getReadyEntries (sticky)", tableName, SortExpectation.NO_SORT_WITH_INNODB, "idx_get_ready", "idx_comp_where") {
+            @Override
+            public void run() {
+                notificationSqlDao.getReadyEntries(now, 10, "host-1", tableName);
+            }
+        });
+        queryCases.add(new QueryCase("notifications.claimEntry", tableName, SortExpectation.NO_SORT, PRIMARY_KEY) {
+            @Override
+            public void run() {
+                notificationSqlDao.claimEntry(processedRecordIds.get(0), now, "host-1", nextAvailable, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("notifications.claimEntries", tableName, SortExpectation.NO_SORT, PRIMARY_KEY) {
+            @Override
+            public void run() {
+                notificationSqlDao.claimEntries(processedRecordIds, now, "host-1", nextAvailable, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("notifications.getReadyQueueEntriesForSearchKeys", tableName, SortExpectation.SORT_ALLOWED, "notifications_search_keys") {
+            @Override
+            public void run() {
+                notificationSqlDao.getReadyQueueEntriesForSearchKeys("svc:queue-1", 1L, 12L, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("notifications.getReadyQueueEntriesForSearchKey2", tableName, SortExpectation.SORT_ALLOWED, "notifications_search_keys") {
+            @Override
+            public void run() {
+                notificationSqlDao.getReadyQueueEntriesForSearchKey2("svc:queue-1", 12L, tableName);
+            }
+        });
+        queryCases.add(new QueryCase("notifications.getCountReadyEntries", tableName, SortExpectation.SORT_ALLOWED, "notifications_search_keys") {
+            @Override
+            public void run() {
+                notificationSqlDao.getCountReadyEntries(1L, 12L, now, tableName);
+            }
+        });
+
+        checkQueryPlans(queryCases);
+    }
+
+    private void checkQueryPlans(final Iterable<QueryCase> queryCases) throws SQLException {
+        final List<String> regressions = new ArrayList<String>();
+        for (final QueryCase queryCase : queryCases) {
+            // First run also records the statement
+            queryCase.run();
+            final RecordedStatement statement = recordingStatementBuilderFactory.getLastStatement();
+
+            long totalNanos = 0;
+            long maxNanos = 0;
+            for (int i = 0; i < NB_TIMED_ITERATIONS; i++) {
+                final long startNanos = System.nanoTime();
+                queryCase.run();
+                final long durationNanos = System.nanoTime() - startNanos;
+                totalNanos += durationNanos;
+                maxNanos = Math.max(maxNanos, durationNanos);
+            }
+
+            final QueryPlan plan = explain(statement, queryCase.tableName);
+            logger.info("{}: avg={} ms, max={} ms, indexes={}, fullScan={}, sort={}\n{}",
+                        queryCase.name,
+                        TimeUnit.NANOSECONDS.toMillis(totalNanos / NB_TIMED_ITERATIONS),
+                        TimeUnit.NANOSECONDS.toMillis(maxNanos),
+                        plan.indexes,
+                        plan.isFullScan,
+                        plan.isSorted,
+                        plan.rawPlan);
+
+            if (plan.isFullScan) {
+                regressions.add(queryCase.name + " scans the whole table: " + plan.rawPlan);
+            } else if (!queryCase.isUsingExpectedIndex(plan)) {
+                regressions.add(queryCase.name + " doesn't use any of the indexes " + queryCase.expectedIndexes + ": " + plan.rawPlan);
+            } else if (plan.isSorted && !queryCase.sortExpectation.isSortAllowed(isMySQL)) {
+                regressions.add(queryCase.name + " sorts the rows instead of using an index: " + plan.rawPlan);
+            }
+        }
+        Assert.assertTrue(regressions.isEmpty(), Joiner.on('\n').join(regressions));
+    }
+
+    private List<Long> getProcessedRecordIds(final String tableName) {
+        final Handle handle = dbi.open();
+        try {
+            return handle.createQuery("select record_id from " + tableName + " where processing_state = 'PROCESSED' order by record_id limit 10")
+                         .mapTo(Long.class)
+                         .list();
+        } finally {
+            handle.close();
+        }
+    }
+
+    private QueryPlan explain(final RecordedStatement statement, final String tableName) throws SQLException {
+        String sql = statement.getSql();
+        int nbSkippedParameters = 0;
+        if (isMySQL) {
+            // EXPLAIN UPDATE requires MySQL 5.6, explain the equivalent SELECT instead
+            final Matcher matcher = MYSQL_UPDATE_PATTERN.matcher(sql);
+            if (matcher.matches()) {
+                nbSkippedParameters = countParameters(matcher.group(2));
+                sql = "select * from " + matcher.group(1) + " where " + matcher.group(3);
+            }
+        }
+
+        final Handle handle = dbi.open();
+        try {
+            final PreparedStatement explainStatement = handle.getConnection().prepareStatement("explain " + sql);
+            try {
+                statement.replay(explainStatement, nbSkippedParameters);
+                final ResultSet resultSet = explainStatement.executeQuery();
+                try {
+                    return isMySQL ? QueryPlan.fromMySQL(resultSet, tableName) : QueryPlan.fromH2(resultSet);
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                explainStatement.close();
+            }
+        } finally {
+            handle.close();
+        }
+    }
+
+    private static int countParameters(final String sql) {
+        int result = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static enum SortExpectation {
+        // The ordering comes from the index
+        NO_SORT,
+        // The ordering comes from the index plus the primary key, which InnoDB (but not H2) appends to secondary indexes
+        NO_SORT_WITH_INNODB,
+        // The query returns few rows (e.g. for one account), which can be sorted
+        SORT_ALLOWED;
+
+        private boolean isSortAllowed(final boolean isMySQL) {
+            return this == SORT_ALLOWED || (this == NO_SORT_WITH_INNODB && !isMySQL);
+        }
+    }
+
+    private abstract static class QueryCase {
+
+        private final String name;
+        private final String tableName;
+        private final SortExpectation sortExpectation;
+        // Another index could still be selective enough, but a range over most of the table doesn't show up as a full scan
+        private final List<String> expectedIndexes;
+
+        private QueryCase(final String name, final String tableName, final SortExpectation sortExpectation, final String... expectedIndexes) {
+            this.name = name;
+            this.tableName = tableName;
+            this.sortExpectation = sortExpectation;
+            this.expectedIndexes = ImmutableList.<String>copyOf(expectedIndexes);
+        }
+
+        private boolean isUsingExpectedIndex(final QueryPlan plan) {
+            for (final String index : plan.indexes) {
+                // The name of the primary key index is generated by H2 (PRIMARY_KEY_xx)
+                if (expectedIndexes.contains(index) || (expectedIndexes.contains(PRIMARY_KEY) && index.startsWith(PRIMARY_KEY))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public abstract void run();
+    }
+
+    private static final class QueryPlan {
+
+        private final Set<String> indexes;
+        private final boolean isFullScan;
+        private final boolean isSorted;
+        private final String rawPlan;
+
+        private QueryPlan(final Set<String> indexes, final boolean isFullScan, final boolean isSorted, final String rawPlan) {
+            this.indexes = indexes;
+            this.isFullScan = isFullScan;
+            this.isSorted = isSorted;
+            this.rawPlan = rawPlan;
+        }
+
+        // One row per table: type ALL is a full scan, the sort shows up as "Using filesort" in the Extra column
+        private static QueryPlan fromMySQL(final ResultSet resultSet, final String tableName) throws SQLException {
+            final Set<String> indexes = new LinkedHashSet<String>();
+            boolean isFullScan = false;
+            boolean isSorted = false;
+            final StringBuilder rawPlan = new StringBuilder();
+            while (resultSet.next()) {
+                final String table = resultSet.getString("table");
+                final String type = resultSet.getString("type");
+                final String key = resultSet.getString("key");
+                final String extra = resultSet.getString("Extra");
+                rawPlan.append(table).append(" type=").append(type).append(" key=").append(key).append(" rows=").append(resultSet.getString("rows")).append(" extra=").append(extra).append('\n');
+
+                if (!tableName.equalsIgnoreCase(table)) {
+                    continue;
+                }
+                if (key != null) {
+                    indexes.add(key.toLowerCase(Locale.ENGLISH));
+                }
+                isFullScan = isFullScan || "ALL".equalsIgnoreCase(type);
+                isSorted = isSorted || (extra != null && extra.contains("filesort"));
+            }
+            return new QueryPlan(indexes, isFullScan, isSorted, rawPlan.toString());
+        }
+
+        // Single PLAN column: the access path is a comment after the table name (tableScan or the index used),
+        // and an ORDER BY satisfied by the index is flagged "index sorted"
+        private static QueryPlan fromH2(final ResultSet resultSet) throws SQLException {
+            final StringBuilder rawPlan = new StringBuilder();
+            while (resultSet.next()) {
+                rawPlan.append(resultSet.getString(1)).append('\n');
+            }
+            final String plan = rawPlan.toString();
+
+            final Set<String> indexes = new LinkedHashSet<String>();
+            final Matcher matcher = H2_INDEX_PATTERN.matcher(plan);
+            while (matcher.find()) {
+                indexes.add(matcher.group(1).toLowerCase(Locale.ENGLISH));
+            }
+            final boolean isFullScan = plan.contains(".tableScan");
+            final boolean isSorted = plan.contains("ORDER BY") && !plan.contains("index sorted");
+            return new QueryPlan(indexes, isFullScan, isSorted, plan);
+        }
+    }
+}